@@ -0,0 +1,85 @@
+package irate.jmh;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.function.IntToLongFunction;
+
+/**
+ * A BenchmarkFixture of the project, created by name. The project's classes
+ * are in the default package, which a benchmark cannot import, so the
+ * fixture's methods are called reflectively; the calls they return are
+ * JDK functional interfaces and are made directly.
+ *
+ * The data directory is the irate.benchdata system property, by default
+ * benchdata in the working directory.
+ */
+final class Fixture implements AutoCloseable {
+
+	/** data directory of the datasets and databases */
+	static final String DATA_DIR = System.getProperty("irate.benchdata", "benchdata");
+
+	private final Object target;
+
+	/**
+	 * @param reviews the number of reviews of the dataset
+	 */
+	Fixture(int reviews) throws Exception {
+		try {
+			target = Class.forName("BenchmarkFixture")
+					.getConstructor(String.class, int.class)
+					.newInstance(DATA_DIR, reviews);
+		} catch (InvocationTargetException ex) {
+			throw rethrow(ex);
+		}
+	}
+
+	void create() throws Exception {
+		invoke("create");
+	}
+
+	long ingest() throws Exception {
+		return (Long) invoke("ingest");
+	}
+
+	@SuppressWarnings("unchecked")
+	Map<String, IntToLongFunction> functions() throws Exception {
+		return (Map<String, IntToLongFunction>) invoke("functions");
+	}
+
+	@SuppressWarnings("unchecked")
+	Map<String, Callable<Object>> queries() throws Exception {
+		return (Map<String, Callable<Object>>) invoke("queries");
+	}
+
+	@Override
+	public void close() throws Exception {
+		invoke("close");
+	}
+
+	/**
+	 * Gets a call by name, or fails if the fixture has none of that name.
+	 */
+	static <T> T get(Map<String, T> calls, String name) {
+		T call = calls.get(name);
+		if (call == null) {
+			throw new IllegalArgumentException(name + " is not one of " + calls.keySet());
+		}
+		return call;
+	}
+
+	private Object invoke(String method) throws Exception {
+		try {
+			return target.getClass().getMethod(method).invoke(target);
+		} catch (InvocationTargetException ex) {
+			throw rethrow(ex);
+		}
+	}
+
+	private static Exception rethrow(InvocationTargetException ex) {
+		if (ex.getCause() instanceof Exception) {
+			return (Exception) ex.getCause();
+		}
+		return ex;
+	}
+}
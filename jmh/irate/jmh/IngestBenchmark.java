@@ -0,0 +1,72 @@
+package irate.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Ingest throughput: each iteration loads a dataset into a fresh database
+ * with BulkLoader and inserts its endorsements, as Modelling -bulk does.
+ * A load takes far longer than the iteration time, so every iteration is
+ * one load; the score is loads/sec and the rows counter gives rows/sec.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 1, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 3, time = 1, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+@State(Scope.Thread)
+public class IngestBenchmark {
+
+	@Param({"10000", "1000000", "10000000"})
+	public int reviews;
+
+	private Fixture fixture;
+
+	/**
+	 * Rows inserted in an iteration.
+	 */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Rows {
+		public long rows;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			rows = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void open() throws Exception {
+		fixture = new Fixture(reviews);
+	}
+
+	@Setup(Level.Iteration)
+	public void create() throws Exception {
+		fixture.create();
+	}
+
+	@Benchmark
+	public void ingest(Rows rows) throws Exception {
+		rows.rows += fixture.ingest();
+	}
+
+	@TearDown(Level.Trial)
+	public void close() throws Exception {
+		fixture.close();
+	}
+}
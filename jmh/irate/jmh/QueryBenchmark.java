@@ -0,0 +1,60 @@
+package irate.jmh;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of each Queries method on a loaded dataset, through the default
+ * ConnectionPool. Sampled times give the latency percentiles. Each trial
+ * loads its own database.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class QueryBenchmark {
+
+	@Param({"10000", "1000000", "10000000"})
+	public int reviews;
+
+	@Param({"totalReviews", "highestRated", "mostReviews", "mostReviewedMovies", "mostReviewedPage",
+			"mostReviewedDeepPage", "topRatedPage", "bestRated", "mostEndorsements", "endorsementPrize"})
+	public String query;
+
+	private Fixture fixture;
+	private Callable<Object> call;
+
+	@Setup(Level.Trial)
+	public void load() throws Exception {
+		fixture = new Fixture(reviews);
+		fixture.create();
+		fixture.ingest();
+		call = Fixture.get(fixture.queries(), query);
+	}
+
+	@Benchmark
+	public Object latency() throws Exception {
+		return call.call();
+	}
+
+	@TearDown(Level.Trial)
+	public void close() throws Exception {
+		fixture.close();
+	}
+}
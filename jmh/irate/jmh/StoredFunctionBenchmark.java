@@ -0,0 +1,61 @@
+package irate.jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntToLongFunction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of each StoredFunctions check called directly, on arguments drawn
+ * from a loaded dataset, in ns/op. Each trial loads its own database.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StoredFunctionBenchmark {
+
+	@Param({"10000", "1000000", "10000000"})
+	public int reviews;
+
+	@Param({"isUuid", "withinDays", "isValidEndorsement", "verifyAttendance", "isOnlyReview",
+			"checkLastEndorsementDate"})
+	public String function;
+
+	private Fixture fixture;
+	private IntToLongFunction op;
+	private int i;
+
+	@Setup(Level.Trial)
+	public void load() throws Exception {
+		fixture = new Fixture(reviews);
+		fixture.create();
+		fixture.ingest();
+		// binds the database to this thread, which makes the calls
+		op = Fixture.get(fixture.functions(), function);
+	}
+
+	@Benchmark
+	public long call() {
+		return op.applyAsLong(i++);
+	}
+
+	@TearDown(Level.Trial)
+	public void close() throws Exception {
+		fixture.close();
+	}
+}
@@ -0,0 +1,605 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-only copy of the Review and Endorsement tables held in columns of
+ * primitive arrays, for business intelligence queries that should not load
+ * the transactional database. CustomerIDs, MovieIDs and endorsed ReviewIDs
+ * are dictionary encoded to dense ints by {@link IdDictionary}, ratings are
+ * stored as bytes and dates as epoch days (see StoredFunctions.epochDay), so
+ * 10 million reviews take about 130 MB and an aggregate is a scan of a few
+ * arrays. The scans are split over the common ForkJoinPool.
+ *
+ * A snapshot is exported by {@link #refresh}, on demand or at a fixed period
+ * with {@link #startRefresh}, and replaces the current one when it is
+ * complete, so queries never see a partial export. The tables are read
+ * at read committed, so the scans only lock the row they are on and
+ * writers do not wait for the export. The Endorsement partitions are read
+ * before Review, and the endorsements of reviews that the Review scan did
+ * not see, because they were deleted in between, are dropped, so every
+ * endorsement of the snapshot is of one of its reviews. The answers are
+ * those of the corresponding Queries methods over the reviews at the time
+ * of the Review scan and the endorsements at the time of the earlier scans.
+ *
+ * Usage: AnalyticsSnapshot [yyyy-mm-dd]
+ */
+public class AnalyticsSnapshot {
+
+	/** reads the reviews */
+	static final String REVIEW_ROWS =
+			"select CustomerID, MovieID, ReviewDate, Rating, "	// the columns of the snapshot
+			+ "ReviewID "										// to match the endorsed reviews
+			+ "from Review";									// of every review
+
+	/** reads the endorsements with the author of each endorsed review */
+	static final String ENDORSEMENT_ROWS =
+			"select e.ReviewID, r.CustomerID, e.EndorserID, e.EndorsementDate "	// the endorsed review and its author
+			+ "from %s e "														// from the Endorsement table or a partition
+			+ "join Review r on r.ReviewID = e.ReviewID";						// the author, through the ReviewID index
+
+	/** rows fetched at a time by the export */
+	static final int FETCH_SIZE = 1000;
+
+	/** the fewest rows scanned by one fork-join task */
+	static final int SCAN_THRESHOLD = 1 << 16;
+
+	// the latest complete snapshot, or null before the first export
+	private static volatile AnalyticsSnapshot current;
+
+	// the periodic export, if started
+	private static ScheduledExecutorService refresher;
+
+	/**
+	 * A growable column of ints.
+	 */
+	private static class IntColumn {
+		private int[] values = new int[1024];
+		private int size;
+
+		void add(int value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		/**
+		 * Keeps the values at the kept indexes, in order.
+		 */
+		void retain(BitSet kept) {
+			int n = 0;
+			for (int i = kept.nextSetBit(0); i >= 0 && i < size; i = kept.nextSetBit(i + 1)) {
+				values[n++] = values[i];
+			}
+			size = n;
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+
+	/**
+	 * A growable column of bytes.
+	 */
+	private static class ByteColumn {
+		private byte[] values = new byte[1024];
+		private int size;
+
+		void add(byte value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		byte[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+
+	// dictionaries: code -> ID
+	private final String[] customerIds;
+	private final String[] movieIds;
+	private final String[] reviewIds;
+
+	// the author of each endorsed review, by review code
+	private final int[] reviewAuthor;
+
+	// Review columns, one entry per review
+	private final int[] reviewCustomer;
+	private final int[] reviewMovie;
+	private final byte[] reviewRating;
+	private final int[] reviewDay;
+
+	// Endorsement columns, one entry per endorsement
+	private final int[] endorsementReview;
+	private final int[] endorsementEndorser;
+	private final int[] endorsementDay;
+
+	/** the time the export started, in milliseconds since the epoch */
+	final long exportedAt;
+
+	/** the time the export took, in milliseconds */
+	final long exportMillis;
+
+	// the per movie aggregates, computed on first use
+	private volatile MovieTotals movieTotals;
+
+	private AnalyticsSnapshot(IdDictionary customers, IdDictionary movies, IdDictionary reviews, IntColumn authors,
+			IntColumn reviewCustomer, IntColumn reviewMovie, ByteColumn reviewRating, IntColumn reviewDay,
+			IntColumn endorsementReview, IntColumn endorsementEndorser, IntColumn endorsementDay,
+			long exportedAt, long exportMillis) {
+		this.customerIds = customers.ids();
+		this.movieIds = movies.ids();
+		this.reviewIds = reviews.ids();
+		this.reviewAuthor = authors.toArray();
+		this.reviewCustomer = reviewCustomer.toArray();
+		this.reviewMovie = reviewMovie.toArray();
+		this.reviewRating = reviewRating.toArray();
+		this.reviewDay = reviewDay.toArray();
+		this.endorsementReview = endorsementReview.toArray();
+		this.endorsementEndorser = endorsementEndorser.toArray();
+		this.endorsementDay = endorsementDay.toArray();
+		this.exportedAt = exportedAt;
+		this.exportMillis = exportMillis;
+	}
+
+	/**
+	 * Exports the Review and Endorsement tables into a new snapshot, at read
+	 * committed. The auto-commit mode and isolation level of the connection
+	 * are restored afterwards.
+	 *
+	 * @param conn the connection
+	 * @return the snapshot
+	 * @throws SQLException if a database operation fails
+	 */
+	static AnalyticsSnapshot export(Connection conn) throws SQLException {
+		long exportedAt = System.currentTimeMillis();
+		long start = System.nanoTime();
+		IdDictionary customers = new IdDictionary();
+		IdDictionary movies = new IdDictionary();
+		IdDictionary reviews = new IdDictionary();
+		IntColumn authors = new IntColumn();
+		IntColumn reviewCustomer = new IntColumn();
+		IntColumn reviewMovie = new IntColumn();
+		ByteColumn reviewRating = new ByteColumn();
+		IntColumn reviewDay = new IntColumn();
+		IntColumn endorsementReview = new IntColumn();
+		IntColumn endorsementEndorser = new IntColumn();
+		IntColumn endorsementDay = new IntColumn();
+
+		boolean autoCommit = conn.getAutoCommit();
+		int isolation = conn.getTransactionIsolation();
+		conn.setAutoCommit(false);
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+		try (Statement stmt = conn.createStatement()) {
+			stmt.setFetchSize(FETCH_SIZE);
+			for (String table : DatePartitions.tables(conn, DatePartitions.ENDORSEMENT, null, null)) {
+				try (ResultSet rs = stmt.executeQuery(String.format(ENDORSEMENT_ROWS, table))) {
+					while (rs.next()) {
+						int review = reviews.add(BinaryIds.getId(rs, 1));
+						if (review == authors.size) {
+							// first endorsement of the review
+							authors.add(customers.add(BinaryIds.getId(rs, 2)));
+						}
+						endorsementReview.add(review);
+						endorsementEndorser.add(customers.add(BinaryIds.getId(rs, 3)));
+						endorsementDay.add((int) StoredFunctions.epochDay(rs.getDate(4)));
+					}
+				}
+			}
+			// the endorsed reviews that are still there
+			BitSet exported = new BitSet(reviews.size());
+			try (ResultSet rs = stmt.executeQuery(REVIEW_ROWS)) {
+				while (rs.next()) {
+					reviewCustomer.add(customers.add(BinaryIds.getId(rs, 1)));
+					reviewMovie.add(movies.add(BinaryIds.getId(rs, 2)));
+					reviewDay.add((int) StoredFunctions.epochDay(rs.getDate(3)));
+					reviewRating.add((byte) rs.getInt(4));
+					if (reviews.size() > 0) {
+						int review = reviews.find(BinaryIds.getId(rs, 5));
+						if (review >= 0) {
+							exported.set(review);
+						}
+					}
+				}
+			}
+			conn.commit();
+
+			// drop the endorsements of reviews deleted before the Review scan
+			if (exported.cardinality() < reviews.size()) {
+				BitSet kept = new BitSet(endorsementReview.size);
+				for (int i = 0; i < endorsementReview.size; i++) {
+					kept.set(i, exported.get(endorsementReview.values[i]));
+				}
+				endorsementReview.retain(kept);
+				endorsementEndorser.retain(kept);
+				endorsementDay.retain(kept);
+			}
+		} catch (SQLException ex) {
+			conn.rollback();
+			throw ex;
+		} finally {
+			conn.setTransactionIsolation(isolation);
+			conn.setAutoCommit(autoCommit);
+		}
+		return new AnalyticsSnapshot(customers, movies, reviews, authors,
+				reviewCustomer, reviewMovie, reviewRating, reviewDay,
+				endorsementReview, endorsementEndorser, endorsementDay,
+				exportedAt, (System.nanoTime() - start) / 1_000_000);
+	}
+
+	/**
+	 * Exports a new snapshot and makes it the current one.
+	 *
+	 * @param conn the connection
+	 * @return the new snapshot
+	 * @throws SQLException if a database operation fails
+	 */
+	public static synchronized AnalyticsSnapshot refresh(Connection conn) throws SQLException {
+		AnalyticsSnapshot snapshot = export(conn);
+		current = snapshot;
+		return snapshot;
+	}
+
+	/**
+	 * @return the latest complete snapshot, or null if none was exported
+	 */
+	public static AnalyticsSnapshot current() {
+		return current;
+	}
+
+	/**
+	 * Forgets the current snapshot, when its database is replaced.
+	 */
+	public static void clear() {
+		current = null;
+	}
+
+	/**
+	 * Exports a snapshot now and then at a fixed period, from a daemon
+	 * thread with its own connection. A failed export is printed and the
+	 * previous snapshot kept.
+	 *
+	 * @param url the database URL
+	 * @param props the connection properties
+	 * @param periodSeconds the time between exports
+	 */
+	public static synchronized void startRefresh(String url, Properties props, long periodSeconds) {
+		stopRefresh();
+		refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "analytics-snapshot");
+			thread.setDaemon(true);
+			return thread;
+		});
+		refresher.scheduleAtFixedRate(() -> {
+			try (Connection conn = DriverManager.getConnection(url, props)) {
+				refresh(conn);
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}, 0, periodSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stops the periodic export, if started.
+	 */
+	public static synchronized void stopRefresh() {
+		if (refresher != null) {
+			refresher.shutdownNow();
+			refresher = null;
+		}
+	}
+
+	/**
+	 * The review count, rating sum and highest rating of each movie, by
+	 * movie code.
+	 */
+	private static class MovieTotals {
+		final int[] counts;
+		final long[] sums;
+		final byte[] maxRatings;
+
+		MovieTotals(int movies) {
+			counts = new int[movies];
+			sums = new long[movies];
+			maxRatings = new byte[movies];
+			Arrays.fill(maxRatings, Byte.MIN_VALUE);
+		}
+
+		MovieTotals merge(MovieTotals other) {
+			for (int m = 0; m < counts.length; m++) {
+				counts[m] += other.counts[m];
+				sums[m] += other.sums[m];
+				maxRatings[m] = (byte) Math.max(maxRatings[m], other.maxRatings[m]);
+			}
+			return this;
+		}
+	}
+
+	/**
+	 * The number of rows a task scans without splitting: at least
+	 * SCAN_THRESHOLD, and a few tasks per worker, so that the per task
+	 * arrays of the movie scan stay few.
+	 */
+	private static int threshold(int rows) {
+		return Math.max(SCAN_THRESHOLD, rows / (4 * ForkJoinPool.getCommonPoolParallelism()));
+	}
+
+	/**
+	 * Sums the reviews of a range of rows by movie.
+	 */
+	private class MovieScan extends RecursiveTask<MovieTotals> {
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+		private final int to;
+		private final int threshold;
+
+		MovieScan(int from, int to, int threshold) {
+			this.from = from;
+			this.to = to;
+			this.threshold = threshold;
+		}
+
+		@Override
+		protected MovieTotals compute() {
+			if (to - from <= threshold) {
+				MovieTotals totals = new MovieTotals(movieIds.length);
+				for (int i = from; i < to; i++) {
+					int movie = reviewMovie[i];
+					byte rating = reviewRating[i];
+					totals.counts[movie]++;
+					totals.sums[movie] += rating;
+					if (rating > totals.maxRatings[movie]) {
+						totals.maxRatings[movie] = rating;
+					}
+				}
+				return totals;
+			}
+			int mid = (from + to) >>> 1;
+			MovieScan left = new MovieScan(from, mid, threshold);
+			left.fork();
+			MovieTotals right = new MovieScan(mid, to, threshold).compute();
+			return left.join().merge(right);
+		}
+	}
+
+	/**
+	 * Gets the values of the rows of a range dated on a day.
+	 */
+	private static class DayScan extends RecursiveTask<int[]> {
+		private static final long serialVersionUID = 1L;
+
+		private final int[] days;
+		private final int[] values;
+		private final int day;
+		private final int from;
+		private final int to;
+		private final int threshold;
+
+		DayScan(int[] days, int[] values, int day, int from, int to, int threshold) {
+			this.days = days;
+			this.values = values;
+			this.day = day;
+			this.from = from;
+			this.to = to;
+			this.threshold = threshold;
+		}
+
+		@Override
+		protected int[] compute() {
+			if (to - from <= threshold) {
+				IntColumn found = new IntColumn();
+				for (int i = from; i < to; i++) {
+					if (days[i] == day) {
+						found.add(values[i]);
+					}
+				}
+				return found.toArray();
+			}
+			int mid = (from + to) >>> 1;
+			DayScan left = new DayScan(days, values, day, from, mid, threshold);
+			left.fork();
+			int[] right = new DayScan(days, values, day, mid, to, threshold).compute();
+			int[] found = left.join();
+			int[] all = Arrays.copyOf(found, found.length + right.length);
+			System.arraycopy(right, 0, all, found.length, right.length);
+			return all;
+		}
+	}
+
+	private MovieTotals movieTotals() {
+		MovieTotals totals = movieTotals;
+		if (totals == null) {
+			totals = ForkJoinPool.commonPool().invoke(new MovieScan(0, reviewMovie.length, threshold(reviewMovie.length)));
+			movieTotals = totals;
+		}
+		return totals;
+	}
+
+	/**
+	 * Counts the endorsements on a day by a column of the endorsements.
+	 *
+	 * @param codes the review or endorser of each endorsement
+	 * @param size the number of codes
+	 * @return the count of each code
+	 */
+	private int[] endorsementsOn(LocalDate day, int[] codes, int size) {
+		int[] found = ForkJoinPool.commonPool().invoke(new DayScan(endorsementDay, codes,
+				(int) day.toEpochDay(), 0, codes.length, threshold(codes.length)));
+		int[] counts = new int[size];
+		for (int code : found) {
+			counts[code]++;
+		}
+		return counts;
+	}
+
+	/**
+	 * Sorts movie codes by a key, descending, then by MovieID.
+	 */
+	private List<Integer> rank(long[] keys, int n) {
+		List<Integer> movies = new ArrayList<>();
+		MovieTotals totals = movieTotals();
+		for (int m = 0; m < movieIds.length; m++) {
+			if (totals.counts[m] > 0) {
+				movies.add(m);
+			}
+		}
+		movies.sort((a, b) -> keys[a] != keys[b] ? Long.compare(keys[b], keys[a]) : movieIds[a].compareTo(movieIds[b]));
+		return movies.subList(0, Math.min(n, movies.size()));
+	}
+
+	/**
+	 * @return the number of reviews, as Queries.totalReviews
+	 */
+	public long totalReviews() {
+		return reviewMovie.length;
+	}
+
+	/**
+	 * Gets the highest rating of the reviewed movies, from the highest rating
+	 * down and then by MovieID, as Queries.highestRatedMovies.
+	 *
+	 * @param n the number of movies
+	 * @return at most n movies
+	 */
+	public List<Queries.MovieRating> highestRated(int n) {
+		MovieTotals totals = movieTotals();
+		long[] keys = new long[movieIds.length];
+		for (int m = 0; m < keys.length; m++) {
+			keys[m] = totals.maxRatings[m];
+		}
+		List<Queries.MovieRating> movies = new ArrayList<>();
+		for (int m : rank(keys, n)) {
+			movies.add(new Queries.MovieRating(movieIds[m], totals.maxRatings[m]));
+		}
+		return movies;
+	}
+
+	/**
+	 * Gets the reviewed movies from the most reviews to the fewest and then
+	 * by MovieID, as Queries.mostReviewedMovies.
+	 *
+	 * @param n the number of movies
+	 * @return at most n movies
+	 */
+	public List<Queries.MovieReviews> mostReviews(int n) {
+		MovieTotals totals = movieTotals();
+		long[] keys = new long[movieIds.length];
+		for (int m = 0; m < keys.length; m++) {
+			keys[m] = totals.counts[m];
+		}
+		List<Queries.MovieReviews> movies = new ArrayList<>();
+		for (int m : rank(keys, n)) {
+			movies.add(new Queries.MovieReviews(movieIds[m], totals.counts[m]));
+		}
+		return movies;
+	}
+
+	/**
+	 * Gets the author of the review with the most endorsements on a day, as
+	 * Queries.mostEndorsements: ties are broken by the draw of the
+	 * TopEndorsed engine with the same seed.
+	 *
+	 * @param day the day
+	 * @param seed the seed of the tie-break draw
+	 * @return the CustomerID of the author, or null if there are no endorsements
+	 */
+	public String mostEndorsements(LocalDate day, long seed) {
+		int[] counts = endorsementsOn(day, endorsementReview, reviewIds.length);
+		int best = -1;
+		long bestKey = 0;
+		for (int r = 0; r < counts.length; r++) {
+			if (counts[r] == 0) {
+				continue;
+			}
+			long key = TopEndorsed.tieKey(seed, day, reviewIds[r]);
+			if (best < 0 || counts[r] > counts[best]
+					|| counts[r] == counts[best] && (key > bestKey
+							|| key == bestKey && reviewIds[r].compareTo(reviewIds[best]) > 0)) {
+				best = r;
+				bestKey = key;
+			}
+		}
+		return best < 0 ? null : customerIds[reviewAuthor[best]];
+	}
+
+	/**
+	 * Gets the endorser with the most endorsements on a day, if more than one,
+	 * and then the lowest EndorserID, as Queries.endorsementPrize.
+	 *
+	 * @param day the day
+	 * @return the EndorserID, or null if no one endorsed twice
+	 */
+	public String endorsementPrize(LocalDate day) {
+		int[] counts = endorsementsOn(day, endorsementEndorser, customerIds.length);
+		int best = -1;
+		for (int c = 0; c < counts.length; c++) {
+			if (counts[c] < 2) {
+				continue;
+			}
+			if (best < 0 || counts[c] > counts[best]
+					|| counts[c] == counts[best] && customerIds[c].compareTo(customerIds[best]) < 0) {
+				best = c;
+			}
+		}
+		return best < 0 ? null : customerIds[best];
+	}
+
+	/**
+	 * @return the bytes held by the columns, not counting the dictionaries
+	 */
+	public long columnBytes() {
+		return 4L * (reviewCustomer.length + reviewMovie.length + reviewDay.length + reviewAuthor.length
+				+ endorsementReview.length + endorsementEndorser.length + endorsementDay.length)
+				+ reviewRating.length;
+	}
+
+	/**
+	 * @return the row and dictionary sizes, memory and export time of the snapshot
+	 */
+	public String stats() {
+		return String.format("Analytics snapshot: %d reviews, %d endorsements, %d customers, %d movies,"
+				+ " %d endorsed reviews; columns %.1f MB; exported in %d ms",
+				reviewMovie.length, endorsementReview.length, customerIds.length, movieIds.length,
+				reviewIds.length, columnBytes() / (1024.0 * 1024.0), exportMillis);
+	}
+
+	/**
+	 * Exports a snapshot of the iRate database and prints its aggregates.
+	 */
+	public static void main(String[] args) {
+		LocalDate day = args.length > 0 ? LocalDate.parse(args[0]) : LocalDate.now();
+		Properties props = new Properties(); // connection properties
+		props.put("user", "user1");
+		props.put("password", "user1");
+		try (Connection conn = DriverManager.getConnection("jdbc:derby:irate", props)) {
+			AnalyticsSnapshot snapshot = refresh(conn);
+			System.out.println(snapshot.stats());
+			System.out.println("Total # of reviews: " + snapshot.totalReviews());
+			System.out.println("Highest rated movies: " + snapshot.highestRated(10));
+			System.out.println("Movies with the most reviews: " + snapshot.mostReviews(10));
+			System.out.println("Most endorsed author on " + day + ": "
+					+ snapshot.mostEndorsements(day, EndorsementEvents.topEndorsed().seed()));
+			System.out.println("Concession prize on " + day + ": " + snapshot.endorsementPrize(day));
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+}
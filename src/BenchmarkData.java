@@ -0,0 +1,243 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.UUID;
+
+/**
+ * Deterministic datasets for {@link BenchmarkSuite}. A dataset is fixed by
+ * its number of reviews and a seed, so the same scale generates the same
+ * rows on every machine and results can be compared across changes.
+ *
+ * Each line of the data file, in the format read by {@link BulkLoader}, is
+ * one review by a customer of a movie they attended on the same day:
+ * 	1) there is one customer per REVIEWS_PER_CUSTOMER reviews, and each
+ * 	   customer reviews that many different movies
+ * 	2) there is one movie per REVIEWS_PER_MOVIE reviews, at least
+ * 	   REVIEWS_PER_CUSTOMER movies
+ * 	3) ratings, texts and review dates, within DAYS days from FIRST_DAY,
+ * 	   are drawn from a hash of the seed and the review number
+ *
+ * Endorsements are not part of the data file; {@link #insertEndorsements}
+ * adds them on a given day, so that the prize queries of that day see them.
+ */
+public class BenchmarkData {
+
+	/** number of reviews written by each customer */
+	static final int REVIEWS_PER_CUSTOMER = 10;
+
+	/** average number of reviews of each movie */
+	static final int REVIEWS_PER_MOVIE = 100;
+
+	/** first review date */
+	static final LocalDate FIRST_DAY = LocalDate.of(2019, 1, 1);
+
+	/** number of days over which reviews are spread */
+	static final int DAYS = 365;
+
+	/** default seed of the generated values */
+	static final long DEFAULT_SEED = 42;
+
+	// words of the generated review texts
+	private static final String[] WORDS = {
+		"great", "slow", "funny", "long", "moving", "loud", "clever", "dull", "tense", "charming"
+	};
+
+	// high bits of the generated IDs of each kind
+	private static final long CUSTOMER = 1;
+	private static final long MOVIE = 3;
+	private static final long REVIEW = 2;
+
+	private final int reviews;
+	private final long seed;
+
+	/**
+	 * @param reviews the number of reviews, rounded down to a multiple of REVIEWS_PER_CUSTOMER
+	 * @param seed the seed of the generated values
+	 */
+	public BenchmarkData(int reviews, long seed) {
+		if (reviews < 2 * REVIEWS_PER_CUSTOMER) {
+			// endorsements need two customers
+			throw new IllegalArgumentException("at least " + 2 * REVIEWS_PER_CUSTOMER + " reviews are needed");
+		}
+		this.reviews = reviews - reviews % REVIEWS_PER_CUSTOMER;
+		this.seed = seed;
+	}
+
+	/**
+	 * @return the number of reviews
+	 */
+	public int reviews() {
+		return reviews;
+	}
+
+	/**
+	 * @return the number of customers
+	 */
+	public int customers() {
+		return reviews / REVIEWS_PER_CUSTOMER;
+	}
+
+	/**
+	 * @return the number of movies
+	 */
+	public int movies() {
+		return Math.max(REVIEWS_PER_CUSTOMER, reviews / REVIEWS_PER_MOVIE);
+	}
+
+	static String customerId(int customer) {
+		return new UUID(CUSTOMER, customer).toString();
+	}
+
+	static String movieId(int movie) {
+		return new UUID(MOVIE, movie).toString();
+	}
+
+	static String reviewId(int review) {
+		return new UUID(REVIEW, review).toString();
+	}
+
+	/**
+	 * Gets the author of a review.
+	 */
+	int customerOf(int review) {
+		return review % customers();
+	}
+
+	/**
+	 * Gets the movie of a review. The k-th review of a customer is of the
+	 * movie k strides of movies / REVIEWS_PER_CUSTOMER after the customer's
+	 * first, so a customer never reviews a movie twice.
+	 */
+	int movieOf(int review) {
+		int movies = movies();
+		int k = review / customers();
+		return (int) ((customerOf(review) + (long) k * (movies / REVIEWS_PER_CUSTOMER)) % movies);
+	}
+
+	/**
+	 * Mixes 64 bits (the MurmurHash3 finalizer).
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+		z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return z ^ (z >>> 33);
+	}
+
+	/**
+	 * Gets the random bits of a review, so that any review can be
+	 * regenerated without generating the ones before it.
+	 */
+	private long bits(int review) {
+		return mix(seed ^ mix(review));
+	}
+
+	/**
+	 * Gets the rating of a review, from 1 to 5.
+	 */
+	int rating(int review) {
+		return 1 + (int) Long.remainderUnsigned(bits(review), 5);
+	}
+
+	/**
+	 * Gets the date of a review, which is also the date of the attendance.
+	 */
+	LocalDate day(int review) {
+		return FIRST_DAY.plusDays(Long.remainderUnsigned(bits(review) >>> 8, DAYS));
+	}
+
+	/**
+	 * Gets the text of a review.
+	 */
+	String text(int review) {
+		long bits = bits(review) >>> 32;
+		return WORDS[(int) (bits % WORDS.length)] + " " + WORDS[(int) (bits / WORDS.length % WORDS.length)];
+	}
+
+	/**
+	 * Gets the data file of this dataset in a directory, writing it first if
+	 * it does not exist yet.
+	 *
+	 * @param dir the directory of the data files
+	 * @return the data file
+	 * @throws IOException if the file cannot be written
+	 */
+	public Path file(Path dir) throws IOException {
+		Path file = dir.resolve("reviews-" + reviews + "-" + seed + ".tsv");
+		if (Files.exists(file)) {
+			return file;
+		}
+		Files.createDirectories(dir);
+		Path partial = dir.resolve(file.getFileName() + ".partial");
+		try (BufferedWriter out = Files.newBufferedWriter(partial, StandardCharsets.UTF_8)) {
+			StringBuilder line = new StringBuilder(160);
+			for (int i = 0; i < reviews; i++) {
+				int customer = customerOf(i);
+				int movie = movieOf(i);
+				line.setLength(0);
+				line.append("Customer ").append(customer).append('\t')
+					.append('c').append(customer).append("@example.com").append('\t')
+					.append(customerId(customer)).append('\t')
+					.append("Movie ").append(movie).append('\t')
+					.append(movieId(movie)).append('\t')
+					.append(reviewId(i)).append('\t')
+					.append(rating(i)).append('\t')
+					.append(text(i)).append('\t')
+					.append(day(i)).append('\n');
+				out.append(line);
+			}
+		}
+		// a file that was only partly written is never reused
+		Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING);
+		return file;
+	}
+
+	/**
+	 * Inserts the endorsements of the dataset, all made on one day: each of
+	 * the first half of the customers endorses the first two reviews of the
+	 * next customer, which are of different movies.
+	 *
+	 * @param conn the connection, with the dataset loaded
+	 * @param day the endorsement date
+	 * @return the number of endorsements
+	 * @throws SQLException if a database operation fails
+	 */
+	public int insertEndorsements(Connection conn, Date day) throws SQLException {
+		int customers = customers();
+		int endorsers = Math.max(1, customers / 2);
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		// Endorsement may be partitioned by month
+		try (DatePartitions.Router router = new DatePartitions.Router(conn, DatePartitions.ENDORSEMENT,
+				"ReviewID, EndorserID, EndorsementDate")) {
+			PreparedStatement stmt = router.statement(day);
+			for (int endorser = 0; endorser < endorsers; endorser++) {
+				int author = (endorser + 1) % customers;
+				for (int k = 0; k < 2; k++) {
+					BinaryIds.setId(stmt, 1, reviewId(author + k * customers));
+					BinaryIds.setId(stmt, 2, customerId(endorser));
+					stmt.setDate(3, day);
+					stmt.addBatch();
+				}
+				if (endorser % 1000 == 999) {
+					router.executeBatch();
+				}
+			}
+			router.executeBatch();
+			DatePartitions.commit(conn);
+		} catch (SQLException ex) {
+			DatePartitions.rollback(conn);
+			throw ex;
+		} finally {
+			conn.setAutoCommit(autoCommit);
+		}
+		return 2 * endorsers;
+	}
+}
@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.function.IntToLongFunction;
+
+/**
+ * A database of one {@link BenchmarkData} scale, for the JMH benchmarks in
+ * the jmh source directory. JMH does not generate benchmarks for classes in
+ * the default package and a named package cannot import this project's
+ * classes, so the benchmarks create a fixture by name and only see the
+ * JDK types of its methods:
+ * 	1) create() makes a fresh, migrated database and ingest() loads the
+ * 	   dataset into it, as BenchmarkSuite does
+ * 	2) functions() gets the calls of each stored function, by name, on
+ * 	   a connection bound to the calling thread
+ * 	3) queries() gets the calls of each query, by name, on the default
+ * 	   ConnectionPool
+ *
+ * The data file is written once to the data directory and reused; the
+ * database is created in the data directory and deleted by close().
+ */
+public class BenchmarkFixture implements AutoCloseable {
+
+	private final BenchmarkData data;
+	private final Path file;
+	private final Path db;
+	private final String url;
+	private final Properties props = new Properties(); // connection properties
+	private final LocalDate today = LocalDate.now();
+
+	private Connection conn;
+
+	/**
+	 * @param dir the data directory
+	 * @param reviews the number of reviews of the dataset
+	 * @throws IOException if the data file cannot be written
+	 */
+	public BenchmarkFixture(String dir, int reviews) throws IOException {
+		data = new BenchmarkData(reviews, BenchmarkData.DEFAULT_SEED);
+		file = data.file(Paths.get(dir));
+		db = Paths.get(dir).resolve("jmh-db-" + reviews);
+		url = "jdbc:derby:" + db;
+		props.put("user", "user1");
+		props.put("password", "user1");
+	}
+
+	/**
+	 * Replaces the database with a fresh one of the current schema.
+	 *
+	 * @throws IOException if the old database cannot be deleted
+	 * @throws SQLException if the database cannot be created
+	 */
+	public void create() throws IOException, SQLException {
+		close();
+		BenchmarkSuite.reset(today);
+		conn = DriverManager.getConnection(url + ";create=true", props);
+		BenchmarkSuite.quietly(() -> {
+			SchemaMigrations.migrate(conn, false);
+			return null;
+		});
+	}
+
+	/**
+	 * Loads the dataset into the database.
+	 *
+	 * @return the number of rows inserted
+	 * @throws SQLException if a database operation fails
+	 */
+	public long ingest() throws SQLException {
+		return (Long) BenchmarkSuite.quietly(() -> {
+			try {
+				return BenchmarkSuite.ingest(conn, file, data, Date.valueOf(today));
+			} catch (IOException ex) {
+				throw new SQLException("Unable to read " + file, ex);
+			}
+		});
+	}
+
+	/**
+	 * Gets the calls of each stored function. The database is bound to the
+	 * calling thread, which must be the thread that makes the calls.
+	 */
+	public Map<String, IntToLongFunction> functions() {
+		FunctionContext.bind(conn);
+		Map<String, IntToLongFunction> functions = new LinkedHashMap<>();
+		for (Map.Entry<String, MicroBench.Op> function
+				: BenchmarkSuite.functionCalls(data, Date.valueOf(today)).entrySet()) {
+			functions.put(function.getKey(), function.getValue()::run);
+		}
+		return functions;
+	}
+
+	/**
+	 * Gets the calls of each query, with their output discarded. The
+	 * database becomes the default ConnectionPool.
+	 *
+	 * @throws SQLException if the pages of the deep page query cannot be read
+	 */
+	public Map<String, Callable<Object>> queries() throws SQLException {
+		ConnectionPool.setDefault(new ConnectionPool(url, props, ConnectionPool.DEFAULT_MAX_SIZE,
+				StatementCache.DEFAULT_SIZE));
+		Map<String, Callable<Object>> queries = new LinkedHashMap<>();
+		for (Map.Entry<String, BenchmarkSuite.Call> query : BenchmarkSuite.queryCalls().entrySet()) {
+			queries.put(query.getKey(), () -> BenchmarkSuite.quietly(query.getValue()));
+		}
+		return queries;
+	}
+
+	/**
+	 * Shuts down and deletes the database, if there is one.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (conn == null) {
+			return;
+		}
+		FunctionContext.bind(null);
+		ConnectionPool.setDefault(null);
+		try {
+			conn.close();
+		} catch (SQLException ex) {
+			ex.printStackTrace();
+		}
+		conn = null;
+		try {
+			DriverManager.getConnection(url + ";shutdown=true", props);
+		} catch (SQLException ex) {
+			// shutting down a database always reports an exception
+		}
+		BenchmarkSuite.delete(db);
+	}
+}
@@ -0,0 +1,370 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/**
+ * Benchmark suite for the iRate database on embedded Derby. For each scale,
+ * a fresh database is created by SchemaMigrations.migrate and loaded
+ * with the {@link BenchmarkData} of that scale, and the suite reports:
+ * 	1) the ingest throughput of BulkLoader over the data file, and of the
+ * 	   endorsement inserts, in rows/sec
+ * 	2) the cost of each StoredFunctions check called directly, in ns/op,
+ * 	   the hit ratio of the review cache they share, and the false
+ * 	   positive rate and memory of the pair filters
+ * 	3) latency percentiles of each Queries method, and of the same
+ * 	   aggregates answered from an AnalyticsSnapshot
+ *
+ * Data files are written once per scale to the data directory and reused by
+ * later runs. The database of each scale is created in the data directory
+ * and deleted when the scale is done.
+ *
+ * The suite is a plain main class that does its own warmup and timing,
+ * for a quick run of every measure. It builds with the rest of the project,
+ * from the pom or from its Eclipse .classpath with derby.jar beside src:
+ *
+ * 	javac -cp derby.jar -d bin src/*.java
+ * 	java -cp bin:derby.jar BenchmarkSuite data 10000 1000000
+ *
+ * The same measures run under JMH through {@link BenchmarkFixture}, from
+ * the jmh profile of the pom:
+ *
+ * 	mvn -P jmh package
+ * 	java -Dirate.benchdata=data -jar target/benchmarks.jar -p reviews=10000
+ *
+ * Usage: BenchmarkSuite [dataDir] [scale...]
+ */
+public class BenchmarkSuite {
+
+	/** default numbers of reviews */
+	static final int[] SCALES = {10_000, 1_000_000, 10_000_000};
+
+	/** calls per round of each stored function */
+	static final int FUNCTION_CALLS = 2_000;
+
+	/** unmeasured and measured calls of each query */
+	static final int QUERY_WARMUP = 5;
+	static final int QUERY_CALLS = 50;
+
+	/** movies in a page of the paginated rankings, and the page timed deep in the ranking */
+	static final int PAGE_SIZE = 20;
+	static final int DEEP_PAGE = 50;
+
+	/** number of distinct arguments passed to the stored functions */
+	static final int SAMPLES = 1024;
+
+	/**
+	 * A call whose output is discarded.
+	 */
+	interface Call {
+		Object call() throws SQLException;
+	}
+
+	// discards the output of the queries while they are timed
+	private static final PrintStream DISCARD = new PrintStream(new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	});
+
+	/**
+	 * Makes a call with System.out discarded.
+	 */
+	static Object quietly(Call call) throws SQLException {
+		PrintStream out = System.out;
+		System.setOut(DISCARD);
+		try {
+			return call.call();
+		} finally {
+			System.setOut(out);
+		}
+	}
+
+	public static void main(String[] args) throws IOException, SQLException {
+		Path dir = Paths.get(args.length > 0 ? args[0] : "benchdata");
+		int[] scales = SCALES;
+		if (args.length > 1) {
+			scales = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++) {
+				scales[i - 1] = Integer.parseInt(args[i]);
+			}
+		}
+
+		for (int scale : scales) {
+			run(dir, new BenchmarkData(scale, BenchmarkData.DEFAULT_SEED));
+		}
+	}
+
+	/**
+	 * Runs the suite on one dataset.
+	 */
+	static void run(Path dir, BenchmarkData data) throws IOException, SQLException {
+		Path file = data.file(dir);
+		System.out.printf("Dataset: %d reviews, %d customers, %d movies (%s)\n",
+				data.reviews(), data.customers(), data.movies(), file);
+
+		Path db = dir.resolve("db-" + data.reviews());
+		delete(db);
+		String url = "jdbc:derby:" + db;
+		Properties props = new Properties(); // connection properties
+		props.put("user", "user1");
+		props.put("password", "user1");
+
+		LocalDate today = LocalDate.now();
+		reset(today);
+
+		try (Connection conn = DriverManager.getConnection(url + ";create=true", props)) {
+			quietly(() -> {
+				SchemaMigrations.migrate(conn, false);
+				return null;
+			});
+
+			ingest(conn, file, data, Date.valueOf(today));
+
+			FunctionContext.bind(conn);
+			try {
+				functions(data, Date.valueOf(today));
+			} finally {
+				FunctionContext.bind(null);
+			}
+			System.out.println(ReviewEvents.reviewCache().stats());
+			System.out.println(PairFilters.stats());
+
+			ConnectionPool.setDefault(new ConnectionPool(url, props, ConnectionPool.DEFAULT_MAX_SIZE,
+					StatementCache.DEFAULT_SIZE));
+			try {
+				queries();
+				snapshot(conn, today);
+			} finally {
+				ConnectionPool.setDefault(null);
+			}
+
+			// with -Dirate.metrics=true, the per function and per query metrics of the run
+			if (Metrics.ENABLED) {
+				System.out.println("Metrics:");
+				System.out.print(Metrics.snapshot());
+				Metrics.reset();
+			}
+		} finally {
+			try {
+				DriverManager.getConnection(url + ";shutdown=true", props);
+			} catch (SQLException ex) {
+				// shutting down a database always reports an exception
+			}
+			delete(db);
+		}
+	}
+
+	/**
+	 * Clears the counts the prize engines and caches may hold of an earlier
+	 * database.
+	 */
+	static void reset(LocalDate today) {
+		EndorsementEvents.topEndorsed().invalidate(Date.valueOf(today));
+		EndorsementEvents.endorsementWindow().invalidate();
+		ReviewEvents.reviewCache().resetStats();
+		ReviewEvents.ratingRanking().invalidate();
+		AnalyticsSnapshot.clear();
+	}
+
+	/**
+	 * Loads the data file with BulkLoader, then inserts the endorsements.
+	 *
+	 * @return the number of rows inserted
+	 */
+	static long ingest(Connection conn, Path file, BenchmarkData data, Date today) throws IOException, SQLException {
+		System.out.println("Ingest:");
+		long rows;
+		try (
+			BulkLoader loader = new BulkLoader(conn, BulkLoader.DEFAULT_BATCH_SIZE, BulkLoader.DEFAULT_COMMIT_INTERVAL);
+			TsvReader reader = new TsvReader(file, BulkLoader.COLUMNS, loader::malformed);
+		) {
+			loader.load(reader);
+			loader.printStats();
+			rows = loader.rows();
+		}
+		conn.setAutoCommit(true);
+
+		long start = System.nanoTime();
+		int endorsements = data.insertEndorsements(conn, today);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("Table Endorsement : rows: %d, %.0f rows/sec\n", endorsements, endorsements / seconds);
+		return rows + endorsements;
+	}
+
+	/**
+	 * Times each stored function on arguments drawn from the dataset.
+	 */
+	static void functions(BenchmarkData data, Date today) {
+		System.out.println("Stored functions:");
+		MicroBench bench = new MicroBench(FUNCTION_CALLS);
+		for (Map.Entry<String, MicroBench.Op> function : functionCalls(data, today).entrySet()) {
+			bench.run(function.getKey(), function.getValue());
+		}
+	}
+
+	/**
+	 * Gets a call of each stored function, by name, on arguments drawn from
+	 * the dataset. The argument of a call selects one of SAMPLES arguments.
+	 */
+	static Map<String, MicroBench.Op> functionCalls(BenchmarkData data, Date today) {
+		String[] reviewIds = new String[SAMPLES];
+		String[] authorIds = new String[SAMPLES];
+		String[] endorserIds = new String[SAMPLES];
+		String[] movieIds = new String[SAMPLES];
+		Date[] dates = new Date[SAMPLES];
+		for (int i = 0; i < SAMPLES; i++) {
+			int review = (int) ((i * 0x9E3779B1L & 0x7fffffffL) % data.reviews());
+			int author = data.customerOf(review);
+			reviewIds[i] = BenchmarkData.reviewId(review);
+			authorIds[i] = BenchmarkData.customerId(author);
+			endorserIds[i] = BenchmarkData.customerId((author + 1) % data.customers());
+			movieIds[i] = BenchmarkData.movieId(data.movieOf(review));
+			dates[i] = Date.valueOf(data.day(review));
+		}
+		int mask = SAMPLES - 1;
+
+		Map<String, MicroBench.Op> calls = new LinkedHashMap<>();
+		calls.put("isUuid", i -> StoredFunctions.isUuid(reviewIds[i & mask]) ? 1 : 0);
+		calls.put("withinDays", i -> StoredFunctions.withinDays(today, dates[i & mask], 7) ? 1 : 0);
+		calls.put("isValidEndorsement", i ->
+				StoredFunctions.isValidEndorsement(endorserIds[i & mask], reviewIds[i & mask]) ? 1 : 0);
+		calls.put("verifyAttendance", i ->
+				StoredFunctions.verifyAttendance(authorIds[i & mask], movieIds[i & mask], dates[i & mask]) ? 1 : 0);
+		calls.put("isOnlyReview", i ->
+				StoredFunctions.isOnlyReview(authorIds[i & mask], movieIds[i & mask]) ? 1 : 0);
+		calls.put("checkLastEndorsementDate", i -> {
+			try {
+				return Queries.checkLastEndorsementDate(reviewIds[i & mask], endorserIds[i & mask], today) ? 1 : 0;
+			} catch (SQLException ex) {
+				throw new IllegalStateException(ex);
+			}
+		});
+		return calls;
+	}
+
+	/**
+	 * Times each query and prints its latency percentiles.
+	 */
+	static void queries() throws SQLException {
+		System.out.println("Queries:");
+		for (Map.Entry<String, Call> query : queryCalls().entrySet()) {
+			latency(query.getKey(), query.getValue());
+		}
+	}
+
+	/**
+	 * Gets a call of each query, by name, on the default ConnectionPool.
+	 * Limited queries and pages fetch PAGE_SIZE movies; the page is the
+	 * first, or page DEEP_PAGE + 1 for mostReviewedDeepPage.
+	 */
+	static Map<String, Call> queryCalls() throws SQLException {
+		Map<String, Call> calls = new LinkedHashMap<>();
+		calls.put("totalReviews", Queries::totalReviews);
+		calls.put("highestRated", () -> {
+			Queries.highestRated();
+			return null;
+		});
+		calls.put("mostReviews", () -> {
+			Queries.mostReviews();
+			return null;
+		});
+		calls.put("mostReviewedMovies", () -> {
+			try (Stream<Queries.MovieReviews> movies = Queries.mostReviewedMovies(ResultStream.Options.ALL.limit(PAGE_SIZE))) {
+				return movies.count();
+			}
+		});
+		// keyset pages cost the same deep in the ranking as at its start
+		Queries.MovieReviews deep = null;
+		for (int i = 0; i < DEEP_PAGE; i++) {
+			List<Queries.MovieReviews> page = Queries.mostReviewedPage(deep, PAGE_SIZE);
+			if (page.isEmpty()) {
+				break;
+			}
+			deep = page.get(page.size() - 1);
+		}
+		Queries.MovieReviews cursor = deep;
+		calls.put("mostReviewedPage", () -> Queries.mostReviewedPage(null, PAGE_SIZE));
+		calls.put("mostReviewedDeepPage", () -> Queries.mostReviewedPage(cursor, PAGE_SIZE));
+		calls.put("topRatedPage", () -> Queries.topRatedPage(null, PAGE_SIZE));
+		calls.put("bestRated", () -> Queries.bestRated(PAGE_SIZE));
+		calls.put("mostEndorsements", Queries::mostEndorsements);
+		calls.put("endorsementPrize", Queries::endorsementPrize);
+		return calls;
+	}
+
+	/**
+	 * Exports an analytics snapshot and times its aggregates.
+	 */
+	static void snapshot(Connection conn, LocalDate today) throws SQLException {
+		System.out.println("Analytics snapshot:");
+		AnalyticsSnapshot snapshot = AnalyticsSnapshot.refresh(conn);
+		System.out.println(snapshot.stats());
+		long seed = EndorsementEvents.topEndorsed().seed();
+		latency("snapshot totalReviews", snapshot::totalReviews);
+		latency("snapshot highestRated (first 20)", () -> snapshot.highestRated(PAGE_SIZE));
+		latency("snapshot mostReviews (first 20)", () -> snapshot.mostReviews(PAGE_SIZE));
+		latency("snapshot mostEndorsements", () -> snapshot.mostEndorsements(today, seed));
+		latency("snapshot endorsementPrize", () -> snapshot.endorsementPrize(today));
+	}
+
+	/**
+	 * Times the calls of a query and prints the median, 90th and 99th
+	 * percentile and the maximum latency.
+	 */
+	static void latency(String name, Call query) throws SQLException {
+		for (int i = 0; i < QUERY_WARMUP; i++) {
+			quietly(query);
+		}
+		long[] nanos = new long[QUERY_CALLS];
+		for (int i = 0; i < QUERY_CALLS; i++) {
+			long start = System.nanoTime();
+			quietly(query);
+			nanos[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(nanos);
+		System.out.printf("%-40s p50 %8.3f ms, p90 %8.3f ms, p99 %8.3f ms, max %8.3f ms\n", name,
+				percentile(nanos, 0.50) / 1e6, percentile(nanos, 0.90) / 1e6,
+				percentile(nanos, 0.99) / 1e6, nanos[nanos.length - 1] / 1e6);
+	}
+
+	/**
+	 * Gets a percentile of sorted values, by the nearest rank.
+	 */
+	static long percentile(long[] sorted, double p) {
+		int rank = (int) Math.ceil(p * sorted.length);
+		return sorted[Math.max(rank, 1) - 1];
+	}
+
+	/**
+	 * Deletes a database directory created by the suite, if it exists.
+	 */
+	static void delete(Path db) throws IOException {
+		if (!Files.exists(db)) {
+			return;
+		}
+		try (Stream<Path> paths = Files.walk(db)) {
+			for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(path);
+			}
+		}
+	}
+}
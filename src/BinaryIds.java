@@ -0,0 +1,531 @@
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Schema variant that stores CustomerID, MovieID, ReviewID and EndorserID as
+ * 16 byte binary UUIDs (char(16) for bit data) instead of varchar(36). This
+ * cuts the width of every key, index entry and foreign key by more than half,
+ * and turns key comparisons into byte comparisons.
+ *
+ * The loader and query layer bind and read IDs with {@link #setId} and
+ * {@link #getId}, which convert between the text and binary forms when the
+ * database uses the binary variant. {@link #migrate} converts an existing
+ * varchar database in one transaction.
+ *
+ * Only UUIDs in lower case text form are stored, since the binary form
+ * does not keep the case of the text: {@link #setId} and {@link #migrate}
+ * reject any other ID instead of storing it under a different text.
+ *
+ * The Java CHECK constraints take varchar IDs, so the binary variant uses
+ * the indexed validation mode of {@link ReviewValidation} instead, and
+ * enforces the attendance rule of Review and the rules of Endorsement with
+ * before insert triggers (see {@link ReviewValidation#checkReview} and
+ * {@link EndorsementEvents#checkEndorsement}).
+ *
+ * Usage: BinaryIds -migrate | -report [reviews]
+ */
+public class BinaryIds {
+
+	/** SQL type of an ID column in the binary variant */
+	static final String BINARY_ID = "char(16) for bit data";
+
+	/** SQL type of an ID column in the original schema */
+	static final String VARCHAR_ID = "varchar(36)";
+
+	/** SQL state of an ID that cannot be stored as a binary UUID */
+	static final String INVALID_ID = "22018";
+
+	// whether each database uses binary IDs, by database URL
+	private static final Map<String, Boolean> binaryIds = new ConcurrentHashMap<>();
+
+	/**
+	 * Determines whether the database of a connection stores IDs in binary.
+	 * The answer is cached for each database, by the URL in its metadata,
+	 * which a nested connection (jdbc:default:connection) shares with the
+	 * connection that invoked it.
+	 *
+	 * @param conn the connection
+	 * @return true if Customer.CustomerID is a binary column
+	 * @throws SQLException if a database operation fails
+	 */
+	static boolean usesBinaryIds(Connection conn) throws SQLException {
+		DatabaseMetaData md = conn.getMetaData();
+		String url = md.getURL();
+		Boolean binary = binaryIds.get(url);
+		if (binary == null) {
+			try (ResultSet rs = md.getColumns(null, conn.getSchema(), "CUSTOMER", "CUSTOMERID")) {
+				binary = rs.next() && rs.getInt("DATA_TYPE") == Types.BINARY;
+			}
+			binaryIds.put(url, binary);
+		}
+		return binary;
+	}
+
+	/**
+	 * Records that the database of a connection stores IDs in binary, once
+	 * its tables have been created or converted.
+	 */
+	private static void setBinaryIds(Connection conn) throws SQLException {
+		binaryIds.put(conn.getMetaData().getURL(), true);
+	}
+
+	/**
+	 * Determines whether an ID can be stored in binary form and read back
+	 * as the same text: a UUID with no upper case digits.
+	 *
+	 * @param id the ID in text form
+	 * @return true if the ID is a lower case UUID
+	 */
+	static boolean isStorable(CharSequence id) {
+		return Uuids.isLowerCase(id);
+	}
+
+	/**
+	 * Gets the SQL type of ID columns for the database of a connection.
+	 *
+	 * @param conn the connection
+	 * @return BINARY_ID or VARCHAR_ID
+	 * @throws SQLException if a database operation fails
+	 */
+	static String idType(Connection conn) throws SQLException {
+		return usesBinaryIds(conn) ? BINARY_ID : VARCHAR_ID;
+	}
+
+	/**
+	 * Binds an ID parameter in the form the database stores.
+	 *
+	 * @param stmt the statement
+	 * @param index the parameter index
+	 * @param id the ID in text form
+	 * @throws SQLException if a database operation fails, or the database
+	 * 		uses binary IDs and the ID is not a lower case UUID
+	 */
+	public static void setId(PreparedStatement stmt, int index, String id) throws SQLException {
+		if (usesBinaryIds(stmt.getConnection())) {
+			if (!isStorable(id)) {
+				throw new SQLException("ID " + id + " is not a lower case UUID", INVALID_ID);
+			}
+			stmt.setBytes(index, Uuids.toBytes(id));
+		} else {
+			stmt.setString(index, id);
+		}
+	}
+
+	/**
+	 * Reads an ID column in text form, whichever form the database stores.
+	 *
+	 * @param rs the result set positioned on a row
+	 * @param column the column index
+	 * @return the ID in text form, or null
+	 * @throws SQLException if a database operation fails
+	 */
+	public static String getId(ResultSet rs, int column) throws SQLException {
+		// the value's class tells the column type without reading the metadata
+		Object value = rs.getObject(column);
+		return value instanceof byte[] ? Uuids.fromBytes((byte[]) value) : (String) value;
+	}
+
+	/**
+	 * Stored function used by the migration to convert a varchar ID.
+	 *
+	 * @param uuid the ID in text form
+	 * @return the ID in binary form
+	 * @throws IllegalArgumentException if the ID is not a lower case UUID
+	 */
+	public static byte[] uuidToBytes(String uuid) {
+		if (uuid == null) {
+			return null;
+		}
+		if (!isStorable(uuid)) {
+			throw new IllegalArgumentException("ID " + uuid + " is not a lower case UUID");
+		}
+		return Uuids.toBytes(uuid);
+	}
+
+	/** the ID columns of each table, which must all hold lower case UUIDs to migrate */
+	private static final String[][] ID_COLUMNS = {
+		{"Customer", "CustomerID"},
+		{"Movie", "MovieID"},
+		{"Attendance", "MovieID", "CustomerID"},
+		{"Review", "ReviewID", "CustomerID", "MovieID"},
+		{"Endorsement", "ReviewID", "EndorserID"},
+	};
+
+	/**
+	 * Checks that every ID of the varchar tables can be stored in binary
+	 * form, printing the first few that cannot.
+	 *
+	 * @param stmt the statement
+	 * @return the number of IDs that cannot be stored
+	 * @throws SQLException if a database operation fails
+	 */
+	static long countInvalidIds(Statement stmt) throws SQLException {
+		long invalid = 0;
+		for (String[] table : ID_COLUMNS) {
+			for (int c = 1; c < table.length; c++) {
+				try (ResultSet rs = stmt.executeQuery("select distinct " + table[c] + " from " + table[0])) {
+					while (rs.next()) {
+						String id = rs.getString(1);
+						if (!isStorable(id) && invalid++ < 10) {
+							System.out.printf("  %s.%s %s is not a lower case UUID\n", table[0], table[c], id);
+						}
+					}
+				}
+			}
+		}
+		return invalid;
+	}
+
+	/**
+	 * Creates the entity tables with binary IDs. Foreign keys are added
+	 * separately by {@link #addForeignKeys}.
+	 *
+	 * @param stmt the statement
+	 * @param suffix appended to each table name
+	 * @throws SQLException if a database operation fails
+	 */
+	static void createTables(Statement stmt, String suffix) throws SQLException {
+		stmt.executeUpdate("create table Customer" + suffix + " ("
+				+ " Name varchar(36) not null,"
+				+ " Email varchar(36) not null,"
+				+ " Date date not null,"
+				+ " CustomerID " + BINARY_ID + " not null,"
+				+ " primary key (CustomerID))");
+		stmt.executeUpdate("create table Movie" + suffix + " ("
+				+ " Title varchar(36) not null,"
+				+ " MovieID " + BINARY_ID + " not null,"
+				+ " primary key (MovieID))");
+		stmt.executeUpdate("create table Attendance" + suffix + " ("
+				+ " MovieID " + BINARY_ID + " not null,"
+				+ " CustomerID " + BINARY_ID + " not null,"
+				+ " Date date not null)");
+		stmt.executeUpdate("create table Review" + suffix + " ("
+				+ " ReviewID " + BINARY_ID + " not null unique,"
+				+ " CustomerID " + BINARY_ID + " not null,"
+				+ " MovieID " + BINARY_ID + " not null,"
+				+ " ReviewDate date not null,"
+				+ " Rating int not null,"
+				+ " Review varchar(1000) not null,"
+				+ " primary key (CustomerID, MovieID, ReviewDate))");
+		stmt.executeUpdate("create table Endorsement" + suffix + " ("
+				+ " ReviewID " + BINARY_ID + " not null,"
+				+ " EndorserID " + BINARY_ID + " not null,"
+				+ " EndorsementDate date not null,"
+				+ " primary key (ReviewID, EndorserID, EndorsementDate))");
+	}
+
+	/**
+	 * Adds the foreign keys of the original schema, plus the constraint and
+	 * indexes used by the indexed validation mode, and the trigger enforcing
+	 * the attendance rule of Review.
+	 *
+	 * @param idType BINARY_ID or VARCHAR_ID, the type of the ID columns
+	 */
+	static void addForeignKeys(Connection conn, Statement stmt, String idType) throws SQLException {
+		stmt.executeUpdate("alter table Attendance add foreign key (MovieID)"
+				+ " references Movie (MovieID) on delete cascade");
+		stmt.executeUpdate("alter table Review add foreign key (MovieID)"
+				+ " references Movie (MovieID) on delete cascade");
+		stmt.executeUpdate("alter table Review add foreign key (CustomerID)"
+				+ " references Customer (CustomerID) on delete cascade");
+		stmt.executeUpdate("alter table Endorsement add foreign key (EndorserID)"
+				+ " references Customer (CustomerID) on delete cascade");
+		stmt.executeUpdate("alter table Endorsement add foreign key (ReviewID)"
+				+ " references Review (ReviewID) on delete cascade");
+		ReviewValidation.createConstraint(stmt);
+		ReviewValidation.createRules(stmt, idType);
+		SchemaIndexes.createMissing(conn);
+	}
+
+	/**
+	 * Creates a new database schema with binary IDs.
+	 *
+	 * @param conn the connection
+	 * @throws SQLException if a database operation fails
+	 */
+	public static void create(Connection conn) throws SQLException {
+		try (Statement stmt = conn.createStatement()) {
+			createTables(stmt, "");
+			addForeignKeys(conn, stmt, BINARY_ID);
+		}
+		setBinaryIds(conn);
+	}
+
+	/**
+	 * Converts the varchar ID tables of an existing database to binary IDs,
+	 * keeping all rows. The tables are copied, dropped and renamed in one
+	 * transaction, so a failure leaves the original schema in place. Every
+	 * ID must be a lower case UUID: the migration is refused if any is not,
+	 * since it could not be stored, or, for an upper case UUID, would be read
+	 * back as different text and could collide with its lower case form.
+	 *
+	 * @param conn the connection
+	 * @throws SQLException if a database operation fails, or an ID cannot
+	 * 		be stored in binary form
+	 */
+	public static void migrate(Connection conn) throws SQLException {
+		if (usesBinaryIds(conn)) {
+			System.out.println("Database already uses binary IDs");
+			return;
+		}
+		for (DatePartitions.Spec spec : DatePartitions.SPECS) {
+			if (DatePartitions.isPartitioned(conn, spec)) {
+				throw new SQLException("Table " + spec.table + " is partitioned; migrate before partitioning");
+			}
+		}
+		try (Statement stmt = conn.createStatement()) {
+			long invalid = countInvalidIds(stmt);
+			if (invalid > 0) {
+				throw new SQLException(invalid + " IDs are not lower case UUIDs; fix them before migrating", INVALID_ID);
+			}
+		}
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		try (Statement stmt = conn.createStatement()) {
+			stmt.executeUpdate("create function uuidToBytes(id varchar(36))"
+					+ " returns " + BINARY_ID
+					+ " language java parameter style java no sql"
+					+ " external name 'BinaryIds.uuidToBytes'");
+			createTables(stmt, "_Bin");
+
+			// copy parents before children, converting every ID
+			long rows = 0;
+			rows += stmt.executeUpdate("insert into Customer_Bin"
+					+ " select Name, Email, Date, uuidToBytes(CustomerID) from Customer");
+			rows += stmt.executeUpdate("insert into Movie_Bin"
+					+ " select Title, uuidToBytes(MovieID) from Movie");
+			rows += stmt.executeUpdate("insert into Attendance_Bin"
+					+ " select uuidToBytes(MovieID), uuidToBytes(CustomerID), Date from Attendance");
+			rows += stmt.executeUpdate("insert into Review_Bin"
+					+ " select uuidToBytes(ReviewID), uuidToBytes(CustomerID), uuidToBytes(MovieID),"
+					+ " ReviewDate, Rating, Review from Review");
+			rows += stmt.executeUpdate("insert into Endorsement_Bin"
+					+ " select uuidToBytes(ReviewID), uuidToBytes(EndorserID), EndorsementDate from Endorsement");
+
+			// the summary and event triggers depend on the tables, so recreate them afterwards
+			boolean movieStats = MovieStats.exists(conn);
+			MovieStats.drop(conn);
+			EndorsementEvents.drop(conn);
+			ReviewEvents.drop(conn);
+			PairFilters.drop(conn);
+			ReviewValidation.dropRules(conn);
+
+			// tables referenced by foreign keys cannot be renamed, so drop children first
+			for (String tbl : new String[] {"Endorsement", "Review", "Attendance", "Movie", "Customer"}) {
+				stmt.executeUpdate("drop table " + tbl);
+				stmt.executeUpdate("rename table " + tbl + "_Bin to " + tbl);
+			}
+			stmt.executeUpdate("drop function uuidToBytes");
+			addForeignKeys(conn, stmt, BINARY_ID);
+			setBinaryIds(conn);
+			if (movieStats) {
+				MovieStats.create(conn);
+			}
+			EndorsementEvents.create(conn);
+			ReviewEvents.create(conn);
+			PairFilters.create(conn);
+			conn.commit();
+			System.out.printf("Migrated %d rows to binary IDs\n", rows);
+		} catch (SQLException ex) {
+			conn.rollback();
+			// the varchar tables are back
+			binaryIds.remove(conn.getMetaData().getURL());
+			throw ex;
+		} finally {
+			conn.setAutoCommit(autoCommit);
+		}
+	}
+
+	/**
+	 * Prints the allocated size of each table and index.
+	 *
+	 * @param conn the connection
+	 * @return the total number of bytes allocated to indexes
+	 * @throws SQLException if a database operation fails
+	 */
+	static long printSpace(Connection conn) throws SQLException {
+		long indexBytes = 0;
+		try (
+			Statement stmt = conn.createStatement();
+			ResultSet rs = stmt.executeQuery(
+					"select t.TableName, s.ConglomerateName, s.IsIndex, s.NumAllocatedPages * s.PageSize"
+					+ " from SYS.SYSTABLES t, SYS.SYSSCHEMAS sc,"
+					+ " table (SYSCS_DIAG.SPACE_TABLE(sc.SchemaName, t.TableName)) s"
+					+ " where t.SchemaID = sc.SchemaID and sc.SchemaName = current schema and t.TableType = 'T'"
+					+ " order by t.TableName, s.IsIndex");
+		) {
+			while (rs.next()) {
+				boolean isIndex = rs.getShort(3) != 0;
+				long bytes = rs.getLong(4);
+				if (isIndex) {
+					indexBytes += bytes;
+				}
+				System.out.printf("  %-12s %-28s %-5s %10d KB\n", rs.getString(1), rs.getString(2),
+						isIndex ? "index" : "heap", bytes / 1024);
+			}
+		}
+		return indexBytes;
+	}
+
+	/**
+	 * Loads a deterministic dataset into an empty schema. Each review has an
+	 * attendance on its day and an endorsement by another customer, so that
+	 * the review and endorsement rules accept them.
+	 */
+	private static void generate(Connection conn, int reviews) throws SQLException {
+		int customers = Math.max(reviews / 10, 1);
+		int movies = Math.max(reviews / 100, 1);
+		Random random = new Random(7);
+		Date date = Date.valueOf("2018-12-01");
+		conn.setAutoCommit(false);
+		try (
+			PreparedStatement customer = conn.prepareStatement("insert into Customer values (?, ?, ?, ?)");
+			PreparedStatement movie = conn.prepareStatement("insert into Movie values (?, ?)");
+			PreparedStatement attendance = conn.prepareStatement("insert into Attendance values (?, ?, ?)");
+			PreparedStatement review = conn.prepareStatement("insert into Review values (?, ?, ?, ?, ?, ?)");
+			PreparedStatement endorsement = conn.prepareStatement("insert into Endorsement values (?, ?, ?)");
+		) {
+			for (int i = 0; i < customers; i++) {
+				customer.setString(1, "Customer " + i);
+				customer.setString(2, "c" + i + "@example.com");
+				customer.setDate(3, date);
+				setId(customer, 4, Uuids.toString(1, i));
+				customer.addBatch();
+			}
+			customer.executeBatch();
+			for (int i = 0; i < movies; i++) {
+				movie.setString(1, "Movie " + i);
+				setId(movie, 2, Uuids.toString(2, i));
+				movie.addBatch();
+			}
+			movie.executeBatch();
+			for (int i = 0; i < reviews; i++) {
+				// each customer reviews consecutive movies, so pairs are unique
+				int c = i % customers;
+				int m = (i / customers) % movies;
+				setId(attendance, 1, Uuids.toString(2, m));
+				setId(attendance, 2, Uuids.toString(1, c));
+				attendance.setDate(3, date);
+				attendance.addBatch();
+				setId(review, 1, Uuids.toString(3, i));
+				setId(review, 2, Uuids.toString(1, c));
+				setId(review, 3, Uuids.toString(2, m));
+				review.setDate(4, date);
+				review.setInt(5, 1 + random.nextInt(5));
+				review.setString(6, "review");
+				review.addBatch();
+				setId(endorsement, 1, Uuids.toString(3, i));
+				setId(endorsement, 2, Uuids.toString(1, (c + 1 + random.nextInt(Math.max(customers - 1, 1))) % customers));
+				endorsement.setDate(3, date);
+				endorsement.addBatch();
+				if (i % 10_000 == 9_999) {
+					attendance.executeBatch();
+					review.executeBatch();
+					endorsement.executeBatch();
+				}
+			}
+			attendance.executeBatch();
+			review.executeBatch();
+			endorsement.executeBatch();
+		}
+		conn.commit();
+		conn.setAutoCommit(true);
+	}
+
+	/**
+	 * Times a join of Endorsement, Review and Customer over all rows.
+	 */
+	private static double timeJoin(Connection conn) throws SQLException {
+		String sql = "select count(*) from Endorsement e"
+				+ " join Review r on e.ReviewID = r.ReviewID"
+				+ " join Customer c on r.CustomerID = c.CustomerID";
+		long best = Long.MAX_VALUE;
+		try (Statement stmt = conn.createStatement()) {
+			for (int i = 0; i < 5; i++) {
+				long start = System.nanoTime();
+				try (ResultSet rs = stmt.executeQuery(sql)) {
+					rs.next();
+				}
+				best = Math.min(best, System.nanoTime() - start);
+			}
+		}
+		return best / 1e6;
+	}
+
+	/**
+	 * Loads the same generated dataset into a varchar and a binary database
+	 * and prints index sizes and join times for both.
+	 */
+	static void report(int reviews) throws SQLException {
+		for (boolean binary : new boolean[] {false, true}) {
+			String dbName = "memory:binaryids" + binary;
+			try (Connection conn = DriverManager.getConnection("jdbc:derby:" + dbName + ";create=true")) {
+				if (binary) {
+					create(conn);
+				} else {
+					try (Statement stmt = conn.createStatement()) {
+						createVarcharTables(stmt);
+						addForeignKeys(conn, stmt, VARCHAR_ID);
+					}
+				}
+				generate(conn, reviews);
+				System.out.printf("%s IDs, %d reviews:\n", binary ? "Binary" : "Varchar", reviews);
+				long indexBytes = printSpace(conn);
+				System.out.printf("  total index size %d KB, Endorsement-Review-Customer join %.1f ms\n",
+						indexBytes / 1024, timeJoin(conn));
+			}
+			try {
+				DriverManager.getConnection("jdbc:derby:" + dbName + ";drop=true");
+			} catch (SQLException ex) {
+				// dropping an in-memory database always reports an exception
+			}
+		}
+	}
+
+	/**
+	 * Creates the original tables, without the Java CHECK constraints, for comparison.
+	 */
+	private static void createVarcharTables(Statement stmt) throws SQLException {
+		stmt.executeUpdate("create table Customer (Name varchar(36) not null, Email varchar(36) not null,"
+				+ " Date date not null, CustomerID varchar(36) not null, primary key (CustomerID))");
+		stmt.executeUpdate("create table Movie (Title varchar(36) not null, MovieID varchar(36) not null,"
+				+ " primary key (MovieID))");
+		stmt.executeUpdate("create table Attendance (MovieID varchar(36) not null,"
+				+ " CustomerID varchar(36) not null, Date date not null)");
+		stmt.executeUpdate("create table Review (ReviewID varchar(36) not null unique,"
+				+ " CustomerID varchar(36) not null, MovieID varchar(36) not null, ReviewDate date not null,"
+				+ " Rating int not null, Review varchar(1000) not null,"
+				+ " primary key (CustomerID, MovieID, ReviewDate))");
+		stmt.executeUpdate("create table Endorsement (ReviewID varchar(36) not null,"
+				+ " EndorserID varchar(36) not null, EndorsementDate date not null,"
+				+ " primary key (ReviewID, EndorserID, EndorsementDate))");
+	}
+
+	public static void main(String[] args) {
+		try {
+			if (args.length > 0 && args[0].equals("-migrate")) {
+				Properties props = new Properties(); // connection properties
+				props.put("user", "user1");
+				props.put("password", "user1");
+				try (Connection conn = DriverManager.getConnection("jdbc:derby:irate", props)) {
+					migrate(conn);
+				}
+			} else {
+				report(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,390 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * Bulk-load mode for the theater data file. Instead of executing and
+ * auto-committing every insert, rows are queued with JDBC batching and
+ * committed at a fixed interval. Customers and movies are de-duplicated in
+ * memory so that only the first occurrence of each ever reaches Derby: their
+ * IDs are looked up in an {@link IdDictionary} straight from the bytes of the
+ * line, and each distinct ID is decoded to a String once and that String is
+ * bound on every later line.
+ *
+ * The data file is tab-separated with the columns:
+ * Customer Name, Customer Email, CustomerID, Movie Title, MovieID, ReviewID, Rating, Review, Date
+ *
+ * Usage: BulkLoader [-indexedValidation] [file] [batchSize] [commitInterval]
+ */
+public class BulkLoader implements AutoCloseable {
+
+	/** number of columns expected on each input line */
+	static final int COLUMNS = 9;
+
+	// column positions in the data file
+	static final int CUSTOMER_NAME = 0;
+	static final int CUSTOMER_EMAIL = 1;
+	static final int CUSTOMER_ID = 2;
+	static final int MOVIE_TITLE = 3;
+	static final int MOVIE_ID = 4;
+	static final int REVIEW_ID = 5;
+	static final int RATING = 6;
+	static final int REVIEW = 7;
+	static final int DATE = 8;
+
+	/** default number of rows per JDBC batch */
+	static final int DEFAULT_BATCH_SIZE = 1000;
+
+	/** default number of input lines per commit */
+	static final int DEFAULT_COMMIT_INTERVAL = 10000;
+
+	/**
+	 * Row counts and time spent in executeBatch for one table.
+	 */
+	static class TableStats {
+		final String table;
+		long rows;
+		long nanos;
+
+		TableStats(String table) {
+			this.table = table;
+		}
+	}
+
+	private final Connection conn;
+	private final int batchSize;
+	private final int commitInterval;
+
+	// insert statements, in foreign key order
+	private final PreparedStatement insertRow_Customer;
+	private final PreparedStatement insertRow_Movie;
+	private final DatePartitions.Router insertRow_Attendance;
+	private final PreparedStatement insertRow_Review;
+
+	private final TableStats customerStats = new TableStats("Customer");
+	private final TableStats movieStats = new TableStats("Movie");
+	private final TableStats attendanceStats = new TableStats("Attendance");
+	private final TableStats reviewStats = new TableStats("Review");
+
+	// set when reviews are validated per batch instead of by CHECK constraints
+	private ReviewValidation.StagedReviews stagedReviews;
+	private long rejectedReviews = 0;
+
+	// IDs already loaded or queued for loading
+	private final IdDictionary customers = new IdDictionary();
+	private final IdDictionary movies = new IdDictionary();
+
+	private int batched = 0;		// lines added since the last executeBatch
+	private int uncommitted = 0;	// lines added since the last commit
+	private long lines = 0;			// lines accepted
+	private long malformed = 0;		// lines skipped for having the wrong number of columns
+	private long startNanos;
+
+	/**
+	 * Creates a loader on an open connection. Auto-commit is turned off for
+	 * the life of the loader and existing Customer and Movie IDs are read so
+	 * that they are not inserted again.
+	 *
+	 * @param conn the connection to load into
+	 * @param batchSize rows per JDBC batch
+	 * @param commitInterval lines per commit
+	 * @throws SQLException if a database operation fails
+	 */
+	public BulkLoader(Connection conn, int batchSize, int commitInterval) throws SQLException {
+		if (batchSize < 1 || commitInterval < 1) {
+			throw new IllegalArgumentException("batch size and commit interval must be positive");
+		}
+		this.conn = conn;
+		this.batchSize = batchSize;
+		this.commitInterval = commitInterval;
+
+		conn.setAutoCommit(false);
+		insertRow_Customer = conn.prepareStatement(
+				"insert into Customer (Name, Email, Date, CustomerID) values(?, ?, ?, ?)");
+		insertRow_Movie = conn.prepareStatement(
+				"insert into Movie (Title, MovieID) values(?, ?)");
+		insertRow_Attendance = new DatePartitions.Router(conn, DatePartitions.ATTENDANCE, "MovieID, CustomerID, Date");
+		insertRow_Review = conn.prepareStatement(
+				"insert into Review (ReviewID, CustomerID, MovieID, ReviewDate, Rating, Review) values(?, ?, ?, ?, ?, ?)");
+
+		// seed the de-duplication dictionaries from rows that are already loaded
+		try (Statement stmt = conn.createStatement()) {
+			try (ResultSet rs = stmt.executeQuery("select CustomerID from Customer")) {
+				while (rs.next()) {
+					customers.add(BinaryIds.getId(rs, 1));
+				}
+			}
+			try (ResultSet rs = stmt.executeQuery("select MovieID from Movie")) {
+				while (rs.next()) {
+					movies.add(BinaryIds.getId(rs, 1));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Switches the loader to the indexed validation mode, where each batch of
+	 * reviews is checked with one set-based query before it is inserted. The
+	 * schema must have been created with ProjectMain -indexedValidation.
+	 *
+	 * @throws SQLException if the staging table cannot be created
+	 */
+	public void useIndexedValidation() throws SQLException {
+		if (stagedReviews == null) {
+			stagedReviews = new ReviewValidation.StagedReviews(conn);
+		}
+	}
+
+	/**
+	 * Loads every line of a data file, then flushes and commits.
+	 *
+	 * @param reader the reader for the data file
+	 * @throws IOException if the file cannot be read
+	 * @throws SQLException if a database operation fails
+	 */
+	public void load(TsvReader reader) throws IOException, SQLException {
+		startNanos = System.nanoTime();
+		while (reader.next()) {
+			add(reader);
+		}
+		finish();
+	}
+
+	/**
+	 * Reports a line that does not have the expected number of columns.
+	 *
+	 * @param offset the byte offset of the line in the file
+	 * @param fields the number of fields on the line
+	 */
+	void malformed(long offset, int fields) {
+		malformed++;
+		System.err.printf("Skipped malformed line at byte offset %d: %d fields instead of %d\n", offset, fields, COLUMNS);
+	}
+
+	/**
+	 * Queues the rows for the current line of the reader, executing the
+	 * batches and committing when the configured thresholds are reached.
+	 * Customer and movie names are only decoded for new customers and movies.
+	 *
+	 * @param reader the reader positioned on the line
+	 * @throws SQLException if a database operation fails, after the
+	 * 	uncommitted rows are rolled back
+	 */
+	public void add(TsvReader reader) throws SQLException {
+		try {
+			addLine(reader);
+		} catch (SQLException ex) {
+			rollback(ex);
+			throw ex;
+		}
+	}
+
+	private void addLine(TsvReader reader) throws SQLException {
+		if (startNanos == 0) {
+			startNanos = System.nanoTime();
+		}
+		Date date = reader.date(DATE);
+
+		// add Customer and Movie only the first time they are seen
+		int customer = customers.find(reader.chars(CUSTOMER_ID));
+		if (customer < 0) {
+			customer = customers.add(reader.string(CUSTOMER_ID));
+			insertRow_Customer.setString(1, reader.string(CUSTOMER_NAME));
+			insertRow_Customer.setString(2, reader.string(CUSTOMER_EMAIL));
+			insertRow_Customer.setDate(3, date);
+			BinaryIds.setId(insertRow_Customer, 4, customers.id(customer));
+			insertRow_Customer.addBatch();
+			customerStats.rows++;
+		}
+		int movie = movies.find(reader.chars(MOVIE_ID));
+		if (movie < 0) {
+			movie = movies.add(reader.string(MOVIE_ID));
+			insertRow_Movie.setString(1, reader.string(MOVIE_TITLE));
+			BinaryIds.setId(insertRow_Movie, 2, movies.id(movie));
+			insertRow_Movie.addBatch();
+			movieStats.rows++;
+		}
+		// the same String of each ID is bound on every line
+		String customerID = customers.id(customer);
+		String movieID = movies.id(movie);
+
+		// Attendance may be partitioned by month
+		PreparedStatement attendance = insertRow_Attendance.statement(date);
+		BinaryIds.setId(attendance, 1, movieID);
+		BinaryIds.setId(attendance, 2, customerID);
+		attendance.setDate(3, date);
+		attendance.addBatch();
+		attendanceStats.rows++;
+
+		if (stagedReviews != null) {
+			stagedReviews.add(reader.string(REVIEW_ID), customerID, movieID, date,
+					reader.intValue(RATING), reader.string(REVIEW));
+		} else {
+			BinaryIds.setId(insertRow_Review, 1, reader.string(REVIEW_ID));
+			BinaryIds.setId(insertRow_Review, 2, customerID);
+			BinaryIds.setId(insertRow_Review, 3, movieID);
+			insertRow_Review.setDate(4, date);
+			insertRow_Review.setInt(5, reader.intValue(RATING));
+			insertRow_Review.setString(6, reader.string(REVIEW));
+			insertRow_Review.addBatch();
+		}
+		reviewStats.rows++;
+
+		lines++;
+		if (++batched >= batchSize) {
+			executeBatches();
+		}
+		if (++uncommitted >= commitInterval) {
+			executeBatches();
+			DatePartitions.commit(conn);
+			uncommitted = 0;
+		}
+	}
+
+	/**
+	 * Executes any queued batches and commits the remaining rows.
+	 *
+	 * @throws SQLException if a database operation fails, after the
+	 * 	uncommitted rows are rolled back
+	 */
+	public void finish() throws SQLException {
+		try {
+			executeBatches();
+			DatePartitions.commit(conn);
+			uncommitted = 0;
+		} catch (SQLException ex) {
+			rollback(ex);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Rolls back the uncommitted rows after any failed step, including the
+	 * partitions created for them, which would otherwise stay reserved for
+	 * this connection.
+	 */
+	private void rollback(SQLException cause) {
+		try {
+			DatePartitions.rollback(conn);
+		} catch (SQLException ex) {
+			cause.addSuppressed(ex);
+		}
+	}
+
+	/**
+	 * Executes the queued batches in foreign key order so that parent rows
+	 * are always inserted before the rows that reference them.
+	 */
+	private void executeBatches() throws SQLException {
+		if (batched == 0) {
+			return;
+		}
+		executeBatch(insertRow_Customer::executeBatch, customerStats);
+		executeBatch(insertRow_Movie::executeBatch, movieStats);
+		executeBatch(insertRow_Attendance::executeBatch, attendanceStats);
+		if (stagedReviews != null) {
+			long start = System.nanoTime();
+			rejectedReviews += stagedReviews.flush();
+			reviewStats.nanos += System.nanoTime() - start;
+		} else {
+			executeBatch(insertRow_Review::executeBatch, reviewStats);
+		}
+		batched = 0;
+	}
+
+	/**
+	 * A statement, or set of statements, with a queued batch.
+	 */
+	private interface Batch {
+		void executeBatch() throws SQLException;
+	}
+
+	private void executeBatch(Batch batch, TableStats stats) throws SQLException {
+		long start = System.nanoTime();
+		try {
+			batch.executeBatch();
+		} catch (BatchUpdateException ex) {
+			throw new SQLException("Batch insert into " + stats.table + " failed after line " + lines, ex);
+		}
+		stats.nanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * @return the number of rows inserted into all tables
+	 */
+	public long rows() {
+		return customerStats.rows + movieStats.rows + attendanceStats.rows + reviewStats.rows;
+	}
+
+	/**
+	 * Prints the number of rows loaded and rows/sec for each table.
+	 */
+	public void printStats() {
+		double seconds = Math.max(System.nanoTime() - startNanos, 1) / 1e9;
+		System.out.printf("Loaded %d lines in %.2f s (%d malformed lines skipped)\n", lines, seconds, malformed);
+		for (TableStats stats : new TableStats[] {customerStats, movieStats, attendanceStats, reviewStats}) {
+			System.out.printf("Table %s : rows: %d, %.0f rows/sec, %.2f s in executeBatch\n",
+					stats.table, stats.rows, stats.rows / seconds, stats.nanos / 1e9);
+		}
+		if (stagedReviews != null) {
+			System.out.printf("Rejected %d reviews without a recent attendance or with an earlier review\n", rejectedReviews);
+		}
+	}
+
+	@Override
+	public void close() throws SQLException {
+		insertRow_Customer.close();
+		insertRow_Movie.close();
+		insertRow_Attendance.close();
+		insertRow_Review.close();
+		if (stagedReviews != null) {
+			stagedReviews.close();
+			// commits the drop of the staging table
+			conn.commit();
+		}
+	}
+
+	public static void main(String[] args) {
+		String connStr = "jdbc:derby:irate;create=true";
+		boolean indexedValidation = args.length > 0 && args[0].equals("-indexedValidation");
+		if (indexedValidation) {
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
+		String fileName = args.length > 0 ? args[0] : "theaterdata.txt";
+		int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_BATCH_SIZE;
+		int commitInterval = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_COMMIT_INTERVAL;
+
+		Properties props = new Properties(); // connection properties
+		props.put("user", "user1");
+		props.put("password", "user1");
+
+		try (
+			// connect to database
+			Connection conn = DriverManager.getConnection(connStr, props);
+			BulkLoader loader = new BulkLoader(conn, batchSize, commitInterval);
+
+			// map data file
+			TsvReader reader = new TsvReader(Paths.get(fileName), COLUMNS, loader::malformed);
+		) {
+			if (indexedValidation) {
+				loader.useIndexedValidation();
+			}
+			System.out.printf("Bulk loading %s (batch size %d, commit interval %d)\n", fileName, batchSize, commitInterval);
+			loader.load(reader);
+			loader.printStats();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,193 @@
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Inserts reviews from several threads at once, each with its own
+ * connection, into a Review table carrying the verifyAttendance and
+ * isOnlyReview CHECK constraints, and reports the throughput as the number
+ * of threads rises.
+ *
+ * Each round reviews a different movie, so that every customer writes
+ * exactly one review per round and the threads insert disjoint rows.
+ *
+ * Usage: ConcurrentInsertStress [customers] [threads...]
+ */
+public class ConcurrentInsertStress {
+
+	private static final String DB_URL = "jdbc:derby:memory:stress";
+	private static final Date DATE = Date.valueOf("2018-12-01");
+
+	public static void main(String[] args) throws Exception {
+		int customers = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int[] threadCounts = {1, 2, 4, 8, 16};
+		if (args.length > 1) {
+			threadCounts = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++) {
+				threadCounts[i - 1] = Integer.parseInt(args[i]);
+			}
+		}
+
+		try (Connection conn = DriverManager.getConnection(DB_URL + ";create=true")) {
+			createSchema(conn);
+			preload(conn, customers, threadCounts.length);
+
+			System.out.printf("Concurrent review inserts, %d per round\n", customers);
+			for (int round = 0; round < threadCounts.length; round++) {
+				run(round, threadCounts[round], customers);
+			}
+		}
+		try {
+			DriverManager.getConnection(DB_URL + ";drop=true");
+		} catch (SQLException ex) {
+			// dropping an in-memory database always reports an exception
+		}
+	}
+
+	private static String customerId(int i) {
+		return new UUID(1, i).toString();
+	}
+
+	private static String movieId(int round) {
+		return new UUID(3, round).toString();
+	}
+
+	private static void createSchema(Connection conn) throws SQLException {
+		try (Statement stmt = conn.createStatement()) {
+			stmt.executeUpdate("create function verifyAttendance(CustomerID varchar(36), MovieID varchar(36),"
+					+ " checkDate date) returns boolean language java parameter style java"
+					+ " external name 'StoredFunctions.verifyAttendance'");
+			stmt.executeUpdate("create function isOnlyReview(CustomerID varchar(36), MovieID varchar(36))"
+					+ " returns boolean language java parameter style java"
+					+ " external name 'StoredFunctions.isOnlyReview'");
+			stmt.executeUpdate("create table Customer (Name varchar(36) not null, Email varchar(36) not null,"
+					+ " Date date not null, CustomerID varchar(36), primary key (CustomerID))");
+			stmt.executeUpdate("create table Movie (Title varchar(36) not null, MovieID varchar(36) not null,"
+					+ " primary key (MovieID))");
+			stmt.executeUpdate("create table Attendance (MovieID varchar(36) not null,"
+					+ " CustomerID varchar(36) not null, Date date not null)");
+			stmt.executeUpdate("create table Review (ReviewID varchar(36) not null unique,"
+					+ " CustomerID varchar(36) not null, MovieID varchar(36) not null, ReviewDate date not null,"
+					+ " Rating int not null, Review varchar(1000) not null,"
+					+ " primary key (CustomerID, MovieID, ReviewDate),"
+					+ " check(verifyAttendance(CustomerID, MovieID, ReviewDate)),"
+					+ " check(isOnlyReview(CustomerID, MovieID)))");
+			for (SchemaIndexes.Index index : SchemaIndexes.INDEXES) {
+				if (!index.table.equals("Endorsement")) {
+					stmt.executeUpdate(index.createSql());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Loads the customers, one movie per round, and an attendance of every
+	 * customer at every movie.
+	 */
+	private static void preload(Connection conn, int customers, int rounds) throws SQLException {
+		conn.setAutoCommit(false);
+		try (
+			PreparedStatement customer = conn.prepareStatement("insert into Customer values (?, ?, ?, ?)");
+			PreparedStatement movie = conn.prepareStatement("insert into Movie values (?, ?)");
+			// Attendance may be partitioned by month
+			DatePartitions.Router attendances = new DatePartitions.Router(conn, DatePartitions.ATTENDANCE,
+					"MovieID, CustomerID, Date");
+		) {
+			PreparedStatement attendance = attendances.statement(DATE);
+			for (int round = 0; round < rounds; round++) {
+				movie.setString(1, "Movie " + round);
+				movie.setString(2, movieId(round));
+				movie.addBatch();
+			}
+			movie.executeBatch();
+			for (int i = 0; i < customers; i++) {
+				customer.setString(1, "Customer " + i);
+				customer.setString(2, "c" + i + "@example.com");
+				customer.setDate(3, DATE);
+				customer.setString(4, customerId(i));
+				customer.addBatch();
+				for (int round = 0; round < rounds; round++) {
+					attendance.setString(1, movieId(round));
+					attendance.setString(2, customerId(i));
+					attendance.setDate(3, DATE);
+					attendance.addBatch();
+				}
+				if (i % 1000 == 999) {
+					customer.executeBatch();
+					attendances.executeBatch();
+				}
+			}
+			customer.executeBatch();
+			attendances.executeBatch();
+			DatePartitions.commit(conn);
+		} catch (SQLException ex) {
+			DatePartitions.rollback(conn);
+			throw ex;
+		}
+		conn.setAutoCommit(true);
+	}
+
+	/**
+	 * Runs one round: each thread reviews the round's movie for every
+	 * customer whose index is congruent to its own, committing each insert.
+	 */
+	private static void run(int round, int threadCount, int customers) throws Exception {
+		AtomicInteger accepted = new AtomicInteger();
+		AtomicInteger rejected = new AtomicInteger();
+		Thread[] threads = new Thread[threadCount];
+		Exception[] failure = new Exception[1];
+		String movieId = movieId(round);
+
+		for (int t = 0; t < threadCount; t++) {
+			int first = t;
+			threads[t] = new Thread(() -> {
+				try (
+					Connection conn = DriverManager.getConnection(DB_URL);
+					PreparedStatement stmt = conn.prepareStatement("insert into Review values (?, ?, ?, ?, ?, ?)");
+				) {
+					for (int i = first; i < customers; i += threadCount) {
+						stmt.setString(1, new UUID(2, (long) round * customers + i).toString());
+						stmt.setString(2, customerId(i));
+						stmt.setString(3, movieId);
+						stmt.setDate(4, DATE);
+						stmt.setInt(5, 1 + i % 5);
+						stmt.setString(6, "review");
+						try {
+							stmt.executeUpdate();
+							accepted.incrementAndGet();
+						} catch (SQLException ex) {
+							// rejected by a check constraint
+							rejected.incrementAndGet();
+						}
+					}
+				} catch (SQLException ex) {
+					synchronized (failure) {
+						failure[0] = ex;
+					}
+				}
+			}, "inserter-" + t);
+		}
+
+		long start = System.nanoTime();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long nanos = System.nanoTime() - start;
+		synchronized (failure) {
+			if (failure[0] != null) {
+				throw failure[0];
+			}
+		}
+
+		System.out.printf("  %2d threads : %6d inserts (%d accepted, %d rejected) in %.2f s, %.0f inserts/sec\n",
+				threadCount, customers, accepted.get(), rejected.get(), nanos / 1e9, customers / Math.max(nanos / 1e9, 1e-9));
+	}
+}
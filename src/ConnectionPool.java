@@ -0,0 +1,204 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Small pool of embedded Derby connections, each with its own
+ * {@link StatementCache}. Borrowing a connection that is idle in the pool
+ * avoids connection setup, and preparing a statement through it avoids
+ * recompiling SQL that the connection has run before.
+ *
+ * Borrowed connections are returned by closing the {@link PooledConnection}.
+ */
+public class ConnectionPool {
+
+	/** default maximum number of connections */
+	static final int DEFAULT_MAX_SIZE = 8;
+
+	/** how long a borrower waits for a connection when the pool is exhausted */
+	static final long BORROW_TIMEOUT_MILLIS = 30_000;
+
+	private static ConnectionPool defaultPool;
+
+	private final String connStr;
+	private final Properties props;
+	private final int maxSize;
+	private final int statementCacheSize;
+	private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+	private final AtomicInteger size = new AtomicInteger();
+
+	// pool metrics
+	private final AtomicLong borrows = new AtomicLong();
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong waits = new AtomicLong();
+
+	/**
+	 * A connection borrowed from the pool.
+	 */
+	public class PooledConnection implements AutoCloseable {
+		private final Connection conn;
+		private final StatementCache statements;
+
+		PooledConnection(Connection conn) {
+			this.conn = conn;
+			this.statements = new StatementCache(conn, statementCacheSize);
+		}
+
+		/**
+		 * @return the underlying connection, which must not be closed directly
+		 */
+		public Connection connection() {
+			return conn;
+		}
+
+		/**
+		 * Gets a cached prepared statement for the connection. The statement
+		 * must not be closed by the caller.
+		 *
+		 * @param sql the statement text
+		 * @return the prepared statement
+		 * @throws SQLException if the statement cannot be prepared
+		 */
+		public PreparedStatement prepare(String sql) throws SQLException {
+			return statements.prepare(sql);
+		}
+
+		/**
+		 * Returns the connection to the pool, rolling back any open transaction.
+		 */
+		@Override
+		public void close() {
+			try {
+				if (!conn.getAutoCommit()) {
+					conn.rollback();
+					conn.setAutoCommit(true);
+				}
+				idle.addFirst(this);
+			} catch (SQLException ex) {
+				discard(this);
+			}
+		}
+	}
+
+	/**
+	 * Creates a pool.
+	 *
+	 * @param connStr the connection URL
+	 * @param props the connection properties
+	 * @param maxSize the maximum number of open connections
+	 * @param statementCacheSize the number of statements cached per connection
+	 */
+	public ConnectionPool(String connStr, Properties props, int maxSize, int statementCacheSize) {
+		this.connStr = connStr;
+		this.props = props;
+		this.maxSize = maxSize;
+		this.statementCacheSize = statementCacheSize;
+	}
+
+	/**
+	 * Gets the pool for the iRate database, creating it on first use.
+	 *
+	 * @return the default pool
+	 */
+	public static synchronized ConnectionPool getDefault() {
+		if (defaultPool == null) {
+			Properties props = new Properties(); // connection properties
+			props.put("user", "user1");
+			props.put("password", "user1");
+			defaultPool = new ConnectionPool("jdbc:derby:irate", props, DEFAULT_MAX_SIZE, StatementCache.DEFAULT_SIZE);
+		}
+		return defaultPool;
+	}
+
+	/**
+	 * Replaces the default pool, so that the queries run against another
+	 * database, such as one generated for a benchmark. The previous pool's
+	 * idle connections are closed.
+	 *
+	 * @param pool the new default pool, or null to recreate the iRate pool on next use
+	 */
+	public static synchronized void setDefault(ConnectionPool pool) {
+		if (defaultPool != null) {
+			defaultPool.close();
+		}
+		defaultPool = pool;
+	}
+
+	/**
+	 * Borrows a connection, opening a new one if none are idle and the pool
+	 * is not full, and otherwise waiting for one to be returned.
+	 *
+	 * @return the borrowed connection
+	 * @throws SQLException if a connection cannot be opened or none is returned in time
+	 */
+	public PooledConnection borrow() throws SQLException {
+		borrows.incrementAndGet();
+		while (true) {
+			PooledConnection pooled = idle.pollFirst();
+			if (pooled == null) {
+				if (size.incrementAndGet() <= maxSize) {
+					try {
+						created.incrementAndGet();
+						return new PooledConnection(DriverManager.getConnection(connStr, props));
+					} catch (SQLException ex) {
+						size.decrementAndGet();
+						throw ex;
+					}
+				}
+				size.decrementAndGet();
+				waits.incrementAndGet();
+				try {
+					pooled = idle.pollFirst(BORROW_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new SQLException("Interrupted while waiting for a connection", ex);
+				}
+				if (pooled == null) {
+					throw new SQLException("No connection available after " + BORROW_TIMEOUT_MILLIS + " ms");
+				}
+			}
+			if (pooled.conn.isClosed()) {
+				discard(pooled);
+				continue;
+			}
+			return pooled;
+		}
+	}
+
+	private void discard(PooledConnection pooled) {
+		pooled.statements.clear();
+		try {
+			pooled.conn.close();
+		} catch (SQLException ex) {
+			// already unusable
+		}
+		size.decrementAndGet();
+	}
+
+	/**
+	 * Closes all idle connections.
+	 */
+	public void close() {
+		PooledConnection pooled;
+		while ((pooled = idle.pollFirst()) != null) {
+			discard(pooled);
+		}
+	}
+
+	/**
+	 * @return the pool counts and the statement cache counts
+	 */
+	public String stats() {
+		long b = borrows.get();
+		long c = created.get();
+		return String.format("connection pool: %d borrows, %d connections opened (%.1f%% reused), %d waits, %d open, %d idle; %s",
+				b, c, b == 0 ? 0.0 : 100.0 * (b - Math.min(b, c)) / b, waits.get(), size.get(), idle.size(),
+				StatementCache.stats());
+	}
+}
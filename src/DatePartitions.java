@@ -0,0 +1,684 @@
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Monthly partitioning of the append-mostly Endorsement and Attendance
+ * tables. A partitioned table is replaced by one table per month, named
+ * for example Endorsement_P201812, and a view of the same name as the
+ * original table that is the union of the partitions:
+ * 	1) inserts are routed to the partition of their date by a {@link Router},
+ * 	   which creates a partition the first time its month is seen
+ * 	2) lookups over a range of days use {@link #tables} to query only the
+ * 	   partitions whose month overlaps the range; other reads use the view
+ * 	3) a month is dropped, or archived by detaching it from the view, with
+ * 	   one DDL statement instead of a DELETE of its rows
+ *
+ * Each partition has the columns, keys, foreign keys and indexes of the
+ * original table, and a CHECK that its dates fall in its month. The Java
+ * CHECK constraints of Endorsement would re-validate the copied rows against
+ * themselves, so partitions enforce them with a before insert trigger.
+ *
+ * Derby does not prune the branches of a union view by their CHECK
+ * constraints, which is why range lookups name the partitions themselves.
+ *
+ * A Router creates a partition in the transaction of the rows it inserts,
+ * so the new month is only seen by the connection of that transaction
+ * until the loader commits with {@link #commit}; {@link #rollback} forgets
+ * it. A month whose connection was closed, or rolled back without
+ * {@link #rollback}, is created again by the next insert into it.
+ *
+ * Usage: DatePartitions -partition table | -drop table yyyy-mm | -archive table yyyy-mm | -list table
+ */
+public class DatePartitions {
+
+	/**
+	 * Definition of one partitioned table.
+	 */
+	static class Spec {
+		final String table;
+		final String dateColumn;
+		final String columns;
+		final String[] indexes;
+
+		/**
+		 * @param table the original table name
+		 * @param dateColumn the column partitioned on
+		 * @param columns the column and constraint definitions; %1$s is the ID type
+		 * @param indexes the column lists of the secondary indexes
+		 */
+		Spec(String table, String dateColumn, String columns, String... indexes) {
+			this.table = table;
+			this.dateColumn = dateColumn;
+			this.columns = columns;
+			this.indexes = indexes;
+		}
+
+		String partition(YearMonth month) {
+			return String.format("%s_P%04d%02d", table, month.getYear(), month.getMonthValue());
+		}
+	}
+
+	/** the Attendance table, partitioned on Date */
+	static final Spec ATTENDANCE = new Spec("Attendance", "Date",
+			"MovieID %1$s not null,"
+			+ " CustomerID %1$s not null,"
+			+ " Date date not null,"
+			+ " foreign key (MovieID) references Movie (MovieID) on delete cascade",
+			"CustomerID, MovieID, Date");
+
+	/** the Endorsement table, partitioned on EndorsementDate */
+	static final Spec ENDORSEMENT = new Spec("Endorsement", "EndorsementDate",
+			"ReviewID %1$s not null,"
+			+ " EndorserID %1$s not null,"
+			+ " EndorsementDate date not null,"
+			+ " primary key (ReviewID, EndorserID, EndorsementDate),"
+			+ " foreign key (EndorserID) references Customer (CustomerID) on delete cascade,"
+			+ " foreign key (ReviewID) references Review (ReviewID) on delete cascade",
+			"EndorserID");
+
+	/** the partitionable tables */
+	static final Spec[] SPECS = {ATTENDANCE, ENDORSEMENT};
+
+	/** partitions detached from their views */
+	static final String CREATE_ARCHIVE =
+			"create table PartitionArchive ("
+			+ " PartitionName varchar(128) not null,"
+			+ " ArchivedOn date not null,"
+			+ " primary key (PartitionName))";
+
+	// months of the attached partitions of each table, loaded on first use; the
+	// catalog is only changed through this class, in the JVM of the embedded database
+	private static final Map<String, NavigableSet<YearMonth>> months = new ConcurrentHashMap<>();
+
+	// months of the partitions created by open transactions, with the connection
+	// of each, until it commits or rolls back; guarded by the class
+	private static final Map<String, Map<YearMonth, Connection>> creating = new HashMap<>();
+
+	/**
+	 * Gets the spec of a table.
+	 *
+	 * @param table the table name, in any case
+	 * @return the spec, or null if the table cannot be partitioned
+	 */
+	static Spec spec(String table) {
+		for (Spec spec : SPECS) {
+			if (spec.table.equalsIgnoreCase(table)) {
+				return spec;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the months of the attached partitions of a table, reading them
+	 * from the catalog on first use. Partitions created by a transaction
+	 * that has not committed are included only for its connection.
+	 *
+	 * @param conn the connection
+	 * @param spec the table
+	 * @return the months, empty if the table is not partitioned
+	 * @throws SQLException if a database operation fails
+	 */
+	static synchronized NavigableSet<YearMonth> months(Connection conn, Spec spec) throws SQLException {
+		NavigableSet<YearMonth> set = committedMonths(conn, spec);
+		Map<YearMonth, Connection> created = creating.get(spec.table);
+		if (created == null) {
+			return set;
+		}
+		NavigableSet<YearMonth> own = null;
+		for (Map.Entry<YearMonth, Connection> entry : created.entrySet()) {
+			if (entry.getValue() == conn) {
+				if (own == null) {
+					own = new TreeSet<>(set);
+				}
+				own.add(entry.getKey());
+			}
+		}
+		return own == null ? set : own;
+	}
+
+	/**
+	 * Gets the months of the committed partitions of a table.
+	 */
+	private static NavigableSet<YearMonth> committedMonths(Connection conn, Spec spec) throws SQLException {
+		NavigableSet<YearMonth> set = months.get(spec.table);
+		if (set != null) {
+			return set;
+		}
+		set = new TreeSet<>();
+		String prefix = spec.table.toUpperCase() + "_P";
+		try (
+			Statement stmt = conn.createStatement();
+			ResultSet rs = stmt.executeQuery(
+					"select t.TableName from SYS.SYSTABLES t"
+					+ " join SYS.SYSSCHEMAS s on t.SchemaID = s.SchemaID"
+					+ " where s.SchemaName = current schema and t.TableType = 'T'");
+		) {
+			while (rs.next()) {
+				String name = rs.getString(1);
+				if (name.startsWith(prefix) && name.length() == prefix.length() + 6) {
+					set.add(YearMonth.of(Integer.parseInt(name.substring(prefix.length(), prefix.length() + 4)),
+							Integer.parseInt(name.substring(prefix.length() + 4))));
+				}
+			}
+		}
+		for (String archived : archived(conn)) {
+			if (archived.startsWith(prefix)) {
+				set.remove(YearMonth.of(Integer.parseInt(archived.substring(prefix.length(), prefix.length() + 4)),
+						Integer.parseInt(archived.substring(prefix.length() + 4))));
+			}
+		}
+		months.put(spec.table, set);
+		return set;
+	}
+
+	/**
+	 * Gets the names of the archived partitions.
+	 */
+	private static List<String> archived(Connection conn) throws SQLException {
+		List<String> names = new ArrayList<>();
+		try (ResultSet rs = conn.getMetaData().getTables(null, conn.getSchema(), "PARTITIONARCHIVE", null)) {
+			if (!rs.next()) {
+				return names;
+			}
+		}
+		try (
+			Statement stmt = conn.createStatement();
+			ResultSet rs = stmt.executeQuery("select PartitionName from PartitionArchive");
+		) {
+			while (rs.next()) {
+				names.add(rs.getString(1).toUpperCase());
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Determines whether a table is partitioned.
+	 *
+	 * @param conn the connection
+	 * @param spec the table
+	 * @return true if the table is a view over monthly partitions
+	 * @throws SQLException if a database operation fails
+	 */
+	static boolean isPartitioned(Connection conn, Spec spec) throws SQLException {
+		try (ResultSet rs = conn.getMetaData().getTables(null, conn.getSchema(), spec.table.toUpperCase(),
+				new String[] {"VIEW"})) {
+			return rs.next();
+		}
+	}
+
+	/**
+	 * Gets the tables to query for rows dated in a range: the partitions
+	 * whose months overlap the range if the table is partitioned, and
+	 * otherwise the table itself.
+	 *
+	 * @param conn the connection
+	 * @param spec the table
+	 * @param from the first date of the range, or null for no lower bound
+	 * @param to the last date of the range, or null for no upper bound
+	 * @return the tables, newest first
+	 * @throws SQLException if a database operation fails
+	 */
+	static List<String> tables(Connection conn, Spec spec, Date from, Date to) throws SQLException {
+		NavigableSet<YearMonth> set = months(conn, spec);
+		if (set.isEmpty()) {
+			// a partitioned table always has at least one partition
+			return Collections.singletonList(spec.table);
+		}
+		YearMonth first = from == null ? null : YearMonth.from(from.toLocalDate());
+		YearMonth last = to == null ? null : YearMonth.from(to.toLocalDate());
+		List<String> tables = new ArrayList<>();
+		synchronized (DatePartitions.class) {
+			for (YearMonth month : set.descendingSet()) {
+				if ((first == null || !month.isBefore(first)) && (last == null || !month.isAfter(last))) {
+					tables.add(spec.partition(month));
+				}
+			}
+		}
+		return tables;
+	}
+
+	/**
+	 * Recreates the view of a table as the union of its attached partitions.
+	 */
+	private static void createView(Statement stmt, Spec spec, NavigableSet<YearMonth> set) throws SQLException {
+		StringBuilder sql = new StringBuilder("create view ").append(spec.table).append(" as ");
+		String union = "";
+		for (YearMonth month : set) {
+			sql.append(union).append("select * from ").append(spec.partition(month));
+			union = " union all ";
+		}
+		stmt.executeUpdate(sql.toString());
+	}
+
+	/**
+	 * Creates the partition of a month with its constraints and indexes.
+	 */
+	private static void createPartition(Connection conn, Statement stmt, Spec spec, YearMonth month)
+			throws SQLException {
+		String name = spec.partition(month);
+		String idType = BinaryIds.idType(conn);
+		stmt.executeUpdate("create table " + name + " ("
+				+ String.format(spec.columns, idType) + ","
+				+ " check (" + spec.dateColumn + " between '" + month.atDay(1)
+				+ "' and '" + month.atEndOfMonth() + "'))");
+		for (int i = 0; i < spec.indexes.length; i++) {
+			stmt.executeUpdate("create index " + name + "_I" + i + " on " + name + " (" + spec.indexes[i] + ")");
+		}
+		System.out.println("Created partition " + name);
+	}
+
+	/**
+	 * Creates the triggers of a partition, once it holds its copied rows.
+	 */
+	private static void createTriggers(Connection conn, Statement stmt, Spec spec, YearMonth month)
+			throws SQLException {
+		if (spec == ENDORSEMENT) {
+			EndorsementEvents.createTriggers(stmt, spec.partition(month), true);
+		} else if (spec == ATTENDANCE) {
+			PairFilters.createTriggers(stmt, spec.partition(month), "attendancePairAdded");
+		}
+	}
+
+	/**
+	 * Creates the partition of a date's month if it does not exist, in the
+	 * connection's transaction. Unless the connection commits each
+	 * statement, the month is published to other connections only once the
+	 * transaction is committed with {@link #commit}.
+	 *
+	 * @param conn the connection
+	 * @param spec the partitioned table
+	 * @param date the date
+	 * @return the partition name
+	 * @throws SQLException if a database operation fails
+	 */
+	static String ensurePartition(Connection conn, Spec spec, Date date) throws SQLException {
+		YearMonth month = YearMonth.from(date.toLocalDate());
+		synchronized (DatePartitions.class) {
+			Map<YearMonth, Connection> created = creating.computeIfAbsent(spec.table, t -> new HashMap<>());
+			Iterator<Map.Entry<YearMonth, Connection>> it = created.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<YearMonth, Connection> entry = it.next();
+				Connection creator = entry.getValue();
+				if (creator.isClosed() || (creator == conn && !partitionExists(conn, spec, entry.getKey()))) {
+					// the connection was closed, or rolled back its transaction, without committing it
+					it.remove();
+				}
+			}
+			NavigableSet<YearMonth> set = months(conn, spec);
+			Connection creator = created.get(month);
+			// a partition created by another open transaction is used as is; its
+			// rows are written once that transaction commits
+			if (!set.contains(month) && creator == null) {
+				try (Statement stmt = conn.createStatement()) {
+					createPartition(conn, stmt, spec, month);
+					createTriggers(conn, stmt, spec, month);
+					stmt.executeUpdate("drop view " + spec.table);
+					NavigableSet<YearMonth> updated = new TreeSet<>(set);
+					updated.add(month);
+					createView(stmt, spec, updated);
+				}
+				if (conn.getAutoCommit()) {
+					publish(spec.table, month);
+				} else {
+					created.put(month, conn);
+				}
+			}
+		}
+		return spec.partition(month);
+	}
+
+	/**
+	 * Tells whether a partition exists, as seen by the transaction of a
+	 * connection.
+	 */
+	private static boolean partitionExists(Connection conn, Spec spec, YearMonth month) throws SQLException {
+		try (ResultSet rs = conn.getMetaData().getTables(null, conn.getSchema(),
+				spec.partition(month).toUpperCase(), new String[] {"TABLE"})) {
+			return rs.next();
+		}
+	}
+
+	/**
+	 * Adds a committed partition to the cached months of its table.
+	 */
+	private static void publish(String table, YearMonth month) {
+		NavigableSet<YearMonth> set = months.get(table);
+		if (set != null) {
+			NavigableSet<YearMonth> updated = new TreeSet<>(set);
+			updated.add(month);
+			months.put(table, updated);
+		}
+	}
+
+	/**
+	 * Commits the transaction of a connection that inserts through a
+	 * Router, publishing the partitions it created.
+	 *
+	 * @param conn the connection
+	 * @throws SQLException if a database operation fails
+	 */
+	static void commit(Connection conn) throws SQLException {
+		conn.commit();
+		endTransaction(conn, true);
+	}
+
+	/**
+	 * Rolls back the transaction of a connection that inserts through a
+	 * Router, forgetting the partitions it created.
+	 *
+	 * @param conn the connection
+	 * @throws SQLException if a database operation fails
+	 */
+	static void rollback(Connection conn) throws SQLException {
+		try {
+			conn.rollback();
+		} finally {
+			endTransaction(conn, false);
+		}
+	}
+
+	/**
+	 * Publishes or forgets the partitions created by a connection.
+	 */
+	private static synchronized void endTransaction(Connection conn, boolean committed) {
+		for (Map.Entry<String, Map<YearMonth, Connection>> table : creating.entrySet()) {
+			Iterator<Map.Entry<YearMonth, Connection>> it = table.getValue().entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<YearMonth, Connection> entry = it.next();
+				if (entry.getValue() == conn) {
+					if (committed) {
+						publish(table.getKey(), entry.getKey());
+					}
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Converts a table to monthly partitions, moving its rows to the
+	 * partition of their month, in one transaction.
+	 *
+	 * @param conn the connection
+	 * @param spec the table
+	 * @throws SQLException if a database operation fails
+	 */
+	public static void partition(Connection conn, Spec spec) throws SQLException {
+		if (isPartitioned(conn, spec)) {
+			System.out.println("Table " + spec.table + " is already partitioned");
+			return;
+		}
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		try (Statement stmt = conn.createStatement()) {
+			NavigableSet<YearMonth> set = new TreeSet<>();
+			try (ResultSet rs = stmt.executeQuery("select distinct year(" + spec.dateColumn + "), month("
+					+ spec.dateColumn + ") from " + spec.table)) {
+				while (rs.next()) {
+					set.add(YearMonth.of(rs.getInt(1), rs.getInt(2)));
+				}
+			}
+			if (set.isEmpty()) {
+				set.add(YearMonth.now());
+			}
+			// partitions carry the triggers of the table instead
+			if (spec == ENDORSEMENT) {
+				EndorsementEvents.dropTriggers(stmt, spec.table);
+			} else if (spec == ATTENDANCE) {
+				PairFilters.dropTriggers(stmt, spec.table);
+			}
+			long rows = 0;
+			for (YearMonth month : set) {
+				createPartition(conn, stmt, spec, month);
+				rows += stmt.executeUpdate("insert into " + spec.partition(month)
+						+ " select * from " + spec.table
+						+ " where " + spec.dateColumn + " between '" + month.atDay(1) + "' and '" + month.atEndOfMonth() + "'");
+			}
+			stmt.executeUpdate("drop table " + spec.table);
+			for (YearMonth month : set) {
+				createTriggers(conn, stmt, spec, month);
+			}
+			createView(stmt, spec, set);
+			conn.commit();
+			months.put(spec.table, set);
+			System.out.printf("Partitioned %s into %d months (%d rows)\n", spec.table, set.size(), rows);
+		} catch (SQLException ex) {
+			conn.rollback();
+			months.remove(spec.table);
+			throw ex;
+		} finally {
+			conn.setAutoCommit(autoCommit);
+		}
+	}
+
+	/**
+	 * Removes the partition of a month from the view of its table, and
+	 * either drops it or records it as archived. Either way the rows leave
+	 * the table without being deleted one by one.
+	 *
+	 * @param conn the connection
+	 * @param spec the partitioned table
+	 * @param month the month
+	 * @param keep true to archive the partition, false to drop it
+	 * @throws SQLException if a database operation fails
+	 */
+	public static void detach(Connection conn, Spec spec, YearMonth month, boolean keep) throws SQLException {
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		synchronized (DatePartitions.class) {
+			NavigableSet<YearMonth> set = months(conn, spec);
+			if (!set.contains(month)) {
+				conn.setAutoCommit(autoCommit);
+				throw new SQLException("No partition " + spec.partition(month));
+			}
+			if (set.size() == 1) {
+				// the view needs at least one partition
+				conn.setAutoCommit(autoCommit);
+				throw new SQLException("Cannot detach the only partition of " + spec.table);
+			}
+			NavigableSet<YearMonth> updated = new TreeSet<>(set);
+			updated.remove(month);
+			String name = spec.partition(month);
+			try (Statement stmt = conn.createStatement()) {
+				stmt.executeUpdate("drop view " + spec.table);
+				createView(stmt, spec, updated);
+				if (keep) {
+					try (ResultSet rs = conn.getMetaData().getTables(null, conn.getSchema(), "PARTITIONARCHIVE", null)) {
+						if (!rs.next()) {
+							stmt.executeUpdate(CREATE_ARCHIVE);
+						}
+					}
+					stmt.executeUpdate("insert into PartitionArchive values ('" + name.toUpperCase() + "', current_date)");
+				} else {
+					stmt.executeUpdate("drop table " + name);
+				}
+				conn.commit();
+				months.put(spec.table, updated);
+				System.out.println((keep ? "Archived partition " : "Dropped partition ") + name);
+			} catch (SQLException ex) {
+				conn.rollback();
+				throw ex;
+			} finally {
+				conn.setAutoCommit(autoCommit);
+			}
+		}
+	}
+
+	/**
+	 * Drops the views and partitions of all partitioned tables, including
+	 * archived partitions.
+	 *
+	 * @param conn the connection
+	 */
+	public static void dropAll(Connection conn) {
+		try (Statement stmt = conn.createStatement()) {
+			List<String> archived = archived(conn);
+			for (Spec spec : SPECS) {
+				if (!isPartitioned(conn, spec)) {
+					continue;
+				}
+				stmt.executeUpdate("drop view " + spec.table);
+				for (YearMonth month : months(conn, spec)) {
+					stmt.executeUpdate("drop table " + spec.partition(month));
+				}
+				months.remove(spec.table);
+				System.out.println("Dropped partitions of " + spec.table);
+			}
+			for (String name : archived) {
+				stmt.executeUpdate("drop table " + name);
+			}
+			if (!archived.isEmpty()) {
+				stmt.executeUpdate("drop table PartitionArchive");
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Routes inserts to the partition of each row's date, keeping one
+	 * prepared statement per partition so that rows can be batched. For a
+	 * table that is not partitioned, every row goes to the table itself.
+	 */
+	static class Router implements AutoCloseable {
+		private final Connection conn;
+		private final Spec spec;
+		private final String insert;
+		private final boolean partitioned;
+		private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+		// statement of the last month routed to, since rows tend to arrive in date order
+		private YearMonth lastMonth;
+		private PreparedStatement last;
+
+		/**
+		 * Creates a router.
+		 *
+		 * @param conn the connection
+		 * @param spec the table
+		 * @param columns the inserted column list
+		 * @throws SQLException if a database operation fails
+		 */
+		Router(Connection conn, Spec spec, String columns) throws SQLException {
+			this.conn = conn;
+			this.spec = spec;
+			this.partitioned = isPartitioned(conn, spec);
+			StringBuilder sql = new StringBuilder(" (").append(columns).append(") values(?");
+			for (int i = columns.indexOf(','); i >= 0; i = columns.indexOf(',', i + 1)) {
+				sql.append(", ?");
+			}
+			this.insert = sql.append(")").toString();
+		}
+
+		/**
+		 * Gets the insert statement for a row dated on a date.
+		 *
+		 * @param date the row's date
+		 * @return the statement, whose parameters are the inserted columns
+		 * @throws SQLException if a database operation fails
+		 */
+		PreparedStatement statement(Date date) throws SQLException {
+			if (!partitioned) {
+				return statement(spec.table);
+			}
+			YearMonth month = YearMonth.from(date.toLocalDate());
+			if (!month.equals(lastMonth)) {
+				last = statement(ensurePartition(conn, spec, date));
+				lastMonth = month;
+			}
+			return last;
+		}
+
+		private PreparedStatement statement(String table) throws SQLException {
+			PreparedStatement stmt = statements.get(table);
+			if (stmt == null) {
+				stmt = conn.prepareStatement("insert into " + table + insert);
+				statements.put(table, stmt);
+			}
+			return stmt;
+		}
+
+		/**
+		 * Executes the batches of all partitions.
+		 *
+		 * @throws SQLException if a database operation fails
+		 */
+		void executeBatch() throws SQLException {
+			for (PreparedStatement stmt : statements.values()) {
+				stmt.executeBatch();
+			}
+		}
+
+		@Override
+		public void close() throws SQLException {
+			for (PreparedStatement stmt : statements.values()) {
+				stmt.close();
+			}
+			statements.clear();
+		}
+	}
+
+	/**
+	 * Prints the partitions of a table with their row counts.
+	 */
+	private static void list(Connection conn, Spec spec) throws SQLException {
+		if (!isPartitioned(conn, spec)) {
+			System.out.println("Table " + spec.table + " is not partitioned");
+			return;
+		}
+		try (Statement stmt = conn.createStatement()) {
+			for (String table : tables(conn, spec, null, null)) {
+				try (ResultSet rs = stmt.executeQuery("select count(*) from " + table)) {
+					rs.next();
+					System.out.printf("%s : %d rows\n", table, rs.getLong(1));
+				}
+			}
+		}
+		for (String name : archived(conn)) {
+			if (name.startsWith(spec.table.toUpperCase() + "_P")) {
+				System.out.printf("%s : archived\n", name);
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 2 || spec(args[1]) == null) {
+			System.out.println("Usage: DatePartitions -partition table | -drop table yyyy-mm"
+					+ " | -archive table yyyy-mm | -list table");
+			return;
+		}
+		Spec spec = spec(args[1]);
+		Properties props = new Properties(); // connection properties
+		props.put("user", "user1");
+		props.put("password", "user1");
+		try (Connection conn = DriverManager.getConnection("jdbc:derby:irate", props)) {
+			if (args[0].equals("-partition")) {
+				partition(conn, spec);
+			} else if (args[0].equals("-drop") || args[0].equals("-archive")) {
+				detach(conn, spec, YearMonth.parse(args[2]), args[0].equals("-archive"));
+			} else {
+				list(conn, spec);
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,96 @@
+import java.lang.management.ManagementFactory;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.Random;
+
+/**
+ * Compares the per-call cost of StoredFunctions.withinDays with the
+ * LocalDate arithmetic that the sevenDays, threeDays and oneDay checks
+ * used, in time and in bytes allocated per call.
+ *
+ * Usage: DateWindowBenchmark [iterations]
+ */
+public class DateWindowBenchmark {
+
+	/** number of calls measured before the JIT compiles them */
+	static final int COLD_CALLS = 2_000;
+
+	/** the day arithmetic previously used by StoredFunctions.checkSevenDays and the others */
+	static boolean localDateWithinDays(Date date, Date oldDate, int days) {
+		long diff = ChronoUnit.DAYS.between(oldDate.toLocalDate(), date.toLocalDate());
+		return diff >= 0 && diff <= days;
+	}
+
+	/**
+	 * Gets the bytes allocated by the current thread, or -1 if the JVM does
+	 * not report them.
+	 */
+	static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	/**
+	 * Runs an operation and prints the bytes it allocates per call.
+	 */
+	static void allocation(String name, MicroBench.Op op, int iterations) {
+		long acc = 0;
+		long before = allocatedBytes();
+		for (int i = 0; i < iterations; i++) {
+			acc += op.run(i);
+		}
+		long after = allocatedBytes();
+		MicroBench.sink += acc;
+		if (before < 0) {
+			System.out.printf("%-40s allocation not reported by this JVM\n", name);
+		} else {
+			System.out.printf("%-40s %10.2f bytes/op\n", name, (double) (after - before) / iterations);
+		}
+	}
+
+	public static void main(String[] args) {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+		// review dates and attendance dates up to ten days before them, over a year
+		Random random = new Random(42);
+		Date[] dates = new Date[1024];
+		Date[] oldDates = new Date[dates.length];
+		LocalDate first = LocalDate.of(2019, 1, 1);
+		for (int i = 0; i < dates.length; i++) {
+			LocalDate day = first.plusDays(random.nextInt(365));
+			dates[i] = Date.valueOf(day);
+			oldDates[i] = Date.valueOf(day.minusDays(random.nextInt(11)));
+		}
+		int mask = dates.length - 1;
+
+		// the implementations must agree before they are timed
+		for (int i = 0; i < dates.length; i++) {
+			if (StoredFunctions.epochDay(dates[i]) != dates[i].toLocalDate().toEpochDay()) {
+				throw new AssertionError("Epoch days disagree on " + dates[i]);
+			}
+			for (int days : new int[] {1, 3, 7}) {
+				if (localDateWithinDays(dates[i], oldDates[i], days)
+						!= StoredFunctions.withinDays(dates[i], oldDates[i], days)) {
+					throw new AssertionError("Checks disagree on " + dates[i] + ", " + oldDates[i] + ", " + days);
+				}
+			}
+		}
+
+		MicroBench.Op localDate = i -> localDateWithinDays(dates[i & mask], oldDates[i & mask], 7) ? 1 : 0;
+		MicroBench.Op epochDays = i -> StoredFunctions.withinDays(dates[i & mask], oldDates[i & mask], 7) ? 1 : 0;
+
+		// before the JIT compiles the calls, and after, when escape analysis
+		// may remove the LocalDate allocations of an inlined loop
+		allocation("cold withinDays LocalDate", localDate, COLD_CALLS);
+		allocation("cold withinDays epoch days", epochDays, COLD_CALLS);
+		MicroBench bench = new MicroBench(iterations);
+		bench.run("withinDays LocalDate", localDate);
+		bench.run("withinDays epoch days", epochDays);
+		allocation("warm withinDays LocalDate", localDate, iterations);
+		allocation("warm withinDays epoch days", epochDays, iterations);
+	}
+}
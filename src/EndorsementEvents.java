@@ -0,0 +1,236 @@
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Procedures called by triggers on the Endorsement table, which pass each
+ * inserted or deleted endorsement to the in-memory prize engines. The event
+ * procedures do no SQL and run in the JVM of the embedded database. When
+ * Endorsement is partitioned (see {@link DatePartitions}), or has binary IDs
+ * and so no CHECK constraints (see {@link BinaryIds}), the table or each
+ * partition also has a trigger that checks the endorsement rules.
+ *
+ * The triggers fire as rows are written, before the writing transaction
+ * commits, so a rolled back insert has already been counted. The engines
+ * reload from the table when an endorsement is deleted, on a new day, and
+ * when a query finds their state older than the reload interval (system
+ * property irate.prize.reload, in seconds), so a rolled back endorsement
+ * is counted until the next reload.
+ */
+public class EndorsementEvents {
+
+	/** system property holding the seed of the prize tie-break draw */
+	static final String SEED_PROPERTY = "irate.prize.seed";
+
+	/** system property holding the age in seconds at which a query reloads an engine */
+	static final String RELOAD_PROPERTY = "irate.prize.reload";
+
+	// daily most endorsed reviews
+	private static final TopEndorsed topEndorsed = new TopEndorsed(TopEndorsed.DEFAULT_K,
+			Long.getLong(SEED_PROPERTY, 0L), Long.getLong(RELOAD_PROPERTY, TopEndorsed.DEFAULT_RELOAD_SECONDS));
+
+	// endorsement counts by endorser over the last days
+	private static final EndorsementWindow endorsementWindow =
+			new EndorsementWindow(Long.getLong(RELOAD_PROPERTY, TopEndorsed.DEFAULT_RELOAD_SECONDS));
+
+	/** the procedures, in creation order; %1$s is the ID type */
+	private static final String[][] PROCEDURES = {
+		{"endorsementAdded",
+			"create procedure endorsementAdded(ReviewID %1$s, EndorserID %1$s, EndorsementDate date)"
+			+ " language java parameter style java no sql"
+			+ " external name 'EndorsementEvents.endorsementAdded'"},
+		{"endorsementRemoved",
+			"create procedure endorsementRemoved(ReviewID %1$s, EndorserID %1$s, EndorsementDate date)"
+			+ " language java parameter style java no sql"
+			+ " external name 'EndorsementEvents.endorsementRemoved'"},
+		{"checkEndorsement",
+			"create procedure checkEndorsement(ReviewID %1$s, EndorserID %1$s, EndorsementDate date)"
+			+ " language java parameter style java reads sql data"
+			+ " external name 'EndorsementEvents.checkEndorsement'"},
+	};
+
+	/** the event triggers of a table; %1$s is the table name */
+	private static final String[][] TRIGGERS = {
+		{"%1$sInsertEvent",
+			"create trigger %1$sInsertEvent after insert on %1$s"
+			+ " referencing new as n for each row"
+			+ " call endorsementAdded(n.ReviewID, n.EndorserID, n.EndorsementDate)"},
+		{"%1$sDeleteEvent",
+			"create trigger %1$sDeleteEvent after delete on %1$s"
+			+ " referencing old as o for each row"
+			+ " call endorsementRemoved(o.ReviewID, o.EndorserID, o.EndorsementDate)"},
+	};
+
+	/** the rule trigger of an Endorsement partition; %1$s is the table name */
+	private static final String[] RULES_TRIGGER =
+		{"%1$sRules",
+			"create trigger %1$sRules no cascade before insert on %1$s"
+			+ " referencing new as n for each row"
+			+ " call checkEndorsement(n.ReviewID, n.EndorserID, n.EndorsementDate)"};
+
+	/** SQL state of an endorsement rejected by {@link #checkEndorsement} */
+	static final String RULE_VIOLATION = "38I01";
+
+	/**
+	 * @return the engine for the daily most endorsed reviews
+	 */
+	static TopEndorsed topEndorsed() {
+		return topEndorsed;
+	}
+
+	/**
+	 * @return the window of endorsement counts by endorser
+	 */
+	static EndorsementWindow endorsementWindow() {
+		return endorsementWindow;
+	}
+
+	/**
+	 * Procedure called for each inserted endorsement.
+	 *
+	 * @param reviewId the endorsed review
+	 * @param endorserId the endorser
+	 * @param date the endorsement date
+	 */
+	public static void endorsementAdded(String reviewId, String endorserId, Date date) {
+		topEndorsed.endorsed(reviewId, endorserId, date);
+		endorsementWindow.endorsed(reviewId, endorserId, date);
+	}
+
+	/**
+	 * Procedure called for each inserted endorsement in a database with
+	 * binary IDs.
+	 */
+	public static void endorsementAdded(byte[] reviewId, byte[] endorserId, Date date) {
+		endorsementAdded(Uuids.fromBytes(reviewId), Uuids.fromBytes(endorserId), date);
+	}
+
+	/**
+	 * Procedure called for each deleted endorsement.
+	 *
+	 * @param reviewId the endorsed review
+	 * @param endorserId the endorser
+	 * @param date the endorsement date
+	 */
+	public static void endorsementRemoved(String reviewId, String endorserId, Date date) {
+		topEndorsed.invalidate(date);
+		endorsementWindow.invalidate();
+	}
+
+	/**
+	 * Procedure called for each deleted endorsement in a database with
+	 * binary IDs.
+	 */
+	public static void endorsementRemoved(byte[] reviewId, byte[] endorserId, Date date) {
+		endorsementRemoved(Uuids.fromBytes(reviewId), Uuids.fromBytes(endorserId), date);
+	}
+
+	/**
+	 * Procedure called before each endorsement is inserted into a partition
+	 * of Endorsement, enforcing the rules that the Endorsement table checks
+	 * with CHECK constraints.
+	 *
+	 * @param reviewId the endorsed review
+	 * @param endorserId the endorser
+	 * @param date the endorsement date
+	 * @throws SQLException if the endorsement breaks a rule
+	 */
+	public static void checkEndorsement(String reviewId, String endorserId, Date date) throws SQLException {
+		if (!StoredFunctions.isValidEndorsement(endorserId, reviewId)
+				|| !Queries.checkLastEndorsementDate(reviewId, endorserId, date)) {
+			throw new SQLException("Endorsement of review " + reviewId + " by " + endorserId
+					+ " on " + date + " breaks the endorsement rules", RULE_VIOLATION);
+		}
+	}
+
+	/**
+	 * Procedure called before each endorsement is inserted in a database
+	 * with binary IDs.
+	 */
+	public static void checkEndorsement(byte[] reviewId, byte[] endorserId, Date date) throws SQLException {
+		checkEndorsement(Uuids.fromBytes(reviewId), Uuids.fromBytes(endorserId), date);
+	}
+
+	/**
+	 * Creates the procedures, and the triggers that call them on the
+	 * Endorsement table unless it is partitioned. With binary IDs, the
+	 * table has no CHECK constraints, so the triggers also enforce the rules.
+	 *
+	 * @param conn the connection
+	 * @throws SQLException if a database operation fails
+	 */
+	public static void create(Connection conn) throws SQLException {
+		String idType = BinaryIds.idType(conn);
+		try (Statement stmt = conn.createStatement()) {
+			for (String[] procedure : PROCEDURES) {
+				stmt.executeUpdate(String.format(procedure[1], idType));
+				System.out.println("Created procedure " + procedure[0]);
+			}
+			if (!DatePartitions.isPartitioned(conn, DatePartitions.ENDORSEMENT)) {
+				createTriggers(stmt, "Endorsement", BinaryIds.usesBinaryIds(conn));
+			}
+		}
+	}
+
+	/**
+	 * Creates the event triggers of a table holding endorsements.
+	 *
+	 * @param stmt the statement
+	 * @param table the Endorsement table or one of its partitions
+	 * @param rules whether to also enforce the endorsement rules before each insert
+	 * @throws SQLException if a database operation fails
+	 */
+	static void createTriggers(Statement stmt, String table, boolean rules) throws SQLException {
+		for (String[] trigger : TRIGGERS) {
+			stmt.executeUpdate(String.format(trigger[1], table));
+		}
+		if (rules) {
+			stmt.executeUpdate(String.format(RULES_TRIGGER[1], table));
+		}
+	}
+
+	/**
+	 * Drops the event and rule triggers of a table that exist.
+	 *
+	 * @param stmt the statement
+	 * @param table the Endorsement table or one of its partitions
+	 */
+	static void dropTriggers(Statement stmt, String table) {
+		for (String[] trigger : TRIGGERS) {
+			dropTrigger(stmt, String.format(trigger[0], table));
+		}
+		dropTrigger(stmt, String.format(RULES_TRIGGER[0], table));
+	}
+
+	private static void dropTrigger(Statement stmt, String name) {
+		try {
+			stmt.executeUpdate("drop trigger " + name);
+			System.out.println("Dropped trigger " + name);
+		} catch (SQLException ex) {
+			System.out.println("Did not drop trigger " + name);
+		}
+	}
+
+	/**
+	 * Drops the triggers of the Endorsement table and the procedures that
+	 * exist. Partitions must be dropped first.
+	 *
+	 * @param conn the connection
+	 */
+	public static void drop(Connection conn) {
+		try (Statement stmt = conn.createStatement()) {
+			dropTriggers(stmt, "Endorsement");
+			for (int i = PROCEDURES.length - 1; i >= 0; i--) {
+				try {
+					stmt.executeUpdate("drop procedure " + PROCEDURES[i][0]);
+					System.out.println("Dropped procedure " + PROCEDURES[i][0]);
+				} catch (SQLException ex) {
+					System.out.println("Did not drop procedure " + PROCEDURES[i][0]);
+				}
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+}
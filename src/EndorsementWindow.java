@@ -0,0 +1,286 @@
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Endorsement counts by endorser and day over the last few days, kept as a
+ * ring of per-day buckets. Each bucket holds the counts of one day, and is
+ * reused for a later day once that day falls out of the window, so old
+ * endorsements expire without a scan of the history.
+ *
+ * The window answers the concession prize ("endorsers with at least N
+ * endorsements in the last D days") for any D up to {@link #DAYS}. Days are
+ * numbered by StoredFunctions.epochDay, like the day checks of
+ * StoredFunctions.withinDays.
+ *
+ * Like {@link TopEndorsed}, the window is fed by {@link EndorsementEvents},
+ * is reloaded from the Endorsement table when it is stale or older than the
+ * reload interval, and is loaded without holding its lock: endorsements
+ * recorded while a load reads the table are kept aside, and those the read
+ * did not see are added to the loaded counts.
+ */
+public class EndorsementWindow {
+
+	/** number of days kept, the longest window served */
+	static final int DAYS = 7;
+
+	/** reads the endorsements of a range of days */
+	static final String WINDOW_ENDORSEMENTS =
+			"select EndorserID, EndorsementDate, ReviewID "	// the endorser, day and review of each endorsement
+			+ "from %s "										// from the Endorsement table, or a partition of the window
+			+ "where EndorsementDate > ? and EndorsementDate <= ?";	// only days in the window
+
+	// endorsement counts of one day by endorser, by bucket
+	private final List<Map<String, int[]>> buckets = new ArrayList<>(DAYS);
+
+	// epoch day of each bucket, or Long.MIN_VALUE if unused
+	private final long[] bucketDays = new long[DAYS];
+
+	// latest day seen
+	private long newestDay = Long.MIN_VALUE;
+	private boolean loaded;
+	private long loadedAt;
+	private final long reloadNanos;
+
+	// serializes loads, which read the table without holding the window's lock
+	private final Object loadLock = new Object();
+
+	// while a load reads the table, the last day it loads, and the
+	// endorsements of its days recorded since it started that it has not read
+	private long loadingDay = Long.MIN_VALUE;
+	private final Set<String> pending = new HashSet<>();
+	private volatile boolean hasPending;
+	private boolean invalidatedWhileLoading;
+
+	/**
+	 * Creates an empty window that reloads after the default interval.
+	 */
+	public EndorsementWindow() {
+		this(TopEndorsed.DEFAULT_RELOAD_SECONDS);
+	}
+
+	/**
+	 * Creates an empty window.
+	 *
+	 * @param reloadSeconds the age of the counts at which a query reloads them
+	 */
+	public EndorsementWindow(long reloadSeconds) {
+		for (int i = 0; i < DAYS; i++) {
+			buckets.add(new HashMap<>());
+			bucketDays[i] = Long.MIN_VALUE;
+		}
+		reloadNanos = TimeUnit.SECONDS.toNanos(reloadSeconds);
+	}
+
+	/**
+	 * Gets the bucket of a day, or null if the day is not in the window.
+	 */
+	private Map<String, int[]> bucket(long day) {
+		int i = (int) Math.floorMod(day, (long) DAYS);
+		return bucketDays[i] == day ? buckets.get(i) : null;
+	}
+
+	/**
+	 * Moves the window forward so that it ends on a day, expiring the
+	 * buckets of days that fall out of it.
+	 */
+	private void advance(long day) {
+		if (day <= newestDay) {
+			return;
+		}
+		for (int i = 0; i < DAYS; i++) {
+			if (bucketDays[i] <= day - DAYS) {
+				buckets.get(i).clear();
+				bucketDays[i] = Long.MIN_VALUE;
+			}
+		}
+		newestDay = day;
+	}
+
+	private void add(String endorserId, long day, int n) {
+		advance(day);
+		if (day <= newestDay - DAYS) {
+			// older than the window
+			return;
+		}
+		int i = (int) Math.floorMod(day, (long) DAYS);
+		if (bucketDays[i] != day) {
+			buckets.get(i).clear();
+			bucketDays[i] = day;
+		}
+		int[] count = buckets.get(i).get(endorserId);
+		if (count == null) {
+			buckets.get(i).put(endorserId, new int[] {n});
+		} else {
+			count[0] += n;
+		}
+	}
+
+	/**
+	 * Identifies an endorsement of the days being loaded.
+	 */
+	private static String key(String endorserId, long day, String reviewId) {
+		return endorserId + '\t' + day + '\t' + reviewId;
+	}
+
+	/**
+	 * Records one endorsement.
+	 *
+	 * @param reviewId the endorsed review
+	 * @param endorserId the endorser
+	 * @param date the endorsement date
+	 */
+	public synchronized void endorsed(String reviewId, String endorserId, Date date) {
+		long day = StoredFunctions.epochDay(date);
+		if (day > loadingDay - DAYS && day <= loadingDay) {
+			pending.add(key(endorserId, day, reviewId));
+			hasPending = true;
+		}
+		add(endorserId, day, 1);
+	}
+
+	/**
+	 * Marks the window as stale, so that the next query reloads it. Used
+	 * when an endorsement is deleted.
+	 */
+	public synchronized void invalidate() {
+		loaded = false;
+		invalidatedWhileLoading = true;
+	}
+
+	/**
+	 * Marks an endorsement recorded during the load as read by it.
+	 */
+	private synchronized void claim(String endorserId, long day, String reviewId) {
+		pending.remove(key(endorserId, day, reviewId));
+	}
+
+	/**
+	 * Ends a load, dropping the endorsements kept aside for it.
+	 */
+	private void endLoad() {
+		loadingDay = Long.MIN_VALUE;
+		pending.clear();
+		hasPending = false;
+	}
+
+	/**
+	 * Loads the window ending on a day from the Endorsement table unless it
+	 * is already loaded, kept up to date and younger than the reload interval.
+	 *
+	 * @param conn the connection
+	 * @param today the last day of the window
+	 * @throws SQLException if a database operation fails
+	 */
+	public void ensureLoaded(Connection conn, LocalDate today) throws SQLException {
+		long day = today.toEpochDay();
+		synchronized (loadLock) {
+			synchronized (this) {
+				if (loaded && newestDay >= day && System.nanoTime() - loadedAt < reloadNanos) {
+					return;
+				}
+				endLoad();
+				loadingDay = day;
+				invalidatedWhileLoading = false;
+			}
+			// counts of each day of the window by endorser, read into buckets laid out as the window's
+			List<Map<String, int[]>> read = new ArrayList<>(DAYS);
+			for (int i = 0; i < DAYS; i++) {
+				read.add(new HashMap<>());
+			}
+			Date after = Date.valueOf(today.minusDays(DAYS));
+			Date last = Date.valueOf(today);
+			try {
+				for (String table : DatePartitions.tables(conn, DatePartitions.ENDORSEMENT, after, last)) {
+					try (PreparedStatement stmt = conn.prepareStatement(String.format(WINDOW_ENDORSEMENTS, table))) {
+						stmt.setDate(1, after);
+						stmt.setDate(2, last);
+						try (ResultSet rs = stmt.executeQuery()) {
+							while (rs.next()) {
+								String endorserId = BinaryIds.getId(rs, 1);
+								long endorsed = StoredFunctions.epochDay(rs.getDate(2));
+								read.get((int) Math.floorMod(endorsed, (long) DAYS))
+										.computeIfAbsent(endorserId, e -> new int[1])[0]++;
+								if (hasPending) {
+									claim(endorserId, endorsed, BinaryIds.getId(rs, 3));
+								}
+							}
+						}
+					}
+				}
+			} catch (SQLException ex) {
+				synchronized (this) {
+					endLoad();
+				}
+				throw ex;
+			}
+			synchronized (this) {
+				newestDay = day;
+				for (int i = 0; i < DAYS; i++) {
+					buckets.set(i, read.get(i));
+					// the day of bucket i in the window ending on day
+					bucketDays[i] = day - Math.floorMod(day - i, (long) DAYS);
+				}
+				// endorsements inserted after the read passed them
+				for (String key : pending) {
+					int tab = key.indexOf('\t');
+					int tab2 = key.indexOf('\t', tab + 1);
+					add(key.substring(0, tab), Long.parseLong(key.substring(tab + 1, tab2)), 1);
+				}
+				loaded = !invalidatedWhileLoading;
+				loadedAt = System.nanoTime();
+				endLoad();
+			}
+		}
+	}
+
+	/**
+	 * Gets the endorsers with at least a number of endorsements in the days
+	 * up to a day, most endorsements first and then by EndorserID.
+	 *
+	 * @param min the minimum number of endorsements
+	 * @param today the last day counted
+	 * @param days the number of days counted, at most DAYS
+	 * @return the endorsers
+	 */
+	public synchronized List<String> atLeast(int min, LocalDate today, int days) {
+		long last = today.toEpochDay();
+		Map<String, int[]> totals;
+		if (days == 1) {
+			Map<String, int[]> bucket = bucket(last);
+			totals = bucket == null ? new HashMap<>() : bucket;
+		} else {
+			totals = new HashMap<>();
+			for (long day = last - days + 1; day <= last; day++) {
+				Map<String, int[]> bucket = bucket(day);
+				if (bucket != null) {
+					for (Map.Entry<String, int[]> entry : bucket.entrySet()) {
+						totals.computeIfAbsent(entry.getKey(), k -> new int[1])[0] += entry.getValue()[0];
+					}
+				}
+			}
+		}
+		List<String> endorsers = new ArrayList<>();
+		for (Map.Entry<String, int[]> entry : totals.entrySet()) {
+			if (entry.getValue()[0] >= min) {
+				endorsers.add(entry.getKey());
+			}
+		}
+		Map<String, int[]> counts = totals;
+		endorsers.sort((a, b) -> {
+			int cmp = Integer.compare(counts.get(b)[0], counts.get(a)[0]);
+			return cmp != 0 ? cmp : a.compareTo(b);
+		});
+		return endorsers;
+	}
+}
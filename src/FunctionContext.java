@@ -0,0 +1,126 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Database access for the stored functions. A function invoked by Derby,
+ * for example from a CHECK constraint, runs inside the statement that
+ * invoked it, and uses the nested connection (jdbc:default:connection) of
+ * that statement. Its lookups are therefore part of the caller's transaction
+ * and see the caller's uncommitted rows, and concurrent inserts on different
+ * connections validate independently instead of sharing one connection.
+ *
+ * A function called directly from Java uses the connection bound to the
+ * current thread with {@link #bind}. The nested connection is tried first,
+ * so a function that Derby invokes on a thread with a bound connection
+ * still runs in the statement that invoked it.
+ *
+ * Statements on a bound connection are kept in a {@link StatementCache}
+ * held with the binding, which closes them when the connection is unbound
+ * or another is bound. Other statements are closed when the context is
+ * closed; Derby's own statement cache avoids recompiling them.
+ */
+public class FunctionContext implements AutoCloseable {
+
+	/** URL of the connection of the statement that invoked a routine */
+	static final String NESTED_CONNECTION = "jdbc:default:connection";
+
+	// connection used by functions called from Java on each thread, with its statements
+	private static final ThreadLocal<StatementCache> bound = new ThreadLocal<>();
+
+	private final Connection conn;
+
+	// the statements of a bound connection, or null if they are closed with the context
+	private final StatementCache statements;
+	private List<PreparedStatement> opened;
+
+	private FunctionContext(Connection conn, StatementCache statements) {
+		this.conn = conn;
+		this.statements = statements;
+	}
+
+	/**
+	 * Binds a connection for functions called directly from Java on the
+	 * current thread, such as validation done by a writer thread. The
+	 * statements prepared on the connection bound before, if any, are
+	 * closed, so a thread must unbind its connection before closing it.
+	 *
+	 * @param conn the connection, or null to unbind
+	 */
+	public static void bind(Connection conn) {
+		StatementCache current = bound.get();
+		if (current != null) {
+			if (current.connection() == conn) {
+				return;
+			}
+			current.clear();
+		}
+		if (conn == null) {
+			bound.remove();
+		} else {
+			bound.set(new StatementCache(conn, StatementCache.DEFAULT_SIZE));
+		}
+	}
+
+	/**
+	 * Opens the context for one function call.
+	 *
+	 * @return the context
+	 * @throws SQLException if no connection is available
+	 */
+	public static FunctionContext open() throws SQLException {
+		try {
+			return new FunctionContext(DriverManager.getConnection(NESTED_CONNECTION), null);
+		} catch (SQLException ex) {
+			// not invoked by Derby
+		}
+		StatementCache statements = bound.get();
+		if (statements == null) {
+			throw new SQLException("No connection for stored function: not invoked by Derby and none bound");
+		}
+		return new FunctionContext(statements.connection(), statements);
+	}
+
+	/**
+	 * @return the connection for this call
+	 */
+	public Connection connection() {
+		return conn;
+	}
+
+	/**
+	 * Prepares a statement for this call. The statement must not be closed
+	 * by the caller.
+	 *
+	 * @param sql the statement text
+	 * @return the prepared statement
+	 * @throws SQLException if the statement cannot be prepared
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		if (statements != null) {
+			return statements.prepare(sql);
+		}
+		PreparedStatement stmt = conn.prepareStatement(sql);
+		if (opened == null) {
+			opened = new ArrayList<>(2);
+		}
+		opened.add(stmt);
+		return stmt;
+	}
+
+	/**
+	 * Closes the statements prepared for this call that are not cached.
+	 */
+	@Override
+	public void close() throws SQLException {
+		if (opened != null) {
+			for (PreparedStatement stmt : opened) {
+				stmt.close();
+			}
+			opened = null;
+		}
+	}
+}
@@ -0,0 +1,217 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Dictionary assigning dense int codes 0, 1, 2, ... to IDs in the order they
+ * are added, and holding one String of each ID. A UUID is looked up by its
+ * two 64 bit halves in an open addressing table held in a long array, so a
+ * lookup from a CharSequence view, such as TsvReader.chars, allocates
+ * nothing; only an ID seen for the first time is turned into a String.
+ *
+ * Only UUIDs in lower case text form are kept in the table, so that equal
+ * halves mean equal text. UUIDs with upper case digits, which stay distinct
+ * from their lower case form as they are in a varchar column, and IDs that
+ * are not UUIDs are kept in a HashMap.
+ *
+ * Not thread safe.
+ */
+public class IdDictionary {
+
+	/** default number of IDs the table is first sized for */
+	static final int DEFAULT_CAPACITY = 1 << 10;
+
+	// the table holds at most this fraction of its slots
+	private static final double MAX_LOAD = 0.5;
+
+	// the halves of the UUID in each slot and its code + 1, at 3 * slot,
+	// 3 * slot + 1 and 3 * slot + 2, so that a lookup reads one cache line;
+	// the code is 0 if the slot is empty
+	private long[] slots;
+	private int mask;
+	private int used;
+
+	// IDs that are not lower case UUIDs
+	private final Map<String, Integer> others = new HashMap<>();
+
+	// halves of the ID last parsed
+	private long msb;
+	private long lsb;
+
+	// the ID of each code
+	private String[] ids;
+	private int size;
+
+	/**
+	 * Creates a dictionary with the default capacity.
+	 */
+	public IdDictionary() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a dictionary sized for a number of IDs; it grows as needed.
+	 *
+	 * @param capacity the number of IDs expected
+	 */
+	public IdDictionary(int capacity) {
+		int slotCount = Integer.highestOneBit((int) Math.max(16, Math.min(1 << 29, capacity / MAX_LOAD)) * 2 - 1);
+		slots = new long[3 * slotCount];
+		mask = slotCount - 1;
+		ids = new String[Math.max(16, capacity)];
+	}
+
+	/**
+	 * Folds the bits of a UUID, which are mostly random already. Unlike a
+	 * multiplicative hash, it keeps IDs with consecutive low bits in nearby
+	 * slots, as String.hashCode does in a HashMap.
+	 */
+	private static int hash(long msb, long lsb) {
+		long h = msb ^ lsb;
+		int folded = (int) (h ^ (h >>> 32));
+		return folded ^ (folded >>> 16);
+	}
+
+	/**
+	 * Parses a UUID in lower case text form into msb and lsb, in one pass.
+	 *
+	 * @return false if the ID is not a lower case UUID
+	 */
+	private boolean parse(CharSequence id) {
+		if (id.length() != Uuids.LENGTH) {
+			return false;
+		}
+		long high = 0;
+		long low = 0;
+		for (int i = 0; i < Uuids.LENGTH; i++) {
+			char c = id.charAt(i);
+			if (i == 8 || i == 13 || i == 18 || i == 23) {
+				if (c != '-') {
+					return false;
+				}
+				continue;
+			}
+			int digit;
+			if (c >= '0' && c <= '9') {
+				digit = c - '0';
+			} else if (c >= 'a' && c <= 'f') {
+				digit = c - 'a' + 10;
+			} else {
+				return false;
+			}
+			if (i < 18) {
+				high = (high << 4) | digit;
+			} else {
+				low = (low << 4) | digit;
+			}
+		}
+		msb = high;
+		lsb = low;
+		return true;
+	}
+
+	/**
+	 * Gets the code of an ID.
+	 *
+	 * @param id the ID
+	 * @return the code, or -1 if the ID was never added
+	 */
+	public int find(CharSequence id) {
+		if (parse(id)) {
+			for (int slot = hash(msb, lsb) & mask; slots[3 * slot + 2] != 0; slot = (slot + 1) & mask) {
+				if (slots[3 * slot] == msb && slots[3 * slot + 1] == lsb) {
+					return (int) slots[3 * slot + 2] - 1;
+				}
+			}
+			return -1;
+		}
+		Integer code = others.get(id.toString());
+		return code == null ? -1 : code;
+	}
+
+	/**
+	 * Gets the code of an ID, adding the ID if it is new.
+	 *
+	 * @param id the ID
+	 * @return the code
+	 */
+	public int add(String id) {
+		int code = find(id);
+		if (code >= 0) {
+			return code;
+		}
+		code = size;
+		if (size == ids.length) {
+			ids = Arrays.copyOf(ids, size * 2);
+		}
+		ids[size++] = id;
+		if (parse(id)) {
+			put(code);
+		} else {
+			others.put(id, code);
+		}
+		return code;
+	}
+
+	/**
+	 * Puts the code of the UUID last parsed in the table, which does not
+	 * hold it.
+	 */
+	private void put(int code) {
+		int slot = hash(msb, lsb) & mask;
+		while (slots[3 * slot + 2] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		slots[3 * slot] = msb;
+		slots[3 * slot + 1] = lsb;
+		slots[3 * slot + 2] = code + 1;
+		if (++used > MAX_LOAD * (mask + 1)) {
+			grow();
+		}
+	}
+
+	/**
+	 * Doubles the table.
+	 */
+	private void grow() {
+		long[] old = slots;
+		slots = new long[2 * old.length];
+		mask = 2 * mask + 1;
+		for (int i = 0; i < old.length; i += 3) {
+			if (old[i + 2] != 0) {
+				int slot = hash(old[i], old[i + 1]) & mask;
+				while (slots[3 * slot + 2] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				slots[3 * slot] = old[i];
+				slots[3 * slot + 1] = old[i + 1];
+				slots[3 * slot + 2] = old[i + 2];
+			}
+		}
+	}
+
+	/**
+	 * @param code a code returned by add
+	 * @return the ID of the code
+	 */
+	public String id(int code) {
+		if (code < 0 || code >= size) {
+			throw new IndexOutOfBoundsException("code " + code + ", size " + size);
+		}
+		return ids[code];
+	}
+
+	/**
+	 * @return the IDs by code
+	 */
+	public String[] ids() {
+		return Arrays.copyOf(ids, size);
+	}
+
+	/**
+	 * @return the number of IDs
+	 */
+	public int size() {
+		return size;
+	}
+}
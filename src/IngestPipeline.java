@@ -0,0 +1,565 @@
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Pipelined ingest of several theater data files at once. The work is split
+ * into three stages connected by bounded queues, so a slow stage applies
+ * backpressure to the stages in front of it:
+ * 	1) one reader thread per file, splitting lines into fields with a TsvReader
+ * 	2) a pool of parser threads, de-duplicating customers and movies and
+ * 	   routing the rows to the writers
+ * 	3) one writer thread per table, each with its own Derby connection, inserting in batches
+ *
+ * Because the writers run independently, the Attendance writer waits until
+ * the Customer and Movie rows it references have been committed before
+ * inserting a row, and the Review writer waits until the Attendance row of
+ * the same line has been committed, since the verifyAttendance CHECK reads
+ * it on a nested connection that cannot see uncommitted rows. Rather than
+ * tracking committed keys, each parent writer numbers its rows in queue
+ * order and publishes how many it has committed, a watermark that moves a
+ * batch at a time; a child row carries the number of rows queued to each
+ * parent when it was routed, and waits only while the watermark is below it.
+ *
+ * Usage: IngestPipeline [-parsers n] [-batch n] file...
+ */
+public class IngestPipeline {
+
+	/** marker placed on a queue to tell its consumer that no more items follow */
+	private static final String[] END_OF_LINES = new String[0];
+	private static final Row END_OF_ROWS = new Row(END_OF_LINES, new long[0]);
+
+	/** how long a parent writer waits for more rows before committing what it has */
+	private static final long IDLE_FLUSH_MILLIS = 20;
+
+	/** how long a blocked queue operation waits before checking for failure */
+	private static final long POLL_MILLIS = 100;
+
+	/**
+	 * Item count and busy time for one stage, summed over its threads.
+	 */
+	static class StageStats {
+		final String stage;
+		final AtomicLong items = new AtomicLong();
+		final AtomicLong busyNanos = new AtomicLong();
+
+		StageStats(String stage) {
+			this.stage = stage;
+		}
+	}
+
+	/**
+	 * Sampled depth of one queue.
+	 */
+	static class QueueStats {
+		final String name;
+		final BlockingQueue<?> queue;
+		long samples;
+		long depthSum;
+		int maxDepth;
+
+		QueueStats(String name, BlockingQueue<?> queue) {
+			this.name = name;
+			this.queue = queue;
+		}
+
+		synchronized void sample() {
+			int depth = queue.size();
+			samples++;
+			depthSum += depth;
+			maxDepth = Math.max(maxDepth, depth);
+		}
+	}
+
+	/**
+	 * A parsed line queued to a writer, with the number of rows each parent
+	 * writer it awaits must have committed before it is inserted.
+	 */
+	static class Row {
+		final String[] data;
+		final long[] parents;
+
+		Row(String[] data, long[] parents) {
+			this.data = data;
+			this.parents = parents;
+		}
+	}
+
+	/**
+	 * Binds the fields of a parsed line to an insert statement.
+	 */
+	interface Binder {
+		void bind(PreparedStatement stmt, String[] data) throws SQLException;
+	}
+
+	/**
+	 * Writer stage for one table. Parent writers number the rows queued to
+	 * them and publish the number committed; child writers wait until the
+	 * parents' numbers reach those carried by each row.
+	 */
+	class TableWriter implements Runnable {
+		final String table;
+		final String sql;
+		final Binder binder;
+		final BlockingQueue<Row> queue = new ArrayBlockingQueue<>(queueCapacity);
+		final StageStats stats;
+
+		// set for parent tables; rows queued is guarded by this, and waiting
+		// for rows committed by the commits lock
+		boolean publishes;
+		private long queued;
+		private volatile long committed;
+		private final Object commits = new Object();
+
+		// set for child tables, the parent writers awaited
+		TableWriter[] awaits = new TableWriter[0];
+
+		// set for tables that may be partitioned by date
+		DatePartitions.Spec partitions;
+		String partitionColumns;
+		int dateColumn;
+
+		TableWriter(String table, String sql, Binder binder) {
+			this.table = table;
+			this.sql = sql;
+			this.binder = binder;
+			this.stats = new StageStats("write " + table);
+		}
+
+		/**
+		 * Queues a row to a parent writer, unless its key has already been
+		 * loaded or queued. Rows are numbered under the lock so that the
+		 * numbers follow the queue order.
+		 *
+		 * @param data the parsed line
+		 * @param parents the numbers of rows of the parents of this writer
+		 * @param keys the keys loaded or queued, or null to always queue
+		 * @param keyColumn the column of the key
+		 * @return the number of rows queued, which includes the row of the key
+		 */
+		synchronized long queue(String[] data, long[] parents, Set<String> keys, int keyColumn)
+				throws InterruptedException {
+			if (keys == null || keys.add(data[keyColumn])) {
+				put(queue, new Row(data, parents));
+				queued++;
+			}
+			return queued;
+		}
+
+		/**
+		 * Publishes a committed batch of rows.
+		 */
+		private void committed(int rows) {
+			synchronized (commits) {
+				committed += rows;
+				commits.notifyAll();
+			}
+		}
+
+		/**
+		 * Waits until a number of rows have been committed.
+		 */
+		void await(long rows) throws InterruptedException {
+			if (committed >= rows) {
+				return;
+			}
+			synchronized (commits) {
+				while (committed < rows) {
+					checkFailed();
+					commits.wait(POLL_MILLIS);
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			try (
+				Connection conn = DriverManager.getConnection(connStr, props);
+				PreparedStatement stmt = partitions == null ? conn.prepareStatement(sql) : null;
+				DatePartitions.Router router = partitions == null ? null
+						: new DatePartitions.Router(conn, partitions, partitionColumns);
+			) {
+				conn.setAutoCommit(false);
+				int batched = 0;
+				while (true) {
+					Row row = queue.poll(publishes ? IDLE_FLUSH_MILLIS : POLL_MILLIS, TimeUnit.MILLISECONDS);
+					checkFailed();
+					if (row == null || row == END_OF_ROWS || batched >= batchSize) {
+						// commit when the batch is full, the queue is idle or the input has ended
+						if (batched > 0) {
+							long start = System.nanoTime();
+							if (router != null) {
+								router.executeBatch();
+							} else {
+								stmt.executeBatch();
+							}
+							DatePartitions.commit(conn);
+							stats.busyNanos.addAndGet(System.nanoTime() - start);
+							if (publishes) {
+								committed(batched);
+							}
+							batched = 0;
+						}
+						if (row == END_OF_ROWS) {
+							return;
+						}
+						if (row == null) {
+							continue;
+						}
+					}
+					for (int i = 0; i < awaits.length; i++) {
+						awaits[i].await(row.parents[i]);
+					}
+					long start = System.nanoTime();
+					String[] data = row.data;
+					PreparedStatement target = router != null ? router.statement(Date.valueOf(data[dateColumn])) : stmt;
+					binder.bind(target, data);
+					target.addBatch();
+					stats.busyNanos.addAndGet(System.nanoTime() - start);
+					stats.items.incrementAndGet();
+					batched++;
+				}
+			} catch (Exception ex) {
+				fail(new SQLException("Writer for " + table + " failed", ex));
+			}
+		}
+	}
+
+	private final String connStr;
+	private final Properties props;
+	private final int parserCount;
+	private final int batchSize;
+	private final int queueCapacity;
+
+	private final BlockingQueue<String[]> lines;
+	private final StageStats readStats = new StageStats("read");
+	private final StageStats parseStats = new StageStats("parse");
+	private final AtomicLong malformed = new AtomicLong();
+
+	// IDs already loaded or queued for loading
+	private final Set<String> customers = ConcurrentHashMap.newKeySet();
+	private final Set<String> movies = ConcurrentHashMap.newKeySet();
+
+	private final TableWriter customerWriter;
+	private final TableWriter movieWriter;
+	private final TableWriter attendanceWriter;
+	private final TableWriter reviewWriter;
+
+	private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+	/**
+	 * Creates a pipeline that writes to the given database.
+	 *
+	 * @param connStr the connection URL used by each writer
+	 * @param props the connection properties
+	 * @param parserCount the number of parser threads
+	 * @param batchSize rows per batch and commit in each writer
+	 * @param queueCapacity the capacity of each bounded queue
+	 */
+	public IngestPipeline(String connStr, Properties props, int parserCount, int batchSize, int queueCapacity) {
+		this.connStr = connStr;
+		this.props = props;
+		this.parserCount = parserCount;
+		this.batchSize = batchSize;
+		this.queueCapacity = queueCapacity;
+		this.lines = new ArrayBlockingQueue<>(queueCapacity);
+
+		customerWriter = new TableWriter("Customer",
+				"insert into Customer (Name, Email, Date, CustomerID) values(?, ?, ?, ?)",
+				(stmt, data) -> {
+					stmt.setString(1, data[BulkLoader.CUSTOMER_NAME]);
+					stmt.setString(2, data[BulkLoader.CUSTOMER_EMAIL]);
+					stmt.setDate(3, Date.valueOf(data[BulkLoader.DATE]));
+					BinaryIds.setId(stmt, 4, data[BulkLoader.CUSTOMER_ID]);
+				});
+		customerWriter.publishes = true;
+
+		movieWriter = new TableWriter("Movie",
+				"insert into Movie (Title, MovieID) values(?, ?)",
+				(stmt, data) -> {
+					stmt.setString(1, data[BulkLoader.MOVIE_TITLE]);
+					BinaryIds.setId(stmt, 2, data[BulkLoader.MOVIE_ID]);
+				});
+		movieWriter.publishes = true;
+
+		attendanceWriter = new TableWriter("Attendance",
+				"insert into Attendance (MovieID, CustomerID, Date) values(?, ?, ?)",
+				(stmt, data) -> {
+					BinaryIds.setId(stmt, 1, data[BulkLoader.MOVIE_ID]);
+					BinaryIds.setId(stmt, 2, data[BulkLoader.CUSTOMER_ID]);
+					stmt.setDate(3, Date.valueOf(data[BulkLoader.DATE]));
+				});
+		attendanceWriter.awaits = new TableWriter[] {customerWriter, movieWriter};
+		attendanceWriter.partitions = DatePartitions.ATTENDANCE;
+		attendanceWriter.partitionColumns = "MovieID, CustomerID, Date";
+		attendanceWriter.dateColumn = BulkLoader.DATE;
+		// the Review CHECK of verifyAttendance needs the attendance committed
+		attendanceWriter.publishes = true;
+
+		reviewWriter = new TableWriter("Review",
+				"insert into Review (ReviewID, CustomerID, MovieID, ReviewDate, Rating, Review) values(?, ?, ?, ?, ?, ?)",
+				(stmt, data) -> {
+					BinaryIds.setId(stmt, 1, data[BulkLoader.REVIEW_ID]);
+					BinaryIds.setId(stmt, 2, data[BulkLoader.CUSTOMER_ID]);
+					BinaryIds.setId(stmt, 3, data[BulkLoader.MOVIE_ID]);
+					stmt.setDate(4, Date.valueOf(data[BulkLoader.DATE]));
+					stmt.setInt(5, Integer.parseInt(data[BulkLoader.RATING]));
+					stmt.setString(6, data[BulkLoader.REVIEW]);
+				});
+		// an attendance is only committed after its customer and movie
+		reviewWriter.awaits = new TableWriter[] {attendanceWriter};
+	}
+
+	/**
+	 * Loads all of the files and blocks until every row has been committed.
+	 *
+	 * @param files the data files, one per theater
+	 * @throws Exception if any stage fails
+	 */
+	public void load(List<File> files) throws Exception {
+		seedExistingKeys();
+
+		TableWriter[] writers = {customerWriter, movieWriter, attendanceWriter, reviewWriter};
+		List<QueueStats> queueStats = new ArrayList<>();
+		queueStats.add(new QueueStats("lines", lines));
+		for (TableWriter writer : writers) {
+			queueStats.add(new QueueStats(writer.table, writer.queue));
+		}
+
+		long startNanos = System.nanoTime();
+		List<Thread> readers = start("reader", files.size(), i -> readFile(files.get(i)));
+		List<Thread> parsers = start("parser", parserCount, i -> parseLines());
+		List<Thread> writerThreads = start("writer", writers.length, i -> writers[i].run());
+
+		// sample queue depths until the writers are done
+		Thread sampler = new Thread(() -> {
+			try {
+				while (true) {
+					for (QueueStats stats : queueStats) {
+						stats.sample();
+					}
+					Thread.sleep(POLL_MILLIS);
+				}
+			} catch (InterruptedException ex) {
+				// pipeline finished
+			}
+		}, "queue-sampler");
+		sampler.setDaemon(true);
+		sampler.start();
+
+		// shut the stages down in order once their producers are finished
+		join(readers);
+		for (int i = 0; i < parserCount; i++) {
+			put(lines, END_OF_LINES);
+		}
+		join(parsers);
+		for (TableWriter writer : writers) {
+			put(writer.queue, END_OF_ROWS);
+		}
+		join(writerThreads);
+		sampler.interrupt();
+		sampler.join();
+		checkFailed();
+
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		printStats(seconds, writers, queueStats);
+	}
+
+	/**
+	 * Marks the customers and movies already in the database as loaded, so
+	 * that rows referencing them do not wait.
+	 */
+	private void seedExistingKeys() throws SQLException {
+		try (
+			Connection conn = DriverManager.getConnection(connStr, props);
+			Statement stmt = conn.createStatement();
+		) {
+			List<String> keys = new ArrayList<>();
+			try (ResultSet rs = stmt.executeQuery("select CustomerID from Customer")) {
+				while (rs.next()) {
+					keys.add(BinaryIds.getId(rs, 1));
+				}
+			}
+			customers.addAll(keys);
+
+			keys.clear();
+			try (ResultSet rs = stmt.executeQuery("select MovieID from Movie")) {
+				while (rs.next()) {
+					keys.add(BinaryIds.getId(rs, 1));
+				}
+			}
+			movies.addAll(keys);
+		}
+	}
+
+	/**
+	 * Reader stage: copies the fields of each line of one file onto the line
+	 * queue. Lines with the wrong number of fields are skipped by the reader.
+	 */
+	private void readFile(File file) {
+		try (TsvReader reader = new TsvReader(file.toPath(), BulkLoader.COLUMNS,
+				(offset, fields) -> malformed.incrementAndGet())) {
+			while (true) {
+				long start = System.nanoTime();
+				if (!reader.next()) {
+					break;
+				}
+				String[] data = new String[BulkLoader.COLUMNS];
+				for (int i = 0; i < data.length; i++) {
+					data[i] = reader.string(i);
+				}
+				readStats.busyNanos.addAndGet(System.nanoTime() - start);
+				put(lines, data);
+				readStats.items.incrementAndGet();
+			}
+		} catch (IOException | InterruptedException ex) {
+			fail(new IOException("Unable to read " + file, ex));
+		}
+	}
+
+	/**
+	 * Parser stage: de-duplicates customers and movies and routes the rows
+	 * to the table writers.
+	 */
+	private void parseLines() {
+		try {
+			while (true) {
+				String[] data = lines.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				checkFailed();
+				if (data == null) {
+					continue;
+				}
+				if (data == END_OF_LINES) {
+					return;
+				}
+				parseStats.items.incrementAndGet();
+
+				// parent rows are queued before the child rows that reference them
+				long customer = customerWriter.queue(data, null, customers, BulkLoader.CUSTOMER_ID);
+				long movie = movieWriter.queue(data, null, movies, BulkLoader.MOVIE_ID);
+				long attendance = attendanceWriter.queue(data, new long[] {customer, movie}, null, 0);
+				put(reviewWriter.queue, new Row(data, new long[] {attendance}));
+			}
+		} catch (Exception ex) {
+			fail(ex);
+		}
+	}
+
+	/**
+	 * Puts an item on a bounded queue, giving up if another stage has failed.
+	 */
+	private <T> void put(BlockingQueue<T> queue, T item) throws InterruptedException {
+		while (!queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+			checkFailed();
+		}
+	}
+
+	/**
+	 * Records the first failure of any stage; later failures are its consequences.
+	 */
+	private void fail(Exception ex) {
+		failure.compareAndSet(null, ex);
+	}
+
+	private void checkFailed() {
+		Exception ex = failure.get();
+		if (ex != null) {
+			throw new IllegalStateException("Ingest aborted", ex);
+		}
+	}
+
+	interface Task {
+		void run(int index) throws Exception;
+	}
+
+	private List<Thread> start(String name, int count, Task task) {
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			final int index = i;
+			Thread t = new Thread(() -> {
+				try {
+					task.run(index);
+				} catch (Exception ex) {
+					fail(ex);
+				}
+			}, name + "-" + i);
+			t.start();
+			threads.add(t);
+		}
+		return threads;
+	}
+
+	private static void join(List<Thread> threads) throws InterruptedException {
+		for (Thread t : threads) {
+			t.join();
+		}
+	}
+
+	/**
+	 * Prints throughput for each stage and the depth of each queue.
+	 */
+	private void printStats(double seconds, TableWriter[] writers, List<QueueStats> queueStats) {
+		System.out.printf("Ingest finished in %.2f s (%d malformed lines skipped)\n", seconds, malformed.get());
+		List<StageStats> stages = new ArrayList<>();
+		stages.add(readStats);
+		stages.add(parseStats);
+		for (TableWriter writer : writers) {
+			stages.add(writer.stats);
+		}
+		for (StageStats stats : stages) {
+			System.out.printf("Stage %s : items: %d, %.0f items/sec, %.2f s busy\n",
+					stats.stage, stats.items.get(), stats.items.get() / seconds, stats.busyNanos.get() / 1e9);
+		}
+		for (QueueStats stats : queueStats) {
+			System.out.printf("Queue %s : average depth %.1f, max depth %d of %d\n",
+					stats.name, stats.samples == 0 ? 0.0 : (double) stats.depthSum / stats.samples,
+					stats.maxDepth, queueCapacity);
+		}
+	}
+
+	public static void main(String[] args) {
+		String connStr = "jdbc:derby:irate;create=true";
+		int parsers = Runtime.getRuntime().availableProcessors();
+		int batchSize = BulkLoader.DEFAULT_BATCH_SIZE;
+		List<File> files = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-parsers")) {
+				parsers = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-batch")) {
+				batchSize = Integer.parseInt(args[++i]);
+			} else {
+				files.add(new File(args[i]));
+			}
+		}
+		if (files.isEmpty()) {
+			files.add(new File("theaterdata.txt"));
+		}
+
+		Properties props = new Properties(); // connection properties
+		props.put("user", "user1");
+		props.put("password", "user1");
+
+		try {
+			System.out.printf("Ingesting %d file(s) with %d parser(s)\n", files.size(), parsers);
+			new IngestPipeline(connStr, props, parsers, batchSize, 4 * batchSize).load(files);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,321 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of the queries and stored functions: for each, the number of
+ * calls and errors, the rows scanned and returned, and a histogram of its
+ * latency. Counters are LongAdders and histogram buckets are updated with
+ * one atomic increment, so recording never takes a lock.
+ *
+ * Metrics are off unless the system property irate.metrics is true. The
+ * flag is a static final constant, so when it is off the JIT removes the
+ * recording code and an instrumented method only pays for counting its
+ * rows in local variables. When metrics are on:
+ * 	1) a snapshot can be read over JMX from the MXBean irate:type=Metrics
+ * 	2) if irate.metrics.file is set, a snapshot is appended to that file
+ * 	   every irate.metrics.period seconds (60 by default)
+ *
+ * A method is instrumented with a Timer held in a static final field:
+ *
+ * 	long start = Metrics.start();
+ * 	try { ... } finally { TIMER.stop(start, scanned, returned); }
+ */
+public class Metrics {
+
+	/** whether metrics are recorded, fixed when the class is loaded */
+	static final boolean ENABLED = Boolean.getBoolean("irate.metrics");
+
+	/** system property naming the file snapshots are appended to */
+	static final String FILE_PROPERTY = "irate.metrics.file";
+
+	/** system property holding the snapshot period in seconds */
+	static final String PERIOD_PROPERTY = "irate.metrics.period";
+
+	/** name of the metrics MXBean */
+	static final String OBJECT_NAME = "irate:type=Metrics";
+
+	private static final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+
+	static {
+		if (ENABLED) {
+			registerMBean();
+			String file = System.getProperty(FILE_PROPERTY);
+			if (file != null) {
+				startReporter(Paths.get(file), Long.getLong(PERIOD_PROPERTY, 60));
+			}
+		}
+	}
+
+	/**
+	 * Latency histogram with buckets of about 3% relative width, in the
+	 * manner of HdrHistogram: values below 64 have a bucket each, and each
+	 * higher power of two is split into 32 buckets.
+	 */
+	static class Histogram {
+		/** log2 of the number of buckets per power of two */
+		static final int SUB_BITS = 5;
+		static final int SUB_COUNT = 1 << SUB_BITS;
+
+		private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * SUB_COUNT);
+		private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+		static int bucket(long value) {
+			int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+			return shift * SUB_COUNT + (int) (value >>> shift);
+		}
+
+		/**
+		 * @return the highest value that falls in a bucket
+		 */
+		static long highest(int bucket) {
+			int shift = Math.max(0, bucket / SUB_COUNT - 1);
+			long lowest = (long) (bucket - shift * SUB_COUNT) << shift;
+			return lowest + (1L << shift) - 1;
+		}
+
+		void record(long value) {
+			value = Math.max(value, 0);
+			counts.incrementAndGet(bucket(value));
+			max.accumulate(value);
+		}
+
+		/**
+		 * Gets the value at a percentile, to within the width of its bucket.
+		 *
+		 * @param p the percentile, from 0 to 1
+		 * @return the value, or 0 if nothing was recorded
+		 */
+		long percentile(double p) {
+			long total = 0;
+			for (int i = 0; i < counts.length(); i++) {
+				total += counts.get(i);
+			}
+			long rank = Math.max(1, (long) Math.ceil(p * total));
+			long seen = 0;
+			for (int i = 0; i < counts.length(); i++) {
+				seen += counts.get(i);
+				if (seen >= rank) {
+					return Math.min(highest(i), max.get());
+				}
+			}
+			return 0;
+		}
+
+		long max() {
+			return max.get();
+		}
+
+		void reset() {
+			for (int i = 0; i < counts.length(); i++) {
+				counts.set(i, 0);
+			}
+			max.reset();
+		}
+	}
+
+	/**
+	 * The metrics of one query or function.
+	 */
+	static class Timer {
+		final String name;
+		final LongAdder calls = new LongAdder();
+		final LongAdder errors = new LongAdder();
+		final LongAdder nanos = new LongAdder();
+		final LongAdder rowsScanned = new LongAdder();
+		final LongAdder rowsReturned = new LongAdder();
+		final Histogram latency = new Histogram();
+
+		Timer(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Records a call.
+		 *
+		 * @param start the value of Metrics.start() when the call began
+		 * @param scanned the rows read by the call
+		 * @param returned the rows in the call's result
+		 */
+		void stop(long start, long scanned, long returned) {
+			if (!ENABLED) {
+				return;
+			}
+			long elapsed = System.nanoTime() - start;
+			calls.increment();
+			nanos.add(elapsed);
+			rowsScanned.add(scanned);
+			rowsReturned.add(returned);
+			latency.record(elapsed);
+		}
+
+		/**
+		 * Records a call that failed with an exception.
+		 */
+		void error() {
+			if (ENABLED) {
+				errors.increment();
+			}
+		}
+
+		void reset() {
+			calls.reset();
+			errors.reset();
+			nanos.reset();
+			rowsScanned.reset();
+			rowsReturned.reset();
+			latency.reset();
+		}
+
+		@Override
+		public String toString() {
+			long n = calls.sum();
+			return String.format("%-40s calls %d, errors %d, mean %.1f us, p50 %.1f us, p90 %.1f us,"
+					+ " p99 %.1f us, max %.1f us, rows scanned %d, returned %d",
+					name, n, errors.sum(), n == 0 ? 0.0 : nanos.sum() / 1e3 / n,
+					latency.percentile(0.50) / 1e3, latency.percentile(0.90) / 1e3,
+					latency.percentile(0.99) / 1e3, latency.max() / 1e3,
+					rowsScanned.sum(), rowsReturned.sum());
+		}
+	}
+
+	/**
+	 * Gets the timer of a query or function, creating it on first use.
+	 *
+	 * @param name the name of the query or function
+	 * @return the timer
+	 */
+	static Timer timer(String name) {
+		return timers.computeIfAbsent(name, Timer::new);
+	}
+
+	/**
+	 * Gets the start time of a call.
+	 *
+	 * @return the current time in nanoseconds, or 0 if metrics are off
+	 */
+	static long start() {
+		return ENABLED ? System.nanoTime() : 0L;
+	}
+
+	/**
+	 * @return the metrics of every timer that has been called, by name
+	 */
+	public static String snapshot() {
+		StringBuilder sb = new StringBuilder();
+		for (Timer timer : new TreeMap<>(timers).values()) {
+			if (timer.calls.sum() > 0 || timer.errors.sum() > 0) {
+				sb.append(timer).append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Clears every timer.
+	 */
+	public static void reset() {
+		for (Timer timer : timers.values()) {
+			timer.reset();
+		}
+	}
+
+	/**
+	 * Appends a timestamped snapshot to a file.
+	 *
+	 * @param file the file
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void dump(Path file) throws IOException {
+		try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+			out.write("# " + LocalDateTime.now() + "\n");
+			out.write(snapshot());
+		}
+	}
+
+	/**
+	 * Appends a snapshot to a file at a fixed period from a daemon thread.
+	 */
+	private static void startReporter(Path file, long periodSeconds) {
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "metrics-reporter");
+			thread.setDaemon(true);
+			return thread;
+		});
+		reporter.scheduleAtFixedRate(() -> {
+			try {
+				dump(file);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * The metrics as seen over JMX.
+	 */
+	public interface MetricsMXBean {
+		/**
+		 * @return the snapshot of every timer, one per line
+		 */
+		String getSnapshot();
+
+		/**
+		 * @return the number of calls of each timer
+		 */
+		Map<String, Long> getCalls();
+
+		/**
+		 * Clears every timer.
+		 */
+		void reset();
+	}
+
+	private static void registerMBean() {
+		MetricsMXBean bean = new MetricsMXBean() {
+			@Override
+			public String getSnapshot() {
+				return snapshot();
+			}
+
+			@Override
+			public Map<String, Long> getCalls() {
+				Map<String, Long> calls = new TreeMap<>();
+				for (Timer timer : timers.values()) {
+					calls.put(timer.name, timer.calls.sum());
+				}
+				return calls;
+			}
+
+			@Override
+			public void reset() {
+				Metrics.reset();
+			}
+		};
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(bean, new ObjectName(OBJECT_NAME));
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+}
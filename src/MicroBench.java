@@ -0,0 +1,75 @@
+/**
+ * Minimal harness for timing small operations. Each operation is run for a
+ * number of warmup rounds so the JIT compiles it, then for a number of
+ * measured rounds, and the best and mean time per call are reported.
+ * Results are folded into a sink so the JIT cannot remove the calls.
+ */
+public class MicroBench {
+
+	/**
+	 * An operation to time. The argument is the iteration number, which can
+	 * be used to vary the input; the result is consumed by the harness.
+	 */
+	public interface Op {
+		long run(int i);
+	}
+
+	/** default number of unmeasured rounds */
+	static final int WARMUP_ROUNDS = 5;
+
+	/** default number of measured rounds */
+	static final int ROUNDS = 10;
+
+	/** keeps the results of the timed calls live */
+	static volatile long sink;
+
+	private final int iterations;
+	private final int warmupRounds;
+	private final int rounds;
+
+	/**
+	 * @param iterations calls per round
+	 */
+	public MicroBench(int iterations) {
+		this(iterations, WARMUP_ROUNDS, ROUNDS);
+	}
+
+	public MicroBench(int iterations, int warmupRounds, int rounds) {
+		this.iterations = iterations;
+		this.warmupRounds = warmupRounds;
+		this.rounds = rounds;
+	}
+
+	/**
+	 * Times an operation and prints its cost per call.
+	 *
+	 * @param name the name to print
+	 * @param op the operation
+	 * @return the best time per call, in nanoseconds
+	 */
+	public double run(String name, Op op) {
+		for (int r = 0; r < warmupRounds; r++) {
+			round(op);
+		}
+		double best = Double.MAX_VALUE;
+		double total = 0;
+		for (int r = 0; r < rounds; r++) {
+			double nsPerOp = (double) round(op) / iterations;
+			best = Math.min(best, nsPerOp);
+			total += nsPerOp;
+		}
+		System.out.printf("%-40s %10.2f ns/op (mean %.2f)\n", name, best, total / rounds);
+		return best;
+	}
+
+	private long round(Op op) {
+		long acc = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			acc += op.run(i);
+		}
+		long nanos = System.nanoTime() - start;
+		sink += acc;
+		return nanos;
+	}
+}
@@ -8,6 +8,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Arrays;
 import java.util.Properties;
 
 //import org.apache.derby.szhared.common.reference.SQLState;
@@ -32,6 +33,12 @@ import java.util.Properties;
 public class Modelling {
 
 	public static void main(String[] args) {
+		// "-bulk [file] [batchSize] [commitInterval]" runs the batched loader instead
+		if (args.length > 0 && args[0].equals("-bulk")) {
+			BulkLoader.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+
 	    // the default framework is embedded
 	    String protocol = "jdbc:derby:";
 	    String dbName = "publication";
@@ -219,39 +226,23 @@ public class Modelling {
 			Queries.highestRated();	// Get the highest rated movies in the database
 			
 			Queries.mostReviews(); // Get the movie with the most reviews
+			
+			System.out.println(ConnectionPool.getDefault().stats());
 
 			// TEST DELETIONS
 			System.out.println("Testing deletions");
-			// delete article
-						System.out.println("\nDeleting customer 00112233-4455-6677-8899-aabbccddeeff (Rook Garbo)");
-						stmt.execute("delete from Customer where CustomerID = '00112233-4455-6677-8899-aabbccddeeff'");
-						Util.printCustomers(conn);
-						Util.printCustomers(conn);
+			// delete customer; their reviews and endorsements cascade
+			System.out.println("\nDeleting customer 00112233-4455-6677-8899-aabbccddeeff (Rook Garbo)");
+			stmt.execute("delete from Customer where CustomerID = '00112233-4455-6677-8899-aabbccddeeff'");
+			for (String tbl : dbTables) {
+				rs = stmt.executeQuery("select count(*) from " + tbl);
+				if (rs.next()) {
+					int count = rs.getInt(1);
+					System.out.printf("Table %s : count: %d\n", tbl, count);
+				}
+			}
+			rs.close();
 
-						// delete publisher ACM
-						System.out.println("\nDeleting publisher ACM");
-						stmt.executeUpdate("delete from Publisher where name = 'ACM'");
-						PubUtil.printPublishers(conn);
-						PubUtil.printJournals(conn);
-						PubUtil.printArticles(conn);
-						PubUtil.printAuthors(conn);
-						
-						// delete journal Spectrum (0018-9235)
-						System.out.println("\nDeleting journal Spectrum from IEEE");
-						stmt.executeUpdate("delete from Journal where issn = " + Biblio.parseIssn("0018-9235"));
-						PubUtil.printJournals(conn);
-						PubUtil.printArticles(conn);
-						PubUtil.printAuthors(conn);
-						
-						
-						// delete journal Computer
-						System.out.println("\nDeleting journal Computer from IEEE");
-						stmt.executeUpdate("delete from Journal where title = 'Computer'");
-						PubUtil.printPublishers(conn);
-						PubUtil.printJournals(conn);
-						PubUtil.printArticles(conn);
-						PubUtil.printAuthors(conn);
-						
 		} catch (IOException e) {
 			e.printStackTrace();
 		} catch (SQLException e) {
@@ -0,0 +1,324 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Summary table holding the review count, rating sum and maximum and
+ * minimum rating of each movie, so that Queries.totalReviews,
+ * Queries.highestRated and Queries.mostReviews read one row per movie
+ * instead of grouping the whole Review table. The average rating is a
+ * generated column, and the RANKING_INDEXES order the movies by review
+ * count and by average rating for the paginated rankings.
+ *
+ * MovieStats is kept up to date by triggers:
+ * 	1) inserting a Movie adds its row with no reviews
+ * 	2) inserting a Review adds its rating to the row of its movie
+ * 	3) deleting a Review removes its rating, recomputing the maximum or
+ * 	   minimum from the remaining reviews of the movie only if the deleted
+ * 	   rating was the maximum or minimum
+ * 	4) updating the movie or rating of a Review removes the old values and
+ * 	   adds the new ones
+ * 	5) deleting a Movie removes its row
+ *
+ * The triggers run in the transaction of the statement that fires them, so
+ * the summary commits and rolls back together with the reviews. A review
+ * insert holds a lock on its movie's summary row until it commits.
+ *
+ * {@link #check} rebuilds the aggregates from Review and reports any
+ * differences from the maintained rows.
+ *
+ * Usage: MovieStats -create | -check | -rebuild
+ */
+public class MovieStats {
+
+	/** creates the summary table; the ID type is filled in for the database */
+	static final String CREATE_TABLE =
+			"create table MovieStats ("
+			+ " MovieID %s not null,"
+			+ " ReviewCount int not null,"
+			+ " RatingSum bigint not null,"
+			+ " MaxRating int,"
+			+ " MinRating int,"
+			+ " AvgRating double generated always as"
+			+ "   (case when ReviewCount = 0 then cast(null as double) else cast(RatingSum as double) / ReviewCount end),"
+			+ " primary key (MovieID))";
+
+	/** the columns that are not generated, in table order */
+	static final String COLUMNS = "MovieID, ReviewCount, RatingSum, MaxRating, MinRating";
+
+	/**
+	 * Indexes holding the movies in ranking order, so that a page of the
+	 * rankings is read from the index alone; MovieID breaks ties, as in
+	 * the keyset pages of Queries.
+	 */
+	static final String[][] RANKING_INDEXES = {
+		{"MovieStatsByCount", "ReviewCount desc, MovieID"},
+		{"MovieStatsByAvgRating", "AvgRating desc, MovieID"},
+	};
+
+	/** the aggregates of each movie computed from scratch */
+	static final String AGGREGATE =
+			"select Movie.MovieID, count(Review.Rating), coalesce(sum(cast(Review.Rating as bigint)), 0),"
+			+ " max(Review.Rating), min(Review.Rating) "
+			+ "from Movie "
+			+ "left join Review on Review.MovieID = Movie.MovieID "
+			+ "group by Movie.MovieID";
+
+	/** the maintained aggregates */
+	static final String MAINTAINED =
+			"select MovieID, ReviewCount, RatingSum, MaxRating, MinRating from MovieStats";
+
+	// removes a rating of movie o.MovieID, recomputing an extreme only when it is removed
+	private static final String REMOVE_RATING =
+			" update MovieStats set"
+			+ " ReviewCount = ReviewCount - 1,"
+			+ " RatingSum = RatingSum - o.Rating,"
+			+ " MaxRating = case when o.Rating < MaxRating then MaxRating"
+			+ "   else (select max(Review.Rating) from Review where Review.MovieID = o.MovieID) end,"
+			+ " MinRating = case when o.Rating > MinRating then MinRating"
+			+ "   else (select min(Review.Rating) from Review where Review.MovieID = o.MovieID) end"
+			+ " where MovieID = o.MovieID";
+
+	// adds a rating of movie n.MovieID
+	private static final String ADD_RATING =
+			" update MovieStats set"
+			+ " ReviewCount = ReviewCount + 1,"
+			+ " RatingSum = RatingSum + n.Rating,"
+			+ " MaxRating = case when MaxRating is null or n.Rating > MaxRating then n.Rating else MaxRating end,"
+			+ " MinRating = case when MinRating is null or n.Rating < MinRating then n.Rating else MinRating end"
+			+ " where MovieID = n.MovieID";
+
+	/**
+	 * Definition of one maintenance trigger.
+	 */
+	static class Trigger {
+		final String name;
+		final String event;
+		final String action;
+
+		Trigger(String name, String event, String action) {
+			this.name = name;
+			this.event = event;
+			this.action = action;
+		}
+
+		String createSql() {
+			return "create trigger " + name + " " + event + " for each row" + action;
+		}
+	}
+
+	/** the maintenance triggers, in firing order for each event */
+	static final Trigger[] TRIGGERS = {
+		new Trigger("MovieStatsInsert", "after insert on Movie referencing new as n",
+				" insert into MovieStats (" + COLUMNS + ") values (n.MovieID, 0, 0, null, null)"),
+		new Trigger("MovieStatsDelete", "after delete on Movie referencing old as o",
+				" delete from MovieStats where MovieID = o.MovieID"),
+		new Trigger("ReviewStatsInsert", "after insert on Review referencing new as n",
+				ADD_RATING),
+		new Trigger("ReviewStatsDelete", "after delete on Review referencing old as o",
+				REMOVE_RATING),
+		new Trigger("ReviewStatsUpdateOld", "after update of MovieID, Rating on Review referencing old as o",
+				REMOVE_RATING),
+		new Trigger("ReviewStatsUpdateNew", "after update of MovieID, Rating on Review referencing new as n",
+				ADD_RATING),
+	};
+
+	/**
+	 * Determines whether the summary table exists in the current schema.
+	 *
+	 * @param conn the connection
+	 * @return true if MovieStats exists
+	 * @throws SQLException if a database operation fails
+	 */
+	static boolean exists(Connection conn) throws SQLException {
+		try (ResultSet rs = conn.getMetaData().getTables(null, conn.getSchema(), "MOVIESTATS", null)) {
+			return rs.next();
+		}
+	}
+
+	/**
+	 * Gets the names of the triggers that exist in the current schema.
+	 *
+	 * @param conn the connection
+	 * @return the upper case trigger names
+	 * @throws SQLException if a database operation fails
+	 */
+	static Set<String> existingTriggers(Connection conn) throws SQLException {
+		Set<String> names = new HashSet<>();
+		try (
+			Statement stmt = conn.createStatement();
+			ResultSet rs = stmt.executeQuery(
+					"select t.TriggerName from SYS.SYSTRIGGERS t"
+					+ " join SYS.SYSSCHEMAS s on t.SchemaID = s.SchemaID"
+					+ " where s.SchemaName = current schema");
+		) {
+			while (rs.next()) {
+				names.add(rs.getString(1).toUpperCase());
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Creates the summary table, its ranking indexes and its triggers, and
+	 * fills it from the existing movies and reviews.
+	 *
+	 * @param conn the connection
+	 * @throws SQLException if a database operation fails
+	 */
+	public static void create(Connection conn) throws SQLException {
+		try (Statement stmt = conn.createStatement()) {
+			stmt.executeUpdate(String.format(CREATE_TABLE, BinaryIds.idType(conn)));
+			System.out.println("Created summary table MovieStats");
+			for (String[] index : RANKING_INDEXES) {
+				stmt.executeUpdate("create index " + index[0] + " on MovieStats (" + index[1] + ")");
+				System.out.println("Created index " + index[0]);
+			}
+			for (Trigger trigger : TRIGGERS) {
+				stmt.executeUpdate(trigger.createSql());
+				System.out.println("Created trigger " + trigger.name);
+			}
+		}
+		rebuild(conn);
+	}
+
+	/**
+	 * Drops the triggers and the summary table if they exist.
+	 *
+	 * @param conn the connection
+	 * @throws SQLException if a database operation fails
+	 */
+	public static void drop(Connection conn) throws SQLException {
+		Set<String> existing = existingTriggers(conn);
+		try (Statement stmt = conn.createStatement()) {
+			for (Trigger trigger : TRIGGERS) {
+				if (existing.contains(trigger.name.toUpperCase())) {
+					stmt.executeUpdate("drop trigger " + trigger.name);
+					System.out.println("Dropped trigger " + trigger.name);
+				}
+			}
+			if (exists(conn)) {
+				stmt.executeUpdate("drop table MovieStats");
+				System.out.println("Dropped summary table MovieStats");
+			}
+		}
+	}
+
+	/**
+	 * Replaces the contents of the summary table with aggregates computed
+	 * from scratch, in one transaction. If autocommit is off, the rebuild
+	 * is part of the caller's transaction and is not committed here.
+	 *
+	 * @param conn the connection
+	 * @return the number of movies
+	 * @throws SQLException if a database operation fails
+	 */
+	public static int rebuild(Connection conn) throws SQLException {
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		try (Statement stmt = conn.createStatement()) {
+			// keep reviews from changing between the delete and the insert
+			stmt.executeUpdate("lock table Review in share mode");
+			stmt.executeUpdate("delete from MovieStats");
+			int movies = stmt.executeUpdate("insert into MovieStats (" + COLUMNS + ") " + AGGREGATE);
+			if (autoCommit) {
+				conn.commit();
+			}
+			System.out.printf("Rebuilt MovieStats for %d movies\n", movies);
+			return movies;
+		} catch (SQLException ex) {
+			if (autoCommit) {
+				conn.rollback();
+			}
+			throw ex;
+		} finally {
+			conn.setAutoCommit(autoCommit);
+		}
+	}
+
+	/**
+	 * Reads the rows of an aggregate query by MovieID.
+	 */
+	private static Map<String, String> read(Statement stmt, String sql) throws SQLException {
+		Map<String, String> rows = new HashMap<>();
+		try (ResultSet rs = stmt.executeQuery(sql)) {
+			while (rs.next()) {
+				rows.put(BinaryIds.getId(rs, 1), String.format("count %d, sum %d, max %s, min %s",
+						rs.getInt(2), rs.getLong(3), rs.getObject(4), rs.getObject(5)));
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Compares the maintained aggregates with aggregates computed from
+	 * scratch, printing each movie that differs.
+	 *
+	 * @param conn the connection
+	 * @return the number of movies that differ
+	 * @throws SQLException if a database operation fails
+	 */
+	public static int check(Connection conn) throws SQLException {
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		int differences = 0;
+		try (Statement stmt = conn.createStatement()) {
+			// read both sides from the same state of Review
+			stmt.executeUpdate("lock table Review in share mode");
+			Map<String, String> expected = read(stmt, AGGREGATE);
+			Map<String, String> maintained = read(stmt, MAINTAINED);
+			if (autoCommit) {
+				conn.commit();
+			}
+
+			for (Map.Entry<String, String> entry : expected.entrySet()) {
+				String actual = maintained.remove(entry.getKey());
+				if (!entry.getValue().equals(actual)) {
+					differences++;
+					System.out.printf("MovieStats %s: expected %s, found %s\n",
+							entry.getKey(), entry.getValue(), actual == null ? "no row" : actual);
+				}
+			}
+			for (Map.Entry<String, String> entry : maintained.entrySet()) {
+				differences++;
+				System.out.printf("MovieStats %s: found %s for a movie that does not exist\n",
+						entry.getKey(), entry.getValue());
+			}
+			System.out.printf("Checked MovieStats for %d movies: %d differences\n", expected.size(), differences);
+			return differences;
+		} catch (SQLException ex) {
+			if (autoCommit) {
+				conn.rollback();
+			}
+			throw ex;
+		} finally {
+			conn.setAutoCommit(autoCommit);
+		}
+	}
+
+	public static void main(String[] args) {
+		Properties props = new Properties(); // connection properties
+		props.put("user", "user1");
+		props.put("password", "user1");
+		try (Connection conn = DriverManager.getConnection("jdbc:derby:irate", props)) {
+			String option = args.length > 0 ? args[0] : "-check";
+			if (option.equals("-create")) {
+				drop(conn);
+				create(conn);
+			} else if (option.equals("-rebuild")) {
+				rebuild(conn);
+			} else {
+				check(conn);
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,304 @@
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bloom filter of (CustomerID, MovieID) pairs, which answers either that a
+ * pair was never added or that it may have been. A stored function asks the
+ * filter before it queries for a pair, and skips the query when the pair
+ * was never added.
+ *
+ * The filter grows in stages, in the manner of a scalable Bloom filter:
+ * when a stage holds as many pairs as it was sized for, later pairs go to a
+ * new stage twice its size, so the false positive rate stays near that of
+ * one full stage while the tables grow. Bits are set with an atomic OR, so
+ * adds from concurrent triggers never take a lock.
+ *
+ * Pairs cannot be removed; a pair whose rows were deleted, or whose insert
+ * rolled back, only costs the query that the filter would have skipped.
+ * Until the filter is marked ready, it answers that every pair may have
+ * been added, so it never skips a query it was not loaded for.
+ */
+public class PairFilter {
+
+	/** bits per pair of each stage, for about 1% false positives when full */
+	static final int BITS_PER_PAIR = 10;
+
+	/** number of bits set per pair */
+	static final int HASHES = 7;
+
+	/** number of pairs the first stage is sized for, at least */
+	static final int MIN_CAPACITY = 1 << 16;
+
+	/**
+	 * One fixed size Bloom filter.
+	 */
+	private static class Stage {
+		final long capacity;
+		final long bits;
+		final AtomicLongArray words;
+		final AtomicLong count = new AtomicLong();
+
+		Stage(long capacity) {
+			this.capacity = capacity;
+			int words = (int) Math.min(Integer.MAX_VALUE - 8, (capacity * BITS_PER_PAIR + 63) / 64);
+			this.bits = words * 64L;
+			this.words = new AtomicLongArray(words);
+		}
+
+		/**
+		 * Sets the bits of a hash, with the probes h1 + i * h2 of double hashing.
+		 */
+		void add(long hash) {
+			long h1 = hash;
+			long h2 = Long.rotateLeft(hash, 32) | 1;
+			for (int i = 0; i < HASHES; i++) {
+				long bit = Long.remainderUnsigned(h1 + i * h2, bits);
+				int word = (int) (bit >>> 6);
+				long mask = 1L << bit;
+				if ((words.get(word) & mask) == 0) {
+					words.getAndAccumulate(word, mask, (a, b) -> a | b);
+				}
+			}
+			count.incrementAndGet();
+		}
+
+		boolean mightContain(long hash) {
+			long h1 = hash;
+			long h2 = Long.rotateLeft(hash, 32) | 1;
+			for (int i = 0; i < HASHES; i++) {
+				long bit = Long.remainderUnsigned(h1 + i * h2, bits);
+				if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @return the false positive rate implied by the fraction of bits set
+		 */
+		double falsePositiveRate() {
+			long set = 0;
+			for (int i = 0; i < words.length(); i++) {
+				set += Long.bitCount(words.get(i));
+			}
+			return Math.pow((double) set / bits, HASHES);
+		}
+	}
+
+	private final String name;
+	private volatile Stage[] stages;
+	private volatile boolean ready;
+
+	// answers while ready, and queries that found no match after a "may have been added"
+	private final LongAdder negatives = new LongAdder();
+	private final LongAdder positives = new LongAdder();
+	private final LongAdder unmatched = new LongAdder();
+
+	/**
+	 * Creates an empty filter that is not ready.
+	 *
+	 * @param name the name of the filter in its stats
+	 */
+	public PairFilter(String name) {
+		this.name = name;
+		this.stages = new Stage[] {new Stage(MIN_CAPACITY)};
+	}
+
+	/**
+	 * Empties the filter and marks it not ready, sizing its first stage for
+	 * the pairs about to be loaded.
+	 *
+	 * @param expected the number of pairs expected
+	 */
+	public synchronized void reset(long expected) {
+		ready = false;
+		stages = new Stage[] {new Stage(Math.max(expected, MIN_CAPACITY))};
+		negatives.reset();
+		positives.reset();
+		unmatched.reset();
+	}
+
+	/**
+	 * Marks the filter ready once every pair of its table has been added.
+	 *
+	 * @param ready whether negative answers can be trusted
+	 */
+	public void setReady(boolean ready) {
+		this.ready = ready;
+	}
+
+	/**
+	 * @return whether negative answers can be trusted
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * Hashes a pair of UUIDs (the MurmurHash3 finalizer over their halves).
+	 */
+	static long hash(long customerMsb, long customerLsb, long movieMsb, long movieLsb) {
+		long h = mix(customerMsb);
+		h = mix(h ^ customerLsb);
+		h = mix(h ^ movieMsb);
+		return mix(h ^ movieLsb);
+	}
+
+	private static long mix(long z) {
+		z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+		z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return z ^ (z >>> 33);
+	}
+
+	/**
+	 * Adds a pair. Pairs whose IDs are not UUIDs are not added; they are
+	 * never skipped either.
+	 *
+	 * @param customerId the customer
+	 * @param movieId the movie
+	 */
+	public void add(String customerId, String movieId) {
+		if (customerId == null || movieId == null || !Uuids.isUuid(customerId) || !Uuids.isUuid(movieId)) {
+			return;
+		}
+		add(hash(Uuids.mostSigBits(customerId), Uuids.leastSigBits(customerId),
+				Uuids.mostSigBits(movieId), Uuids.leastSigBits(movieId)));
+	}
+
+	private void add(long hash) {
+		Stage[] current = stages;
+		Stage last = current[current.length - 1];
+		if (last.count.get() >= last.capacity) {
+			last = grow(current);
+		}
+		last.add(hash);
+	}
+
+	/**
+	 * Adds a stage twice the size of the last, unless another thread has.
+	 */
+	private synchronized Stage grow(Stage[] seen) {
+		Stage[] current = stages;
+		if (current == seen) {
+			Stage[] grown = new Stage[current.length + 1];
+			System.arraycopy(current, 0, grown, 0, current.length);
+			grown[current.length] = new Stage(current[current.length - 1].capacity * 2);
+			stages = grown;
+			current = grown;
+		}
+		return current[current.length - 1];
+	}
+
+	/**
+	 * Tells whether a pair may have been added.
+	 *
+	 * @param customerId the customer
+	 * @param movieId the movie
+	 * @return false only if the filter is ready and the pair was never added
+	 */
+	public boolean mightContain(String customerId, String movieId) {
+		if (!ready || customerId == null || movieId == null || !Uuids.isUuid(customerId) || !Uuids.isUuid(movieId)) {
+			return true;
+		}
+		long hash = hash(Uuids.mostSigBits(customerId), Uuids.leastSigBits(customerId),
+				Uuids.mostSigBits(movieId), Uuids.leastSigBits(movieId));
+		for (Stage stage : stages) {
+			if (stage.mightContain(hash)) {
+				positives.increment();
+				return true;
+			}
+		}
+		negatives.increment();
+		return false;
+	}
+
+	/**
+	 * Records that the query made after a "may have been added" answer found
+	 * no matching row.
+	 */
+	public void unmatched() {
+		if (ready) {
+			unmatched.increment();
+		}
+	}
+
+	/**
+	 * @return the number of queries skipped, answered "never added" while ready
+	 */
+	public long skipped() {
+		return negatives.sum();
+	}
+
+	/**
+	 * @return the number of pairs added
+	 */
+	public long size() {
+		long size = 0;
+		for (Stage stage : stages) {
+			size += stage.count.get();
+		}
+		return size;
+	}
+
+	/**
+	 * @return the bytes held by the bits of the filter
+	 */
+	public long memoryBytes() {
+		long bytes = 0;
+		for (Stage stage : stages) {
+			bytes += stage.bits / 8;
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return the false positive rate implied by the bits set in each stage
+	 */
+	public double estimatedFalsePositiveRate() {
+		double none = 1;
+		for (Stage stage : stages) {
+			none *= 1 - stage.falsePositiveRate();
+		}
+		return 1 - none;
+	}
+
+	/**
+	 * Measures the false positive rate by probing random pairs, which were
+	 * almost certainly never added.
+	 *
+	 * @param probes the number of pairs probed
+	 * @param seed the seed of the random pairs
+	 * @return the fraction of probes answered "may have been added"
+	 */
+	public double measuredFalsePositiveRate(int probes, long seed) {
+		Random random = new Random(seed);
+		Stage[] current = stages;
+		long positive = 0;
+		for (int i = 0; i < probes; i++) {
+			long hash = hash(random.nextLong(), random.nextLong(), random.nextLong(), random.nextLong());
+			for (Stage stage : current) {
+				if (stage.mightContain(hash)) {
+					positive++;
+					break;
+				}
+			}
+		}
+		return (double) positive / probes;
+	}
+
+	/**
+	 * @return the size, memory, false positive rates and answer counts of the filter
+	 */
+	public String stats() {
+		long n = negatives.sum();
+		long p = positives.sum();
+		return String.format("%s filter: %d pairs in %d stages, %.1f KB, false positives %.3f%% estimated,"
+				+ " %.3f%% measured; %d queries skipped (%.1f%% of checks), %d queries found no match%s",
+				name, size(), stages.length, memoryBytes() / 1024.0,
+				100 * estimatedFalsePositiveRate(), 100 * measuredFalsePositiveRate(100_000, 1),
+				n, n + p == 0 ? 0.0 : 100.0 * n / (n + p), unmatched.sum(), ready ? "" : " (not ready)");
+	}
+}
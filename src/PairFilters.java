@@ -0,0 +1,324 @@
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The {@link PairFilter}s of the (CustomerID, MovieID) pairs of the Review
+ * and Attendance tables, which let StoredFunctions.isOnlyReview and
+ * verifyAttendance skip their query for a pair that has no rows, and the
+ * procedures called by triggers that add each inserted or updated pair.
+ * The procedures do no SQL and run in the JVM of the embedded database.
+ * When Attendance is partitioned (see {@link DatePartitions}), each
+ * partition has the same triggers.
+ *
+ * The filters are built from the tables by {@link #ensureLoaded} on the
+ * first check in each JVM that needs them, so every process that writes or
+ * validates uses them without a scan at startup. The load may run while
+ * other connections write: a pair inserted after the filter is emptied is
+ * added by its trigger, and the scan waits for the rows of uncommitted
+ * inserts made before. Checks made while another thread loads run their
+ * query. The filters describe one database: loading another replaces them.
+ *
+ * Usage: PairFilters, which checks that the filters skip queries
+ */
+public class PairFilters {
+
+	// pairs of customers and the movies they reviewed
+	private static final PairFilter reviews = new PairFilter("Review");
+
+	// pairs of customers and the movies they attended
+	private static final PairFilter attendances = new PairFilter("Attendance");
+
+	// held by the thread loading the filters; other threads do not wait for it
+	private static final ReentrantLock loadLock = new ReentrantLock();
+
+	// set when the filters cannot be loaded, until the triggers are created again
+	private static volatile boolean unavailable;
+
+	/** the procedures, in creation order; %1$s is the ID type */
+	private static final String[][] PROCEDURES = {
+		{"reviewPairAdded",
+			"create procedure reviewPairAdded(CustomerID %1$s, MovieID %1$s)"
+			+ " language java parameter style java no sql"
+			+ " external name 'PairFilters.reviewPairAdded'"},
+		{"attendancePairAdded",
+			"create procedure attendancePairAdded(CustomerID %1$s, MovieID %1$s)"
+			+ " language java parameter style java no sql"
+			+ " external name 'PairFilters.attendancePairAdded'"},
+	};
+
+	/** the triggers of a table; %1$s is the table name, %2$s the procedure */
+	private static final String[][] TRIGGERS = {
+		{"%1$sPairInsert",
+			"create trigger %1$sPairInsert after insert on %1$s"
+			+ " referencing new as n for each row"
+			+ " call %2$s(n.CustomerID, n.MovieID)"},
+		{"%1$sPairUpdate",
+			"create trigger %1$sPairUpdate after update of CustomerID, MovieID on %1$s"
+			+ " referencing new as n for each row"
+			+ " call %2$s(n.CustomerID, n.MovieID)"},
+	};
+
+	/**
+	 * @return the filter of the pairs in Review
+	 */
+	static PairFilter reviews() {
+		return reviews;
+	}
+
+	/**
+	 * @return the filter of the pairs in Attendance
+	 */
+	static PairFilter attendances() {
+		return attendances;
+	}
+
+	/**
+	 * Procedure called for each inserted or updated review.
+	 *
+	 * @param customerId the customer
+	 * @param movieId the movie
+	 */
+	public static void reviewPairAdded(String customerId, String movieId) {
+		reviews.add(customerId, movieId);
+	}
+
+	/**
+	 * Procedure called for each inserted or updated review in a database
+	 * with binary IDs.
+	 */
+	public static void reviewPairAdded(byte[] customerId, byte[] movieId) {
+		reviewPairAdded(Uuids.fromBytes(customerId), Uuids.fromBytes(movieId));
+	}
+
+	/**
+	 * Procedure called for each inserted or updated attendance.
+	 *
+	 * @param customerId the customer
+	 * @param movieId the movie
+	 */
+	public static void attendancePairAdded(String customerId, String movieId) {
+		attendances.add(customerId, movieId);
+	}
+
+	/**
+	 * Procedure called for each inserted or updated attendance in a database
+	 * with binary IDs.
+	 */
+	public static void attendancePairAdded(byte[] customerId, byte[] movieId) {
+		attendancePairAdded(Uuids.fromBytes(customerId), Uuids.fromBytes(movieId));
+	}
+
+	/**
+	 * Creates the procedures, and the triggers that call them on Review and
+	 * on Attendance unless it is partitioned. The filters are loaded by the
+	 * first check that needs them.
+	 *
+	 * @param conn the connection
+	 * @throws SQLException if a database operation fails
+	 */
+	public static void create(Connection conn) throws SQLException {
+		String idType = BinaryIds.idType(conn);
+		try (Statement stmt = conn.createStatement()) {
+			for (String[] procedure : PROCEDURES) {
+				stmt.executeUpdate(String.format(procedure[1], idType));
+				System.out.println("Created procedure " + procedure[0]);
+			}
+			createTriggers(stmt, "Review", "reviewPairAdded");
+			if (!DatePartitions.isPartitioned(conn, DatePartitions.ATTENDANCE)) {
+				createTriggers(stmt, "Attendance", "attendancePairAdded");
+			}
+		}
+		reviews.setReady(false);
+		attendances.setReady(false);
+		unavailable = false;
+	}
+
+	/**
+	 * Creates the triggers of a table holding pairs.
+	 *
+	 * @param stmt the statement
+	 * @param table Review, Attendance or one of its partitions
+	 * @param procedure the procedure that adds the pairs of the table
+	 * @throws SQLException if a database operation fails
+	 */
+	static void createTriggers(Statement stmt, String table, String procedure) throws SQLException {
+		for (String[] trigger : TRIGGERS) {
+			stmt.executeUpdate(String.format(trigger[1], table, procedure));
+		}
+	}
+
+	/**
+	 * Drops the triggers of a table that exist.
+	 *
+	 * @param stmt the statement
+	 * @param table Review, Attendance or one of its partitions
+	 */
+	static void dropTriggers(Statement stmt, String table) {
+		for (String[] trigger : TRIGGERS) {
+			String name = String.format(trigger[0], table);
+			try {
+				stmt.executeUpdate("drop trigger " + name);
+				System.out.println("Dropped trigger " + name);
+			} catch (SQLException ex) {
+				System.out.println("Did not drop trigger " + name);
+			}
+		}
+	}
+
+	/**
+	 * Loads the filters unless they are ready, with the connection of a
+	 * {@link FunctionContext}. Called by the stored functions before they
+	 * ask a filter; if another thread is loading the filters, or they cannot
+	 * be loaded because the database has no pair triggers, it returns at once
+	 * and the filters, not ready, skip no query.
+	 */
+	static void ensureLoaded() {
+		if (unavailable || (reviews.isReady() && attendances.isReady()) || !loadLock.tryLock()) {
+			return;
+		}
+		try (FunctionContext ctx = FunctionContext.open()) {
+			if (reviews.isReady() && attendances.isReady()) {
+				return;
+			}
+			if (!hasTriggers(ctx.connection())) {
+				System.out.println("Pair filters not loaded: the database has no pair triggers");
+				unavailable = true;
+				return;
+			}
+			load(ctx.connection());
+		} catch (SQLException e) {
+			unavailable = true;
+			e.printStackTrace();
+		} finally {
+			loadLock.unlock();
+		}
+	}
+
+	/**
+	 * Tells whether the insert trigger of Review exists, so that a pair
+	 * inserted after a load is added to the filter.
+	 */
+	private static boolean hasTriggers(Connection conn) throws SQLException {
+		return MovieStats.existingTriggers(conn).contains(String.format(TRIGGERS[0][0], "Review").toUpperCase());
+	}
+
+	/**
+	 * Rebuilds the filters from the Review and Attendance tables. The
+	 * triggers must exist, so that pairs inserted later are added.
+	 *
+	 * @param conn the connection
+	 * @throws SQLException if a database operation fails
+	 */
+	public static void load(Connection conn) throws SQLException {
+		long start = System.nanoTime();
+		try (Statement stmt = conn.createStatement()) {
+			load(stmt, reviews, "Review");
+			load(stmt, attendances, "Attendance");
+		}
+		System.out.printf("Loaded pair filters in %.1f ms\n", (System.nanoTime() - start) / 1e6);
+		System.out.println(reviews.stats());
+		System.out.println(attendances.stats());
+	}
+
+	private static void load(Statement stmt, PairFilter filter, String table) throws SQLException {
+		long rows;
+		try (ResultSet rs = stmt.executeQuery("select count(*) from " + table)) {
+			rs.next();
+			rows = rs.getLong(1);
+		}
+		// room for the table to double before a second stage is needed
+		filter.reset(2 * rows);
+		try (ResultSet rs = stmt.executeQuery("select CustomerID, MovieID from " + table)) {
+			while (rs.next()) {
+				filter.add(BinaryIds.getId(rs, 1), BinaryIds.getId(rs, 2));
+			}
+		}
+		filter.setReady(true);
+	}
+
+	/**
+	 * Drops the triggers of Review and Attendance and the procedures that
+	 * exist, and marks the filters not ready. Partitions must be dropped
+	 * first.
+	 *
+	 * @param conn the connection
+	 */
+	public static void drop(Connection conn) {
+		reviews.setReady(false);
+		attendances.setReady(false);
+		unavailable = true;
+		try (Statement stmt = conn.createStatement()) {
+			dropTriggers(stmt, "Review");
+			dropTriggers(stmt, "Attendance");
+			for (int i = PROCEDURES.length - 1; i >= 0; i--) {
+				try {
+					stmt.executeUpdate("drop procedure " + PROCEDURES[i][0]);
+					System.out.println("Dropped procedure " + PROCEDURES[i][0]);
+				} catch (SQLException ex) {
+					System.out.println("Did not drop procedure " + PROCEDURES[i][0]);
+				}
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return the stats of both filters, one per line
+	 */
+	public static String stats() {
+		return reviews.stats() + "\n" + attendances.stats();
+	}
+
+	/**
+	 * Checks that the filters of an existing database are loaded by the
+	 * first stored function call in a fresh JVM, and that they skip the
+	 * queries for pairs that have no rows: random customers are checked for
+	 * attendances and reviews of a random movie.
+	 *
+	 * @param conn the connection
+	 * @param probes the number of pairs checked
+	 * @return true if both filters skipped queries
+	 */
+	static boolean check(Connection conn, int probes) {
+		Date today = new Date(System.currentTimeMillis());
+		FunctionContext.bind(conn);
+		try {
+			for (int i = 0; i < probes; i++) {
+				String customerId = UUID.randomUUID().toString();
+				String movieId = UUID.randomUUID().toString();
+				StoredFunctions.verifyAttendance(customerId, movieId, today);
+				StoredFunctions.isOnlyReview(customerId, movieId);
+			}
+		} finally {
+			FunctionContext.bind(null);
+		}
+		System.out.println(stats());
+		boolean skipped = reviews.skipped() > 0 && attendances.skipped() > 0;
+		System.out.printf("Checked pair filters with %d pairs: %s\n", probes,
+				skipped ? "queries skipped" : "no query skipped");
+		return skipped;
+	}
+
+	public static void main(String[] args) {
+		Properties props = new Properties(); // connection properties
+		props.put("user", "user1");
+		props.put("password", "user1");
+		boolean skipped = false;
+		try (Connection conn = DriverManager.getConnection("jdbc:derby:irate", props)) {
+			skipped = check(conn, 1000);
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		if (!skipped) {
+			System.exit(1);
+		}
+	}
+}
@@ -14,30 +14,86 @@ import java.util.Properties;
  */
 
 public class ProjectMain {
-	
-	public static Connection connection;
-	
-	public static Connection getConnection() {
-		return connection;
-	}
 
 	public static void main(String[] args) {
 	
+		// "-indexedValidation" enforces the Review rules with indexes
+		// (see ReviewValidation) instead of Java CHECK constraints, when the
+		// schema is created; "-reset" drops the existing schema and its data first
+		boolean indexedValidation = false;
+		boolean reset = false;
+		for (String arg : args) {
+			if (arg.equals("-indexedValidation")) {
+				indexedValidation = true;
+			} else if (arg.equals("-reset")) {
+				reset = true;
+			}
+		}
+		
 		// embed default framework
 		String protocol = "jdbc:derby:";
 		String dbName = "irate";
 		String connStr = protocol + dbName + ";create=true";
 		
-		// tables created
+		Properties props = new Properties(); // connection properties
+		props.put("user", "user1");
+		props.put("password", "user1");
+		
+		
+		try (
+			// connection
+			Connection conn = DriverManager.getConnection(connStr, props);
+		) {
+			System.out.println("Connected to database " + dbName);
+			
+			long start = System.nanoTime();
+			if (reset) {
+				dropDatabase(conn);
+			}
+			// apply only the migrations the database does not have yet; the pair
+			// filters are loaded by the first check of each process that uses
+			// them, so a warm start reads no table data
+			int applied = SchemaMigrations.migrate(conn, indexedValidation);
+			System.out.printf("Started in %.1f ms (%d migrations applied)\n",
+					(System.nanoTime() - start) / 1e6, applied);
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Drops the schema and all its data, then creates it again by applying
+	 * every migration.
+	 * 
+	 * @param conn the connection
+	 * @param indexedValidation whether the Review rules are enforced with indexes
+	 * 	(see ReviewValidation) instead of Java CHECK constraints
+	 * @throws SQLException if a database operation fails
+	 */
+	public static void createDatabase(Connection conn, boolean indexedValidation) throws SQLException {
+		dropDatabase(conn);
+		SchemaMigrations.migrate(conn, indexedValidation);
+	}
+	
+	/**
+	 * Drops the tables, functions and types of the database that exist,
+	 * with their summary, triggers and recorded schema version.
+	 * 
+	 * @param conn the connection
+	 * @throws SQLException if a database operation fails
+	 */
+	public static void dropDatabase(Connection conn) throws SQLException {
+		// tables created, children before the tables their foreign keys reference
 		String dbTables[] = {
-				"Customer", "Movie", "Attendance", "Review", "Endorsement"
+				"Endorsement", "Review", "Attendance", "Movie", "Customer",
+				SchemaMigrations.VERSION_TABLE
 		};
 		
 		// functions created 
 		String dbFunctions[] = {
-				"generateUuid", "sevenDays", "threeDays", "oneDay",
+				"generateUuid", "withinDays", "sevenDays", "threeDays", "oneDay",
 				"isValidEndorsement", "verifyEndorsement", "isUuid",
-				"verifyAttendance", "isOnlyReview"
+				"verifyAttendance", "isOnlyReview", "checkLastEndorsementDate"
 		};
 		
 		// types created
@@ -45,20 +101,18 @@ public class ProjectMain {
 				"uuid"
 		};
 		
-		Properties props = new Properties(); // connection properties
-		props.put("user", "user1");
-		props.put("password", "user1");
-		
-		
 		try (
-			// connection
-			Connection conn = DriverManager.getConnection(connStr, props);
-			
 			// statement
 			Statement stmt = conn.createStatement();
 		) {
-			System.out.println("Connected to and created database " + dbName);
-			connection = conn;
+			// drop the review summary, the date partitions, the endorsement and review
+			// events, the pair filters and the review rules, whose triggers depend on the tables
+			MovieStats.drop(conn);
+			DatePartitions.dropAll(conn);
+			EndorsementEvents.drop(conn);
+			ReviewEvents.drop(conn);
+			PairFilters.drop(conn);
+			ReviewValidation.dropRules(conn);
 			
 			// drop tables
 			for (String tbl : dbTables) {
@@ -89,220 +143,212 @@ public class ProjectMain {
 					System.out.println("Did not drop type " + type);
 				}
 			}
-			
-			// create UUID type - unused, but allows for storing UUID 
-			// as new type within the database (vs varchar) 
-			String createType_Uuid = 
-					" create type uuid" +
-					"  external name " +
-					"     'java.util.UUID'" +
-					"  language java";
-			stmt.executeUpdate(createType_Uuid);
-			System.out.println("Created type UUID");
-			
-			
-			// STORED FUNCTIONS FROM Storedfunctions.Java
-			
-			// check seven days function
-			String createFunction_sevenDays = 
-					"create function sevenDays(" +
-					"  storedDate date," + 
-					"  oldDate date" +
-					") returns boolean " +
-					" language java " + 
-					" parameter style java " + 
-					" external name 'StoredFunction.sevenDays'";
-			stmt.executeUpdate(createFunction_sevenDays);
-			System.out.println("Created function sevenDays");
-			
-			// check seven days function
-			String createFunction_threeDays = 
-					"create function threeDays(" +
-					"  storedDate date," + 
-					"  oldDate date" +
-					") returns boolean " +
-					" language java " + 
-					" parameter style java " + 
-					" external name 'StoredFunction.threeDays'";
-			stmt.executeUpdate(createFunction_threeDays);
-			System.out.println("Created function threeDays");
-			
-			// check seven days function
-			String createFunction_oneDay = 
-					"create function oneDay(" +
-					"  storedDate date," + 
-					"  oldDate date" +
-					") returns boolean " +
-					" language java " + 
-					" parameter style java " + 
-					" external name 'StoredFunction.oneDay'";
-			stmt.executeUpdate(createFunction_oneDay);
-			System.out.println("Created function oneDay");
-			
-			// create UUID function - could be used to generate a new uuid
-			// at the time of insert, though is not implemented for this test
-			String createFunction_generateUuid = 
-					"create function generateUuid()" +
-					"  returns varchar(36)" + 
-					"  language java" +
-					"  parameter style java" +
-					"  external name " +
-					"     'java.util.UUID.randomUUID.toString'";
-			stmt.executeUpdate(createFunction_generateUuid);
-			System.out.println("Created function generateUuid");
-			
-			// create check validEndorsement function
-			String createFunction_isValidEndorsement = 
-					"create function isValidEndorsement("
-					+ "CustomerID varchar(36),"
-					+ "ReviewID varchar(36)"
-					+ ") returns boolean"
-					+ " language java"
-					+ " parameter style java"
-					+ " external name"
-					+ " 'StoredFunctions.isValidEndorsement'";
-			stmt.executeUpdate(createFunction_isValidEndorsement);
-			System.out.println("Created function isValidEndorsement");
-			
-			// create check verifyEndorsement function
-			String createFunction_verifyEndorsement = 
-					"create function verifyEndorsement("
-					+ " EndorserID varchar(36),"
-					+ " ReviewID varchar(36),"
-					+ " checkDate date"
-					+ ") returns boolean"
-					+ " language java"
-					+ " parameter style java"
-					+ " external name"
-					+ " 'StoredFunctions.verifyEndorsement'";
-			stmt.executeUpdate(createFunction_verifyEndorsement);
-			System.out.println("Created function verifyEndorsement");
-			
-			// create check verifyAttendance function
-			String createFunction_verifyAttendance = 
-					"create function verifyAttendance("
-					+ " CustomerID varchar(36),"
-					+ " MovieID varchar(36),"
-					+ " checkDate date"
-					+ ") returns boolean"
-					+ " language java"
-					+ " parameter style java"
-					+ " external name"
-					+ " 'StoredFunctions.verifyAttendance'";
-			stmt.executeUpdate(createFunction_verifyAttendance);
-			System.out.println("Created function verifyAttendance");
-			
-			// create check isOnlyReview function
-			String createFunction_isOnlyReview = 
-					"create function isOnlyReview("
-					+ " CustomerID varchar(36),"
-					+ " MovieID varchar(36)"
-					+ ") returns boolean"
-					+ " language java"
-					+ " parameter style java"
-					+ " external name"
-					+ " 'StoredFunctions.isOnlyReview'";
-			stmt.executeUpdate(createFunction_isOnlyReview);
-			System.out.println("Created function isOnlyReview");
-			
-			// create the isUuid function
-			String createFunction_isUuid =
-					" create function isUuid("
-					+ " uuid varchar(36)"
-					+ ") RETURNS boolean"
-					+ " language java"
-					+ " parameter style java"
-					+ " external name"
-					+ " 'StoredFunctions.isUuid'";
-			stmt.executeUpdate(createFunction_isUuid);
-			System.out.println("Created function isUuid");
-			
-			// STORED FUNCTIONS FROM QUERIES.JAVA
-			
-			// create the checkLastEndorsementDate function
-			String createFunction_checkLastEndorsementDate =
-					" create function checkLastEndorsementDate("
-					+ " ReviewID varchar(36),"
-					+ " EndorserID varchar(36),"
-					+ " EndorsementDate Date"
-					+ ") RETURNS boolean"
-					+ " language java"
-					+ " parameter style java"
-					+ " external name"
-					+ " 'Queries.checkLastEndorsementDate'";
-			stmt.executeUpdate(createFunction_checkLastEndorsementDate);
-			System.out.println("Created function checkLastEndorsementDate");
-			
-			// create the Customer table
-			String createTable_Customer =
-					  "create table Customer ("
-					+ "  Name varchar(36) not null,"
-					+ "  Email varchar(36) not null,"
-					+ "  Date date not null,"
-					+ "  CustomerID varchar(36),"
-					+ " primary key (CustomerID)"
-					+ " )";
-			stmt.executeUpdate(createTable_Customer);
-			System.out.println("Created entity table Customer");
-			
-			// create the Movie table
-			String createTable_Movie =
-					  "create table Movie ("
-					+ "  Title varchar(36) not null,"
-					+ "  MovieID varchar(36) not null,"
-					+ "  primary key (MovieID)"
-					+ " )";
-			stmt.executeUpdate(createTable_Movie);
-			System.out.println("Created entity table Movie");
-			
-			// create the Attendance table
-			String createTable_Attendance =
-					  "create table Attendance ("
-					+ " MovieID varchar(36) not null,"
-					+ " CustomerID varchar(36) not null,"
-					+ " Date date not null,"
-					+ " foreign key (MovieID) references Movie (MovieID) on delete cascade"
-					+ " )";
-			stmt.executeUpdate(createTable_Attendance);
-			System.out.println("Created entity table Attendance");
-			
-			// create the Review table
-			String createTable_Review =
-					  "create table Review ("
-					+ " ReviewID varchar(36) not null unique,"
-					+ " CustomerID varchar(36) not null,"
-					+ " MovieID varchar(36) not null,"
-					+ " ReviewDate date not null,"
-					+ " Rating int not null,"
-					+ " Review varchar(1000) not null,"
-					+ " primary key (CustomerID, MovieID, ReviewDate),"
-					+ " foreign key (MovieID) references Movie (MovieID) on delete cascade,"
-					+ " foreign key (CustomerID) references Customer (CustomerID) on delete cascade,"
-					+ " check(verifyAttendance(CustomerID, MovieID, ReviewDate)),"
-					+ " check(isOnlyReview(CustomerID, MovieID))"
-					+ " )";
-			stmt.executeUpdate(createTable_Review);
-			System.out.println("Created entity table Review");
-			
-			// create the Endorsement table
-			String createTable_Endorsement =
-					  "create table Endorsement ("
-					+ " ReviewID varchar(36) not null,"
-					+ " EndorserID varchar(36) not null,"
-					+ " EndorsementDate date not null,"
-					+ " primary key (ReviewID, EndorserID, EndorsementDate),"
-					+ " foreign key (EndorserID) references Customer (CustomerID) on delete cascade,"
-					+ " foreign key (ReviewID) references Review (ReviewID) on delete cascade,"
-					+ " check(isValidEndorsement(EndorserID, ReviewID)),"
-//					+ " check(verifyEndorsement(EndorserID, ReviewID, EndorsementDate))"
-					+ " check(checkLastEndorsementDate(ReviewID, EndorserID, EndorsementDate)),"
-					+ " )";
-			stmt.executeUpdate(createTable_Endorsement);
-			System.out.println("Created entity table Endorsement");
+		}
+	}
+	
+	/**
+	 * Creates the uuid type, the stored functions and the five entity
+	 * tables, the first schema migration.
+	 * 
+	 * @param stmt the statement
+	 * @param indexedValidation whether the Review rules are enforced with indexes
+	 * 	(see ReviewValidation) instead of Java CHECK constraints
+	 * @throws SQLException if a database operation fails
+	 */
+	static void createTables(Statement stmt, boolean indexedValidation) throws SQLException {
+		// create UUID type - unused, but allows for storing UUID 
+		// as new type within the database (vs varchar) 
+		String createType_Uuid = 
+				" create type uuid" +
+				"  external name " +
+				"     'java.util.UUID'" +
+				"  language java";
+		stmt.executeUpdate(createType_Uuid);
+		System.out.println("Created type UUID");
 		
-		} catch (SQLException e) {
-			e.printStackTrace();
-		}		
+		
+		// STORED FUNCTIONS FROM Storedfunctions.Java
+		
+		// check that a date is within a number of days after an older date;
+		// replaces the sevenDays, threeDays and oneDay functions
+		String createFunction_withinDays = 
+				"create function withinDays(" +
+				"  storedDate date," + 
+				"  oldDate date," +
+				"  days int" +
+				") returns boolean " +
+				" language java " + 
+				" parameter style java " + 
+				" deterministic no sql " + 
+				" external name 'StoredFunctions.withinDays'";
+		stmt.executeUpdate(createFunction_withinDays);
+		System.out.println("Created function withinDays");
+		
+		// create UUID function - could be used to generate a new uuid
+		// at the time of insert, though is not implemented for this test
+		String createFunction_generateUuid = 
+				"create function generateUuid()" +
+				"  returns varchar(36)" + 
+				"  language java" +
+				"  parameter style java" +
+				"  external name " +
+				"     'java.util.UUID.randomUUID.toString'";
+		stmt.executeUpdate(createFunction_generateUuid);
+		System.out.println("Created function generateUuid");
+		
+		// create check validEndorsement function
+		String createFunction_isValidEndorsement = 
+				"create function isValidEndorsement("
+				+ "CustomerID varchar(36),"
+				+ "ReviewID varchar(36)"
+				+ ") returns boolean"
+				+ " language java"
+				+ " parameter style java"
+				+ " external name"
+				+ " 'StoredFunctions.isValidEndorsement'";
+		stmt.executeUpdate(createFunction_isValidEndorsement);
+		System.out.println("Created function isValidEndorsement");
+		
+		// create check verifyEndorsement function
+		String createFunction_verifyEndorsement = 
+				"create function verifyEndorsement("
+				+ " EndorserID varchar(36),"
+				+ " ReviewID varchar(36),"
+				+ " checkDate date"
+				+ ") returns boolean"
+				+ " language java"
+				+ " parameter style java"
+				+ " external name"
+				+ " 'StoredFunctions.verifyEndorsement'";
+		stmt.executeUpdate(createFunction_verifyEndorsement);
+		System.out.println("Created function verifyEndorsement");
+		
+		// create check verifyAttendance function
+		String createFunction_verifyAttendance = 
+				"create function verifyAttendance("
+				+ " CustomerID varchar(36),"
+				+ " MovieID varchar(36),"
+				+ " checkDate date"
+				+ ") returns boolean"
+				+ " language java"
+				+ " parameter style java"
+				+ " external name"
+				+ " 'StoredFunctions.verifyAttendance'";
+		stmt.executeUpdate(createFunction_verifyAttendance);
+		System.out.println("Created function verifyAttendance");
+		
+		// create check isOnlyReview function
+		String createFunction_isOnlyReview = 
+				"create function isOnlyReview("
+				+ " CustomerID varchar(36),"
+				+ " MovieID varchar(36)"
+				+ ") returns boolean"
+				+ " language java"
+				+ " parameter style java"
+				+ " external name"
+				+ " 'StoredFunctions.isOnlyReview'";
+		stmt.executeUpdate(createFunction_isOnlyReview);
+		System.out.println("Created function isOnlyReview");
+		
+		// create the isUuid function
+		String createFunction_isUuid =
+				" create function isUuid("
+				+ " uuid varchar(36)"
+				+ ") RETURNS boolean"
+				+ " language java"
+				+ " parameter style java"
+				+ " external name"
+				+ " 'StoredFunctions.isUuid'";
+		stmt.executeUpdate(createFunction_isUuid);
+		System.out.println("Created function isUuid");
+		
+		// STORED FUNCTIONS FROM QUERIES.JAVA
+		
+		// create the checkLastEndorsementDate function
+		String createFunction_checkLastEndorsementDate =
+				" create function checkLastEndorsementDate("
+				+ " ReviewID varchar(36),"
+				+ " EndorserID varchar(36),"
+				+ " EndorsementDate Date"
+				+ ") RETURNS boolean"
+				+ " language java"
+				+ " parameter style java"
+				+ " external name"
+				+ " 'Queries.checkLastEndorsementDate'";
+		stmt.executeUpdate(createFunction_checkLastEndorsementDate);
+		System.out.println("Created function checkLastEndorsementDate");
+		
+		// create the Customer table
+		String createTable_Customer =
+				  "create table Customer ("
+				+ "  Name varchar(36) not null,"
+				+ "  Email varchar(36) not null,"
+				+ "  Date date not null,"
+				+ "  CustomerID varchar(36),"
+				+ " primary key (CustomerID)"
+				+ " )";
+		stmt.executeUpdate(createTable_Customer);
+		System.out.println("Created entity table Customer");
+		
+		// create the Movie table
+		String createTable_Movie =
+				  "create table Movie ("
+				+ "  Title varchar(36) not null,"
+				+ "  MovieID varchar(36) not null,"
+				+ "  primary key (MovieID)"
+				+ " )";
+		stmt.executeUpdate(createTable_Movie);
+		System.out.println("Created entity table Movie");
+		
+		// create the Attendance table
+		String createTable_Attendance =
+				  "create table Attendance ("
+				+ " MovieID varchar(36) not null,"
+				+ " CustomerID varchar(36) not null,"
+				+ " Date date not null,"
+				+ " foreign key (MovieID) references Movie (MovieID) on delete cascade"
+				+ " )";
+		stmt.executeUpdate(createTable_Attendance);
+		System.out.println("Created entity table Attendance");
+		
+		// create the Review table
+		String createTable_Review =
+				  "create table Review ("
+				+ " ReviewID varchar(36) not null unique,"
+				+ " CustomerID varchar(36) not null,"
+				+ " MovieID varchar(36) not null,"
+				+ " ReviewDate date not null,"
+				+ " Rating int not null,"
+				+ " Review varchar(1000) not null,"
+				+ " primary key (CustomerID, MovieID, ReviewDate),"
+				+ " foreign key (MovieID) references Movie (MovieID) on delete cascade,"
+				+ " foreign key (CustomerID) references Customer (CustomerID) on delete cascade"
+				+ (indexedValidation ? "" :
+				  ", check(verifyAttendance(CustomerID, MovieID, ReviewDate)),"
+				+ " check(isOnlyReview(CustomerID, MovieID))")
+				+ " )";
+		stmt.executeUpdate(createTable_Review);
+		System.out.println("Created entity table Review");
+		
+		if (indexedValidation) {
+			ReviewValidation.createConstraint(stmt);
+		}
+		
+		// create the Endorsement table
+		String createTable_Endorsement =
+				  "create table Endorsement ("
+				+ " ReviewID varchar(36) not null,"
+				+ " EndorserID varchar(36) not null,"
+				+ " EndorsementDate date not null,"
+				+ " primary key (ReviewID, EndorserID, EndorsementDate),"
+				+ " foreign key (EndorserID) references Customer (CustomerID) on delete cascade,"
+				+ " foreign key (ReviewID) references Review (ReviewID) on delete cascade,"
+				+ " check(isValidEndorsement(EndorserID, ReviewID)),"
+//				+ " check(verifyEndorsement(EndorserID, ReviewID, EndorsementDate))"
+				+ " check(checkLastEndorsementDate(ReviewID, EndorserID, EndorsementDate))"
+				+ " )";
+		stmt.executeUpdate(createTable_Endorsement);
+		System.out.println("Created entity table Endorsement");
 	}
 	
 }
\ No newline at end of file
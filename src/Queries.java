@@ -3,10 +3,12 @@ import java.sql.Date;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.sql.PreparedStatement;
 import java.sql.DriverManager;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
 
 
 /**
@@ -17,40 +19,209 @@ import java.sql.DriverManager;
  * 	4) Query the highest rated movies
  *  5) Query movie with the most reviews
  *  6) Given a ReviewID, query for the CustomerID of the person who wrote the review
+ *  7) Query the best rated movies by Bayesian average rating, from the RatingRanking engine
  *  
  *  These queries provide a quick way for the theater to pull statistics regarding the engagement
  *  levels of users to determine whether the rating system is working to encourage more viewership.
+ *  
+ *  The queries run on connections borrowed from the default ConnectionPool, so repeated calls
+ *  reuse both the connection and the prepared statement. The calls, latency and rows of each
+ *  query are recorded in Metrics. Queries 3) to 5) read the per movie
+ *  aggregates kept in MovieStats instead of grouping the Review table.
+ *  Queries 4) and 5) return lazily read Streams of typed rows, with a fetch size and a row limit
+ *  (see ResultStream); the methods that print them are one consumer of those streams. Both rankings
+ *  can also be read a page at a time, by keyset pagination over the MovieStats ranking indexes.
  *
  *	@author m lee
  */
 public class Queries {
 
+	/** gets the author of a review */
+	static final String REVIEW_AUTHOR =
+			"select CustomerID from Review where ReviewID = ?";
+
+	/** gets the number of reviews */
+	static final String TOTAL_REVIEWS =
+			"select coalesce(sum(ReviewCount), 0) "	// returns the # of reviews by adding up the count of each movie
+			+ "from MovieStats";						// queries the MovieStats summary, one row per movie
+
+	/** gets the highest rating of each movie */
+	static final String HIGHEST_RATED =
+			"select MovieID, MaxRating "	// get the MovieID with the highest rating
+			+ "from MovieStats "			// from the MovieStats summary, which keeps the maximum of each movie
+			+ "where ReviewCount > 0 "		// only movies that have been reviewed
+			+ "order by MaxRating desc, MovieID";	// list from the highest rating down, in a stable order
+
+	/** gets the movies ordered by number of reviews */
+	static final String MOST_REVIEWS =
+			"select MovieID, ReviewCount as reviews "	// return the MovieID and associated count of the reviews
+			+ "from MovieStats "						// from the MovieStats summary, which keeps the count of each movie
+			+ "where ReviewCount > 0 "					// only movies that have been reviewed
+			+ "order by reviews desc, MovieID";		// list from most reviews to the fewest, in a stable order
+
+	/** gets the movies with a review count after a MovieID, the rest of a page's ties */
+	static final String REVIEW_COUNT_TIES =
+			"select MovieID, ReviewCount "				// return the MovieID and its # of reviews
+			+ "from MovieStats "						// read from the MovieStatsByCount index alone
+			+ "where ReviewCount = ? and MovieID > ? "	// the movies tied with the last row of the previous page
+			+ "order by MovieID";						// in the order of the index
+
+	/** gets the reviewed movies with fewer reviews than a count */
+	static final String REVIEW_COUNT_BELOW =
+			"select MovieID, ReviewCount "				// return the MovieID and its # of reviews
+			+ "from MovieStats "						// read from the MovieStatsByCount index alone
+			+ "where ReviewCount < ? and ReviewCount > 0 "	// the movies after the previous page, if they have been reviewed
+			+ "order by ReviewCount desc, MovieID";		// in the order of the index
+
+	/** gets the movies with an average rating after a MovieID, the rest of a page's ties */
+	static final String AVG_RATING_TIES =
+			"select MovieID, AvgRating "				// return the MovieID and its average rating
+			+ "from MovieStats "						// read from the MovieStatsByAvgRating index alone
+			+ "where AvgRating = ? and MovieID > ? "	// the movies tied with the last row of the previous page
+			+ "order by MovieID";						// in the order of the index
+
+	/** gets the reviewed movies with a lower average rating */
+	static final String AVG_RATING_BELOW =
+			"select MovieID, AvgRating "				// return the MovieID and its average rating
+			+ "from MovieStats "						// read from the MovieStatsByAvgRating index alone
+			+ "where AvgRating < ? "					// the movies after the previous page; unreviewed movies have none
+			+ "order by AvgRating desc, MovieID";		// in the order of the index
+
+	/** gets the last date an endorser endorsed a review of a movie */
+	static final String LAST_ENDORSEMENT_DATE =
+			"select max(Endorsement.EndorsementDate) "							// gets the most recent date the endorser has endorsed the same movie, or null if none
+			+ "from %s as Endorsement "											// based on the Endorsement table, or one of its partitions
+			+ "join Review on Endorsement.ReviewID = Review.ReviewID "				// joins the Review and Endorsement tables based on the ReviewID so
+																					// we can look up across EndorserID and MovieID
+			+ "where Endorsement.EndorserID = ? and Review.MovieID = ?";			// only interested in the movie that the endorser is trying to endorse
+
+	// metrics of each query
+	private static final Metrics.Timer MOST_REVIEWED_PAGE_TIMER = Metrics.timer("Queries.mostReviewedPage");
+	private static final Metrics.Timer TOP_RATED_PAGE_TIMER = Metrics.timer("Queries.topRatedPage");
+	private static final Metrics.Timer MOST_ENDORSEMENTS_TIMER = Metrics.timer("Queries.mostEndorsements");
+	private static final Metrics.Timer ENDORSEMENT_PRIZE_TIMER = Metrics.timer("Queries.endorsementPrize");
+	private static final Metrics.Timer TOTAL_REVIEWS_TIMER = Metrics.timer("Queries.totalReviews");
+	private static final Metrics.Timer HIGHEST_RATED_TIMER = Metrics.timer("Queries.highestRated");
+	private static final Metrics.Timer MOST_REVIEWS_TIMER = Metrics.timer("Queries.mostReviews");
+	private static final Metrics.Timer BEST_RATED_TIMER = Metrics.timer("Queries.bestRated");
+	private static final Metrics.Timer CHECK_LAST_ENDORSEMENT_DATE_TIMER = Metrics.timer("Queries.checkLastEndorsementDate");
+
+	/**
+	 * The highest rating of a movie, a row of {@link #highestRatedMovies}.
+	 */
+	public static class MovieRating {
+		public final String movieId;
+		public final int maxRating;
+
+		MovieRating(String movieId, int maxRating) {
+			this.movieId = movieId;
+			this.maxRating = maxRating;
+		}
+
+		@Override
+		public String toString() {
+			return movieId + ", " + maxRating;
+		}
+	}
+
+	/**
+	 * The number of reviews of a movie, a row of {@link #mostReviewedMovies}.
+	 */
+	public static class MovieReviews {
+		public final String movieId;
+		public final int reviewCount;
+
+		MovieReviews(String movieId, int reviewCount) {
+			this.movieId = movieId;
+			this.reviewCount = reviewCount;
+		}
+
+		@Override
+		public String toString() {
+			return movieId + ", " + reviewCount;
+		}
+	}
+
+	/**
+	 * The average rating of a movie, a row of {@link #topRatedPage}.
+	 */
+	public static class MovieAverage {
+		public final String movieId;
+		public final double avgRating;
+
+		MovieAverage(String movieId, double avgRating) {
+			this.movieId = movieId;
+			this.avgRating = avgRating;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s, %.2f", movieId, avgRating);
+		}
+	}
+
 	/**
-	 * Prints the CustomerID that had the review with the most endorsements.
+	 * The Bayesian score of a movie, a row of {@link #bestRated}.
+	 */
+	public static class MovieScore {
+		public final String movieId;
+		public final double score;
+		public final long reviewCount;
+		public final double avgRating;
+
+		MovieScore(String movieId, double score, long reviewCount, double avgRating) {
+			this.movieId = movieId;
+			this.score = score;
+			this.reviewCount = reviewCount;
+			this.avgRating = avgRating;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s, score %.3f (%d reviews, average %.2f)", movieId, score, reviewCount, avgRating);
+		}
+	}
+
+	/**
+	 * Prints the CustomerID that had the review with the most endorsements today. The review is taken
+	 * from the TopEndorsed engine, which is kept up to date as endorsements are inserted, and ties are
+	 * broken by its seeded draw.
 	 * @return the CustomerID of the person with the most endorsements
 	 * @throws SQLException if a database operation fails
 	 */
 	public static String mostEndorsements() throws SQLException {
+		long start = Metrics.start();
+		long scanned = 0;
+		long returned = 0;
 		try (
-			// get connection to the database
-			Connection conn = DriverManager.getConnection("jdbc:default:connection"); 
-				
-			// create statement using connection 
-			Statement stmt = conn.createStatement();
-			
-			// gets review with the most endorsements within 3 days
-			ResultSet rs = stmt.executeQuery(
-					"select CustomerID "										// selects the CustomerID which will be the winner
-					+ "from Review "											// from the Review table
-					+ "left join Endorsement on Review = Endorsement.ReviewID "	// combines matching rows from Endorsement based on the shared ReviewID field
-					+ "group by ReviewID "										// aggregating results based on ReviewID because the most endorsed review should show up the most in the Endorsement table
-					+ "where ReviewDate >= cast(getdate() as date)"	// only considering reviews from today's date; later functionality would include the ability to specify a date
-					+ "order by count(ReviewID) desc "				// order by the count of the ReviewID since the most endorsed review should be there the most and sort desc to get the highest total
-					+ "limit 1");									// only getting the top result back since there can be only one winner; later functionality would randomize if there were more than one reviews with the highest total of endorsements
+			// borrow a pooled connection to the database
+			ConnectionPool.PooledConnection conn = ConnectionPool.getDefault().borrow();
 		) {
-			String customerID = rs.getString(1);
+			// loads today's endorsement counts unless the engine already holds them
+			TopEndorsed engine = EndorsementEvents.topEndorsed();
+			engine.ensureLoaded(conn.connection(), LocalDate.now());
+			TopEndorsed.Entry winner = engine.winner();
+			
+			// gets the author of the most endorsed review
+			String customerID = null;
+			if (winner != null) {
+				PreparedStatement stmt = conn.prepare(REVIEW_AUTHOR);
+				BinaryIds.setId(stmt, 1, winner.reviewId);
+				try (ResultSet rs = stmt.executeQuery()) {
+					if (rs.next()) {
+						scanned++;
+						customerID = BinaryIds.getId(rs, 1);
+						returned++;
+					}
+				}
+			}
 			System.out.println("Selected winner of a free movie ticket is CustomerID: " + customerID);
 			return customerID;
+		} catch (SQLException ex) {
+			MOST_ENDORSEMENTS_TIMER.error();
+			throw ex;
+		} finally {
+			MOST_ENDORSEMENTS_TIMER.stop(start, scanned, returned);
 		}
 		
 	}
@@ -61,24 +232,30 @@ public class Queries {
 	 * @throws SQLException if a database operation fails
 	 */
 	public static String endorsementPrize() throws SQLException {
+		long start = Metrics.start();
+		long scanned = 0;
+		long returned = 0;
 		try (
-			// get connection to the database
-			Connection conn = DriverManager.getConnection("jdbc:default:connection"); 
-				
-			// create statement using connection 
-			Statement stmt = conn.createStatement();
-			
-			// gets EndorsementID of the person who won the concession prize
-			ResultSet rs = stmt.executeQuery(
-				"select EndorserID"				// get the EndorserID which will be the winner
-				+ "from Endorsement "			// from the Endorsement table
-				+ "group by EndorserID desc "	// aggregating results based on EndorserID since we want to know how many a person did in one day
-				+ "where (count(EndorserID) > 1) AND (EndorsementDate = cast(getdate() as date)"	// filtering results so that the person did at least 1 or more reviews and for today's date
-				+ "limit 1");	// limits the result to one since we can only have one winner; later functionality would randomize the selection better as right now it is biased towards higher EndorserIDs
+			// borrow a pooled connection to the database
+			ConnectionPool.PooledConnection conn = ConnectionPool.getDefault().borrow();
 		) {
-			String endorsementID = rs.getString(1);
+			// loads the recent endorsement counts unless the window already holds them
+			EndorsementWindow window = EndorsementEvents.endorsementWindow();
+			LocalDate today = LocalDate.now();
+			window.ensureLoaded(conn.connection(), today);
+			
+			// gets EndorserID of the person with the most endorsements today, if more than one
+			List<String> endorsers = window.atLeast(2, today, 1);
+			scanned = endorsers.size();
+			String endorsementID = endorsers.isEmpty() ? null : endorsers.get(0);
+			returned = endorsers.isEmpty() ? 0 : 1;
 			System.out.printf("Selected winner of a free concessions is EndorsementID %s\n", endorsementID);
 			return endorsementID;
+		} catch (SQLException ex) {
+			ENDORSEMENT_PRIZE_TIMER.error();
+			throw ex;
+		} finally {
+			ENDORSEMENT_PRIZE_TIMER.stop(start, scanned, returned);
 		}		
 	}
 	
@@ -89,79 +266,213 @@ public class Queries {
 	 * @throws SQLException if a database operation fails
 	 */
 	public static int totalReviews() throws SQLException {
+		long start = Metrics.start();
+		long scanned = 0;
 		try (
-			// get connection to the database
-			Connection conn = DriverManager.getConnection("jdbc:default:connection"); 
-				
-			// create statement using connection 
-			Statement stmt = conn.createStatement();
-				
+			// borrow a pooled connection to the database
+			ConnectionPool.PooledConnection conn = ConnectionPool.getDefault().borrow();
+			
 			// gets count of reviews
-			ResultSet rs = stmt.executeQuery(
-				"select count(*) "	// returns the # of reviews by counting the rows
-				+ "from Review");	// queries the Review table
+			ResultSet rs = conn.prepare(TOTAL_REVIEWS).executeQuery();
 		) {
-			int numOfRows = rs.getInt(1);
+			int numOfRows = 0;
+			if (rs.next()) {
+				scanned++;
+				numOfRows = rs.getInt(1);
+			}
 			System.out.println("Total # of reviews: " + numOfRows);
 			return numOfRows;
+		} catch (SQLException ex) {
+			TOTAL_REVIEWS_TIMER.error();
+			throw ex;
+		} finally {
+			TOTAL_REVIEWS_TIMER.stop(start, scanned, scanned);
 		}		
 	}
 
 	/**
-	 * Queries the database for the highest rated movie(s). This is a business intelligence query. Management could use this information to 
-	 * pull back on advertising for movies that are already doing well.
+	 * Streams the highest rating of each reviewed movie, from the highest rating down. This is a business
+	 * intelligence query. Management could use this information to pull back on advertising for movies that
+	 * are already doing well.
+	 * @param options the fetch size and row limit
+	 * @return the lazily read movies, which must be closed to return the connection
+	 * @throws SQLException if the query cannot be run
+	 */
+	public static Stream<MovieRating> highestRatedMovies(ResultStream.Options options) throws SQLException {
+		return ResultStream.open(HIGHEST_RATED, ResultStream.NO_PARAMETERS, options, HIGHEST_RATED_TIMER,
+				rs -> new MovieRating(BinaryIds.getId(rs, 1), rs.getInt(2)));
+	}
+
+	/**
+	 * Prints the highest rated movie(s).
 	 * @throws SQLException if a database operation fails
 	 */
 	public static void highestRated() throws SQLException {
-		try (
-			// get connection to the database
-			Connection conn = DriverManager.getConnection("jdbc:default:connection"); 
-				
-			// create statement using connection 
-			Statement stmt = conn.createStatement();
-				
-			// gets the highest rated movies from the database 
-			ResultSet rs = stmt.executeQuery(
-				"select MovieID, max(Rating) "	// get the MovieID with the highest rating
-				+ "from Review "				// from the Review table
-				+ "group by MovieID");			// aggregate by MovieID since this is the only thing we need
-		) {
+		try (Stream<MovieRating> movies = highestRatedMovies(ResultStream.Options.ALL)) {
 			System.out.println("Highest rated movies: ");
 			// there may be several movies with the same rating, so print all
-			while (rs.next()) {
-				String movieName = rs.getString(1);
-				String movieRating = rs.getString(2);
-				System.out.printf("%s, %s\n", movieName, movieRating);
-			}
-		}		
+			movies.forEach(movie -> System.out.printf("%s, %s\n", movie.movieId, movie.maxRating));
+		} catch (IllegalStateException ex) {
+			throw unwrap(ex);
+		}
 	}
 	
 	/**
-	 * Queries the database for the movie(s) with the most reviews.
+	 * Gets the best rated movies by Bayesian average rating, where a movie's average is pulled towards
+	 * the mean of all ratings as if it had RatingRanking.DEFAULT_PRIOR_WEIGHT more reviews, so that one
+	 * 5 star review does not outrank hundreds of good ones as it does in {@link #highestRated}. The
+	 * movies are read from the RatingRanking engine, which is kept up to date as reviews are written.
+	 * @param n the number of movies
+	 * @return at most n movies, best first
 	 * @throws SQLException if a database operation fails
 	 */
-	public static void mostReviews() throws SQLException {
+	public static List<MovieScore> bestRated(int n) throws SQLException {
+		long start = Metrics.start();
+		List<MovieScore> top = new ArrayList<>();
 		try (
-			// get connection to the database
-			Connection conn = DriverManager.getConnection("jdbc:default:connection"); 
-				
-			// create statement using connection 
-			Statement stmt = conn.createStatement();
-				
-			// gets the movie with the most reviews
-			ResultSet rs = stmt.executeQuery(
-				"select MovieID, count(ReviewID) as reviews "	// return the MovieID and associated count of the reviews
-				+ "from Review "								// from the Review table
-				+ "group by MovieID "							// for the ReviewID counts, group based on MovieID
-				+ "order by reviews desc");						// list from most reviews to the fewest
+			// borrow a pooled connection to the database
+			ConnectionPool.PooledConnection conn = ConnectionPool.getDefault().borrow();
 		) {
+			// loads the rating sums of the movies unless the engine already holds them
+			RatingRanking ranking = ReviewEvents.ratingRanking();
+			ranking.ensureLoaded(conn.connection());
+			for (RatingRanking.Entry e : ranking.top(n)) {
+				top.add(new MovieScore(e.movieId, e.score, e.reviewCount, e.average()));
+			}
+			System.out.printf("Best rated movies (prior mean %.2f): \n", ranking.priorMean());
+			for (MovieScore movie : top) {
+				System.out.println(movie);
+			}
+			return top;
+		} catch (SQLException ex) {
+			BEST_RATED_TIMER.error();
+			throw ex;
+		} finally {
+			BEST_RATED_TIMER.stop(start, top.size(), top.size());
+		}
+	}
+
+	/**
+	 * Streams the reviewed movies from the most reviews to the fewest.
+	 * @param options the fetch size and row limit
+	 * @return the lazily read movies, which must be closed to return the connection
+	 * @throws SQLException if the query cannot be run
+	 */
+	public static Stream<MovieReviews> mostReviewedMovies(ResultStream.Options options) throws SQLException {
+		return ResultStream.open(MOST_REVIEWS, ResultStream.NO_PARAMETERS, options, MOST_REVIEWS_TIMER,
+				rs -> new MovieReviews(BinaryIds.getId(rs, 1), rs.getInt(2)));
+	}
+
+	/**
+	 * Prints the movie(s) with the most reviews.
+	 * @throws SQLException if a database operation fails
+	 */
+	public static void mostReviews() throws SQLException {
+		try (Stream<MovieReviews> movies = mostReviewedMovies(ResultStream.Options.ALL)) {
 			// there may be several movies with the same # of reviews
 			System.out.println("Movies with the most reviews: ");
+			movies.forEach(movie -> System.out.printf("%s\n", movie.movieId));
+		} catch (IllegalStateException ex) {
+			throw unwrap(ex);
+		}
+	}
+
+	/**
+	 * Gets one page of the reviewed movies from the most reviews to the fewest, for a front end that
+	 * shows a page at a time. The page starts after the last movie of the previous page (keyset
+	 * pagination on review count and MovieID), so any page costs the same as the first: its rows are
+	 * read from the MovieStatsByCount index, first those tied with the previous page, then those below.
+	 * @param after the last movie of the previous page, or null for the first page
+	 * @param pageSize the number of movies in a page
+	 * @return the movies of the page; fewer than pageSize only on the last page
+	 * @throws SQLException if a database operation fails
+	 */
+	public static List<MovieReviews> mostReviewedPage(MovieReviews after, int pageSize) throws SQLException {
+		long start = Metrics.start();
+		List<MovieReviews> page = new ArrayList<>(pageSize);
+		try (
+			// borrow a pooled connection to the database
+			ConnectionPool.PooledConnection conn = ConnectionPool.getDefault().borrow();
+		) {
+			if (after != null) {
+				PreparedStatement ties = conn.prepare(REVIEW_COUNT_TIES);
+				ties.setInt(1, after.reviewCount);
+				BinaryIds.setId(ties, 2, after.movieId);
+				readPage(ties, pageSize, page, rs -> new MovieReviews(BinaryIds.getId(rs, 1), rs.getInt(2)));
+			}
+			if (page.size() < pageSize) {
+				PreparedStatement below = conn.prepare(REVIEW_COUNT_BELOW);
+				below.setInt(1, after == null ? Integer.MAX_VALUE : after.reviewCount);
+				readPage(below, pageSize, page, rs -> new MovieReviews(BinaryIds.getId(rs, 1), rs.getInt(2)));
+			}
+			return page;
+		} catch (SQLException ex) {
+			MOST_REVIEWED_PAGE_TIMER.error();
+			throw ex;
+		} finally {
+			MOST_REVIEWED_PAGE_TIMER.stop(start, page.size(), page.size());
+		}
+	}
+
+	/**
+	 * Gets one page of the reviewed movies from the highest average rating to the lowest. The page
+	 * starts after the last movie of the previous page (keyset pagination on average rating and
+	 * MovieID), and is read from the MovieStatsByAvgRating index like {@link #mostReviewedPage}.
+	 * @param after the last movie of the previous page, or null for the first page
+	 * @param pageSize the number of movies in a page
+	 * @return the movies of the page; fewer than pageSize only on the last page
+	 * @throws SQLException if a database operation fails
+	 */
+	public static List<MovieAverage> topRatedPage(MovieAverage after, int pageSize) throws SQLException {
+		long start = Metrics.start();
+		List<MovieAverage> page = new ArrayList<>(pageSize);
+		try (
+			// borrow a pooled connection to the database
+			ConnectionPool.PooledConnection conn = ConnectionPool.getDefault().borrow();
+		) {
+			if (after != null) {
+				PreparedStatement ties = conn.prepare(AVG_RATING_TIES);
+				ties.setDouble(1, after.avgRating);
+				BinaryIds.setId(ties, 2, after.movieId);
+				readPage(ties, pageSize, page, rs -> new MovieAverage(BinaryIds.getId(rs, 1), rs.getDouble(2)));
+			}
+			if (page.size() < pageSize) {
+				PreparedStatement below = conn.prepare(AVG_RATING_BELOW);
+				below.setDouble(1, after == null ? Double.MAX_VALUE : after.avgRating);
+				readPage(below, pageSize, page, rs -> new MovieAverage(BinaryIds.getId(rs, 1), rs.getDouble(2)));
+			}
+			return page;
+		} catch (SQLException ex) {
+			TOP_RATED_PAGE_TIMER.error();
+			throw ex;
+		} finally {
+			TOP_RATED_PAGE_TIMER.stop(start, page.size(), page.size());
+		}
+	}
+
+	/**
+	 * Adds the rows of a page query to a page until it is full.
+	 */
+	private static <T> void readPage(PreparedStatement stmt, int pageSize, List<T> page, ResultStream.RowMapper<T> mapper)
+			throws SQLException {
+		// the statement is cached, so the limit is set on every use
+		stmt.setMaxRows(pageSize - page.size());
+		stmt.setFetchSize(pageSize - page.size());
+		try (ResultSet rs = stmt.executeQuery()) {
 			while (rs.next()) {
-				String movieName = rs.getString(1);
-				System.out.printf("%s\n", movieName);
+				page.add(mapper.map(rs));
 			}
-		}		
+		}
+	}
+
+	/**
+	 * Gets the SQLException that a stream wrapped in an IllegalStateException.
+	 */
+	private static SQLException unwrap(IllegalStateException ex) {
+		if (ex.getCause() instanceof SQLException) {
+			return (SQLException) ex.getCause();
+		}
+		throw ex;
 	}
 	
 		
@@ -170,49 +481,50 @@ public class Queries {
 	 * @param reviewID ReviewID from the endorsement being input
 	 * @param endorserID EndorserID from the endorsement being input
 	 * @param endorsementDate EndorsementDate from the endorsement being input
-	 * @return returns true 
+	 * @return true if the endorser has not endorsed a review of the same movie on or after the endorsement date
 	 * @throws SQLException if a database operation fails
-	 * @throws ParseException if a date cannot be parsed
 	 */
-	public static boolean checkLastEndorsementDate(String reviewID, String endorserID, Date endorsementDate) throws SQLException, ParseException {
-		try {
-			// get connection to the database
-			Connection conn = DriverManager.getConnection("jdbc:default:connection"); 
-			
-			// look up the MovieID
-			PreparedStatement stmt1 = conn.prepareStatement(
-					"select MovieID from Review where ReviewID = ?");
-			stmt1.setString(1, reviewID);
-			ResultSet rs1 = stmt1.executeQuery();
-			String movieID = rs1.getString("MovieID");
-	
-			// look up the last date this endorser has endorsed the same movie
-			PreparedStatement stmt2 = (PreparedStatement) conn.prepareStatement(
-					"select coalesce(Endorsement.EndorsementDate, '1970-01-01') "	// gets the soonest date the endorser has endorsed the same movie
-																					// or if none is found, returns a default value
-					+ "from Endorsement "											// based on the Endorsement table
-					+ "left join Review on Endorsement.ReviewID = Review.ReviewID "	// joins the Review and Endorsement tables based on the ReviewID so
-																					// we can look up across EndorserID and MovieID
-					+ "where Review.MovieID = ? and EndorserID = ? "	// only interested in the movie that the endorser is trying to endorse
-																	// by the endorser in question
-					+ "group by Endorsement.EndorserID "				// groups the results based on the endorser ID that we are interested in
-					+ "order by Endorsement.EndorsementDate desc "	// orders by most recent date
-					+ "limit 1");	// only interested in the most recent date, ignore other results
-			stmt2.setString(1, movieID);
-			stmt2.setString(1, endorserID);
+	public static boolean checkLastEndorsementDate(String reviewID, String endorserID, Date endorsementDate) throws SQLException {
+		long start = Metrics.start();
+		long scanned = 0;
+		long returned = 0;
+		try (FunctionContext ctx = FunctionContext.open()) {
+			// look up the MovieID, usually in the review cache
+			String movieID = ReviewEvents.reviewCache().movie(ctx, reviewID);
+			if (movieID == null) {
+				return false;
+			}
+			scanned++;
 	
-			// get the date result that was returned
-			Date defaultDate = (Date) new SimpleDateFormat("yyyy-MM-dd").parse("1970-01-01");
-			ResultSet rs2 = stmt2.executeQuery();
-			Date lastEndorsement = rs2.getDate(1);
-			
+			// look up the last date this endorser has endorsed the same movie; only partitions
+			// from the month of the endorsement on can hold an endorsement that is not before it
+			Date lastEndorsement = null;
+			for (String table : DatePartitions.tables(ctx.connection(), DatePartitions.ENDORSEMENT, endorsementDate, null)) {
+				PreparedStatement stmt2 = ctx.prepare(String.format(LAST_ENDORSEMENT_DATE, table));
+				BinaryIds.setId(stmt2, 1, endorserID);
+				BinaryIds.setId(stmt2, 2, movieID);
+		
+				// get the date result that was returned
+				try (ResultSet rs2 = stmt2.executeQuery()) {
+					lastEndorsement = rs2.next() ? rs2.getDate(1) : null;
+				}
+				scanned++;
+				if (lastEndorsement != null) {
+					// partitions are newest first
+					break;
+				}
+			}
 			
-			if (lastEndorsement.after(defaultDate)) {
-				System.out.println("The last endorsement date was: " + lastEndorsement);
+			if (lastEndorsement == null || StoredFunctions.epochDay(lastEndorsement) < StoredFunctions.epochDay(endorsementDate)) {
 				return true;
 			} 
+			returned++;
+			System.out.println("The last endorsement date was: " + lastEndorsement);
 		} catch (SQLException e) {
+			CHECK_LAST_ENDORSEMENT_DATE_TIMER.error();
 			e.printStackTrace();
+		} finally {
+			CHECK_LAST_ENDORSEMENT_DATE_TIMER.stop(start, scanned, returned);
 		}
 		
 		return false;
@@ -224,7 +536,7 @@ public class Queries {
 	 * Alternate Option
 	 * 
 	 * Gets the date of last endorsement for someone endorsing a review. It can be called when a new endorsement is being
-	 * created to retrieve the last attendance which can be used by the StoredFunctions.checkOneDay(Date date, Date oldDate) function. 
+	 * created to retrieve the last attendance which can be used by the StoredFunctions.withinDays(Date date, Date oldDate, int days) function. 
 	 * @param MovieID this is the movie's MovieID 
 	 * @return Date this the the last attendance value which can be used 
 	 * @throws SQLException if a database operation fails
@@ -249,7 +561,7 @@ public class Queries {
 	}
 	
 	/**
-	 * Alternate Option - Can be used in conjunction with the StoredFunctions.checkSevenDays(Date oldDate, Date newDate) function 
+	 * Alternate Option - Can be used in conjunction with the StoredFunctions.withinDays(Date date, Date oldDate, int days) function 
 	 * to verify whether a review has been written with 7 days of attendance.
 	 * 
 	 * Gets the date of last attendance for someone writing a review. 
@@ -326,20 +638,12 @@ public class Queries {
 	 * @throws SQLException if a database operation fails
 	 */
 	static boolean endorsedOwnReviewCheck(String endorserID, String reviewID) throws SQLException {
-		// get connection to the database
-		Connection conn = DriverManager.getConnection("jdbc:default:connection"); 
+		try (FunctionContext ctx = FunctionContext.open()) {
+			// look up the author of the review, usually in the review cache
+			String customerID = ReviewEvents.reviewCache().customer(ctx, reviewID);
 			
-		// create statement using connection 
-		PreparedStatement stmt1 = conn.prepareStatement(
-				"select CustomerID "
-				+ "from Review "
-				+ "where ReviewID = ?");
-		stmt1.setString(1, reviewID);
-		ResultSet rs1 = stmt1.executeQuery();
-		String customerID = rs1.getString("CustomerID");
-		
-		return customerID == endorserID ? false : true;
-		
+			return customerID != null && !customerID.equals(endorserID);
+		}
 	}
 	
 }
\ No newline at end of file
@@ -0,0 +1,148 @@
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Prints the Derby runtime statistics and query plan for each query in
+ * Queries and StoredFunctions, followed by a one-line summary of the tables
+ * that were scanned and the indexes that were used. This is used to confirm
+ * that the {@link SchemaIndexes} are picked up by the optimizer.
+ *
+ * Parameters are bound to IDs taken from the first rows of the tables, so
+ * the database should contain some data. IDs are read and bound with
+ * {@link BinaryIds}, so the plans of a database with binary IDs are shown
+ * too.
+ *
+ * Usage: QueryPlans [-summary]
+ */
+public class QueryPlans {
+
+	// plan lines naming the access path for a table
+	private static final Pattern INDEX_SCAN =
+			Pattern.compile("Index (?:Scan|Row to Base Row) ResultSet for (\\w+) using (?:index|constraint) (\\w+)");
+	private static final Pattern TABLE_SCAN =
+			Pattern.compile("Table Scan ResultSet for (\\w+)");
+
+	public static void main(String[] args) {
+		boolean summaryOnly = args.length > 0 && args[0].equals("-summary");
+		String connStr = "jdbc:derby:irate";
+
+		Properties props = new Properties(); // connection properties
+		props.put("user", "user1");
+		props.put("password", "user1");
+
+		try (
+			Connection conn = DriverManager.getConnection(connStr, props);
+			Statement stmt = conn.createStatement();
+		) {
+			// sample parameter values
+			String reviewID = first(stmt, "select ReviewID from Review");
+			String customerID = first(stmt, "select CustomerID from Customer");
+			String movieID = first(stmt, "select MovieID from Movie");
+			String endorserID = first(stmt, "select EndorserID from Endorsement");
+			Date today = Date.valueOf(LocalDate.now());
+
+			stmt.execute("call SYSCS_UTIL.SYSCS_SET_RUNTIMESTATISTICS(1)");
+
+			explain(conn, summaryOnly, "Queries.mostEndorsements (reload)", String.format(TopEndorsed.DAY_ENDORSEMENTS, "Endorsement"), today);
+			explain(conn, summaryOnly, "Queries.mostEndorsements (author)", Queries.REVIEW_AUTHOR, reviewID);
+			explain(conn, summaryOnly, "Queries.endorsementPrize (reload)", String.format(EndorsementWindow.WINDOW_ENDORSEMENTS, "Endorsement"),
+					Date.valueOf(LocalDate.now().minusDays(EndorsementWindow.DAYS)), today);
+			explain(conn, summaryOnly, "Queries.totalReviews", Queries.TOTAL_REVIEWS);
+			explain(conn, summaryOnly, "Queries.highestRated", Queries.HIGHEST_RATED);
+			explain(conn, summaryOnly, "Queries.mostReviews", Queries.MOST_REVIEWS);
+			explain(conn, summaryOnly, "Queries.mostReviewedPage (first page)", Queries.REVIEW_COUNT_BELOW,
+					Integer.MAX_VALUE);
+			explain(conn, summaryOnly, "Queries.topRatedPage (first page)", Queries.AVG_RATING_BELOW,
+					Double.MAX_VALUE);
+			explain(conn, summaryOnly, "ReviewCache (miss)", ReviewCache.REVIEW_IDS, reviewID);
+			explain(conn, summaryOnly, "Queries.checkLastEndorsementDate (last date)", String.format(Queries.LAST_ENDORSEMENT_DATE, "Endorsement"),
+					endorserID, movieID);
+			explain(conn, summaryOnly, "StoredFunctions.verifyAttendance", String.format(StoredFunctions.CUSTOMER_ATTENDANCE, "Attendance"),
+					customerID, movieID, Date.valueOf(LocalDate.now().minusDays(StoredFunctions.ATTENDANCE_DAYS)), today);
+			explain(conn, summaryOnly, "StoredFunctions.isOnlyReview", StoredFunctions.CUSTOMER_REVIEW, customerID, movieID);
+
+			stmt.execute("call SYSCS_UTIL.SYSCS_SET_RUNTIMESTATISTICS(0)");
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Gets the first ID of a query in text form, or an empty string if there
+	 * are no rows.
+	 */
+	private static String first(Statement stmt, String sql) throws SQLException {
+		try (ResultSet rs = stmt.executeQuery(sql + " fetch first 1 rows only")) {
+			return rs.next() ? BinaryIds.getId(rs, 1) : "";
+		}
+	}
+
+	/**
+	 * Runs a query to completion and prints its runtime statistics.
+	 *
+	 * @param conn the connection with runtime statistics enabled
+	 * @param summaryOnly whether to print only the access path summary
+	 * @param label the query name
+	 * @param sql the query text
+	 * @param params the query parameters: dates, numbers, and IDs in text form
+	 */
+	static void explain(Connection conn, boolean summaryOnly, String label, String sql, Object... params) {
+		System.out.println("==== " + label);
+		try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+			for (int i = 0; i < params.length; i++) {
+				if (params[i] instanceof Date) {
+					stmt.setDate(i + 1, (Date) params[i]);
+				} else if (params[i] instanceof Number) {
+					stmt.setObject(i + 1, params[i]);
+				} else {
+					BinaryIds.setId(stmt, i + 1, (String) params[i]);
+				}
+			}
+			int rows = 0;
+			try (ResultSet rs = stmt.executeQuery()) {
+				while (rs.next()) {
+					rows++;
+				}
+			}
+
+			String plan;
+			try (
+				Statement stats = conn.createStatement();
+				ResultSet rs = stats.executeQuery("values SYSCS_UTIL.SYSCS_GET_RUNTIMESTATISTICS()");
+			) {
+				plan = rs.next() ? rs.getString(1) : "";
+			}
+			if (!summaryOnly) {
+				System.out.println(plan);
+			}
+			System.out.printf("%d row(s); %s\n", rows, summarize(plan));
+		} catch (SQLException ex) {
+			System.out.println("Unable to run query: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Lists the index lookups and table scans named in a plan.
+	 */
+	static String summarize(String plan) {
+		StringBuilder sb = new StringBuilder();
+		Matcher m = INDEX_SCAN.matcher(plan);
+		while (m.find()) {
+			sb.append(sb.length() == 0 ? "" : ", ").append(m.group(1)).append(" via index ").append(m.group(2));
+		}
+		m = TABLE_SCAN.matcher(plan);
+		while (m.find()) {
+			sb.append(sb.length() == 0 ? "" : ", ").append(m.group(1)).append(" via TABLE SCAN");
+		}
+		return sb.length() == 0 ? "no table access" : sb.toString();
+	}
+}
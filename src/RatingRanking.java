@@ -0,0 +1,352 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ranking of the movies by Bayesian average rating. Each movie's score is
+ * its average rating pulled towards the mean rating of all reviews by a
+ * prior worth PRIOR_WEIGHT reviews:
+ *
+ * 	score = (PRIOR_WEIGHT * priorMean + RatingSum) / (PRIOR_WEIGHT + ReviewCount)
+ *
+ * so a movie with one 5 star review ranks below one with hundreds of
+ * reviews averaging 4.5. The rating sum and count of each movie are kept
+ * in memory and updated by {@link ReviewEvents} as each review is inserted,
+ * deleted or re-rated, and the movies are kept in a TreeSet ordered by
+ * score, so an update costs O(log n) and the top N are read in O(N)
+ * instead of aggregating the Review table.
+ *
+ * The prior mean is the mean rating when the ranking is loaded and stays
+ * fixed while it is updated, so that an update only moves one movie. The
+ * ranking is loaded from the per movie sums of MovieStats on first use,
+ * after {@link #invalidate}, when a query finds it older than the reload
+ * interval, and on {@link #reload}.
+ *
+ * The summary is read without holding the ranking's lock, since the
+ * triggers of a review insert wait for the lock while holding the summary
+ * row. Updates that arrive while it is read are kept aside: one for a movie
+ * the read had already passed is applied after the load, and one for a
+ * movie the read reaches later is left to the read, which waits for the
+ * writing transaction and so sees the update only if it commits.
+ *
+ * As with the prize engines, the updates are otherwise applied as rows are
+ * written, before the writing transaction commits, so a rolled back insert
+ * or delete leaves the ranking off by its rating until the next reload.
+ */
+public class RatingRanking {
+
+	/** default weight of the prior, in reviews */
+	static final double DEFAULT_PRIOR_WEIGHT = 10;
+
+	/** default time after which a query reloads the ranking, in seconds */
+	static final long DEFAULT_RELOAD_SECONDS = 60;
+
+	/** reads the rating sum and count of each reviewed movie */
+	static final String MOVIE_SUMS =
+			"select MovieID, ReviewCount, RatingSum "	// the count and sum of the ratings of each movie
+			+ "from MovieStats "						// from the MovieStats summary, one row per movie
+			+ "where ReviewCount > 0";					// only movies that have been reviewed
+
+	/**
+	 * The ratings of one movie.
+	 */
+	static class Entry {
+		final String movieId;
+		long ratingSum;
+		long reviewCount;
+
+		// the score, recomputed only while the entry is out of the ranking
+		double score;
+
+		Entry(String movieId) {
+			this.movieId = movieId;
+		}
+
+		/**
+		 * @return the plain average rating
+		 */
+		double average() {
+			return reviewCount == 0 ? 0 : (double) ratingSum / reviewCount;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s, score %.3f (%d reviews, average %.2f)", movieId, score, reviewCount, average());
+		}
+	}
+
+	/** best score first, then more reviews first, then by MovieID */
+	private static final Comparator<Entry> BY_SCORE = (a, b) -> {
+		if (a.score != b.score) {
+			return Double.compare(b.score, a.score);
+		}
+		if (a.reviewCount != b.reviewCount) {
+			return Long.compare(b.reviewCount, a.reviewCount);
+		}
+		return a.movieId.compareTo(b.movieId);
+	};
+
+	/**
+	 * A change of the ratings of a movie that arrived during a load.
+	 */
+	private static class Update {
+		final String movieId;
+		final long ratings;
+		final long reviews;
+
+		// whether the load had read the movie when the update arrived
+		final boolean afterRead;
+
+		Update(String movieId, long ratings, long reviews, boolean afterRead) {
+			this.movieId = movieId;
+			this.ratings = ratings;
+			this.reviews = reviews;
+			this.afterRead = afterRead;
+		}
+	}
+
+	private final double priorWeight;
+	private final long reloadNanos;
+	private double priorMean;
+	private boolean loaded;
+	private long loadedAt;
+	private final Map<String, Entry> movies = new HashMap<>();
+	private final TreeSet<Entry> ranking = new TreeSet<>(BY_SCORE);
+
+	// serializes loads, which read the summary without holding the ranking's lock
+	private final Object loadLock = new Object();
+
+	// while a load reads the summary, the movies it has read and the updates since it started
+	private boolean loading;
+	private final Set<String> readMovies = new HashSet<>();
+	private final List<Update> pending = new ArrayList<>();
+	private boolean invalidatedWhileLoading;
+
+	/**
+	 * Creates an unloaded ranking that reloads after the default interval.
+	 *
+	 * @param priorWeight the weight of the prior, in reviews
+	 */
+	public RatingRanking(double priorWeight) {
+		this(priorWeight, DEFAULT_RELOAD_SECONDS);
+	}
+
+	/**
+	 * Creates an unloaded ranking.
+	 *
+	 * @param priorWeight the weight of the prior, in reviews
+	 * @param reloadSeconds the age of the ranking at which a query reloads it
+	 */
+	public RatingRanking(double priorWeight, long reloadSeconds) {
+		this.priorWeight = priorWeight;
+		this.reloadNanos = TimeUnit.SECONDS.toNanos(reloadSeconds);
+	}
+
+	private double score(Entry e) {
+		return (priorWeight * priorMean + e.ratingSum) / (priorWeight + e.reviewCount);
+	}
+
+	/**
+	 * Changes the ratings of a movie and moves it in the ranking.
+	 */
+	private void update(String movieId, long ratings, long reviews) {
+		Entry e = movies.get(movieId);
+		if (e == null) {
+			e = new Entry(movieId);
+			movies.put(movieId, e);
+		} else {
+			ranking.remove(e);
+		}
+		e.ratingSum += ratings;
+		e.reviewCount += reviews;
+		if (e.reviewCount <= 0) {
+			movies.remove(movieId);
+			return;
+		}
+		e.score = score(e);
+		ranking.add(e);
+	}
+
+	/**
+	 * Applies a change of the ratings of a movie if the ranking is loaded,
+	 * and keeps it for the load in progress, if any. Until the ranking is
+	 * first loaded, the load reads the change from MovieStats.
+	 */
+	private void apply(String movieId, long ratings, long reviews) {
+		if (loading) {
+			pending.add(new Update(movieId, ratings, reviews, readMovies.contains(movieId)));
+		}
+		if (loaded) {
+			update(movieId, ratings, reviews);
+		}
+	}
+
+	/**
+	 * Adds a rating of a movie, for an inserted review.
+	 *
+	 * @param movieId the movie
+	 * @param rating the rating
+	 */
+	public synchronized void rated(String movieId, int rating) {
+		apply(movieId, rating, 1);
+	}
+
+	/**
+	 * Removes a rating of a movie, for a deleted review.
+	 *
+	 * @param movieId the movie
+	 * @param rating the rating
+	 */
+	public synchronized void unrated(String movieId, int rating) {
+		apply(movieId, -rating, -1);
+	}
+
+	/**
+	 * Marks the ranking stale, so that the next query reloads it with the
+	 * current prior mean.
+	 */
+	public synchronized void invalidate() {
+		loaded = false;
+		invalidatedWhileLoading = true;
+	}
+
+	/**
+	 * Loads the ranking from MovieStats unless it is loaded and younger than
+	 * the reload interval.
+	 *
+	 * @param conn the connection
+	 * @throws SQLException if a database operation fails
+	 */
+	public void ensureLoaded(Connection conn) throws SQLException {
+		load(conn, false);
+	}
+
+	/**
+	 * Reloads the ranking from MovieStats, correcting the updates of rolled
+	 * back transactions and recomputing the prior mean.
+	 *
+	 * @param conn the connection
+	 * @throws SQLException if a database operation fails
+	 */
+	public void reload(Connection conn) throws SQLException {
+		load(conn, true);
+	}
+
+	private synchronized boolean isCurrent() {
+		return loaded && System.nanoTime() - loadedAt < reloadNanos;
+	}
+
+	private synchronized void markRead(String movieId) {
+		readMovies.add(movieId);
+	}
+
+	private void endLoad() {
+		loading = false;
+		readMovies.clear();
+		pending.clear();
+	}
+
+	private void load(Connection conn, boolean force) throws SQLException {
+		if (!force && isCurrent()) {
+			return;
+		}
+		synchronized (loadLock) {
+			// another thread may have loaded it while this one waited
+			if (!force && isCurrent()) {
+				return;
+			}
+			synchronized (this) {
+				endLoad();
+				loading = true;
+				invalidatedWhileLoading = false;
+			}
+			List<Entry> read = new ArrayList<>();
+			long ratings = 0;
+			long reviews = 0;
+			try (
+				Statement stmt = conn.createStatement();
+				ResultSet rs = stmt.executeQuery(MOVIE_SUMS);
+			) {
+				while (rs.next()) {
+					Entry e = new Entry(BinaryIds.getId(rs, 1));
+					e.reviewCount = rs.getLong(2);
+					e.ratingSum = rs.getLong(3);
+					ratings += e.ratingSum;
+					reviews += e.reviewCount;
+					read.add(e);
+					markRead(e.movieId);
+				}
+			} catch (SQLException ex) {
+				synchronized (this) {
+					endLoad();
+				}
+				throw ex;
+			}
+			synchronized (this) {
+				priorMean = reviews == 0 ? 0 : (double) ratings / reviews;
+				movies.clear();
+				ranking.clear();
+				for (Entry e : read) {
+					e.score = score(e);
+					movies.put(e.movieId, e);
+					ranking.add(e);
+				}
+				// the read saw the updates of the movies it reached after them,
+				// and missed those of movies it had passed or never reached
+				for (Update u : pending) {
+					if (u.afterRead || !readMovies.contains(u.movieId)) {
+						update(u.movieId, u.ratings, u.reviews);
+					}
+				}
+				loaded = !invalidatedWhileLoading;
+				loadedAt = System.nanoTime();
+				endLoad();
+			}
+		}
+	}
+
+	/**
+	 * @return the mean rating that scores are pulled towards
+	 */
+	public synchronized double priorMean() {
+		return priorMean;
+	}
+
+	/**
+	 * @return the number of ranked movies
+	 */
+	public synchronized int size() {
+		return ranking.size();
+	}
+
+	/**
+	 * Gets the best ranked movies, best first.
+	 *
+	 * @param n the number of movies
+	 * @return copies of the entries of at most n movies
+	 */
+	public synchronized List<Entry> top(int n) {
+		List<Entry> top = new ArrayList<>(Math.min(n, ranking.size()));
+		Iterator<Entry> it = ranking.iterator();
+		while (top.size() < n && it.hasNext()) {
+			Entry e = it.next();
+			Entry copy = new Entry(e.movieId);
+			copy.ratingSum = e.ratingSum;
+			copy.reviewCount = e.reviewCount;
+			copy.score = e.score;
+			top.add(copy);
+		}
+		return top;
+	}
+}
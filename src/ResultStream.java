@@ -0,0 +1,170 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazily evaluated streams over the rows of a query, for queries whose
+ * results are too large to build in memory. A row is read from the result
+ * set and mapped only when the stream asks for it, so memory stays flat
+ * whatever the number of rows; Derby reads an embedded result set from its
+ * pages as it goes, and sorts that do not fit in memory spill to disk.
+ *
+ * The stream holds a connection borrowed from the default ConnectionPool
+ * until it is closed, so it must be used in a try-with-resources block:
+ *
+ * 	try (Stream<Queries.MovieReviews> movies = Queries.mostReviewedMovies(options)) { ... }
+ *
+ * A database error while reading rows is thrown as an
+ * IllegalStateException caused by the SQLException. Closing the stream
+ * records the rows read in the query's {@link Metrics} timer.
+ */
+public class ResultStream {
+
+	/**
+	 * How a query reads its rows.
+	 */
+	static class Options {
+		/** default number of rows fetched at a time */
+		static final int DEFAULT_FETCH_SIZE = 100;
+
+		/** all rows, fetched DEFAULT_FETCH_SIZE at a time */
+		static final Options ALL = new Options(DEFAULT_FETCH_SIZE, 0);
+
+		final int fetchSize;
+		final int limit;
+
+		/**
+		 * @param fetchSize the number of rows the driver fetches at a time
+		 * @param limit the maximum number of rows, or 0 for all rows
+		 */
+		Options(int fetchSize, int limit) {
+			if (fetchSize < 0 || limit < 0) {
+				throw new IllegalArgumentException("fetch size and limit must not be negative");
+			}
+			this.fetchSize = fetchSize;
+			this.limit = limit;
+		}
+
+		/**
+		 * @param limit the maximum number of rows
+		 * @return these options with another row limit
+		 */
+		Options limit(int limit) {
+			return new Options(fetchSize, limit);
+		}
+	}
+
+	/**
+	 * Sets the parameters of a query.
+	 */
+	interface Binder {
+		void bind(PreparedStatement stmt) throws SQLException;
+	}
+
+	/**
+	 * Maps the current row of a result set to a value.
+	 */
+	interface RowMapper<T> {
+		T map(ResultSet rs) throws SQLException;
+	}
+
+	/** binds no parameters */
+	static final Binder NO_PARAMETERS = stmt -> { };
+
+	/**
+	 * Reads the rows of an open result set one at a time, and returns the
+	 * connection when the stream is closed.
+	 */
+	private static class Rows<T> extends Spliterators.AbstractSpliterator<T> implements Runnable {
+		private final ConnectionPool.PooledConnection conn;
+		private final ResultSet rs;
+		private final RowMapper<T> mapper;
+		private final Metrics.Timer timer;
+		private final long start;
+		private long rows;
+		private boolean closed;
+
+		Rows(ConnectionPool.PooledConnection conn, ResultSet rs, RowMapper<T> mapper, Metrics.Timer timer, long start) {
+			super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+			this.conn = conn;
+			this.rs = rs;
+			this.mapper = mapper;
+			this.timer = timer;
+			this.start = start;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super T> action) {
+			if (closed) {
+				return false;
+			}
+			try {
+				if (!rs.next()) {
+					return false;
+				}
+				rows++;
+				action.accept(mapper.map(rs));
+				return true;
+			} catch (SQLException ex) {
+				timer.error();
+				throw new IllegalStateException(ex);
+			}
+		}
+
+		/**
+		 * Closes the result set and returns the connection.
+		 */
+		@Override
+		public void run() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				rs.close();
+			} catch (SQLException ex) {
+				// the connection is rolled back and checked when it is returned
+			}
+			conn.close();
+			timer.stop(start, rows, rows);
+		}
+	}
+
+	/**
+	 * Runs a query on a pooled connection and streams its rows.
+	 *
+	 * @param sql the query, which is prepared through the connection's statement cache
+	 * @param binder sets the parameters of the query
+	 * @param options the fetch size and row limit
+	 * @param timer the metrics of the query
+	 * @param mapper maps each row
+	 * @return the stream of mapped rows, which must be closed
+	 * @throws SQLException if the query cannot be run
+	 */
+	static <T> Stream<T> open(String sql, Binder binder, Options options, Metrics.Timer timer, RowMapper<T> mapper)
+			throws SQLException {
+		long start = Metrics.start();
+		ConnectionPool.PooledConnection conn = ConnectionPool.getDefault().borrow();
+		ResultSet rs;
+		try {
+			PreparedStatement stmt = conn.prepare(sql);
+			// the statement is cached, so both are set on every use; Derby
+			// rejects a fetch size over the row limit
+			stmt.setMaxRows(options.limit);
+			stmt.setFetchSize(options.limit == 0 ? options.fetchSize : Math.min(options.fetchSize, options.limit));
+			binder.bind(stmt);
+			rs = stmt.executeQuery();
+		} catch (SQLException ex) {
+			timer.error();
+			conn.close();
+			throw ex;
+		}
+		Rows<T> rows = new Rows<>(conn, rs, mapper, timer, start);
+		return StreamSupport.stream(rows, false).onClose(rows);
+	}
+}
@@ -0,0 +1,314 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-through cache of the author and movie of each review, for the
+ * endorsement checks that look up a review for every endorsement. Entries
+ * are keyed by the two halves of the ReviewID and hold the halves of the
+ * CustomerID and MovieID, in parallel long arrays probed linearly, so an
+ * entry costs no objects. Only reviews whose three IDs are lower case UUIDs
+ * are cached, since those are the IDs that the halves give back as the same
+ * text: a varchar column keeps IDs that differ only in case apart, and a
+ * lookup must return the ID as stored. Any other review is looked up in the
+ * database every time.
+ *
+ * The cache holds at most a fixed number of entries. When it is full, an
+ * entry is evicted by the CLOCK algorithm: a hand sweeps the slots, clearing
+ * the referenced bit set by each hit, and evicts the first entry that has
+ * not been hit since the hand last passed it.
+ *
+ * Only reviews that exist are cached. The triggers of {@link ReviewEvents}
+ * invalidate a review when it is deleted or its IDs are updated; a lookup
+ * that overlaps an invalidation does not cache what it read. A review read
+ * by a transaction that inserted it and then rolled back stays cached until
+ * it is evicted, so the cache must be cleared when reviews are removed
+ * without the triggers, as when the tables are dropped.
+ */
+public class ReviewCache {
+
+	/** default maximum number of entries */
+	static final int DEFAULT_CAPACITY = 1 << 16;
+
+	/** gets the author and movie of a review */
+	static final String REVIEW_IDS =
+			"select CustomerID, MovieID from Review where ReviewID = ?";
+
+	// slot states
+	private static final byte EMPTY = 0;
+	private static final byte PRESENT = 1;
+	private static final byte REFERENCED = 2;
+
+	// offsets of the IDs in the values of a slot
+	private static final int CUSTOMER = 0;
+	private static final int MOVIE = 2;
+
+	private final int capacity;
+	private final int mask;
+	private final byte[] states;
+	private final long[] keys;		// ReviewID halves, 2 per slot
+	private final long[] values;	// CustomerID and MovieID halves, 4 per slot
+	private int size;
+	private int hand;
+
+	// incremented by each invalidation, so a lookup can tell whether one overlapped it
+	private long generation;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder bypasses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+
+	/**
+	 * Creates a cache. The table has at least twice as many slots as
+	 * entries, so probes stay short.
+	 *
+	 * @param capacity the maximum number of entries
+	 */
+	public ReviewCache(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		int slots = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1) << 1;
+		this.capacity = capacity;
+		this.mask = slots - 1;
+		this.states = new byte[slots];
+		this.keys = new long[2 * slots];
+		this.values = new long[4 * slots];
+	}
+
+	/**
+	 * Gets the author of a review.
+	 *
+	 * @param ctx the context of the function doing the lookup
+	 * @param reviewId the review
+	 * @return the CustomerID of the review, or null if there is no such review
+	 * @throws SQLException if the review cannot be read
+	 */
+	public String customer(FunctionContext ctx, String reviewId) throws SQLException {
+		return lookup(ctx, reviewId, CUSTOMER);
+	}
+
+	/**
+	 * Gets the movie of a review.
+	 *
+	 * @param ctx the context of the function doing the lookup
+	 * @param reviewId the review
+	 * @return the MovieID of the review, or null if there is no such review
+	 * @throws SQLException if the review cannot be read
+	 */
+	public String movie(FunctionContext ctx, String reviewId) throws SQLException {
+		return lookup(ctx, reviewId, MOVIE);
+	}
+
+	private String lookup(FunctionContext ctx, String reviewId, int column) throws SQLException {
+		if (!Uuids.isLowerCase(reviewId)) {
+			bypasses.increment();
+			String[] ids = load(ctx, reviewId);
+			return ids == null ? null : ids[column / 2];
+		}
+		long msb = Uuids.mostSigBits(reviewId);
+		long lsb = Uuids.leastSigBits(reviewId);
+		long seen;
+		synchronized (this) {
+			int slot = find(msb, lsb);
+			if (slot >= 0) {
+				states[slot] = REFERENCED;
+				hits.increment();
+				return Uuids.toString(values[4 * slot + column], values[4 * slot + column + 1]);
+			}
+			seen = generation;
+		}
+
+		misses.increment();
+		String[] ids = load(ctx, reviewId);
+		if (ids == null) {
+			return null;
+		}
+		if (Uuids.isLowerCase(ids[0]) && Uuids.isLowerCase(ids[1])) {
+			synchronized (this) {
+				// a review invalidated while it was read may already be stale
+				if (generation == seen) {
+					put(msb, lsb, Uuids.mostSigBits(ids[0]), Uuids.leastSigBits(ids[0]),
+							Uuids.mostSigBits(ids[1]), Uuids.leastSigBits(ids[1]));
+				}
+			}
+		}
+		return ids[column / 2];
+	}
+
+	/**
+	 * Reads the IDs of a review from the database.
+	 *
+	 * @return the CustomerID and MovieID, or null if there is no such review
+	 */
+	private static String[] load(FunctionContext ctx, String reviewId) throws SQLException {
+		PreparedStatement stmt = ctx.prepare(REVIEW_IDS);
+		BinaryIds.setId(stmt, 1, reviewId);
+		try (ResultSet rs = stmt.executeQuery()) {
+			if (!rs.next()) {
+				return null;
+			}
+			return new String[] {BinaryIds.getId(rs, 1), BinaryIds.getId(rs, 2)};
+		}
+	}
+
+	/**
+	 * Removes a review from the cache.
+	 *
+	 * @param reviewId the review
+	 */
+	public void invalidate(String reviewId) {
+		if (!Uuids.isLowerCase(reviewId)) {
+			return;
+		}
+		long msb = Uuids.mostSigBits(reviewId);
+		long lsb = Uuids.leastSigBits(reviewId);
+		synchronized (this) {
+			generation++;
+			int slot = find(msb, lsb);
+			if (slot >= 0) {
+				remove(slot);
+				invalidations.increment();
+			}
+		}
+	}
+
+	/**
+	 * Removes every review from the cache.
+	 */
+	public synchronized void clear() {
+		generation++;
+		Arrays.fill(states, EMPTY);
+		size = 0;
+		hand = 0;
+	}
+
+	/**
+	 * @return the number of cached reviews
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return the fraction of lookups of cacheable reviews answered by the cache
+	 */
+	public double hitRatio() {
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return total == 0 ? 0.0 : (double) h / total;
+	}
+
+	/**
+	 * @return the number of entries evicted to make room for others
+	 */
+	public long evictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return the hit, miss, eviction and invalidation counts
+	 */
+	public String stats() {
+		return String.format("review cache: %d hits, %d misses (%.1f%% hits), %d uncacheable, %d evictions,"
+				+ " %d invalidations, %d of %d entries",
+				hits.sum(), misses.sum(), 100 * hitRatio(), bypasses.sum(), evictions.sum(),
+				invalidations.sum(), size(), capacity);
+	}
+
+	/**
+	 * Resets the counts, keeping the entries.
+	 */
+	public void resetStats() {
+		hits.reset();
+		misses.reset();
+		bypasses.reset();
+		evictions.reset();
+		invalidations.reset();
+	}
+
+	/**
+	 * Gets the home slot of a key.
+	 */
+	private int index(long msb, long lsb) {
+		long h = (msb ^ Long.rotateLeft(lsb, 32)) * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	/**
+	 * @return the slot of a key, or -1 if it is not cached
+	 */
+	private int find(long msb, long lsb) {
+		for (int slot = index(msb, lsb); states[slot] != EMPTY; slot = (slot + 1) & mask) {
+			if (keys[2 * slot] == msb && keys[2 * slot + 1] == lsb) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	private void put(long msb, long lsb, long customerMsb, long customerLsb, long movieMsb, long movieLsb) {
+		int slot = find(msb, lsb);
+		if (slot < 0) {
+			if (size == capacity) {
+				evict();
+			}
+			slot = index(msb, lsb);
+			while (states[slot] != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+			// a new entry is evicted on the hand's first pass unless it is hit again
+			states[slot] = PRESENT;
+			keys[2 * slot] = msb;
+			keys[2 * slot + 1] = lsb;
+			size++;
+		}
+		values[4 * slot + CUSTOMER] = customerMsb;
+		values[4 * slot + CUSTOMER + 1] = customerLsb;
+		values[4 * slot + MOVIE] = movieMsb;
+		values[4 * slot + MOVIE + 1] = movieLsb;
+	}
+
+	/**
+	 * Evicts one entry, giving each referenced entry the hand passes a
+	 * second chance.
+	 */
+	private void evict() {
+		while (true) {
+			if (states[hand] == REFERENCED) {
+				states[hand] = PRESENT;
+			} else if (states[hand] == PRESENT) {
+				// the entry shifted into this slot is checked next
+				remove(hand);
+				evictions.increment();
+				return;
+			}
+			hand = (hand + 1) & mask;
+		}
+	}
+
+	/**
+	 * Empties a slot, shifting back the entries after it that probed past
+	 * it so that no probe sequence is broken.
+	 */
+	private void remove(int slot) {
+		int hole = slot;
+		for (int next = (hole + 1) & mask; states[next] != EMPTY; next = (next + 1) & mask) {
+			int home = index(keys[2 * next], keys[2 * next + 1]);
+			// an entry stays if its home is cyclically after the hole and not after its slot
+			boolean stays = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+			if (!stays) {
+				states[hole] = states[next];
+				System.arraycopy(keys, 2 * next, keys, 2 * hole, 2);
+				System.arraycopy(values, 4 * next, values, 4 * hole, 4);
+				hole = next;
+			}
+		}
+		states[hole] = EMPTY;
+		size--;
+	}
+}
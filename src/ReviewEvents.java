@@ -0,0 +1,268 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Procedures called by triggers on the Review table, which keep the
+ * {@link ReviewCache} used by the endorsement checks from answering with a
+ * review that was deleted or whose author or movie changed, and keep the
+ * {@link RatingRanking} of the movies up to date as ratings are added and
+ * removed. The procedures do no SQL and run in the JVM of the embedded
+ * database.
+ *
+ * The triggers fire as rows are written, before the writing transaction
+ * commits, so a rolled back delete has already removed the review from the
+ * cache; the next lookup reads it again. A rolled back insert or delete
+ * leaves the ranking off by its rating until the ranking is reloaded, which
+ * a query does once it is older than the reload interval.
+ *
+ * The cache events and the ranking events are created by separate schema
+ * migrations, so each has its own create and drop methods; {@link #create}
+ * and {@link #drop} handle both.
+ */
+public class ReviewEvents {
+
+	/** system property holding the number of reviews cached */
+	static final String CACHE_SIZE_PROPERTY = "irate.reviewcache.size";
+
+	// author and movie of the reviews looked up by the endorsement checks
+	private static final ReviewCache reviewCache =
+			new ReviewCache(Integer.getInteger(CACHE_SIZE_PROPERTY, ReviewCache.DEFAULT_CAPACITY));
+
+	/** system property holding the weight of the ranking's prior, in reviews */
+	static final String PRIOR_WEIGHT_PROPERTY = "irate.ranking.prior";
+
+	/** system property holding the age at which a query reloads the ranking, in seconds */
+	static final String RANKING_RELOAD_PROPERTY = "irate.ranking.reload";
+
+	// Bayesian ranking of the movies by their ratings
+	private static final RatingRanking ratingRanking = new RatingRanking(
+			Double.parseDouble(System.getProperty(PRIOR_WEIGHT_PROPERTY, String.valueOf(RatingRanking.DEFAULT_PRIOR_WEIGHT))),
+			Long.getLong(RANKING_RELOAD_PROPERTY, RatingRanking.DEFAULT_RELOAD_SECONDS));
+
+	/** the procedures of the cache events; %1$s is the ID type */
+	private static final String[][] CACHE_PROCEDURES = {
+		{"reviewRemoved",
+			"create procedure reviewRemoved(ReviewID %1$s)"
+			+ " language java parameter style java no sql"
+			+ " external name 'ReviewEvents.reviewRemoved'"},
+	};
+
+	/** the triggers of the Review table invalidating the cache */
+	private static final String[][] CACHE_TRIGGERS = {
+		{"ReviewDeleteEvent",
+			"create trigger ReviewDeleteEvent after delete on Review"
+			+ " referencing old as o for each row"
+			+ " call reviewRemoved(o.ReviewID)"},
+		{"ReviewUpdateEvent",
+			"create trigger ReviewUpdateEvent after update of ReviewID, CustomerID, MovieID on Review"
+			+ " referencing old as o for each row"
+			+ " call reviewRemoved(o.ReviewID)"},
+	};
+
+	/** the procedures of the ranking events, in creation order; %1$s is the ID type */
+	private static final String[][] RANKING_PROCEDURES = {
+		{"reviewRated",
+			"create procedure reviewRated(MovieID %1$s, Rating int)"
+			+ " language java parameter style java no sql"
+			+ " external name 'ReviewEvents.reviewRated'"},
+		{"reviewUnrated",
+			"create procedure reviewUnrated(MovieID %1$s, Rating int)"
+			+ " language java parameter style java no sql"
+			+ " external name 'ReviewEvents.reviewUnrated'"},
+	};
+
+	/** the triggers of the Review table updating the ranking */
+	private static final String[][] RANKING_TRIGGERS = {
+		{"ReviewRatingInsert",
+			"create trigger ReviewRatingInsert after insert on Review"
+			+ " referencing new as n for each row"
+			+ " call reviewRated(n.MovieID, n.Rating)"},
+		{"ReviewRatingDelete",
+			"create trigger ReviewRatingDelete after delete on Review"
+			+ " referencing old as o for each row"
+			+ " call reviewUnrated(o.MovieID, o.Rating)"},
+		{"ReviewRatingUpdateOld",
+			"create trigger ReviewRatingUpdateOld after update of MovieID, Rating on Review"
+			+ " referencing old as o for each row"
+			+ " call reviewUnrated(o.MovieID, o.Rating)"},
+		{"ReviewRatingUpdateNew",
+			"create trigger ReviewRatingUpdateNew after update of MovieID, Rating on Review"
+			+ " referencing new as n for each row"
+			+ " call reviewRated(n.MovieID, n.Rating)"},
+	};
+
+	/**
+	 * @return the cache of review authors and movies
+	 */
+	static ReviewCache reviewCache() {
+		return reviewCache;
+	}
+
+	/**
+	 * @return the Bayesian ranking of the movies
+	 */
+	static RatingRanking ratingRanking() {
+		return ratingRanking;
+	}
+
+	/**
+	 * Procedure called for each deleted or updated review.
+	 *
+	 * @param reviewId the review, before the update
+	 */
+	public static void reviewRemoved(String reviewId) {
+		reviewCache.invalidate(reviewId);
+	}
+
+	/**
+	 * Procedure called for each deleted or updated review in a database with
+	 * binary IDs.
+	 */
+	public static void reviewRemoved(byte[] reviewId) {
+		reviewRemoved(Uuids.fromBytes(reviewId));
+	}
+
+	/**
+	 * Procedure called for each inserted review, and for the new values of
+	 * each review whose movie or rating changed.
+	 *
+	 * @param movieId the movie
+	 * @param rating the rating
+	 */
+	public static void reviewRated(String movieId, int rating) {
+		ratingRanking.rated(movieId, rating);
+	}
+
+	/**
+	 * Procedure called for each inserted or re-rated review in a database
+	 * with binary IDs.
+	 */
+	public static void reviewRated(byte[] movieId, int rating) {
+		reviewRated(Uuids.fromBytes(movieId), rating);
+	}
+
+	/**
+	 * Procedure called for each deleted review, and for the old values of
+	 * each review whose movie or rating changed.
+	 *
+	 * @param movieId the movie
+	 * @param rating the rating
+	 */
+	public static void reviewUnrated(String movieId, int rating) {
+		ratingRanking.unrated(movieId, rating);
+	}
+
+	/**
+	 * Procedure called for each deleted or re-rated review in a database
+	 * with binary IDs.
+	 */
+	public static void reviewUnrated(byte[] movieId, int rating) {
+		reviewUnrated(Uuids.fromBytes(movieId), rating);
+	}
+
+	/**
+	 * Creates the cache and ranking events, empties the cache, which may hold
+	 * reviews of the tables the new ones replaced, and marks the ranking for
+	 * reloading.
+	 *
+	 * @param conn the connection
+	 * @throws SQLException if a database operation fails
+	 */
+	public static void create(Connection conn) throws SQLException {
+		createCacheEvents(conn);
+		createRankingEvents(conn);
+	}
+
+	/**
+	 * Drops the cache and ranking events that exist.
+	 *
+	 * @param conn the connection
+	 */
+	public static void drop(Connection conn) {
+		dropRankingEvents(conn);
+		dropCacheEvents(conn);
+	}
+
+	/**
+	 * Creates the procedure and the triggers invalidating the cache, and
+	 * empties the cache.
+	 *
+	 * @param conn the connection
+	 * @throws SQLException if a database operation fails
+	 */
+	public static void createCacheEvents(Connection conn) throws SQLException {
+		create(conn, CACHE_PROCEDURES, CACHE_TRIGGERS);
+		reviewCache.clear();
+	}
+
+	/**
+	 * Drops the triggers and the procedure invalidating the cache that exist,
+	 * and empties the cache.
+	 *
+	 * @param conn the connection
+	 */
+	public static void dropCacheEvents(Connection conn) {
+		reviewCache.clear();
+		drop(conn, CACHE_PROCEDURES, CACHE_TRIGGERS);
+	}
+
+	/**
+	 * Creates the procedures and the triggers updating the ranking, and marks
+	 * the ranking for reloading.
+	 *
+	 * @param conn the connection
+	 * @throws SQLException if a database operation fails
+	 */
+	public static void createRankingEvents(Connection conn) throws SQLException {
+		create(conn, RANKING_PROCEDURES, RANKING_TRIGGERS);
+		ratingRanking.invalidate();
+	}
+
+	/**
+	 * Drops the triggers and the procedures updating the ranking that exist,
+	 * and marks the ranking for reloading.
+	 *
+	 * @param conn the connection
+	 */
+	public static void dropRankingEvents(Connection conn) {
+		ratingRanking.invalidate();
+		drop(conn, RANKING_PROCEDURES, RANKING_TRIGGERS);
+	}
+
+	private static void create(Connection conn, String[][] procedures, String[][] triggers) throws SQLException {
+		try (Statement stmt = conn.createStatement()) {
+			String idType = BinaryIds.idType(conn);
+			for (String[] procedure : procedures) {
+				stmt.executeUpdate(String.format(procedure[1], idType));
+				System.out.println("Created procedure " + procedure[0]);
+			}
+			for (String[] trigger : triggers) {
+				stmt.executeUpdate(trigger[1]);
+			}
+		}
+	}
+
+	private static void drop(Connection conn, String[][] procedures, String[][] triggers) {
+		try (Statement stmt = conn.createStatement()) {
+			for (String[] trigger : triggers) {
+				try {
+					stmt.executeUpdate("drop trigger " + trigger[0]);
+					System.out.println("Dropped trigger " + trigger[0]);
+				} catch (SQLException ex) {
+					System.out.println("Did not drop trigger " + trigger[0]);
+				}
+			}
+			for (int i = procedures.length - 1; i >= 0; i--) {
+				try {
+					stmt.executeUpdate("drop procedure " + procedures[i][0]);
+					System.out.println("Dropped procedure " + procedures[i][0]);
+				} catch (SQLException ex) {
+					System.out.println("Did not drop procedure " + procedures[i][0]);
+				}
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,353 @@
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Indexed validation mode for the Review table. Instead of calling the
+ * verifyAttendance and isOnlyReview stored functions as CHECK constraints,
+ * which query the database from Java for every inserted row:
+ * 	1) one review per customer and movie is enforced by a unique constraint
+ * 	2) attendance within seven days before the review is checked by the insert
+ * 	   itself, with a lookup on an (CustomerID, MovieID, Date) index of Attendance
+ *
+ * Single reviews are inserted with {@link #insertReview}. Bulk loads stage a
+ * batch of reviews and check both rules for the whole batch with one
+ * anti-join, see {@link StagedReviews}. Since the Review table has no
+ * verifyAttendance CHECK constraint in this mode, a trigger also checks the
+ * attendance of every review inserted any other way, such as by the plain
+ * inserts of IngestPipeline and WorkloadGenerator, see {@link #checkReview}.
+ */
+public class ReviewValidation {
+
+	/** number of days before a review in which the customer must have attended */
+	static final int ATTENDANCE_DAYS = 7;
+
+	/** unique constraint used by the validation mode */
+	static final String CREATE_UNIQUE_REVIEW =
+			"alter table Review add constraint ReviewOncePerMovie unique (CustomerID, MovieID)";
+
+	/** name of the trigger checking the attendance rule */
+	static final String RULES_TRIGGER = "ReviewRules";
+
+	/** procedure checking the attendance rule; %1$s is the ID type */
+	private static final String CREATE_CHECK_REVIEW =
+			"create procedure checkReview(CustomerID %1$s, MovieID %1$s, ReviewDate date)"
+			+ " language java parameter style java reads sql data"
+			+ " external name 'ReviewValidation.checkReview'";
+
+	/** trigger checking the attendance rule before each review is inserted */
+	private static final String CREATE_REVIEW_RULES =
+			"create trigger ReviewRules no cascade before insert on Review"
+			+ " referencing new as n for each row"
+			+ " call checkReview(n.CustomerID, n.MovieID, n.ReviewDate)";
+
+	/** attendance condition, shared by the single and batch inserts */
+	private static final String ATTENDED =
+			"exists (select 1 from Attendance a"
+			+ " where a.CustomerID = %1$s.CustomerID and a.MovieID = %1$s.MovieID"
+			+ " and a.Date between %1$s.EarliestAttendance and %1$s.ReviewDate)";
+
+	// inserts the review only if the attendance condition holds; %1$s is the ID column type.
+	// The values have only the inserted columns, since Derby fails to bind an
+	// insert from a values table with more columns than the insert
+	private static final String INSERT_REVIEW =
+			"insert into Review (ReviewID, CustomerID, MovieID, ReviewDate, Rating, Review)"
+			+ " select r.ReviewID, r.CustomerID, r.MovieID, r.ReviewDate, r.Rating, r.Review"
+			+ " from (values (cast(? as %1$s), cast(? as %1$s), cast(? as %1$s),"
+			+ " cast(? as date), cast(? as int), cast(? as varchar(1000))))"
+			+ " as r (ReviewID, CustomerID, MovieID, ReviewDate, Rating, Review)"
+			+ " where exists (select 1 from Attendance a"
+			+ " where a.CustomerID = r.CustomerID and a.MovieID = r.MovieID"
+			+ " and a.Date between cast(? as date) and r.ReviewDate)";
+
+	/**
+	 * Creates the unique constraint used by the validation mode. The Review
+	 * table must have been created without the verifyAttendance and
+	 * isOnlyReview checks. The Attendance index is one of the
+	 * {@link SchemaIndexes}.
+	 *
+	 * @param stmt the statement to use
+	 * @throws SQLException if a database operation fails
+	 */
+	public static void createConstraint(Statement stmt) throws SQLException {
+		stmt.executeUpdate(CREATE_UNIQUE_REVIEW);
+		System.out.println("Created unique constraint ReviewOncePerMovie");
+	}
+
+	/**
+	 * Creates the trigger that checks the attendance rule of every inserted
+	 * review, for a database without the verifyAttendance CHECK constraint.
+	 *
+	 * @param stmt the statement to use
+	 * @param idType the type of the ID columns
+	 * @throws SQLException if a database operation fails
+	 */
+	static void createRules(Statement stmt, String idType) throws SQLException {
+		stmt.executeUpdate(String.format(CREATE_CHECK_REVIEW, idType));
+		stmt.executeUpdate(CREATE_REVIEW_RULES);
+		System.out.println("Created trigger " + RULES_TRIGGER);
+	}
+
+	/**
+	 * Creates the trigger that checks the attendance rule unless it exists,
+	 * in a database created in the indexed validation mode, which is told
+	 * by its unique constraint. A database with the CHECK constraints is
+	 * left as it is.
+	 *
+	 * @param conn the connection
+	 * @throws SQLException if a database operation fails
+	 */
+	static void createMissingRules(Connection conn) throws SQLException {
+		if (MovieStats.existingTriggers(conn).contains(RULES_TRIGGER.toUpperCase())) {
+			return;
+		}
+		try (
+			Statement stmt = conn.createStatement();
+			ResultSet rs = stmt.executeQuery(
+					"select c.ConstraintName from SYS.SYSCONSTRAINTS c"
+					+ " join SYS.SYSSCHEMAS s on c.SchemaID = s.SchemaID"
+					+ " where s.SchemaName = current schema and c.ConstraintName = 'REVIEWONCEPERMOVIE'");
+		) {
+			if (!rs.next()) {
+				return;
+			}
+		}
+		try (Statement stmt = conn.createStatement()) {
+			createRules(stmt, BinaryIds.idType(conn));
+		}
+	}
+
+	/**
+	 * Drops the trigger and the procedure that check the attendance rule,
+	 * if they exist. Dropping Review drops the trigger but not the procedure.
+	 *
+	 * @param conn the connection
+	 */
+	static void dropRules(Connection conn) {
+		try (Statement stmt = conn.createStatement()) {
+			try {
+				stmt.executeUpdate("drop trigger " + RULES_TRIGGER);
+				System.out.println("Dropped trigger " + RULES_TRIGGER);
+			} catch (SQLException ex) {
+				System.out.println("Did not drop trigger " + RULES_TRIGGER);
+			}
+			try {
+				stmt.executeUpdate("drop procedure checkReview");
+				System.out.println("Dropped procedure checkReview");
+			} catch (SQLException ex) {
+				System.out.println("Did not drop procedure checkReview");
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Procedure called before each review is inserted into a database in
+	 * the indexed validation mode, enforcing the attendance rule that the
+	 * Review table checks with a CHECK constraint in the original schema.
+	 *
+	 * @param customerId the customer writing the review
+	 * @param movieId the movie being reviewed
+	 * @param reviewDate the date of the review
+	 * @throws SQLException if the customer did not attend the movie
+	 */
+	public static void checkReview(String customerId, String movieId, Date reviewDate) throws SQLException {
+		if (!StoredFunctions.verifyAttendance(customerId, movieId, reviewDate)) {
+			throw new SQLException("Review of movie " + movieId + " by " + customerId
+					+ " on " + reviewDate + " has no attendance in the days before it",
+					EndorsementEvents.RULE_VIOLATION);
+		}
+	}
+
+	/**
+	 * Procedure called before each review is inserted into a database with
+	 * binary IDs.
+	 */
+	public static void checkReview(byte[] customerId, byte[] movieId, Date reviewDate) throws SQLException {
+		checkReview(Uuids.fromBytes(customerId), Uuids.fromBytes(movieId), reviewDate);
+	}
+
+	/**
+	 * Gets the earliest attendance date that allows a review on a date.
+	 *
+	 * @param reviewDate the date of the review
+	 * @return the date ATTENDANCE_DAYS before the review
+	 */
+	static Date earliestAttendance(Date reviewDate) {
+		return Date.valueOf(reviewDate.toLocalDate().minusDays(ATTENDANCE_DAYS));
+	}
+
+	/**
+	 * Inserts a review if the customer attended the movie in the seven days
+	 * before the review. A second review by the same customer for the same
+	 * movie fails with the unique constraint violation.
+	 *
+	 * @param conn the connection
+	 * @param reviewId the ID of the review
+	 * @param customerId the customer writing the review
+	 * @param movieId the movie being reviewed
+	 * @param reviewDate the date of the review
+	 * @param rating the rating
+	 * @param review the review text
+	 * @return true if the review was inserted, false if the customer did not attend
+	 * @throws SQLException if a database operation fails
+	 */
+	public static boolean insertReview(Connection conn, String reviewId, String customerId, String movieId,
+			Date reviewDate, int rating, String review) throws SQLException {
+		String sql = String.format(INSERT_REVIEW, BinaryIds.idType(conn));
+		try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+			BinaryIds.setId(stmt, 1, reviewId);
+			BinaryIds.setId(stmt, 2, customerId);
+			BinaryIds.setId(stmt, 3, movieId);
+			stmt.setDate(4, reviewDate);
+			stmt.setInt(5, rating);
+			stmt.setString(6, review);
+			stmt.setDate(7, earliestAttendance(reviewDate));
+			return stmt.executeUpdate() == 1;
+		}
+	}
+
+	/**
+	 * A batch of reviews staged in a temporary table. On flush, the reviews
+	 * that pass both rules are inserted with one set-based statement, and
+	 * the ones that do not are found with one anti-join. A second review of
+	 * the same movie by the same customer in one batch is rejected as it is
+	 * added, since Derby cannot index the temporary table to find it.
+	 */
+	public static class StagedReviews implements AutoCloseable {
+		private final Connection conn;
+		private final PreparedStatement stage;
+		private final PreparedStatement rejected;
+		private final PreparedStatement insert;
+		private final Statement clear;
+		private int staged = 0;
+		private int duplicates = 0;		// reviews of a pair already in the batch
+		private long inserted = 0;
+		private final List<String> rejectedIds = new ArrayList<>();
+
+		// the (CustomerID, MovieID) pairs of the staged reviews
+		private final Set<String> stagedPairs = new HashSet<>();
+
+		// a staged review is accepted if the customer attended and has no
+		// earlier review of the movie
+		private static final String VALID =
+				String.format(ATTENDED, "s")
+				+ " and not exists (select 1 from Review r"
+				+ " where r.CustomerID = s.CustomerID and r.MovieID = s.MovieID)";
+
+		/**
+		 * Declares the staging table for the connection.
+		 *
+		 * @param conn the connection used by the loader
+		 * @throws SQLException if a database operation fails
+		 */
+		public StagedReviews(Connection conn) throws SQLException {
+			this.conn = conn;
+			String idType = BinaryIds.idType(conn);
+			try (Statement stmt = conn.createStatement()) {
+				stmt.executeUpdate(
+						"declare global temporary table ReviewStage ("
+						+ " ReviewID " + idType + " not null,"
+						+ " CustomerID " + idType + " not null,"
+						+ " MovieID " + idType + " not null,"
+						+ " ReviewDate date not null,"
+						+ " Rating int not null,"
+						+ " Review varchar(1000) not null,"
+						+ " EarliestAttendance date not null"
+						+ " ) on commit preserve rows not logged");
+			}
+			stage = conn.prepareStatement("insert into session.ReviewStage values (?, ?, ?, ?, ?, ?, ?)");
+			rejected = conn.prepareStatement(
+					"select s.ReviewID from session.ReviewStage s where not (" + VALID + ")");
+			insert = conn.prepareStatement(
+					"insert into Review (ReviewID, CustomerID, MovieID, ReviewDate, Rating, Review)"
+					+ " select s.ReviewID, s.CustomerID, s.MovieID, s.ReviewDate, s.Rating, s.Review"
+					+ " from session.ReviewStage s where " + VALID);
+			clear = conn.createStatement();
+		}
+
+		/**
+		 * Adds a review to the current batch, or rejects it if the batch
+		 * already has a review of the movie by the customer.
+		 */
+		public void add(String reviewId, String customerId, String movieId, Date reviewDate,
+				int rating, String review) throws SQLException {
+			if (!stagedPairs.add(customerId + '\t' + movieId)) {
+				rejectedIds.add(reviewId);
+				duplicates++;
+				return;
+			}
+			BinaryIds.setId(stage, 1, reviewId);
+			BinaryIds.setId(stage, 2, customerId);
+			BinaryIds.setId(stage, 3, movieId);
+			stage.setDate(4, reviewDate);
+			stage.setInt(5, rating);
+			stage.setString(6, review);
+			stage.setDate(7, earliestAttendance(reviewDate));
+			stage.addBatch();
+			staged++;
+		}
+
+		/**
+		 * Validates the staged batch, inserts the valid reviews and empties
+		 * the staging table. The attendance rows for the batch must already
+		 * have been inserted.
+		 *
+		 * @return the number of reviews rejected from this batch
+		 * @throws SQLException if a database operation fails
+		 */
+		public int flush() throws SQLException {
+			if (staged == 0) {
+				return 0;
+			}
+			stage.executeBatch();
+			staged = 0;
+			stagedPairs.clear();
+
+			int count = duplicates;
+			duplicates = 0;
+			try (ResultSet rs = rejected.executeQuery()) {
+				while (rs.next()) {
+					rejectedIds.add(BinaryIds.getId(rs, 1));
+					count++;
+				}
+			}
+			inserted += insert.executeUpdate();
+			clear.executeUpdate("delete from session.ReviewStage");
+			return count;
+		}
+
+		/**
+		 * @return the number of reviews inserted so far
+		 */
+		public long inserted() {
+			return inserted;
+		}
+
+		/**
+		 * @return the IDs of the reviews rejected so far
+		 */
+		public List<String> rejectedIds() {
+			return rejectedIds;
+		}
+
+		@Override
+		public void close() throws SQLException {
+			stage.close();
+			rejected.close();
+			insert.close();
+			clear.close();
+			try (Statement stmt = conn.createStatement()) {
+				stmt.executeUpdate("drop table session.ReviewStage");
+			}
+		}
+	}
+}
@@ -0,0 +1,232 @@
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+
+/**
+ * Compares the cost of inserting a review for a popular movie under the
+ * current CHECK constraint functions and under the indexed validation mode
+ * of {@link ReviewValidation}.
+ *
+ * For each scale, one movie is preloaded with that many reviews. A sample of
+ * further reviews is then inserted:
+ * 	1) into a probe table with the verifyAttendance and isOnlyReview checks,
+ * 	   whose functions look up the preloaded Review and Attendance rows
+ * 	2) into Review with ReviewValidation.insertReview, one row at a time
+ * 	3) into Review with ReviewValidation.StagedReviews, one batch at a time
+ *
+ * Usage: ReviewValidationBenchmark [sample] [maxSeconds] [scale...]
+ */
+public class ReviewValidationBenchmark {
+
+	private static final String MOVIE_ID = "00000000-0000-0000-0000-000000000001";
+	private static final Date DATE = Date.valueOf("2018-12-01");
+	private static final int BATCH_SIZE = 100;
+
+	public static void main(String[] args) throws SQLException {
+		int sample = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		long maxNanos = (args.length > 1 ? Long.parseLong(args[1]) : 60) * 1_000_000_000L;
+		int[] scales = {10_000, 100_000, 1_000_000};
+		if (args.length > 2) {
+			scales = new int[args.length - 2];
+			for (int i = 2; i < args.length; i++) {
+				scales[i - 2] = Integer.parseInt(args[i]);
+			}
+		}
+
+		for (int scale : scales) {
+			String dbName = "memory:reviewbench" + scale;
+			try (Connection conn = DriverManager.getConnection("jdbc:derby:" + dbName + ";create=true")) {
+				FunctionContext.bind(conn);
+				try {
+					createSchema(conn);
+					preload(conn, scale, 3 * sample);
+
+					System.out.printf("Reviews per movie: %d\n", scale);
+					report("check constraints", runConstraints(conn, scale, sample, maxNanos));
+					report("indexed, single", runIndexed(conn, scale + sample, sample, maxNanos));
+					report("indexed, batched", runStaged(conn, scale + 2 * sample, sample, maxNanos));
+				} finally {
+					FunctionContext.bind(null);
+				}
+			}
+			try {
+				DriverManager.getConnection("jdbc:derby:" + dbName + ";drop=true");
+			} catch (SQLException ex) {
+				// dropping an in-memory database always reports an exception
+			}
+		}
+	}
+
+	/**
+	 * Count of rows attempted and accepted in the measured time.
+	 */
+	static class Result {
+		int attempted;
+		int accepted;
+		long nanos;
+	}
+
+	private static void report(String mode, Result result) {
+		System.out.printf("  %-18s : %6d inserts (%d accepted) in %.2f s, %.0f inserts/sec\n",
+				mode, result.attempted, result.accepted, result.nanos / 1e9,
+				result.attempted / Math.max(result.nanos / 1e9, 1e-9));
+	}
+
+	/**
+	 * Creates the indexed schema, plus a probe table carrying the original
+	 * CHECK constraints so both modes see the same preloaded data.
+	 */
+	private static void createSchema(Connection conn) throws SQLException {
+		try (Statement stmt = conn.createStatement()) {
+			stmt.executeUpdate("create table Customer (Name varchar(36) not null, Email varchar(36) not null,"
+					+ " Date date not null, CustomerID varchar(36), primary key (CustomerID))");
+			stmt.executeUpdate("create table Movie (Title varchar(36) not null, MovieID varchar(36) not null,"
+					+ " primary key (MovieID))");
+			stmt.executeUpdate("create table Attendance (MovieID varchar(36) not null,"
+					+ " CustomerID varchar(36) not null, Date date not null)");
+			stmt.executeUpdate("create table Review (ReviewID varchar(36) not null unique,"
+					+ " CustomerID varchar(36) not null, MovieID varchar(36) not null, ReviewDate date not null,"
+					+ " Rating int not null, Review varchar(1000) not null,"
+					+ " primary key (CustomerID, MovieID, ReviewDate))");
+			ReviewValidation.createConstraint(stmt);
+			for (SchemaIndexes.Index index : SchemaIndexes.INDEXES) {
+				if (!index.table.equals("Endorsement")) {
+					stmt.executeUpdate(index.createSql());
+				}
+			}
+
+			stmt.executeUpdate("create function verifyAttendance(CustomerID varchar(36), MovieID varchar(36),"
+					+ " checkDate date) returns boolean language java parameter style java"
+					+ " external name 'StoredFunctions.verifyAttendance'");
+			stmt.executeUpdate("create function isOnlyReview(CustomerID varchar(36), MovieID varchar(36))"
+					+ " returns boolean language java parameter style java"
+					+ " external name 'StoredFunctions.isOnlyReview'");
+			stmt.executeUpdate("create table ReviewProbe (ReviewID varchar(36) not null,"
+					+ " CustomerID varchar(36) not null, MovieID varchar(36) not null, ReviewDate date not null,"
+					+ " Rating int not null, Review varchar(1000) not null,"
+					+ " check(verifyAttendance(CustomerID, MovieID, ReviewDate)),"
+					+ " check(isOnlyReview(CustomerID, MovieID)))");
+			stmt.executeUpdate("insert into Movie values ('Benchmark', '" + MOVIE_ID + "')");
+		}
+	}
+
+	private static String customerId(int i) {
+		return new UUID(1, i).toString();
+	}
+
+	/**
+	 * Loads customers with attendance for the movie, and reviews for the first scale of them.
+	 */
+	private static void preload(Connection conn, int scale, int extra) throws SQLException {
+		conn.setAutoCommit(false);
+		try (
+			PreparedStatement customer = conn.prepareStatement("insert into Customer values (?, ?, ?, ?)");
+			// Attendance may be partitioned by month
+			DatePartitions.Router attendances = new DatePartitions.Router(conn, DatePartitions.ATTENDANCE,
+					"MovieID, CustomerID, Date");
+			PreparedStatement review = conn.prepareStatement("insert into Review values (?, ?, ?, ?, ?, ?)");
+		) {
+			PreparedStatement attendance = attendances.statement(DATE);
+			for (int i = 0; i < scale + extra; i++) {
+				String id = customerId(i);
+				customer.setString(1, "Customer " + i);
+				customer.setString(2, "c" + i + "@example.com");
+				customer.setDate(3, DATE);
+				customer.setString(4, id);
+				customer.addBatch();
+				attendance.setString(1, MOVIE_ID);
+				attendance.setString(2, id);
+				attendance.setDate(3, DATE);
+				attendance.addBatch();
+				if (i < scale) {
+					review.setString(1, new UUID(2, i).toString());
+					review.setString(2, id);
+					review.setString(3, MOVIE_ID);
+					review.setDate(4, DATE);
+					review.setInt(5, 1 + i % 5);
+					review.setString(6, "review");
+					review.addBatch();
+				}
+				if (i % 10_000 == 9_999) {
+					customer.executeBatch();
+					attendances.executeBatch();
+					review.executeBatch();
+					DatePartitions.commit(conn);
+				}
+			}
+			customer.executeBatch();
+			attendances.executeBatch();
+			review.executeBatch();
+			DatePartitions.commit(conn);
+		} catch (SQLException ex) {
+			DatePartitions.rollback(conn);
+			throw ex;
+		}
+	}
+
+	private static Result runConstraints(Connection conn, int first, int sample, long maxNanos) throws SQLException {
+		Result result = new Result();
+		long start = System.nanoTime();
+		try (PreparedStatement stmt = conn.prepareStatement("insert into ReviewProbe values (?, ?, ?, ?, ?, ?)")) {
+			for (int i = first; i < first + sample && System.nanoTime() - start < maxNanos; i++) {
+				stmt.setString(1, new UUID(2, i).toString());
+				stmt.setString(2, customerId(i));
+				stmt.setString(3, MOVIE_ID);
+				stmt.setDate(4, DATE);
+				stmt.setInt(5, 1 + i % 5);
+				stmt.setString(6, "review");
+				result.attempted++;
+				try {
+					stmt.executeUpdate();
+					result.accepted++;
+				} catch (SQLException ex) {
+					// rejected by a check constraint
+				}
+				conn.commit();
+			}
+		}
+		result.nanos = System.nanoTime() - start;
+		return result;
+	}
+
+	private static Result runIndexed(Connection conn, int first, int sample, long maxNanos) throws SQLException {
+		Result result = new Result();
+		long start = System.nanoTime();
+		for (int i = first; i < first + sample && System.nanoTime() - start < maxNanos; i++) {
+			result.attempted++;
+			if (ReviewValidation.insertReview(conn, new UUID(2, i).toString(), customerId(i), MOVIE_ID,
+					DATE, 1 + i % 5, "review")) {
+				result.accepted++;
+			}
+			conn.commit();
+		}
+		result.nanos = System.nanoTime() - start;
+		return result;
+	}
+
+	private static Result runStaged(Connection conn, int first, int sample, long maxNanos) throws SQLException {
+		Result result = new Result();
+		long start = System.nanoTime();
+		try (ReviewValidation.StagedReviews staged = new ReviewValidation.StagedReviews(conn)) {
+			for (int i = first; i < first + sample && System.nanoTime() - start < maxNanos; i++) {
+				staged.add(new UUID(2, i).toString(), customerId(i), MOVIE_ID, DATE, 1 + i % 5, "review");
+				result.attempted++;
+				if (result.attempted % BATCH_SIZE == 0) {
+					staged.flush();
+					conn.commit();
+				}
+			}
+			staged.flush();
+			conn.commit();
+			result.accepted = (int) staged.inserted();
+		}
+		// commits the drop of the staging table
+		conn.commit();
+		result.nanos = System.nanoTime() - start;
+		return result;
+	}
+}
@@ -0,0 +1,112 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Secondary indexes for the lookups made by the stored functions and
+ * queries. Derby only indexes primary keys, unique constraints and foreign
+ * keys on its own, so without these every lookup below is a table scan:
+ * 	1) StoredFunctions.verifyAttendance filters Attendance by CustomerID and MovieID
+ * 	2) StoredFunctions.isOnlyReview filters Review by MovieID
+ * 	3) Queries.checkLastEndorsementDate filters Endorsement by EndorserID
+ *
+ * Indexes are created only if an index of the same name does not exist,
+ * so this can be run against an existing database.
+ */
+public class SchemaIndexes {
+
+	/**
+	 * Definition of one managed index.
+	 */
+	static class Index {
+		final String name;
+		final String table;
+		final String columns;
+
+		Index(String name, String table, String columns) {
+			this.name = name;
+			this.table = table;
+			this.columns = columns;
+		}
+
+		String createSql() {
+			return "create index " + name + " on " + table + " (" + columns + ")";
+		}
+	}
+
+	/** the managed indexes */
+	static final Index[] INDEXES = {
+		new Index("AttendanceCustomerMovieDate", "Attendance", "CustomerID, MovieID, Date"),
+		new Index("ReviewMovie", "Review", "MovieID"),
+		new Index("EndorsementEndorser", "Endorsement", "EndorserID"),
+	};
+
+	/**
+	 * Gets the names of the indexes that exist in the current schema.
+	 *
+	 * @param conn the connection
+	 * @return the upper case index names
+	 * @throws SQLException if a database operation fails
+	 */
+	static Set<String> existingIndexes(Connection conn) throws SQLException {
+		Set<String> names = new HashSet<>();
+		try (
+			Statement stmt = conn.createStatement();
+			ResultSet rs = stmt.executeQuery(
+					"select c.ConglomerateName from SYS.SYSCONGLOMERATES c"
+					+ " join SYS.SYSTABLES t on c.TableID = t.TableID"
+					+ " join SYS.SYSSCHEMAS s on t.SchemaID = s.SchemaID"
+					+ " where c.IsIndex and s.SchemaName = current schema");
+		) {
+			while (rs.next()) {
+				names.add(rs.getString(1).toUpperCase());
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Creates the managed indexes that do not exist yet.
+	 *
+	 * @param conn the connection
+	 * @throws SQLException if a database operation fails
+	 */
+	public static void createMissing(Connection conn) throws SQLException {
+		Set<String> existing = existingIndexes(conn);
+		try (Statement stmt = conn.createStatement()) {
+			for (Index index : INDEXES) {
+				if (existing.contains(index.name.toUpperCase())) {
+					System.out.println("Index " + index.name + " already exists");
+				} else if (DatePartitions.spec(index.table) != null
+						&& DatePartitions.isPartitioned(conn, DatePartitions.spec(index.table))) {
+					// each partition has its own copy of the index
+					System.out.println("Index " + index.name + " is kept by the partitions of " + index.table);
+				} else {
+					stmt.executeUpdate(index.createSql());
+					System.out.println("Created index " + index.name);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops the managed indexes that exist.
+	 *
+	 * @param conn the connection
+	 * @throws SQLException if a database operation fails
+	 */
+	public static void dropAll(Connection conn) throws SQLException {
+		Set<String> existing = existingIndexes(conn);
+		try (Statement stmt = conn.createStatement()) {
+			for (Index index : INDEXES) {
+				if (existing.contains(index.name.toUpperCase())) {
+					stmt.executeUpdate("drop index " + index.name);
+					System.out.println("Dropped index " + index.name);
+				}
+			}
+		}
+	}
+}
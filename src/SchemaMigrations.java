@@ -0,0 +1,230 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Properties;
+
+/**
+ * Versioned schema migrations for the iRate database. Each migration has a
+ * version number, and the versions applied to a database are recorded in
+ * the SchemaVersion table. {@link #migrate} applies, in one transaction,
+ * only the migrations the database does not have yet, so opening a
+ * database that is up to date costs one query and keeps its data.
+ *
+ * A database created before the migrations existed has the entity tables
+ * but no SchemaVersion table. It is adopted as having the first migration,
+ * and the later ones are applied; each of them first drops what it creates,
+ * so they also repair a database that has part of their objects.
+ *
+ * New schema changes are added as new migrations at the end of MIGRATIONS;
+ * a migration that has been released is never changed.
+ */
+public class SchemaMigrations {
+
+	/** table recording the applied migrations */
+	static final String VERSION_TABLE = "SchemaVersion";
+
+	private static final String CREATE_VERSION_TABLE =
+			"create table SchemaVersion ("
+			+ " Version int not null primary key,"
+			+ " Description varchar(200) not null,"
+			+ " AppliedOn timestamp not null"
+			+ " )";
+
+	/**
+	 * The change made by one migration.
+	 */
+	interface Step {
+		/**
+		 * @param conn the connection, in the migration transaction
+		 * @param stmt a statement of the connection
+		 * @param indexedValidation whether the Review rules are enforced with indexes
+		 * @throws SQLException if a database operation fails
+		 */
+		void apply(Connection conn, Statement stmt, boolean indexedValidation) throws SQLException;
+	}
+
+	/**
+	 * One versioned schema change.
+	 */
+	static class Migration {
+		final int version;
+		final String description;
+		final Step step;
+
+		Migration(int version, String description, Step step) {
+			this.version = version;
+			this.description = description;
+			this.step = step;
+		}
+	}
+
+	/** the migrations, in version order */
+	static final Migration[] MIGRATIONS = {
+		new Migration(1, "uuid type, stored functions and entity tables",
+				(conn, stmt, indexedValidation) -> ProjectMain.createTables(stmt, indexedValidation)),
+		new Migration(2, "secondary indexes for the stored function and query lookups",
+				(conn, stmt, indexedValidation) -> SchemaIndexes.createMissing(conn)),
+		new Migration(3, "MovieStats review summary and its triggers",
+				(conn, stmt, indexedValidation) -> {
+					MovieStats.drop(conn);
+					MovieStats.create(conn);
+				}),
+		new Migration(4, "endorsement event triggers of the prize engines",
+				(conn, stmt, indexedValidation) -> {
+					EndorsementEvents.drop(conn);
+					EndorsementEvents.create(conn);
+				}),
+		new Migration(5, "review triggers invalidating the review cache",
+				(conn, stmt, indexedValidation) -> {
+					ReviewEvents.dropCacheEvents(conn);
+					ReviewEvents.createCacheEvents(conn);
+				}),
+		new Migration(6, "review and attendance pair filter triggers",
+				(conn, stmt, indexedValidation) -> {
+					PairFilters.drop(conn);
+					PairFilters.create(conn);
+				}),
+		new Migration(7, "MovieStats average rating and ranking indexes for the keyset pages",
+				(conn, stmt, indexedValidation) -> {
+					MovieStats.drop(conn);
+					MovieStats.create(conn);
+				}),
+		new Migration(8, "review rating triggers updating the Bayesian ranking",
+				(conn, stmt, indexedValidation) -> {
+					ReviewEvents.dropRankingEvents(conn);
+					ReviewEvents.createRankingEvents(conn);
+				}),
+		new Migration(9, "review attendance trigger of the indexed validation mode",
+				(conn, stmt, indexedValidation) -> ReviewValidation.createMissingRules(conn)),
+	};
+
+	/**
+	 * @return the version of the schema created by all migrations
+	 */
+	static int latestVersion() {
+		return MIGRATIONS[MIGRATIONS.length - 1].version;
+	}
+
+	/**
+	 * Gets the version of a database's schema.
+	 *
+	 * @param conn the connection
+	 * @return the highest version applied, 0 if the database has no schema,
+	 * 	or -1 if it has the entity tables but no recorded version
+	 * @throws SQLException if a database operation fails
+	 */
+	static int currentVersion(Connection conn) throws SQLException {
+		if (!tableExists(conn, VERSION_TABLE)) {
+			return tableExists(conn, "Customer") ? -1 : 0;
+		}
+		try (
+			Statement stmt = conn.createStatement();
+			ResultSet rs = stmt.executeQuery("select max(Version) from " + VERSION_TABLE);
+		) {
+			rs.next();
+			return rs.getInt(1);
+		}
+	}
+
+	private static boolean tableExists(Connection conn, String table) throws SQLException {
+		try (ResultSet rs = conn.getMetaData().getTables(null, conn.getSchema(), table.toUpperCase(), null)) {
+			return rs.next();
+		}
+	}
+
+	/**
+	 * Brings a database's schema up to date, applying the missing migrations
+	 * and recording them in one transaction. If a migration fails, the
+	 * database is left as it was.
+	 *
+	 * @param conn the connection
+	 * @param indexedValidation whether the Review rules are enforced with indexes
+	 * 	(see ReviewValidation) instead of Java CHECK constraints, if the
+	 * 	entity tables are created
+	 * @return the number of migrations applied
+	 * @throws SQLException if a migration fails, or the schema is newer than this program
+	 */
+	public static synchronized int migrate(Connection conn, boolean indexedValidation) throws SQLException {
+		int current = currentVersion(conn);
+		if (current == latestVersion()) {
+			System.out.println("Schema is at version " + current);
+			return 0;
+		}
+		if (current > latestVersion()) {
+			throw new SQLException("Schema version " + current + " is newer than this program's "
+					+ latestVersion());
+		}
+
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		int applied = 0;
+		try (Statement stmt = conn.createStatement()) {
+			if (current <= 0) {
+				stmt.executeUpdate(CREATE_VERSION_TABLE);
+			}
+			try (PreparedStatement record = conn.prepareStatement(
+					"insert into " + VERSION_TABLE + " (Version, Description, AppliedOn) values (?, ?, ?)")) {
+				for (Migration migration : MIGRATIONS) {
+					if (current == -1 && migration.version == 1) {
+						// the entity tables already exist
+						record(record, migration, " (adopted)");
+						System.out.println("Adopted existing schema as version " + migration.version);
+						continue;
+					}
+					if (migration.version <= current) {
+						continue;
+					}
+					migration.step.apply(conn, stmt, indexedValidation);
+					record(record, migration, "");
+					applied++;
+					System.out.println("Applied migration " + migration.version + ": " + migration.description);
+				}
+			}
+			conn.commit();
+			System.out.println("Schema is at version " + latestVersion());
+		} catch (SQLException ex) {
+			conn.rollback();
+			throw ex;
+		} finally {
+			conn.setAutoCommit(autoCommit);
+		}
+		return applied;
+	}
+
+	private static void record(PreparedStatement record, Migration migration, String note) throws SQLException {
+		record.setInt(1, migration.version);
+		record.setString(2, migration.description + note);
+		record.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+		record.executeUpdate();
+	}
+
+	/**
+	 * Prints the migrations applied to the iRate database.
+	 */
+	public static void main(String[] args) {
+		Properties props = new Properties(); // connection properties
+		props.put("user", "user1");
+		props.put("password", "user1");
+		try (
+			Connection conn = DriverManager.getConnection("jdbc:derby:irate", props);
+			Statement stmt = conn.createStatement();
+		) {
+			if (currentVersion(conn) <= 0) {
+				System.out.println("No recorded schema version");
+				return;
+			}
+			try (ResultSet rs = stmt.executeQuery("select Version, Description, AppliedOn from "
+					+ VERSION_TABLE + " order by Version")) {
+				while (rs.next()) {
+					System.out.printf("%3d  %-60s %s\n", rs.getInt(1), rs.getString(2), rs.getTimestamp(3));
+				}
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+}
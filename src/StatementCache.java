@@ -0,0 +1,112 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Least recently used cache of prepared statements for one connection, so
+ * that statements that run repeatedly are compiled by Derby only once. When
+ * the cache is full, the least recently used statement is closed.
+ *
+ * Statements returned by {@link #prepare} belong to the cache and must not
+ * be closed by the caller; their result sets should be. A connection and its
+ * cache must be used by one thread at a time. The owner of a cache closes
+ * its statements with {@link #clear} when it stops using the connection:
+ * the {@link ConnectionPool} when it discards a connection, and
+ * {@link FunctionContext} when a connection is unbound.
+ *
+ * Hit, miss and eviction counts are kept over all caches.
+ */
+public class StatementCache {
+
+	/** default number of statements kept per connection */
+	static final int DEFAULT_SIZE = 32;
+
+	// counts over all caches
+	static final AtomicLong hits = new AtomicLong();
+	static final AtomicLong misses = new AtomicLong();
+	static final AtomicLong evictions = new AtomicLong();
+
+	private final Connection conn;
+	private final LinkedHashMap<String, PreparedStatement> statements;
+
+	/**
+	 * Creates a cache for a connection.
+	 *
+	 * @param conn the connection
+	 * @param size the maximum number of statements kept
+	 */
+	public StatementCache(Connection conn, int size) {
+		this.conn = conn;
+		this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if (size() <= size) {
+					return false;
+				}
+				evictions.incrementAndGet();
+				close(eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * @return the connection whose statements are cached
+	 */
+	public Connection connection() {
+		return conn;
+	}
+
+	/**
+	 * Gets a prepared statement for the SQL text, preparing it on a miss.
+	 *
+	 * @param sql the statement text
+	 * @return the cached statement
+	 * @throws SQLException if the statement cannot be prepared
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement stmt = statements.get(sql);
+		if (stmt != null && !stmt.isClosed()) {
+			hits.incrementAndGet();
+			stmt.clearParameters();
+			return stmt;
+		}
+		misses.incrementAndGet();
+		stmt = conn.prepareStatement(sql);
+		statements.put(sql, stmt);
+		return stmt;
+	}
+
+	/**
+	 * Closes all cached statements.
+	 */
+	public void clear() {
+		for (PreparedStatement stmt : statements.values()) {
+			close(stmt);
+		}
+		statements.clear();
+	}
+
+	private static void close(PreparedStatement stmt) {
+		try {
+			stmt.close();
+		} catch (SQLException ex) {
+			// the connection is already closed
+		}
+	}
+
+	/**
+	 * @return the hit, miss and eviction counts over all caches
+	 */
+	public static String stats() {
+		long h = hits.get();
+		long m = misses.get();
+		return String.format("statement cache: %d hits, %d misses (%.1f%% hit ratio), %d evictions",
+				h, m, h + m == 0 ? 0.0 : 100.0 * h / (h + m), evictions.get());
+	}
+}
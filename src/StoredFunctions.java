@@ -1,20 +1,52 @@
-import java.sql.Connection;
 import java.sql.Date;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Support methods to be used by stored functions for checking
  * validity of dates. 
  * 
+ * Lookups go through a {@link FunctionContext}, so a function invoked by
+ * Derby uses the connection of the statement that invoked it. The calls,
+ * latency and rows read of each lookup are recorded in {@link Metrics}.
+ * The author and movie of a review are read through the {@link ReviewCache}.
+ * isOnlyReview and verifyAttendance skip their query when the
+ * {@link PairFilters}, loaded by the first of them to run, show the
+ * customer has no row for the movie.
+ * 
  * @author b garbo
  *
  */
 public class StoredFunctions {
 	
+	/** number of days after an attendance in which the customer can review the movie */
+	static final int ATTENDANCE_DAYS = 7;
+	
+	/**
+	 * finds an attendance of a customer at a movie in a range of dates, with a lookup
+	 * on the (CustomerID, MovieID, Date) index; %s is Attendance or one of its partitions
+	 */
+	static final String CUSTOMER_ATTENDANCE =
+			"select 1 from %s where CustomerID = ? and MovieID = ? and Date between ? and ?";
+	
+	/** finds a review of a movie by a customer, with a lookup on the (CustomerID, MovieID) primary key prefix */
+	static final String CUSTOMER_REVIEW =
+			"select 1 from Review where CustomerID = ? and MovieID = ?";
+	
+	// metrics of the functions called by the CHECK constraints
+	private static final Metrics.Timer IS_VALID_ENDORSEMENT_TIMER = Metrics.timer("StoredFunctions.isValidEndorsement");
+	private static final Metrics.Timer VERIFY_ATTENDANCE_TIMER = Metrics.timer("StoredFunctions.verifyAttendance");
+	private static final Metrics.Timer IS_ONLY_REVIEW_TIMER = Metrics.timer("StoredFunctions.isOnlyReview");
+	
 	/** 
 	 * Determines whether a string conforms to the pattern for a UUID.
 	 * 
@@ -22,7 +54,7 @@ public class StoredFunctions {
 	 * @return true if the string is a valid UUID
 	 */
 	static public boolean isUuid(String uuid) {
-		return uuid.matches("^[0-9A-Fa-f]{8}-[0-9A-Fa-f]{4}-[0-9A-Fa-f]{4}-[0-9A-Fa-f]{4}-[0-9A-Fa-f]{12}$");
+		return Uuids.isUuid(uuid);
 	}
 	
 	/**
@@ -34,22 +66,24 @@ public class StoredFunctions {
 	 * @return true if the review was not written by the endorser 
 	 */
 	static public boolean isValidEndorsement(String customerId, String reviewId) {
-		try {
-			Connection conn = ProjectMain.getConnection();
-			PreparedStatement stmt = conn.prepareStatement(
-					"select CustomerID from Review where ReviewID = ?");
+		long start = Metrics.start();
+		long scanned = 0;
+		try (FunctionContext ctx = FunctionContext.open()) {
+			String author = ReviewEvents.reviewCache().customer(ctx, reviewId);
 			
-			stmt.setString(1, reviewId);
-			ResultSet rs = stmt.executeQuery();
-			
-			String checkId = rs.getString("CustomerID");
-			
-			if (checkId != customerId) {
-				return true;
+			// an endorsement of a review that does not exist is not valid
+			if (author != null) {
+				scanned++;
+				if (!author.equals(customerId)) {
+					return true;
+				}
 			}
 			
 		} catch (SQLException e) {
+			IS_VALID_ENDORSEMENT_TIMER.error();
 			e.printStackTrace();
+		} finally {
+			IS_VALID_ENDORSEMENT_TIMER.stop(start, scanned, scanned);
 		}
 		return false;
 	}
@@ -64,25 +98,43 @@ public class StoredFunctions {
 	 * @return true if the customer attended the movie
 	 */
 	static public boolean verifyAttendance(String customerId, String movieId, Date date) {
-		try {
-			Connection conn = ProjectMain.getConnection();
-			PreparedStatement stmt = conn.prepareStatement(
-					"select MovieID, Date from Attendance where CustomerID = ?");
-			
-			stmt.setString(1, customerId);
-			ResultSet rs = stmt.executeQuery();
-			
-			while (rs.next()){
-				String checkId = rs.getString("MovieID");
-					if (checkId == movieId) {
-						Date attendanceDate = rs.getDate("Date");
-						if (checkSevenDays(date, attendanceDate)) {
-							return true;
-						}
+		long start = Metrics.start();
+		long scanned = 0;
+		long matched = 0;
+		PairFilter attended = PairFilters.attendances();
+		if (!attended.isReady()) {
+			// the first check in this JVM loads the filters
+			PairFilters.ensureLoaded();
+		}
+		// a customer who never attended the movie needs no query
+		if (!attended.mightContain(customerId, movieId)) {
+			VERIFY_ATTENDANCE_TIMER.stop(start, scanned, matched);
+			return false;
+		}
+		try (FunctionContext ctx = FunctionContext.open()) {
+			// only partitions of the days before the review can hold a qualifying attendance
+			Date first = firstAttendance(date);
+			for (String table : DatePartitions.tables(ctx.connection(), DatePartitions.ATTENDANCE, first, date)) {
+				PreparedStatement stmt = ctx.prepare(String.format(CUSTOMER_ATTENDANCE, table));
+				
+				BinaryIds.setId(stmt, 1, customerId);
+				BinaryIds.setId(stmt, 2, movieId);
+				stmt.setDate(3, first);
+				stmt.setDate(4, date);
+				try (ResultSet rs = stmt.executeQuery()) {
+					if (rs.next()) {
+						scanned++;
+						matched++;
+						return true;
 					}
+				}
 			}
+			attended.unmatched();
 		} catch (SQLException e) {
+			VERIFY_ATTENDANCE_TIMER.error();
 			e.printStackTrace();
+		} finally {
+			VERIFY_ATTENDANCE_TIMER.stop(start, scanned, matched);
 		}
 		return false;
 	}
@@ -96,79 +148,169 @@ public class StoredFunctions {
 	 * @return true if they have not previously submitted a review
 	 */
 	static public boolean isOnlyReview(String customerId, String movieId) {
-		try {
-			Connection conn = ProjectMain.getConnection();
-			PreparedStatement stmt = conn.prepareStatement(
-					"select CustomerId from Review where MovieID = ?");
-			
-			stmt.setString(1, movieId);
-			ResultSet rs = stmt.executeQuery();
-			
-			while (rs.next()){
-				String checkId = rs.getString("CustomerID");
-					if (checkId == customerId) {
+		long start = Metrics.start();
+		long scanned = 0;
+		long matched = 0;
+		PairFilter reviewed = PairFilters.reviews();
+		if (!reviewed.isReady()) {
+			// the first check in this JVM loads the filters
+			PairFilters.ensureLoaded();
+		}
+		// a pair the filter has never seen has no review and needs no query
+		if (reviewed.mightContain(customerId, movieId)) {
+			try (FunctionContext ctx = FunctionContext.open()) {
+				PreparedStatement stmt = ctx.prepare(CUSTOMER_REVIEW);
+				
+				BinaryIds.setId(stmt, 1, customerId);
+				BinaryIds.setId(stmt, 2, movieId);
+				try (ResultSet rs = stmt.executeQuery()) {
+					if (rs.next()) {
+						scanned++;
+						matched++;
 						return false;
 					}
+				}
+				reviewed.unmatched();
+			} catch (SQLException e) {
+				IS_ONLY_REVIEW_TIMER.error();
+				e.printStackTrace();
+			} finally {
+				IS_ONLY_REVIEW_TIMER.stop(start, scanned, matched);
 			}
-		} catch (SQLException e) {
-			e.printStackTrace();
+		} else {
+			IS_ONLY_REVIEW_TIMER.stop(start, scanned, matched);
 		}
+		// the pair is added before its insert trigger fires, so that a later
+		// row of the same statement queries for it
+		reviewed.add(customerId, movieId);
 		return true;
 	}
 	
+	/** milliseconds in a day */
+	private static final long MILLIS_PER_DAY = 86_400_000L;
+	
 	/**
-	 * Check if a given date is within seven days of an older date.
+	 * The first attendance date that allows a review on a day. Reviews are
+	 * mostly checked in date order, so the last one is kept for reuse.
+	 */
+	private static final class AttendanceWindow {
+		final long reviewDay;
+		final Date first;
+		
+		AttendanceWindow(long reviewDay) {
+			this.reviewDay = reviewDay;
+			this.first = Date.valueOf(LocalDate.ofEpochDay(reviewDay - ATTENDANCE_DAYS));
+		}
+	}
+	
+	// window of the last review date checked; immutable, so threads can share it
+	private static volatile AttendanceWindow lastWindow;
+	
+	/**
+	 * Gets the first date on which an attendance allows a review on a date,
+	 * ATTENDANCE_DAYS calendar days before it. The date is only allocated
+	 * when the review day changes.
 	 * 
-	 * @param date the date to check
-	 * @param oldDate the older date 
-	 * @return true if the given date is within seven days of the older date
+	 * @param date the date of the review
+	 * @return the first attendance date, not to be modified
 	 */
-	static public boolean checkSevenDays(Date date, Date oldDate) {
-			LocalDate checkDate = date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
-			checkDate = checkDate.minusDays(7);
-			LocalDate olderDate = oldDate.toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
-			
-			if (checkDate.compareTo(olderDate) >= 0) {
-				return true;
+	static Date firstAttendance(Date date) {
+		long day = epochDay(date);
+		AttendanceWindow window = lastWindow;
+		if (window == null || window.reviewDay != day) {
+			window = new AttendanceWindow(day);
+			lastWindow = window;
+		}
+		return window.first;
+	}
+	
+	/** the time zone in which java.sql.Date values are interpreted */
+	private static final ZoneRules ZONE_RULES = ZoneId.systemDefault().getRules();
+	
+	/** dates from this instant up to TRANSITIONS_END use the transition table */
+	private static final long TRANSITIONS_START = LocalDate.of(1900, 1, 1).atStartOfDay(ZoneOffset.UTC).toEpochSecond() * 1000;
+	private static final long TRANSITIONS_END = LocalDate.of(2200, 1, 1).atStartOfDay(ZoneOffset.UTC).toEpochSecond() * 1000;
+	
+	// the offset transitions of the default time zone in the table range, in
+	// milliseconds; OFFSETS[i] is the offset in force once i transitions
+	// have passed
+	private static final long[] TRANSITIONS;
+	private static final long[] OFFSETS;
+	
+	/** the table range is split in buckets of 2^BUCKET_SHIFT milliseconds, about 397 days */
+	private static final int BUCKET_SHIFT = 35;
+	
+	// number of transitions before the start of each bucket, so that a
+	// lookup only scans the few transitions within one bucket
+	private static final int[] BUCKET_FIRST;
+	
+	static {
+		List<ZoneOffsetTransition> transitions = new ArrayList<>();
+		Instant end = Instant.ofEpochMilli(TRANSITIONS_END);
+		ZoneOffsetTransition next = ZONE_RULES.nextTransition(Instant.ofEpochMilli(TRANSITIONS_START));
+		while (next != null && next.getInstant().isBefore(end)) {
+			transitions.add(next);
+			next = ZONE_RULES.nextTransition(next.getInstant());
+		}
+		TRANSITIONS = new long[transitions.size()];
+		OFFSETS = new long[transitions.size() + 1];
+		OFFSETS[0] = ZONE_RULES.getOffset(Instant.ofEpochMilli(TRANSITIONS_START)).getTotalSeconds() * 1000L;
+		for (int i = 0; i < TRANSITIONS.length; i++) {
+			TRANSITIONS[i] = transitions.get(i).toEpochSecond() * 1000;
+			OFFSETS[i + 1] = transitions.get(i).getOffsetAfter().getTotalSeconds() * 1000L;
+		}
+		BUCKET_FIRST = new int[(int) ((TRANSITIONS_END - TRANSITIONS_START) >>> BUCKET_SHIFT) + 1];
+		int passed = 0;
+		for (int b = 0; b < BUCKET_FIRST.length; b++) {
+			long bucketStart = TRANSITIONS_START + ((long) b << BUCKET_SHIFT);
+			while (passed < TRANSITIONS.length && TRANSITIONS[passed] <= bucketStart) {
+				passed++;
 			}
-			else return false;
+			BUCKET_FIRST[b] = passed;
+		}
 	}
 	
 	/**
-	 * Check if a given date is within three days of an older date.
+	 * Gets the epoch day number of a date, the same number as
+	 * date.toLocalDate().toEpochDay() but without allocating for dates
+	 * between 1900 and 2200: the time zone offset comes from a table of the
+	 * zone's transitions built once. The offsets follow the java.time zone
+	 * rules, which differ from java.util.TimeZone only in local mean time
+	 * before 1900 and in a few zones after 2037.
 	 * 
-	 * @param date the date to check
-	 * @param oldDate the older date 
-	 * @return true if the given date is within three days of the older date
+	 * @param date the date
+	 * @return the number of days since 1970-01-01
 	 */
-	static public boolean checkThreeDays(Date date, Date oldDate) {
-		LocalDate checkDate = date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
-		checkDate = checkDate.minusDays(3);
-		LocalDate olderDate = oldDate.toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
-		
-		if (checkDate.compareTo(olderDate) >= 0) {
-			return true;
+	static long epochDay(Date date) {
+		long millis = date.getTime();
+		long offset;
+		if (millis >= TRANSITIONS_START && millis < TRANSITIONS_END) {
+			int i = BUCKET_FIRST[(int) ((millis - TRANSITIONS_START) >>> BUCKET_SHIFT)];
+			while (i < TRANSITIONS.length && TRANSITIONS[i] <= millis) {
+				i++;
+			}
+			offset = OFFSETS[i];
+		} else {
+			offset = ZONE_RULES.getOffset(Instant.ofEpochMilli(millis)).getTotalSeconds() * 1000L;
 		}
-		else return false;
+		return Math.floorDiv(millis + offset, MILLIS_PER_DAY);
 	}
 	
-	
 	/**
-	 * Check if a given date is within one day of an older date.
+	 * Check if a given date is on or at most a number of days after an
+	 * older date. Replaces the sevenDays, threeDays and oneDay checks.
 	 * 
 	 * @param date the date to check
 	 * @param oldDate the older date 
-	 * @return true if the given date is within one of the older date
+	 * @param days the number of days
+	 * @return true if the given date is within the number of days of the older date
 	 */
-	static public boolean checkOneDay(Date date, Date oldDate) {
-		LocalDate checkDate = date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
-		checkDate = checkDate.minusDays(1);
-		LocalDate olderDate = oldDate.toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
-		
-		if (checkDate.compareTo(olderDate) >= 0) {
-			return true;
+	static public boolean withinDays(Date date, Date oldDate, int days) {
+		if (date == null || oldDate == null) {
+			return false;
 		}
-		else return false;
+		long diff = epochDay(date) - epochDay(oldDate);
+		return diff >= 0 && diff <= days;
 	}
 	
 	/**
@@ -187,26 +329,15 @@ public class StoredFunctions {
 	 * endorsed a review of the same movie
 	 */
 	static public boolean verifyEndorsement(String customerId, String reviewId, Date date) {
-		try {
-			Connection conn = ProjectMain.getConnection();
-			PreparedStatement stmt = conn.prepareStatement(
-					"select MovieID from Review where ReviewID = ?");
-			
-			stmt.setString(1, reviewId);
-			ResultSet rs = stmt.executeQuery();
-			
-			// store the movie
-			String checkMovie = rs.getString("MovieID");
+		try (FunctionContext ctx = FunctionContext.open()) {
+			// look up the movie; an endorsement of a review that does not exist is not valid
+			String checkMovie = ReviewEvents.reviewCache().movie(ctx, reviewId);
+			if (checkMovie == null) {
+				return false;
+			}
 			
-//			stmt = conn.prepareStatement(
-//					"--");
-//			
-//			stmt.setString(1, reviewId);
-//			ResultSet rs = stmt.executeQuery();
-//			
-//			if (checkMovie != customerId) {
-//				return true;
-//			}
+			// the last endorsement of the movie is found as for the CHECK constraint
+			return Queries.checkLastEndorsementDate(reviewId, customerId, date);
 			
 		} catch (SQLException e) {
 			e.printStackTrace();
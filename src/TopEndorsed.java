@@ -0,0 +1,401 @@
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Top-K engine for the daily most endorsed review prize. It keeps the
+ * number of endorsements made on the current day for each review, updated
+ * by {@link EndorsementEvents} as each Endorsement row is inserted, and a
+ * min-heap of the K reviews with the most endorsements, so the top reviews
+ * can be read in O(K) at any moment instead of grouping and sorting every
+ * review of the day.
+ *
+ * Reviews with the same count are ordered by a tie key drawn from a seeded
+ * mix of the seed, the day and the ReviewID. The draw does not depend on the
+ * order in which endorsements arrive, so it can be repeated for an audit
+ * from the seed and the Endorsement table alone.
+ *
+ * Counts only grow while the engine is loaded. Deleting an endorsement, a
+ * new day or a new JVM mark the engine unloaded, and the next query
+ * reloads the day's counts from the Endorsement table. Endorsements are
+ * counted as they are inserted, before their transaction commits, so one
+ * that is rolled back stays counted until the next reload; a query also
+ * reloads counts older than the reload interval, which bounds that drift.
+ *
+ * A load reads the table without holding the engine's lock, since the
+ * trigger of an insert calls the engine while the inserted row is locked
+ * and the read may wait for that row. Endorsements of the day recorded
+ * while the load reads are kept aside, and those the read did not see are
+ * added to the loaded counts.
+ */
+public class TopEndorsed {
+
+	/** default number of reviews kept in the heap */
+	static final int DEFAULT_K = 10;
+
+	/** default time after which a query reloads the counts, in seconds */
+	static final long DEFAULT_RELOAD_SECONDS = 60;
+
+	/** reads the endorsements made on a day */
+	static final String DAY_ENDORSEMENTS =
+			"select ReviewID, EndorserID "				// the review and endorser of each endorsement
+			+ "from %s "								// from the Endorsement table, or the partition of the day
+			+ "where EndorsementDate = ?";				// only endorsements made on the given day
+
+	/**
+	 * The endorsement count of one review.
+	 */
+	static class Entry {
+		final String reviewId;
+		final long tieKey;
+		int count;
+
+		// position in the heap, or -1 if not in the heap
+		int heapIndex = -1;
+
+		Entry(String reviewId, long tieKey) {
+			this.reviewId = reviewId;
+			this.tieKey = tieKey;
+		}
+
+		@Override
+		public String toString() {
+			return reviewId + " (" + count + ")";
+		}
+	}
+
+	private final int k;
+	private final long seed;
+
+	private LocalDate day;
+	private boolean loaded;
+	private long loadedAt;
+	private final long reloadNanos;
+	private final Map<String, Entry> counts = new HashMap<>();
+
+	// serializes loads, which read the table without holding the engine's lock
+	private final Object loadLock = new Object();
+
+	// while a load reads the table, the day it loads, and the endorsements
+	// of that day recorded since it started that it has not read
+	private LocalDate loadingDay;
+	private final Set<String> pending = new HashSet<>();
+	private volatile boolean hasPending;
+	private boolean invalidatedWhileLoading;
+
+	// min-heap of the top k entries, ordered by count and then tie key
+	private final Entry[] heap;
+	private int size;
+
+	/**
+	 * Creates an engine that reloads after the default interval.
+	 *
+	 * @param k the number of reviews kept in the heap
+	 * @param seed the seed of the tie-break draw
+	 */
+	public TopEndorsed(int k, long seed) {
+		this(k, seed, DEFAULT_RELOAD_SECONDS);
+	}
+
+	/**
+	 * Creates an engine.
+	 *
+	 * @param k the number of reviews kept in the heap
+	 * @param seed the seed of the tie-break draw
+	 * @param reloadSeconds the age of the counts at which a query reloads them
+	 */
+	public TopEndorsed(int k, long seed, long reloadSeconds) {
+		this.k = k;
+		this.seed = seed;
+		this.heap = new Entry[k];
+		this.reloadNanos = TimeUnit.SECONDS.toNanos(reloadSeconds);
+	}
+
+	/**
+	 * @return the seed of the tie-break draw
+	 */
+	public long seed() {
+		return seed;
+	}
+
+	/**
+	 * Mixes 64 bits (the MurmurHash3 finalizer).
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+		z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return z ^ (z >>> 33);
+	}
+
+	/**
+	 * Computes the tie key of a review on a day.
+	 *
+	 * @param seed the seed of the draw
+	 * @param day the day
+	 * @param reviewId the review
+	 * @return the tie key; a larger key wins a tie
+	 */
+	static long tieKey(long seed, LocalDate day, String reviewId) {
+		long h = mix(seed ^ mix(day.toEpochDay()));
+		if (Uuids.isUuid(reviewId)) {
+			return mix(h ^ Uuids.mostSigBits(reviewId)) ^ mix(h + Uuids.leastSigBits(reviewId));
+		}
+		return mix(h ^ reviewId.hashCode());
+	}
+
+	private static int compare(Entry a, Entry b) {
+		if (a.count != b.count) {
+			return Integer.compare(a.count, b.count);
+		}
+		if (a.tieKey != b.tieKey) {
+			return Long.compare(a.tieKey, b.tieKey);
+		}
+		return a.reviewId.compareTo(b.reviewId);
+	}
+
+	private void place(Entry e, int i) {
+		heap[i] = e;
+		e.heapIndex = i;
+	}
+
+	private void siftUp(int i) {
+		Entry e = heap[i];
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (compare(e, heap[parent]) >= 0) {
+				break;
+			}
+			place(heap[parent], i);
+			i = parent;
+		}
+		place(e, i);
+	}
+
+	private void siftDown(int i) {
+		Entry e = heap[i];
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && compare(heap[child + 1], heap[child]) < 0) {
+				child++;
+			}
+			if (compare(e, heap[child]) <= 0) {
+				break;
+			}
+			place(heap[child], i);
+			i = child;
+		}
+		place(e, i);
+	}
+
+	/**
+	 * Clears the counts and starts a new day.
+	 */
+	private void reset(LocalDate newDay) {
+		day = newDay;
+		loaded = false;
+		counts.clear();
+		Arrays.fill(heap, 0, size, null);
+		size = 0;
+	}
+
+	/**
+	 * Adds endorsements of a review to its count and updates the heap. Only
+	 * one entry changes, so an entry outside the heap can only enter by
+	 * displacing the minimum.
+	 */
+	private void increment(String reviewId, int n) {
+		Entry e = counts.get(reviewId);
+		if (e == null) {
+			e = new Entry(reviewId, tieKey(seed, day, reviewId));
+			counts.put(reviewId, e);
+		}
+		e.count += n;
+		if (e.heapIndex >= 0) {
+			siftDown(e.heapIndex);
+		} else if (size < k) {
+			place(e, size);
+			siftUp(size++);
+		} else if (compare(e, heap[0]) > 0) {
+			heap[0].heapIndex = -1;
+			place(e, 0);
+			siftDown(0);
+		}
+	}
+
+	/**
+	 * Identifies an endorsement of the day being loaded.
+	 */
+	private static String key(String reviewId, String endorserId) {
+		return reviewId + '\t' + endorserId;
+	}
+
+	/**
+	 * Records one endorsement. Endorsements made before the current day are
+	 * ignored; one made on a later day starts that day.
+	 *
+	 * @param reviewId the endorsed review
+	 * @param endorserId the endorser
+	 * @param date the endorsement date
+	 */
+	public synchronized void endorsed(String reviewId, String endorserId, Date date) {
+		LocalDate endorsed = date.toLocalDate();
+		if (endorsed.equals(loadingDay)) {
+			pending.add(key(reviewId, endorserId));
+			hasPending = true;
+		}
+		if (day == null || endorsed.isAfter(day)) {
+			reset(endorsed);
+		} else if (endorsed.isBefore(day)) {
+			return;
+		}
+		increment(reviewId, 1);
+	}
+
+	/**
+	 * Marks the counts of a day as stale, so that the next query reloads
+	 * them. Used when an endorsement is deleted.
+	 *
+	 * @param date the day of the removed endorsement
+	 */
+	public synchronized void invalidate(Date date) {
+		LocalDate removed = date.toLocalDate();
+		if (removed.equals(day)) {
+			loaded = false;
+		}
+		if (removed.equals(loadingDay)) {
+			invalidatedWhileLoading = true;
+		}
+	}
+
+	/**
+	 * Marks an endorsement recorded during the load as read by it.
+	 */
+	private synchronized void claim(String reviewId, String endorserId) {
+		pending.remove(key(reviewId, endorserId));
+	}
+
+	/**
+	 * Ends a load, dropping the endorsements kept aside for it.
+	 */
+	private void endLoad() {
+		loadingDay = null;
+		pending.clear();
+		hasPending = false;
+	}
+
+	/**
+	 * Loads the counts of a day from the Endorsement table unless they are
+	 * already loaded, kept up to date and younger than the reload interval.
+	 *
+	 * @param conn the connection
+	 * @param today the day to serve
+	 * @throws SQLException if a database operation fails
+	 */
+	public void ensureLoaded(Connection conn, LocalDate today) throws SQLException {
+		synchronized (loadLock) {
+			synchronized (this) {
+				if (loaded && today.equals(day) && System.nanoTime() - loadedAt < reloadNanos) {
+					return;
+				}
+				endLoad();
+				loadingDay = today;
+				invalidatedWhileLoading = false;
+			}
+			Map<String, int[]> read = new HashMap<>();
+			try {
+				Date date = Date.valueOf(today);
+				for (String table : DatePartitions.tables(conn, DatePartitions.ENDORSEMENT, date, date)) {
+					try (PreparedStatement stmt = conn.prepareStatement(String.format(DAY_ENDORSEMENTS, table))) {
+						stmt.setDate(1, date);
+						try (ResultSet rs = stmt.executeQuery()) {
+							while (rs.next()) {
+								String reviewId = BinaryIds.getId(rs, 1);
+								read.computeIfAbsent(reviewId, r -> new int[1])[0]++;
+								if (hasPending) {
+									claim(reviewId, BinaryIds.getId(rs, 2));
+								}
+							}
+						}
+					}
+				}
+			} catch (SQLException ex) {
+				synchronized (this) {
+					endLoad();
+				}
+				throw ex;
+			}
+			synchronized (this) {
+				reset(today);
+				for (Map.Entry<String, int[]> entry : read.entrySet()) {
+					increment(entry.getKey(), entry.getValue()[0]);
+				}
+				// endorsements inserted after the read passed them
+				for (String key : pending) {
+					increment(key.substring(0, key.indexOf('\t')), 1);
+				}
+				loaded = !invalidatedWhileLoading;
+				loadedAt = System.nanoTime();
+				endLoad();
+			}
+		}
+	}
+
+	/**
+	 * Gets the top reviews, most endorsed first. The heap holds at most K
+	 * entries, so this is O(K log K) regardless of the number of reviews.
+	 *
+	 * @param n the number of reviews, at most K
+	 * @return the top reviews
+	 */
+	public synchronized List<Entry> top(int n) {
+		Entry[] entries = Arrays.copyOf(heap, size);
+		Arrays.sort(entries, (a, b) -> compare(b, a));
+		List<Entry> top = new ArrayList<>(Math.min(n, size));
+		for (int i = 0; i < Math.min(n, size); i++) {
+			top.add(entries[i]);
+		}
+		return top;
+	}
+
+	/**
+	 * Gets the most endorsed review of the day in O(K), printing the draw
+	 * when several reviews share the highest count.
+	 *
+	 * @return the winning entry, or null if there are no endorsements
+	 */
+	public synchronized Entry winner() {
+		Entry best = null;
+		int tied = 0;
+		for (int i = 0; i < size; i++) {
+			Entry e = heap[i];
+			if (best == null || e.count > best.count) {
+				best = e;
+				tied = 1;
+			} else if (e.count == best.count) {
+				tied++;
+				if (compare(e, best) > 0) {
+					best = e;
+				}
+			}
+		}
+		if (tied > 1) {
+			System.out.printf("Drew review %s among %d reviews with %d endorsements on %s (seed %d)\n",
+					best.reviewId, tied, best.count, day, seed);
+		}
+		return best;
+	}
+}
@@ -0,0 +1,329 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Date;
+import java.time.LocalDate;
+
+/**
+ * Reads a tab-separated data file through a memory-mapped buffer without
+ * allocating per line. The reader scans tab and newline bytes directly and
+ * exposes the fields of the current line as offset/length views over the
+ * mapped bytes. Strings are only created when a caller asks for one, and
+ * numeric fields are parsed straight from the bytes.
+ *
+ * Files larger than the mapping window are mapped in consecutive windows,
+ * each starting at the beginning of a line. Lines with the wrong number of
+ * fields are passed to a handler with their byte offset and skipped.
+ */
+public class TsvReader implements AutoCloseable {
+
+	/** default size of each mapped window */
+	static final int DEFAULT_WINDOW = 256 << 20;
+
+	/**
+	 * Receives lines that do not have the expected number of fields.
+	 */
+	public interface MalformedLineHandler {
+		/**
+		 * @param offset the byte offset of the start of the line in the file
+		 * @param fields the number of fields found on the line
+		 */
+		void malformed(long offset, int fields);
+	}
+
+	private final FileChannel channel;
+	private final long size;
+	private final int window;
+	private final int columns;
+	private final MalformedLineHandler handler;
+
+	private MappedByteBuffer buffer;
+	private long bufferOffset;	// file offset of the start of the buffer
+	private int position;		// buffer index of the next unread line
+
+	// field boundaries of the current line, as buffer indexes
+	private final int[] starts;
+	private final int[] ends;
+	private long lineOffset;
+
+	private byte[] scratch = new byte[256];
+
+	// the reused view returned by chars
+	private final FieldChars fieldChars = new FieldChars();
+
+	// the last date parsed, reused while consecutive lines share a date
+	private int lastYear, lastMonth, lastDay;
+	private Date lastDate;
+
+	/**
+	 * Opens a file for reading with the default mapping window.
+	 *
+	 * @param file the file to read
+	 * @param columns the number of fields expected on each line
+	 * @param handler receives lines with any other number of fields
+	 * @throws IOException if the file cannot be opened or mapped
+	 */
+	public TsvReader(Path file, int columns, MalformedLineHandler handler) throws IOException {
+		this(file, columns, handler, DEFAULT_WINDOW);
+	}
+
+	TsvReader(Path file, int columns, MalformedLineHandler handler, int window) throws IOException {
+		this.channel = FileChannel.open(file, StandardOpenOption.READ);
+		this.size = channel.size();
+		this.window = window;
+		this.columns = columns;
+		this.handler = handler;
+		this.starts = new int[columns];
+		this.ends = new int[columns];
+		map(0);
+	}
+
+	private void map(long offset) throws IOException {
+		bufferOffset = offset;
+		buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(window, size - offset));
+		position = 0;
+	}
+
+	/**
+	 * Advances to the next line with the expected number of fields.
+	 *
+	 * @return false at the end of the file
+	 * @throws IOException if the next window cannot be mapped
+	 */
+	public boolean next() throws IOException {
+		while (true) {
+			int limit = buffer.limit();
+			if (position >= limit) {
+				if (bufferOffset + limit >= size) {
+					return false;
+				}
+				map(bufferOffset + position);
+				continue;
+			}
+
+			// scan one line, recording field boundaries
+			int lineStart = position;
+			int fields = 0;
+			int fieldStart = lineStart;
+			int i = lineStart;
+			boolean complete = false;
+			while (i < limit) {
+				byte b = buffer.get(i);
+				if (b == '\t') {
+					if (fields < columns) {
+						starts[fields] = fieldStart;
+						ends[fields] = i;
+					}
+					fields++;
+					fieldStart = i + 1;
+				} else if (b == '\n') {
+					complete = true;
+					break;
+				}
+				i++;
+			}
+
+			if (!complete && bufferOffset + limit < size) {
+				// the line runs past this window, so remap starting at the line
+				if (lineStart == 0) {
+					throw new IOException("Line at offset " + bufferOffset + " is longer than the mapping window");
+				}
+				map(bufferOffset + lineStart);
+				continue;
+			}
+
+			// last field, without any carriage return
+			int lineEnd = i;
+			if (lineEnd > fieldStart && buffer.get(lineEnd - 1) == '\r') {
+				lineEnd--;
+			}
+			if (fields < columns) {
+				starts[fields] = fieldStart;
+				ends[fields] = lineEnd;
+			}
+			fields++;
+			position = complete ? i + 1 : i;
+			lineOffset = bufferOffset + lineStart;
+
+			if (fields == columns) {
+				return true;
+			}
+			if (handler != null && !(fields == 1 && lineEnd == lineStart)) {
+				handler.malformed(lineOffset, fields);
+			}
+		}
+	}
+
+	/**
+	 * @return the byte offset in the file of the current line
+	 */
+	public long lineOffset() {
+		return lineOffset;
+	}
+
+	/**
+	 * @param field the field index
+	 * @return the byte offset in the file of a field of the current line
+	 */
+	public long offset(int field) {
+		return bufferOffset + starts[field];
+	}
+
+	/**
+	 * @param field the field index
+	 * @return the length in bytes of a field of the current line
+	 */
+	public int length(int field) {
+		return ends[field] - starts[field];
+	}
+
+	/**
+	 * @param field the field index
+	 * @param index the index of the byte within the field
+	 * @return a byte of a field of the current line
+	 */
+	public byte byteAt(int field, int index) {
+		return buffer.get(starts[field] + index);
+	}
+
+	/**
+	 * Decodes a field of the current line as a UTF-8 string.
+	 *
+	 * @param field the field index
+	 * @return the field value
+	 */
+	public String string(int field) {
+		int start = starts[field];
+		int length = ends[field] - start;
+		return new String(scratchCopy(start, length), 0, length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Views a field of the current line as characters, one per byte, without
+	 * decoding it. Only ASCII fields, such as IDs, read as their text; other
+	 * bytes read as characters above 127.
+	 *
+	 * @param field the field index
+	 * @return a view that is reused by the next call and valid until next()
+	 */
+	public CharSequence chars(int field) {
+		fieldChars.start = starts[field];
+		fieldChars.length = ends[field] - starts[field];
+		return fieldChars;
+	}
+
+	/**
+	 * The bytes of a field of the current line as characters.
+	 */
+	private class FieldChars implements CharSequence {
+		int start;
+		int length;
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (index < 0 || index >= length) {
+				throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+			}
+			return (char) (buffer.get(start + index) & 0xff);
+		}
+
+		@Override
+		public CharSequence subSequence(int from, int to) {
+			return toString().subSequence(from, to);
+		}
+
+		@Override
+		public String toString() {
+			return new String(scratchCopy(start, length), 0, length, StandardCharsets.ISO_8859_1);
+		}
+	}
+
+	private byte[] scratchCopy(int start, int length) {
+		if (scratch.length < length) {
+			scratch = new byte[Math.max(length, 2 * scratch.length)];
+		}
+		for (int i = 0; i < length; i++) {
+			scratch[i] = buffer.get(start + i);
+		}
+		return scratch;
+	}
+
+	/**
+	 * Parses a field of the current line as a decimal integer.
+	 *
+	 * @param field the field index
+	 * @return the field value
+	 * @throws NumberFormatException if the field is not an integer
+	 */
+	public int intValue(int field) {
+		int i = starts[field];
+		int end = ends[field];
+		boolean negative = i < end && buffer.get(i) == '-';
+		if (negative) {
+			i++;
+		}
+		if (i == end) {
+			throw new NumberFormatException("Empty number at offset " + offset(field));
+		}
+		int value = 0;
+		for (; i < end; i++) {
+			int digit = buffer.get(i) - '0';
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException("Invalid number at offset " + offset(field));
+			}
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parses a field of the current line in the form yyyy-mm-dd. The same
+	 * Date instance is returned while consecutive lines share a date.
+	 *
+	 * @param field the field index
+	 * @return the field value
+	 * @throws IllegalArgumentException if the field is not a date
+	 */
+	public Date date(int field) {
+		int start = starts[field];
+		if (ends[field] - start != 10 || buffer.get(start + 4) != '-' || buffer.get(start + 7) != '-') {
+			throw new IllegalArgumentException("Invalid date at offset " + offset(field));
+		}
+		int year = digits(start, 4);
+		int month = digits(start + 5, 2);
+		int day = digits(start + 8, 2);
+		if (lastDate == null || year != lastYear || month != lastMonth || day != lastDay) {
+			lastDate = Date.valueOf(LocalDate.of(year, month, day));
+			lastYear = year;
+			lastMonth = month;
+			lastDay = day;
+		}
+		return lastDate;
+	}
+
+	private int digits(int start, int count) {
+		int value = 0;
+		for (int i = start; i < start + count; i++) {
+			int digit = buffer.get(i) - '0';
+			if (digit < 0 || digit > 9) {
+				throw new IllegalArgumentException("Invalid date at offset " + (bufferOffset + start));
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	@Override
+	public void close() throws IOException {
+		buffer = null;
+		channel.close();
+	}
+}
@@ -0,0 +1,57 @@
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Compares the hand-written UUID validator and codec in {@link Uuids} with
+ * the regex check that StoredFunctions.isUuid used and with java.util.UUID.
+ *
+ * Usage: UuidBenchmark [iterations]
+ */
+public class UuidBenchmark {
+
+	/** the check previously used by StoredFunctions.isUuid */
+	static boolean regexIsUuid(String uuid) {
+		return uuid.matches("^[0-9A-Fa-f]{8}-[0-9A-Fa-f]{4}-[0-9A-Fa-f]{4}-[0-9A-Fa-f]{4}-[0-9A-Fa-f]{12}$");
+	}
+
+	public static void main(String[] args) {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+		// a mix of valid IDs and invalid ones of the right length
+		Random random = new Random(42);
+		String[] ids = new String[1024];
+		for (int i = 0; i < ids.length; i++) {
+			String id = new UUID(random.nextLong(), random.nextLong()).toString();
+			ids[i] = i % 8 == 0 ? id.replace('-', 'x') : i % 2 == 0 ? id.toUpperCase() : id;
+		}
+		int mask = ids.length - 1;
+
+		// the implementations must agree before they are timed
+		for (String id : ids) {
+			if (regexIsUuid(id) != Uuids.isUuid(id)) {
+				throw new AssertionError("Validators disagree on " + id);
+			}
+			if (Uuids.isUuid(id) && !Uuids.toUuid(id).equals(UUID.fromString(id))) {
+				throw new AssertionError("Parsers disagree on " + id);
+			}
+		}
+
+		MicroBench bench = new MicroBench(iterations);
+		bench.run("isUuid regex", i -> regexIsUuid(ids[i & mask]) ? 1 : 0);
+		bench.run("isUuid hand-written", i -> Uuids.isUuid(ids[i & mask]) ? 1 : 0);
+		bench.run("parse UUID.fromString", i -> {
+			String id = ids[i & mask | 1];
+			return UUID.fromString(id).getLeastSignificantBits();
+		});
+		bench.run("parse Uuids bits", i -> {
+			String id = ids[i & mask | 1];
+			return Uuids.mostSigBits(id) ^ Uuids.leastSigBits(id);
+		});
+		byte[] bytes = new byte[Uuids.BYTES];
+		bench.run("encode Uuids.toBytes", i -> {
+			Uuids.toBytes(i, ~i, bytes, 0);
+			return bytes[15];
+		});
+		bench.run("decode Uuids.fromBytes", i -> Uuids.fromBytes(bytes).length());
+	}
+}
@@ -0,0 +1,223 @@
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Allocation-free validation and parsing of UUID strings, and a binary codec
+ * that stores a UUID as two longs or 16 bytes, so that IDs can be parsed once
+ * on ingest and compared as numbers afterwards.
+ *
+ * The accepted text form is the one matched by StoredFunctions.isUuid:
+ * 8-4-4-4-12 hexadecimal digits in either case.
+ */
+public class Uuids {
+
+	/** length of the text form */
+	static final int LENGTH = 36;
+
+	/** length of the binary form */
+	static final int BYTES = 16;
+
+	// hex digit values indexed by character, -1 if not a hex digit
+	private static final byte[] HEX = new byte[128];
+	static {
+		Arrays.fill(HEX, (byte) -1);
+		for (int i = 0; i < 10; i++) {
+			HEX['0' + i] = (byte) i;
+		}
+		for (int i = 0; i < 6; i++) {
+			HEX['a' + i] = (byte) (10 + i);
+			HEX['A' + i] = (byte) (10 + i);
+		}
+	}
+
+	private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Determines whether a string conforms to the pattern for a UUID.
+	 *
+	 * @param s the string
+	 * @return true if the string is a valid UUID
+	 */
+	public static boolean isUuid(CharSequence s) {
+		if (!hasDashes(s)) {
+			return false;
+		}
+		// OR together the digit values so any invalid character makes the result negative
+		int digits = hexDigits(s, 0, 8) | hexDigits(s, 9, 13) | hexDigits(s, 14, 18)
+				| hexDigits(s, 19, 23) | hexDigits(s, 24, LENGTH);
+		return digits >= 0;
+	}
+
+	/**
+	 * Determines whether a string is a UUID in lower case, the form that
+	 * {@link #toString(long, long)} produces, so that parsing it and
+	 * formatting the halves gives back the same text.
+	 *
+	 * @param s the string
+	 * @return true if the string is a valid UUID with no upper case digits
+	 */
+	public static boolean isLowerCase(CharSequence s) {
+		if (!isUuid(s)) {
+			return false;
+		}
+		for (int i = 0; i < LENGTH; i++) {
+			char c = s.charAt(i);
+			if (c >= 'A' && c <= 'F') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks the length and dash positions of a UUID string.
+	 */
+	private static boolean hasDashes(CharSequence s) {
+		return s != null && s.length() == LENGTH
+				&& s.charAt(8) == '-' && s.charAt(13) == '-' && s.charAt(18) == '-' && s.charAt(23) == '-';
+	}
+
+	/**
+	 * Gets the value of a hex digit, or -1 if the character is not one.
+	 */
+	private static int hex(char c) {
+		return c < 128 ? HEX[c] : -1;
+	}
+
+	private static int hexDigits(CharSequence s, int start, int end) {
+		int digits = 0;
+		for (int i = start; i < end; i++) {
+			digits |= hex(s.charAt(i));
+		}
+		return digits;
+	}
+
+	/**
+	 * Shifts a run of hex digits into a value.
+	 */
+	private static long hexBits(CharSequence s, int start, int end, long bits) {
+		for (int i = start; i < end; i++) {
+			int digit = hex(s.charAt(i));
+			if (digit < 0) {
+				throw new IllegalArgumentException("Invalid UUID: " + s);
+			}
+			bits = (bits << 4) | digit;
+		}
+		return bits;
+	}
+
+	/**
+	 * Gets the most significant 64 bits of a UUID string.
+	 *
+	 * @param s a valid UUID string
+	 * @return the high bits
+	 * @throws IllegalArgumentException if the string is not a UUID
+	 */
+	public static long mostSigBits(CharSequence s) {
+		if (!hasDashes(s)) {
+			throw new IllegalArgumentException("Invalid UUID: " + s);
+		}
+		return hexBits(s, 14, 18, hexBits(s, 9, 13, hexBits(s, 0, 8, 0)));
+	}
+
+	/**
+	 * Gets the least significant 64 bits of a UUID string.
+	 *
+	 * @param s a valid UUID string
+	 * @return the low bits
+	 * @throws IllegalArgumentException if the string is not a UUID
+	 */
+	public static long leastSigBits(CharSequence s) {
+		if (!hasDashes(s)) {
+			throw new IllegalArgumentException("Invalid UUID: " + s);
+		}
+		return hexBits(s, 24, LENGTH, hexBits(s, 19, 23, 0));
+	}
+
+	/**
+	 * Formats a UUID in lower case text form.
+	 *
+	 * @param msb the high bits
+	 * @param lsb the low bits
+	 * @return the text form
+	 */
+	public static String toString(long msb, long lsb) {
+		char[] out = new char[LENGTH];
+		int pos = 0;
+		for (int i = 0; i < 32; i++) {
+			if (i == 8 || i == 12 || i == 16 || i == 20) {
+				out[pos++] = '-';
+			}
+			long bits = i < 16 ? msb : lsb;
+			int shift = 60 - 4 * (i % 16);
+			out[pos++] = DIGITS[(int) (bits >>> shift) & 0xf];
+		}
+		return new String(out);
+	}
+
+	/**
+	 * Encodes a UUID as 16 big-endian bytes.
+	 *
+	 * @param msb the high bits
+	 * @param lsb the low bits
+	 * @param dst the array to write into
+	 * @param offset the index of the first byte
+	 */
+	public static void toBytes(long msb, long lsb, byte[] dst, int offset) {
+		for (int i = 0; i < 8; i++) {
+			dst[offset + i] = (byte) (msb >>> (56 - 8 * i));
+			dst[offset + 8 + i] = (byte) (lsb >>> (56 - 8 * i));
+		}
+	}
+
+	/**
+	 * Encodes a UUID string as 16 big-endian bytes.
+	 *
+	 * @param s a valid UUID string
+	 * @return the binary form
+	 */
+	public static byte[] toBytes(CharSequence s) {
+		byte[] bytes = new byte[BYTES];
+		toBytes(mostSigBits(s), leastSigBits(s), bytes, 0);
+		return bytes;
+	}
+
+	/**
+	 * Reads one half of a UUID from its binary form.
+	 *
+	 * @param src the binary form
+	 * @param offset 0 for the high bits, 8 for the low bits
+	 * @return the bits
+	 */
+	public static long bits(byte[] src, int offset) {
+		long bits = 0;
+		for (int i = 0; i < 8; i++) {
+			bits = (bits << 8) | (src[offset + i] & 0xff);
+		}
+		return bits;
+	}
+
+	/**
+	 * Decodes the binary form of a UUID to its text form.
+	 *
+	 * @param src the 16 byte binary form
+	 * @return the text form
+	 */
+	public static String fromBytes(byte[] src) {
+		if (src.length != BYTES) {
+			throw new IllegalArgumentException("UUID must be " + BYTES + " bytes");
+		}
+		return toString(bits(src, 0), bits(src, 8));
+	}
+
+	/**
+	 * Converts a UUID string to a java.util.UUID. Unlike UUID.fromString,
+	 * this only accepts the full 8-4-4-4-12 form.
+	 *
+	 * @param s a valid UUID string
+	 * @return the UUID
+	 */
+	public static UUID toUuid(CharSequence s) {
+		return new UUID(mostSigBits(s), leastSigBits(s));
+	}
+}
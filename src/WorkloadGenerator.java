@@ -0,0 +1,571 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+/**
+ * Generates a synthetic iRate workload of customers, movies, attendances,
+ * reviews and endorsements, streamed customer by customer into Derby or
+ * into one TSV file per table.
+ *
+ * The data follows the shape of real review sites:
+ * 	1) movie popularity follows a Zipf distribution, so a few movies draw
+ * 	   most attendances, reviews and endorsements
+ * 	2) the number of attendances of a customer is log-normal, so most
+ * 	   customers are occasional and a few are very active
+ * 	3) each movie has a quality around which its ratings are spread
+ *
+ * and it satisfies the rules checked by the schema:
+ * 	1) a review is written on the day of an attendance of the movie or up
+ * 	   to StoredFunctions.ATTENDANCE_DAYS days after
+ * 	2) a customer reviews a movie at most once
+ * 	3) a customer never endorses their own review, and endorses reviews of
+ * 	   a movie at most once, which keeps them to one a day
+ *
+ * Endorsed reviews are drawn from a ring of the most recent reviews, so the
+ * generator needs memory for that ring and one customer only, whatever the
+ * number of customers. The same configuration and seed always produce the
+ * same rows.
+ *
+ * The TSV files have the columns of the tables in table order, and can be
+ * loaded in the order Customer, Movie, Attendance, Review, Endorsement, for
+ * example with SYSCS_UTIL.SYSCS_IMPORT_TABLE.
+ *
+ * Usage: WorkloadGenerator [-customers n] [-movies n] [-zipf s] [-attendances mean]
+ * 	[-reviewRate p] [-endorsements mean] [-days n] [-seed n] [-tsv dir]
+ */
+public class WorkloadGenerator {
+
+	/** spread of the log-normal number of attendances and endorsements of a customer */
+	static final double ACTIVITY_SIGMA = 1.0;
+
+	/** spread of the ratings of a movie around its quality */
+	static final double RATING_SIGMA = 0.9;
+
+	/** number of recent reviews from which endorsed reviews are drawn */
+	static final int RECENT_REVIEWS = 100_000;
+
+	/** default number of rows per JDBC batch */
+	static final int DEFAULT_BATCH_SIZE = 1000;
+
+	/** default number of rows per commit */
+	static final int DEFAULT_COMMIT_INTERVAL = 10000;
+
+	// words of the generated review texts
+	private static final String[] WORDS = {
+		"great", "slow", "funny", "long", "moving", "loud", "clever", "dull", "tense", "charming",
+		"acting", "plot", "ending", "score", "visuals", "script", "pacing", "cast"
+	};
+
+	/**
+	 * The size and shape of a workload.
+	 */
+	static class Config {
+		int customers = 10_000;
+		int movies = 1_000;
+		double zipfExponent = 1.0;
+		double meanAttendances = 20;
+		double reviewRate = 0.3;
+		double meanEndorsements = 5;
+		LocalDate start = LocalDate.of(2019, 1, 1);
+		int days = 365;
+		long seed = 42;
+	}
+
+	/**
+	 * Receives the generated rows. Parent rows are always passed before the
+	 * rows that reference them.
+	 */
+	interface Sink extends AutoCloseable {
+		void movie(String movieId, String title) throws IOException, SQLException;
+
+		void customer(String customerId, String name, String email, Date joined) throws IOException, SQLException;
+
+		void attendance(String movieId, String customerId, Date date) throws IOException, SQLException;
+
+		void review(String reviewId, String customerId, String movieId, Date date, int rating, String text)
+				throws IOException, SQLException;
+
+		void endorsement(String reviewId, String endorserId, Date date) throws IOException, SQLException;
+
+		@Override
+		void close() throws IOException, SQLException;
+	}
+
+	/**
+	 * Samples ranks from 0 to n - 1 with probability proportional to
+	 * 1 / (rank + 1)^s, by binary search of the cumulative distribution.
+	 */
+	static class Zipf {
+		private final double[] cdf;
+
+		Zipf(int n, double s) {
+			cdf = new double[n];
+			double sum = 0;
+			for (int i = 0; i < n; i++) {
+				sum += 1 / Math.pow(i + 1, s);
+				cdf[i] = sum;
+			}
+			for (int i = 0; i < n; i++) {
+				cdf[i] /= sum;
+			}
+		}
+
+		int sample(SplittableRandom random) {
+			int i = Arrays.binarySearch(cdf, random.nextDouble());
+			return Math.min(i >= 0 ? i : -i - 1, cdf.length - 1);
+		}
+	}
+
+	/**
+	 * The most recent reviews, overwritten oldest first.
+	 */
+	private static class ReviewRing {
+		final String[] reviewIds;
+		final int[] authors;
+		final int[] movies;
+		final int[] days;
+		int size;
+		int next;
+
+		ReviewRing(int capacity) {
+			reviewIds = new String[capacity];
+			authors = new int[capacity];
+			movies = new int[capacity];
+			days = new int[capacity];
+		}
+
+		void add(String reviewId, int author, int movie, int day) {
+			reviewIds[next] = reviewId;
+			authors[next] = author;
+			movies[next] = movie;
+			days[next] = day;
+			next = (next + 1) % reviewIds.length;
+			size = Math.min(size + 1, reviewIds.length);
+		}
+	}
+
+	/**
+	 * Numbers of rows generated.
+	 */
+	static class Counts {
+		long customers;
+		long movies;
+		long attendances;
+		long reviews;
+		long endorsements;
+	}
+
+	private final Config config;
+	private final SplittableRandom random;
+	private final Counts counts = new Counts();
+
+	// IDs of the movies, by popularity rank
+	private final String[] movieIds;
+
+	// per movie mean rating
+	private final double[] quality;
+
+	/**
+	 * @param config the size and shape of the workload
+	 */
+	public WorkloadGenerator(Config config) {
+		this.config = config;
+		this.random = new SplittableRandom(config.seed);
+		this.movieIds = new String[config.movies];
+		this.quality = new double[config.movies];
+	}
+
+	/**
+	 * @return the numbers of rows generated so far
+	 */
+	Counts counts() {
+		return counts;
+	}
+
+	/**
+	 * Generates a random version 4 UUID from the seeded generator.
+	 */
+	private String uuid() {
+		long msb = (random.nextLong() & ~0xF000L) | 0x4000L;
+		long lsb = (random.nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+		return Uuids.toString(msb, lsb);
+	}
+
+	/**
+	 * Draws a standard normal value (Box-Muller).
+	 */
+	private double gaussian() {
+		return Math.sqrt(-2 * Math.log(1 - random.nextDouble())) * Math.cos(2 * Math.PI * random.nextDouble());
+	}
+
+	/**
+	 * Draws a log-normal count with the given mean.
+	 */
+	private int logNormal(double mean) {
+		double mu = Math.log(mean) - ACTIVITY_SIGMA * ACTIVITY_SIGMA / 2;
+		return (int) Math.min(Math.exp(mu + ACTIVITY_SIGMA * gaussian()), Integer.MAX_VALUE / 2);
+	}
+
+	private Date date(int day) {
+		return Date.valueOf(config.start.plusDays(day));
+	}
+
+	/**
+	 * Generates the whole workload into a sink.
+	 *
+	 * @param sink the sink
+	 * @throws IOException if a file cannot be written
+	 * @throws SQLException if a database operation fails
+	 */
+	public void generate(Sink sink) throws IOException, SQLException {
+		for (int m = 0; m < config.movies; m++) {
+			movieIds[m] = uuid();
+			quality[m] = 1.5 + 3 * random.nextDouble();
+			sink.movie(movieIds[m], "Movie " + m);
+			counts.movies++;
+		}
+
+		Zipf popularity = new Zipf(config.movies, config.zipfExponent);
+		ReviewRing recent = new ReviewRing(RECENT_REVIEWS);
+		for (int c = 0; c < config.customers; c++) {
+			customer(c, popularity, recent, sink);
+		}
+	}
+
+	/**
+	 * Generates one customer with their attendances, reviews and
+	 * endorsements.
+	 */
+	private void customer(int c, Zipf popularity, ReviewRing recent, Sink sink) throws IOException, SQLException {
+		int lastDay = config.days - 1;
+		String customerId = uuid();
+		int joined = random.nextInt(config.days);
+		sink.customer(customerId, "Customer " + c, "customer" + c + "@example.com", date(joined));
+		counts.customers++;
+
+		// attendances in date order, each packed as day and movie
+		int attendances = Math.max(1, logNormal(config.meanAttendances));
+		long[] attended = new long[attendances];
+		for (int i = 0; i < attendances; i++) {
+			int day = joined + random.nextInt(config.days - joined);
+			attended[i] = (long) day << 32 | popularity.sample(random);
+		}
+		Arrays.sort(attended);
+
+		Set<Integer> reviewed = new HashSet<>();
+		for (long attendance : attended) {
+			int day = (int) (attendance >>> 32);
+			int movie = (int) attendance;
+			sink.attendance(movieIds[movie], customerId, date(day));
+			counts.attendances++;
+
+			if (random.nextDouble() < config.reviewRate && reviewed.add(movie)) {
+				int reviewDay = Math.min(day + random.nextInt(StoredFunctions.ATTENDANCE_DAYS + 1), lastDay);
+				int rating = (int) Math.round(quality[movie] + RATING_SIGMA * gaussian());
+				rating = Math.max(1, Math.min(5, rating));
+				String reviewId = uuid();
+				sink.review(reviewId, customerId, movieIds[movie], date(reviewDay), rating,
+						WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)]);
+				counts.reviews++;
+				recent.add(reviewId, c, movie, reviewDay);
+			}
+		}
+
+		// endorsements of recent reviews, which are mostly of popular movies
+		int endorsements = recent.size == 0 ? 0 : logNormal(config.meanEndorsements);
+		Set<Integer> endorsed = new HashSet<>();
+		for (int i = 0; i < endorsements; i++) {
+			int r = random.nextInt(recent.size);
+			int first = Math.max(recent.days[r], joined);
+			if (recent.authors[r] == c || first > lastDay || !endorsed.add(recent.movies[r])) {
+				continue;
+			}
+			int day = first + random.nextInt(lastDay - first + 1);
+			sink.endorsement(recent.reviewIds[r], customerId, date(day));
+			counts.endorsements++;
+		}
+	}
+
+	/**
+	 * Writes one TSV file per table.
+	 */
+	static class TsvSink implements Sink {
+		private final BufferedWriter customers;
+		private final BufferedWriter movies;
+		private final BufferedWriter attendances;
+		private final BufferedWriter reviews;
+		private final BufferedWriter endorsements;
+
+		/**
+		 * @param dir the directory of the files, created if needed
+		 * @throws IOException if a file cannot be created
+		 */
+		TsvSink(Path dir) throws IOException {
+			Files.createDirectories(dir);
+			customers = Files.newBufferedWriter(dir.resolve("Customer.tsv"), StandardCharsets.UTF_8);
+			movies = Files.newBufferedWriter(dir.resolve("Movie.tsv"), StandardCharsets.UTF_8);
+			attendances = Files.newBufferedWriter(dir.resolve("Attendance.tsv"), StandardCharsets.UTF_8);
+			reviews = Files.newBufferedWriter(dir.resolve("Review.tsv"), StandardCharsets.UTF_8);
+			endorsements = Files.newBufferedWriter(dir.resolve("Endorsement.tsv"), StandardCharsets.UTF_8);
+		}
+
+		private static void write(BufferedWriter out, Object... fields) throws IOException {
+			for (int i = 0; i < fields.length; i++) {
+				if (i > 0) {
+					out.write('\t');
+				}
+				out.write(String.valueOf(fields[i]));
+			}
+			out.write('\n');
+		}
+
+		@Override
+		public void movie(String movieId, String title) throws IOException {
+			write(movies, title, movieId);
+		}
+
+		@Override
+		public void customer(String customerId, String name, String email, Date joined) throws IOException {
+			write(customers, name, email, joined, customerId);
+		}
+
+		@Override
+		public void attendance(String movieId, String customerId, Date date) throws IOException {
+			write(attendances, movieId, customerId, date);
+		}
+
+		@Override
+		public void review(String reviewId, String customerId, String movieId, Date date, int rating, String text)
+				throws IOException {
+			write(reviews, reviewId, customerId, movieId, date, rating, text);
+		}
+
+		@Override
+		public void endorsement(String reviewId, String endorserId, Date date) throws IOException {
+			write(endorsements, reviewId, endorserId, date);
+		}
+
+		@Override
+		public void close() throws IOException {
+			for (BufferedWriter out : new BufferedWriter[] {customers, movies, attendances, reviews, endorsements}) {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Inserts the rows into Derby with JDBC batches, executed in foreign key
+	 * order and committed at a fixed interval. Attendance and Endorsement
+	 * rows are routed to their monthly partitions if the tables are
+	 * partitioned. Rows go through the schema's CHECK constraints and
+	 * triggers like any other insert.
+	 */
+	static class DerbySink implements Sink {
+		private final Connection conn;
+		private final int batchSize;
+		private final int commitInterval;
+		private final PreparedStatement customers;
+		private final PreparedStatement movies;
+		private final DatePartitions.Router attendances;
+		private final PreparedStatement reviews;
+		private final DatePartitions.Router endorsements;
+
+		private int batched = 0;		// rows added since the last executeBatch
+		private int uncommitted = 0;	// rows added since the last commit
+
+		/**
+		 * Creates a sink on an open connection, turning auto-commit off.
+		 *
+		 * @param conn the connection
+		 * @param batchSize rows per JDBC batch
+		 * @param commitInterval rows per commit
+		 * @throws SQLException if a database operation fails
+		 */
+		DerbySink(Connection conn, int batchSize, int commitInterval) throws SQLException {
+			this.conn = conn;
+			this.batchSize = batchSize;
+			this.commitInterval = commitInterval;
+			conn.setAutoCommit(false);
+			customers = conn.prepareStatement(
+					"insert into Customer (Name, Email, Date, CustomerID) values(?, ?, ?, ?)");
+			movies = conn.prepareStatement("insert into Movie (Title, MovieID) values(?, ?)");
+			attendances = new DatePartitions.Router(conn, DatePartitions.ATTENDANCE, "MovieID, CustomerID, Date");
+			reviews = conn.prepareStatement(
+					"insert into Review (ReviewID, CustomerID, MovieID, ReviewDate, Rating, Review) values(?, ?, ?, ?, ?, ?)");
+			endorsements = new DatePartitions.Router(conn, DatePartitions.ENDORSEMENT,
+					"ReviewID, EndorserID, EndorsementDate");
+		}
+
+		@Override
+		public void movie(String movieId, String title) throws SQLException {
+			movies.setString(1, title);
+			BinaryIds.setId(movies, 2, movieId);
+			movies.addBatch();
+			added();
+		}
+
+		@Override
+		public void customer(String customerId, String name, String email, Date joined) throws SQLException {
+			customers.setString(1, name);
+			customers.setString(2, email);
+			customers.setDate(3, joined);
+			BinaryIds.setId(customers, 4, customerId);
+			customers.addBatch();
+			added();
+		}
+
+		@Override
+		public void attendance(String movieId, String customerId, Date date) throws SQLException {
+			PreparedStatement stmt = attendances.statement(date);
+			BinaryIds.setId(stmt, 1, movieId);
+			BinaryIds.setId(stmt, 2, customerId);
+			stmt.setDate(3, date);
+			stmt.addBatch();
+			added();
+		}
+
+		@Override
+		public void review(String reviewId, String customerId, String movieId, Date date, int rating, String text)
+				throws SQLException {
+			BinaryIds.setId(reviews, 1, reviewId);
+			BinaryIds.setId(reviews, 2, customerId);
+			BinaryIds.setId(reviews, 3, movieId);
+			reviews.setDate(4, date);
+			reviews.setInt(5, rating);
+			reviews.setString(6, text);
+			reviews.addBatch();
+			added();
+		}
+
+		@Override
+		public void endorsement(String reviewId, String endorserId, Date date) throws SQLException {
+			PreparedStatement stmt = endorsements.statement(date);
+			BinaryIds.setId(stmt, 1, reviewId);
+			BinaryIds.setId(stmt, 2, endorserId);
+			stmt.setDate(3, date);
+			stmt.addBatch();
+			added();
+		}
+
+		private void added() throws SQLException {
+			if (++batched >= batchSize) {
+				executeBatches();
+			}
+			if (++uncommitted >= commitInterval) {
+				executeBatches();
+				DatePartitions.commit(conn);
+				uncommitted = 0;
+			}
+		}
+
+		/**
+		 * Executes the queued batches, parents first.
+		 */
+		private void executeBatches() throws SQLException {
+			if (batched == 0) {
+				return;
+			}
+			try {
+				movies.executeBatch();
+				customers.executeBatch();
+				attendances.executeBatch();
+				reviews.executeBatch();
+				endorsements.executeBatch();
+			} catch (BatchUpdateException ex) {
+				DatePartitions.rollback(conn);
+				throw new SQLException("Batch insert of generated rows failed", ex);
+			}
+			batched = 0;
+		}
+
+		@Override
+		public void close() throws SQLException {
+			try {
+				executeBatches();
+				DatePartitions.commit(conn);
+			} finally {
+				customers.close();
+				movies.close();
+				attendances.close();
+				reviews.close();
+				endorsements.close();
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		Config config = new Config();
+		Path tsvDir = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-customers")) {
+				config.customers = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-movies")) {
+				config.movies = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-zipf")) {
+				config.zipfExponent = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("-attendances")) {
+				config.meanAttendances = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("-reviewRate")) {
+				config.reviewRate = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("-endorsements")) {
+				config.meanEndorsements = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("-days")) {
+				config.days = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-seed")) {
+				config.seed = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-tsv")) {
+				tsvDir = Paths.get(args[++i]);
+			}
+		}
+
+		WorkloadGenerator generator = new WorkloadGenerator(config);
+		long start = System.nanoTime();
+		if (tsvDir != null) {
+			try (TsvSink sink = new TsvSink(tsvDir)) {
+				generator.generate(sink);
+			} catch (IOException | SQLException e) {
+				e.printStackTrace();
+			}
+		} else {
+			Properties props = new Properties(); // connection properties
+			props.put("user", "user1");
+			props.put("password", "user1");
+			try (
+				Connection conn = DriverManager.getConnection("jdbc:derby:irate", props);
+				DerbySink sink = new DerbySink(conn, DEFAULT_BATCH_SIZE, DEFAULT_COMMIT_INTERVAL);
+			) {
+				// stored functions called from Java on this thread use the same connection
+				FunctionContext.bind(conn);
+				try {
+					generator.generate(sink);
+				} finally {
+					FunctionContext.bind(null);
+				}
+			} catch (IOException | SQLException e) {
+				e.printStackTrace();
+			}
+		}
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		Counts counts = generator.counts();
+		long rows = counts.customers + counts.movies + counts.attendances + counts.reviews + counts.endorsements;
+		System.out.printf("Generated %d customers, %d movies, %d attendances, %d reviews, %d endorsements"
+				+ " in %.2f s, %.0f rows/sec\n", counts.customers, counts.movies, counts.attendances,
+				counts.reviews, counts.endorsements, seconds, rows / seconds);
+	}
+}